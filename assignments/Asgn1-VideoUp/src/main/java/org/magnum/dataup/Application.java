@@ -17,14 +17,28 @@
  */
 package org.magnum.dataup;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
 import javax.servlet.MultipartConfigElement;
 
+import org.magnum.dataup.repository.IdAllocator;
+import org.magnum.dataup.repository.VideoCatalog;
+import org.magnum.dataup.storage.IntegrityScrubber;
+import org.magnum.dataup.storage.ScrubberMetricsEndpoint;
+import org.magnum.dataup.transfer.TransferMetricsEndpoint;
+import org.magnum.dataup.transfer.TransferScheduler;
+
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.boot.context.embedded.MultiPartConfigFactory;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.web.multipart.MultipartResolver;
+import org.springframework.web.multipart.support.StandardServletMultipartResolver;
 import org.springframework.web.servlet.config.annotation.EnableWebMvc;
 
 // This annotation tells Spring to auto-wire your application
@@ -39,8 +53,6 @@ import org.springframework.web.servlet.config.annotation.EnableWebMvc;
 @Configuration
 public class Application {
 
-	private static final String MAX_REQUEST_SIZE = "150MB";
-
 	// The entry point to the application.
 	public static void main(String[] args) {
 		// This call tells spring to launch the application and
@@ -57,11 +69,117 @@ public class Application {
 		final MultiPartConfigFactory factory = new MultiPartConfigFactory();
 		// Place upper bounds on the size of the requests to ensure that
 		// clients don't abuse the web container by sending huge requests
-		factory.setMaxFileSize(MAX_REQUEST_SIZE);
-		factory.setMaxRequestSize(MAX_REQUEST_SIZE);
+		factory.setMaxFileSize(UploadSizeLimit.MAX_UPLOAD_SIZE);
+		factory.setMaxRequestSize(UploadSizeLimit.MAX_UPLOAD_SIZE);
 
 		// Return the configuration to setup multipart in the container
 		return factory.createMultipartConfig();
 	}
 
+	// By default, uploads to /video/{id}/data are parsed by the VideoSvcController
+	// while they arrive and written straight into the video's file, rather than
+	// being spooled by the web container first. The container's size limit
+	// above doesn't apply to them, so the controller enforces the same limit
+	// with an UploadSizeLimit. Launch the application with
+	// -Dvideo.upload.streaming=false to let the container parse them instead.
+	@Bean
+	public MultipartResolver multipartResolver(
+			@Value("${video.upload.streaming:true}") boolean streamUploads) {
+		return streamUploads ? new StreamingMultipartResolver()
+				: new StandardServletMultipartResolver();
+	}
+
+	// The limit on the uploads that the VideoSvcController parses itself,
+	// which is the same as the container's
+	@Bean
+	public UploadSizeLimit uploadSizeLimit() {
+		return new UploadSizeLimit(UploadSizeLimit.MAX_UPLOAD_SIZE);
+	}
+
+	// The video metadata is journaled to the "catalog" directory, and a
+	// snapshot is written every 100,000 changes so that the journal stays
+	// short. Both can be changed with -Dvideo.catalog.dir and
+	// -Dvideo.catalog.snapshotInterval.
+	@Bean(destroyMethod = "close")
+	public VideoCatalog videoCatalog(
+			@Value("${video.catalog.dir:catalog}") String dir,
+			@Value("${video.catalog.snapshotInterval:100000}") long snapshotInterval) throws IOException {
+		return VideoCatalog.open(Paths.get(dir), snapshotInterval);
+	}
+
+	// Video ids are taken in blocks of 1,000 from a counter in the "ids"
+	// directory, which every server on the host that should share the id
+	// space points at. Ids of videos that are already in the catalog or
+	// have data in the "videos" directory are never handed out again.
+	@Bean
+	public IdAllocator idAllocator(
+			@Value("${video.ids.dir:ids}") String dir,
+			@Value("${video.ids.blockSize:1000}") long blockSize,
+			VideoCatalog catalog) throws IOException {
+		long floor = Math.max(catalog.getMaxId(), VideoFileManager.get().getMaxVideoId());
+		return new IdAllocator(Paths.get(dir), blockSize, floor);
+	}
+
+	// Video data is read from and written to clients by a pool of up to
+	// 256 transfer threads, so that slow transfers don't tie up the web
+	// container's request threads. Up to 4096 more transfers wait for a
+	// thread, and any beyond that get a 503. A transfer that takes longer
+	// than an hour is cut off. These can be changed with
+	// -Dvideo.transfer.async=false (which moves the data on the request
+	// threads), -Dvideo.transfer.threads, -Dvideo.transfer.maxQueued and
+	// -Dvideo.transfer.timeout (in milliseconds, 0 for no limit).
+	@Bean(destroyMethod = "shutdown")
+	public VideoTransferExecutor videoTransferExecutor(
+			@Value("${video.transfer.async:true}") boolean async,
+			@Value("${video.transfer.threads:256}") int threads,
+			@Value("${video.transfer.maxQueued:4096}") int maxQueued,
+			@Value("${video.transfer.timeout:3600000}") long timeout,
+			TransferScheduler scheduler) {
+		return new VideoTransferExecutor(async, threads, maxQueued, timeout, scheduler);
+	}
+
+	// By default, transfers aren't limited. Launch the application with
+	// -Dvideo.transfer.maxBytesPerSecond to cap the bandwidth of all of the
+	// transfers together, and -Dvideo.transfer.maxClientBytesPerSecond to cap
+	// the transfers of each client. Under the global cap, downloads and
+	// uploads share the bandwidth fairly, in proportion to
+	// -Dvideo.transfer.downloadWeight and -Dvideo.transfer.uploadWeight.
+	@Bean
+	public TransferScheduler transferScheduler(
+			@Value("${video.transfer.maxBytesPerSecond:0}") long maxBytesPerSecond,
+			@Value("${video.transfer.maxClientBytesPerSecond:0}") long maxClientBytesPerSecond,
+			@Value("${video.transfer.downloadWeight:1}") double downloadWeight,
+			@Value("${video.transfer.uploadWeight:1}") double uploadWeight) {
+		return new TransferScheduler(maxBytesPerSecond, maxClientBytesPerSecond, downloadWeight, uploadWeight);
+	}
+
+	// The live throughput of every transfer is reported at /transfers
+	@Bean
+	public TransferMetricsEndpoint transferMetricsEndpoint(TransferScheduler scheduler) {
+		return new TransferMetricsEndpoint(scheduler);
+	}
+
+	// The stored video data is checked against its digests once a day by
+	// 2 low-priority threads, which read at most 8MB/s between them so that
+	// downloads always come first. These can be changed with
+	// -Dvideo.scrub.interval (in minutes, 0 turns the checks off),
+	// -Dvideo.scrub.threads and -Dvideo.scrub.maxBytesPerSecond (0 for no
+	// limit). The progress of the checks is reported at /scrubber.
+	@Bean(destroyMethod = "shutdown")
+	public IntegrityScrubber integrityScrubber(
+			@Value("${video.scrub.interval:1440}") long interval,
+			@Value("${video.scrub.threads:2}") int threads,
+			@Value("${video.scrub.maxBytesPerSecond:8388608}") long maxBytesPerSecond) throws IOException {
+		IntegrityScrubber scrubber = VideoFileManager.get().newIntegrityScrubber(threads, maxBytesPerSecond);
+		if (interval > 0) {
+			scrubber.schedule(interval, TimeUnit.MINUTES);
+		}
+		return scrubber;
+	}
+
+	@Bean
+	public ScrubberMetricsEndpoint scrubberMetricsEndpoint(IntegrityScrubber scrubber) {
+		return new ScrubberMetricsEndpoint(scrubber);
+	}
+
 }
@@ -0,0 +1,170 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An inclusive range of bytes [start, end] within a video's binary data, as
+ * requested by a client through the HTTP "Range" header (RFC 7233).
+ *
+ * Mobile players send requests like "Range: bytes=1000000-" when the user
+ * seeks, so that only the tail of the file needs to be transferred.
+ *
+ * @author jules
+ *
+ */
+public class ByteRange {
+
+	private static final String BYTES_UNIT = "bytes=";
+
+	// Clients that ask for more ranges than this are almost certainly
+	// trying to abuse the server, so we just send them the whole file
+	private static final int MAX_RANGES = 16;
+
+	/**
+	 * Parses the value of a "Range" header against a resource of the given
+	 * length.
+	 *
+	 * @param header
+	 *            the raw header value (e.g., "bytes=0-499,1000-")
+	 * @param length
+	 *            the total length of the resource in bytes
+	 * @return null if the header is missing or malformed (in which case the
+	 *         whole resource should be sent), an empty list if none of the
+	 *         ranges can be satisfied (416), or the satisfiable ranges
+	 */
+	public static List<ByteRange> parse(String header, long length) {
+		if (header == null || !header.startsWith(BYTES_UNIT)) {
+			return null;
+		}
+
+		String[] specs = header.substring(BYTES_UNIT.length()).split(",");
+		if (specs.length > MAX_RANGES) {
+			return null;
+		}
+
+		List<ByteRange> ranges = new ArrayList<ByteRange>(specs.length);
+		for (String spec : specs) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash < 0) {
+				return null;
+			}
+			try {
+				String first = spec.substring(0, dash).trim();
+				String last = spec.substring(dash + 1).trim();
+				long start;
+				long end;
+				if (first.isEmpty()) {
+					// A suffix range, e.g., "-500" means the last 500 bytes
+					if (last.isEmpty()) {
+						return null;
+					}
+					long suffix = Long.parseLong(last);
+					if (suffix == 0) {
+						continue;
+					}
+					start = Math.max(0, length - suffix);
+					end = length - 1;
+				} else {
+					start = Long.parseLong(first);
+					if (last.isEmpty()) {
+						end = length - 1;
+					} else {
+						end = Long.parseLong(last);
+						if (end < start) {
+							return null;
+						}
+						end = Math.min(end, length - 1);
+					}
+				}
+				// Ranges that start past the end of the file can't be satisfied
+				if (start < length) {
+					ranges.add(new ByteRange(start, end));
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		return coalesce(ranges);
+	}
+
+	// Sorts the ranges and merges the ones that overlap or touch so that
+	// we never send the same bytes twice
+	private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+		if (ranges.size() < 2) {
+			return ranges;
+		}
+		List<ByteRange> sorted = new ArrayList<ByteRange>(ranges);
+		Collections.sort(sorted, new Comparator<ByteRange>() {
+			@Override
+			public int compare(ByteRange a, ByteRange b) {
+				return Long.compare(a.start, b.start);
+			}
+		});
+
+		List<ByteRange> merged = new ArrayList<ByteRange>(sorted.size());
+		ByteRange current = sorted.get(0);
+		for (int i = 1; i < sorted.size(); i++) {
+			ByteRange next = sorted.get(i);
+			if (next.start <= current.end + 1) {
+				current = new ByteRange(current.start, Math.max(current.end, next.end));
+			} else {
+				merged.add(current);
+				current = next;
+			}
+		}
+		merged.add(current);
+		return merged;
+	}
+
+	private final long start;
+	private final long end;
+
+	public ByteRange(long start, long end) {
+		this.start = start;
+		this.end = end;
+	}
+
+	public long getStart() {
+		return start;
+	}
+
+	public long getEnd() {
+		return end;
+	}
+
+	public long getLength() {
+		return end - start + 1;
+	}
+
+	/**
+	 * Formats this range as the value of a "Content-Range" header.
+	 *
+	 * @param total
+	 * @return
+	 */
+	public String toContentRange(long total) {
+		return "bytes " + start + "-" + end + "/" + total;
+	}
+
+}
@@ -0,0 +1,131 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Evaluates the conditional headers of a GET request (If-None-Match and
+ * If-Modified-Since) against the validators of the current representation,
+ * so that a client whose copy is still current gets a 304 (Not Modified)
+ * with no body instead of the whole thing again.
+ *
+ * As in RFC 7232, If-Modified-Since is only looked at when there is no
+ * If-None-Match, since an entity tag is the more precise of the two.
+ *
+ * @author jules
+ *
+ */
+public class ConditionalGet {
+
+	private ConditionalGet() {
+	}
+
+	/**
+	 * Returns the strong entity tag (a quoted string) for a value that
+	 * changes whenever the representation does, e.g. a digest or version.
+	 *
+	 * @param value
+	 * @return
+	 */
+	public static String toETag(String value) {
+		return "\"" + value + "\"";
+	}
+
+	/**
+	 * Sets the validators on the response and, if the client's copy is
+	 * still current, answers the request with a 304. The caller must not
+	 * write a body if this returns true.
+	 *
+	 * @param request
+	 * @param response
+	 * @param etag
+	 *            the entity tag of the representation, or null if there is
+	 *            none
+	 * @param lastModified
+	 *            the time that the representation last changed, or -1 if it
+	 *            isn't known
+	 * @return
+	 */
+	public static boolean checkNotModified(HttpServletRequest request, HttpServletResponse response, String etag,
+			long lastModified) {
+		if (etag != null) {
+			response.setHeader("ETag", etag);
+		}
+		if (lastModified >= 0) {
+			response.setDateHeader("Last-Modified", lastModified);
+		}
+		if (isNotModified(request, etag, lastModified)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if the conditional headers of the request show that the
+	 * client already has the current representation.
+	 *
+	 * @param request
+	 * @param etag
+	 * @param lastModified
+	 * @return
+	 */
+	public static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			return etag != null && matches(ifNoneMatch, etag);
+		}
+		if (lastModified < 0) {
+			return false;
+		}
+		long since;
+		try {
+			since = request.getDateHeader("If-Modified-Since");
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		// HTTP dates only have a resolution of seconds
+		return since >= 0 && lastModified / 1000 <= since / 1000;
+	}
+
+	// Checks a list of entity tags using the weak comparison, which is what
+	// If-None-Match calls for
+	private static boolean matches(String header, String etag) {
+		String opaque = stripWeak(etag);
+		int start = 0;
+		while (start < header.length()) {
+			int end = header.indexOf(',', start);
+			if (end < 0) {
+				end = header.length();
+			}
+			String candidate = header.substring(start, end).trim();
+			if (candidate.equals("*") || stripWeak(candidate).equals(opaque)) {
+				return true;
+			}
+			start = end + 1;
+		}
+		return false;
+	}
+
+	private static String stripWeak(String etag) {
+		return etag.startsWith("W/") ? etag.substring(2) : etag;
+	}
+
+}
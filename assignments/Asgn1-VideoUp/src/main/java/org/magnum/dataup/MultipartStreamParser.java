@@ -0,0 +1,309 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * This class incrementally parses a multipart/form-data request body
+ * (RFC 2046) as it arrives from the client. Unlike the web container's
+ * multipart support, it never spools the request to a temp file or holds
+ * it in memory: the body of each part is exposed as a ReadableByteChannel
+ * that yields the part's bytes straight out of a small, fixed size buffer.
+ *
+ * A typical use looks like this:
+ *
+ *   MultipartStreamParser parser = new MultipartStreamParser(in, boundary);
+ *   while (parser.nextPart()) {
+ *      if ("data".equals(parser.getPartName())) {
+ *          ReadableByteChannel body = parser.getPartBody();
+ *          ...
+ *      }
+ *   }
+ *
+ * @author jules
+ *
+ */
+public class MultipartStreamParser {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+	private static final byte DASH = '-';
+
+	/**
+	 * Extracts the boundary parameter from a multipart Content-Type header.
+	 *
+	 * @param contentType
+	 * @return the boundary or null if the content type is not multipart
+	 */
+	public static String getBoundary(String contentType) {
+		if (contentType == null || !contentType.toLowerCase(Locale.ENGLISH).startsWith("multipart/")) {
+			return null;
+		}
+		String boundary = getParameter(contentType, "boundary");
+		return (boundary == null || boundary.isEmpty()) ? null : boundary;
+	}
+
+	// Returns the value of a "; name=value" parameter in a header value
+	private static String getParameter(String header, String name) {
+		for (String param : header.split(";")) {
+			param = param.trim();
+			int eq = param.indexOf('=');
+			if (eq > 0 && param.substring(0, eq).trim().equalsIgnoreCase(name)) {
+				String value = param.substring(eq + 1).trim();
+				if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+					value = value.substring(1, value.length() - 1);
+				}
+				return value;
+			}
+		}
+		return null;
+	}
+
+	private final InputStream in_;
+
+	// The delimiter that separates parts, which is always preceded by a
+	// CRLF except at the very beginning of the body
+	private final byte[] delimiter_;
+
+	private final byte[] buffer_ = new byte[BUFFER_SIZE];
+	private int pos_;
+	private int limit_;
+	private boolean eof_;
+
+	private final Map<String, String> headers_ = new HashMap<String, String>();
+
+	// True once the body of the current part (or the preamble before the
+	// first part) has been consumed up to the next delimiter
+	private boolean partDone_;
+
+	// True once the closing delimiter has been seen
+	private boolean finished_;
+
+	private ByteBuffer skipBuffer_;
+
+	private final ReadableByteChannel partBody_ = new ReadableByteChannel() {
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			return readBody(dst);
+		}
+
+		@Override
+		public boolean isOpen() {
+			return !partDone_;
+		}
+
+		@Override
+		public void close() {
+			// Closing the part body doesn't close the underlying request
+		}
+	};
+
+	public MultipartStreamParser(InputStream in, String boundary) {
+		in_ = in;
+		delimiter_ = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+
+		// Pretend the body starts with a CRLF so that the first delimiter
+		// looks exactly like all of the others
+		buffer_[0] = CR;
+		buffer_[1] = LF;
+		limit_ = 2;
+	}
+
+	/**
+	 * Skips over whatever is left of the current part and reads the headers
+	 * of the next one.
+	 *
+	 * @return false if there are no more parts in the body
+	 * @throws IOException
+	 */
+	public boolean nextPart() throws IOException {
+		if (finished_) {
+			return false;
+		}
+		if (skipBuffer_ == null) {
+			skipBuffer_ = ByteBuffer.allocate(8 * 1024);
+		}
+		while (readBody(skipBuffer_) >= 0) {
+			skipBuffer_.clear();
+		}
+		if (finished_) {
+			return false;
+		}
+
+		headers_.clear();
+		String line;
+		while (!(line = readLine()).isEmpty()) {
+			int colon = line.indexOf(':');
+			if (colon > 0) {
+				headers_.put(line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH),
+						line.substring(colon + 1).trim());
+			}
+		}
+		partDone_ = false;
+		return true;
+	}
+
+	/**
+	 * Returns the value of a header of the current part (case insensitive).
+	 *
+	 * @param name
+	 * @return
+	 */
+	public String getPartHeader(String name) {
+		return headers_.get(name.toLowerCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * Returns the form field name of the current part, as given by its
+	 * Content-Disposition header.
+	 *
+	 * @return
+	 */
+	public String getPartName() {
+		String disposition = getPartHeader("Content-Disposition");
+		return (disposition != null) ? getParameter(disposition, "name") : null;
+	}
+
+	/**
+	 * Returns a channel that reads the body of the current part. The channel
+	 * reports end of stream when the next delimiter is reached and is only
+	 * valid until nextPart() is called again.
+	 *
+	 * @return
+	 */
+	public ReadableByteChannel getPartBody() {
+		return partBody_;
+	}
+
+	private int readBody(ByteBuffer dst) throws IOException {
+		if (partDone_) {
+			return -1;
+		}
+		while (true) {
+			int delimiter = indexOfDelimiter();
+			if (delimiter == pos_) {
+				pos_ += delimiter_.length;
+				partDone_ = true;
+				readDelimiterSuffix();
+				return -1;
+			}
+
+			// Bytes that are in front of a delimiter, or that are too far
+			// from the end of the buffer to be the start of one, are data
+			int safe = (delimiter >= 0) ? delimiter : limit_ - (delimiter_.length - 1);
+			if (safe > pos_) {
+				int count = Math.min(safe - pos_, dst.remaining());
+				dst.put(buffer_, pos_, count);
+				pos_ += count;
+				return count;
+			}
+
+			if (!fill()) {
+				throw new EOFException("Multipart body ended before the closing boundary");
+			}
+		}
+	}
+
+	// Returns the position of the next delimiter in the buffer or -1
+	private int indexOfDelimiter() {
+		int last = limit_ - delimiter_.length;
+		outer: for (int i = pos_; i <= last; i++) {
+			if (buffer_[i] != CR) {
+				continue;
+			}
+			for (int j = 1; j < delimiter_.length; j++) {
+				if (buffer_[i + j] != delimiter_[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	// A delimiter is followed by "--" if it closes the body, otherwise by
+	// optional whitespace and a CRLF before the headers of the next part
+	private void readDelimiterSuffix() throws IOException {
+		ensureAvailable(2);
+		if (buffer_[pos_] == DASH && buffer_[pos_ + 1] == DASH) {
+			pos_ += 2;
+			finished_ = true;
+			return;
+		}
+		readLine();
+	}
+
+	// Reads a CRLF terminated line of US-ASCII text
+	private String readLine() throws IOException {
+		while (true) {
+			for (int i = pos_; i < limit_ - 1; i++) {
+				if (buffer_[i] == CR && buffer_[i + 1] == LF) {
+					String line = new String(buffer_, pos_, i - pos_, StandardCharsets.ISO_8859_1);
+					pos_ = i + 2;
+					return line;
+				}
+			}
+			if (pos_ == 0 && limit_ == buffer_.length) {
+				throw new IOException("Multipart header line is too long");
+			}
+			if (!fill()) {
+				throw new EOFException("Multipart body ended in the middle of a header");
+			}
+		}
+	}
+
+	private void ensureAvailable(int count) throws IOException {
+		while (limit_ - pos_ < count) {
+			if (!fill()) {
+				throw new EOFException("Multipart body ended after a boundary");
+			}
+		}
+	}
+
+	// Moves the unread bytes to the front of the buffer and reads more data
+	// from the stream behind them. Returns false at the end of the stream.
+	private boolean fill() throws IOException {
+		if (eof_) {
+			return false;
+		}
+		if (pos_ > 0) {
+			System.arraycopy(buffer_, pos_, buffer_, 0, limit_ - pos_);
+			limit_ -= pos_;
+			pos_ = 0;
+		}
+		int read = in_.read(buffer_, limit_, buffer_.length - limit_);
+		if (read < 0) {
+			eof_ = true;
+			return false;
+		}
+		limit_ += read;
+		return true;
+	}
+
+}
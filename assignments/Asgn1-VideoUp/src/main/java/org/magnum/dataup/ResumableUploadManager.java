@@ -0,0 +1,194 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.magnum.dataup.model.Video;
+
+/**
+ * This class keeps track of the resumable upload sessions that clients
+ * have started. The protocol is:
+ *
+ *  1. POST /video/{id}/upload?length={n} starts a session for n bytes
+ *  2. PUT /video/{id}/upload/{session}?offset={o} stores a chunk at offset o
+ *  3. GET /video/{id}/upload/{session} returns the committed offset
+ *  4. POST /video/{id}/upload/{session}/complete makes the data available
+ *
+ * A client that loses its connection asks for the committed offset and
+ * only resends the data that follows it.
+ *
+ * As the data of a session is preallocated when it starts, sessions are
+ * limited to the UploadSizeLimit, and only MAX_SESSIONS of them can be open
+ * at once. Abandoned sessions are expired whenever the sessions are used,
+ * along with any partial data that a server left behind when it restarted.
+ *
+ * @author jules
+ *
+ */
+public class ResumableUploadManager {
+
+	// Sessions that haven't seen a chunk for this long are abandoned and
+	// their partial data is removed
+	private static final long SESSION_TIMEOUT = TimeUnit.HOURS.toMillis(24);
+
+	// How often the sessions are checked for ones that have expired
+	private static final long EXPIRY_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+	public static final int MAX_SESSIONS = Integer.getInteger("video.upload.maxSessions", 100);
+
+	private final ConcurrentMap<String, UploadSession> sessions_ = new ConcurrentHashMap<String, UploadSession>();
+
+	private final AtomicLong lastExpiry_ = new AtomicLong();
+
+	public ResumableUploadManager() {
+		// Picks up the partial data that the last run left behind
+		lastExpiry_.set(System.currentTimeMillis());
+		expireSessions();
+	}
+
+	/**
+	 * Starts a new upload session for length bytes of data for the given
+	 * video.
+	 *
+	 * @param v
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 * @throws VideoServiceException
+	 * @throws UploadSizeLimit.TooLargeException
+	 *             if the length is over the UploadSizeLimit
+	 * @throws TooManyUploadsException
+	 *             if MAX_SESSIONS sessions are open already
+	 */
+	public UploadSession start(Video v, long length)
+			throws IOException, VideoServiceException, TooManyUploadsException {
+		if (length < 0) {
+			throw new VideoServiceException("Invalid upload length " + length);
+		}
+		if (length > UploadSizeLimit.MAX_UPLOAD_SIZE) {
+			throw new UploadSizeLimit.TooLargeException(UploadSizeLimit.MAX_UPLOAD_SIZE);
+		}
+		maybeExpireSessions();
+
+		String id = UUID.randomUUID().toString();
+		synchronized (this) {
+			// Checked and added together, so that concurrent starts can't
+			// overshoot the limit
+			if (sessions_.size() >= MAX_SESSIONS) {
+				throw new TooManyUploadsException("Too many uploads in progress, try again later");
+			}
+			UploadSession session = new UploadSession(id, v.getId(), length,
+					VideoFileManager.get().getUploadPath(id));
+			sessions_.put(id, session);
+			return session;
+		}
+	}
+
+	/**
+	 * Returns the session with the given id, which must belong to the given
+	 * video.
+	 *
+	 * @param v
+	 * @param sessionId
+	 * @return
+	 * @throws VideoNotFoundException
+	 */
+	public UploadSession get(Video v, String sessionId) throws VideoNotFoundException {
+		maybeExpireSessions();
+		UploadSession session = sessions_.get(sessionId);
+		if (session == null || session.getVideoId() != v.getId()) {
+			throw new VideoNotFoundException("Missing upload session [" + sessionId + "] for video [" + v.getId() + "]");
+		}
+		return session;
+	}
+
+	/**
+	 * Moves the data of a finished upload session into place as the data
+	 * for the given video and ends the session. If that fails, the session
+	 * stays open, so that the client can try to complete it again.
+	 *
+	 * @param v
+	 * @param sessionId
+	 * @throws IOException
+	 * @throws VideoNotFoundException
+	 * @throws VideoServiceException
+	 *             if some of the data hasn't been uploaded yet
+	 */
+	public void complete(Video v, String sessionId)
+			throws IOException, VideoNotFoundException, VideoServiceException {
+		UploadSession session = get(v, sessionId);
+		if (!session.isComplete()) {
+			throw new VideoServiceException("Upload [" + sessionId + "] is missing data after offset "
+					+ session.getCommittedOffset());
+		}
+		// Only one request gets to commit the data, and the session ends
+		// once the data has been committed
+		synchronized (session) {
+			if (sessions_.get(sessionId) != session) {
+				// Completed by a concurrent request
+				return;
+			}
+			VideoFileManager.get().commitVideoData(v, session.getFile());
+			sessions_.remove(sessionId, session);
+		}
+	}
+
+	// Expires the sessions at most once per EXPIRY_INTERVAL
+	private void maybeExpireSessions() {
+		long now = System.currentTimeMillis();
+		long last = lastExpiry_.get();
+		if (now - last >= EXPIRY_INTERVAL && lastExpiry_.compareAndSet(last, now)) {
+			expireSessions();
+		}
+	}
+
+	private void expireSessions() {
+		long cutoff = System.currentTimeMillis() - SESSION_TIMEOUT;
+		for (Map.Entry<String, UploadSession> entry : sessions_.entrySet()) {
+			UploadSession session = entry.getValue();
+			if (session.getLastAccess() >= cutoff) {
+				continue;
+			}
+			// Not while the session is being completed
+			synchronized (session) {
+				if (sessions_.remove(entry.getKey(), session)) {
+					try {
+						Files.deleteIfExists(session.getFile());
+					} catch (IOException e) {
+						// We'll have to leave the partial data behind
+					}
+				}
+			}
+		}
+		try {
+			// The data of sessions that no server knows about anymore
+			VideoFileManager.get().deleteUploadsOlderThan(cutoff);
+		} catch (IOException e) {
+			// We'll have to leave the partial data behind
+		}
+	}
+
+}
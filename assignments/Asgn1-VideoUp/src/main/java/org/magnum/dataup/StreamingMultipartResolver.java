@@ -0,0 +1,60 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.web.multipart.support.StandardServletMultipartResolver;
+
+/**
+ * A MultipartResolver that leaves video data uploads alone so that the
+ * VideoSvcController can parse them while they arrive.
+ *
+ * Spring normally asks the web container to parse every multipart request
+ * before it reaches a controller, which makes the container spool the
+ * whole upload (up to 150MB) to disk or memory first. This resolver reports
+ * POSTs to /video/{id}/data as non-multipart requests, which keeps the
+ * request body untouched. All other multipart requests are resolved as
+ * usual.
+ *
+ * @author jules
+ *
+ */
+public class StreamingMultipartResolver extends StandardServletMultipartResolver {
+
+	private static final Pattern STREAMED_PATH = Pattern.compile(VideoSvcController.VIDEO_SVC_PATH + "/[^/]+/data");
+
+	@Override
+	public boolean isMultipart(HttpServletRequest request) {
+		if (isStreamedUpload(request)) {
+			return false;
+		}
+		return super.isMultipart(request);
+	}
+
+	private boolean isStreamedUpload(HttpServletRequest request) {
+		if (!"POST".equals(request.getMethod())) {
+			return false;
+		}
+		String path = request.getRequestURI().substring(request.getContextPath().length());
+		return STREAMED_PATH.matcher(path).matches();
+	}
+
+}
@@ -0,0 +1,18 @@
+package org.magnum.dataup;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(value=HttpStatus.SERVICE_UNAVAILABLE)
+public class TooManyUploadsException extends Exception {
+
+	public TooManyUploadsException(String reason) {
+		super(reason);
+	}
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 1L;
+
+}
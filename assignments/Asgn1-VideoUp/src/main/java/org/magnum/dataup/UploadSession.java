@@ -0,0 +1,167 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.magnum.dataup.model.UploadStatus;
+
+/**
+ * A resumable upload of a video's binary data. The data is written into a
+ * file that is preallocated to the full length of the video, so chunks
+ * can be stored at their final positions in whatever order they arrive.
+ *
+ * Every chunk is forced to disk before it is recorded, and the committed
+ * offset only moves forward over the contiguous prefix of recorded chunks.
+ * A client can therefore always resume from the committed offset without
+ * the risk of leaving a hole in the data.
+ *
+ * @author jules
+ *
+ */
+public class UploadSession {
+
+	private final String id_;
+	private final long videoId_;
+	private final long length_;
+	private final Path file_;
+
+	// The chunks that have been stored, as start offset -> end offset
+	// (exclusive), with adjacent chunks merged together
+	private final TreeMap<Long, Long> stored_ = new TreeMap<Long, Long>();
+
+	private long committed_;
+	private volatile long lastAccess_;
+
+	public UploadSession(String id, long videoId, long length, Path file) throws IOException {
+		id_ = id;
+		videoId_ = videoId;
+		length_ = length;
+		file_ = file;
+		lastAccess_ = System.currentTimeMillis();
+
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+			raf.setLength(length);
+		}
+	}
+
+	public String getId() {
+		return id_;
+	}
+
+	public long getVideoId() {
+		return videoId_;
+	}
+
+	public long getLength() {
+		return length_;
+	}
+
+	public Path getFile() {
+		return file_;
+	}
+
+	public long getLastAccess() {
+		return lastAccess_;
+	}
+
+	public synchronized long getCommittedOffset() {
+		return committed_;
+	}
+
+	public synchronized boolean isComplete() {
+		return committed_ == length_;
+	}
+
+	public synchronized UploadStatus getStatus() {
+		return new UploadStatus(id_, videoId_, length_, committed_);
+	}
+
+	/**
+	 * Stores up to count bytes from the given channel at the given offset of
+	 * the video data. Chunks for different offsets can be written
+	 * concurrently.
+	 *
+	 * @param offset
+	 * @param count
+	 *            the size of the chunk or -1 if it's unknown, in which case
+	 *            the channel is read until it ends
+	 * @param data
+	 * @return the number of bytes that were stored
+	 * @throws IOException
+	 * @throws VideoServiceException
+	 *             if the chunk doesn't fit within the video data
+	 */
+	public long write(long offset, long count, ReadableByteChannel data)
+			throws IOException, VideoServiceException {
+		lastAccess_ = System.currentTimeMillis();
+		long available = length_ - offset;
+		if (offset < 0 || available < 0 || count > available) {
+			throw new VideoServiceException("Chunk at offset " + offset
+					+ " does not fit in upload [" + id_ + "] of " + length_ + " bytes");
+		}
+		long remaining = (count >= 0) ? count : available;
+
+		long written = 0;
+		try (FileChannel out = FileChannel.open(file_, StandardOpenOption.WRITE)) {
+			while (written < remaining) {
+				long n = out.transferFrom(data, offset + written, remaining - written);
+				if (n <= 0) {
+					break;
+				}
+				written += n;
+			}
+			// The chunk has to be on disk before we tell anyone about it
+			out.force(false);
+		}
+		record(offset, offset + written);
+		return written;
+	}
+
+	private synchronized void record(long start, long end) {
+		if (end <= start) {
+			return;
+		}
+		// Merge the new chunk with any stored chunks that it touches
+		Map.Entry<Long, Long> before = stored_.floorEntry(start);
+		if (before != null && before.getValue() >= start) {
+			start = before.getKey();
+			end = Math.max(end, before.getValue());
+		}
+		Map.Entry<Long, Long> after = stored_.ceilingEntry(start);
+		while (after != null && after.getKey() <= end) {
+			end = Math.max(end, after.getValue());
+			stored_.remove(after.getKey());
+			after = stored_.ceilingEntry(start);
+		}
+		stored_.put(start, end);
+
+		Long prefix = stored_.get(0L);
+		if (prefix != null) {
+			committed_ = prefix;
+		}
+	}
+
+}
@@ -0,0 +1,140 @@
+/*
+ *
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magnum.dataup;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * This class caps the size of the uploads that bypass the web container's
+ * multipart support (see the StreamingMultipartResolver), which would
+ * otherwise enforce the limit of the Application's MultipartConfigElement.
+ *
+ * A request that declares a Content-Length over the limit can be turned
+ * away before any of its body is read. The rest (e.g., chunked requests,
+ * or clients that send more than they declared) are counted while they
+ * are read, and fail with a TooLargeException as soon as they go over.
+ * Either way, the client should be answered with a 413.
+ *
+ * @author jules
+ *
+ */
+public class UploadSizeLimit {
+
+	// The same limit that the container applies to the multipart uploads
+	// that it parses itself
+	public static final long MAX_UPLOAD_SIZE = 150L * 1024 * 1024;
+
+	/**
+	 * Thrown by a limited stream once more than the limit has been read
+	 * from it, or when a client asks to upload more than the limit.
+	 */
+	@ResponseStatus(value=HttpStatus.REQUEST_ENTITY_TOO_LARGE)
+	public static class TooLargeException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public TooLargeException(long limit) {
+			super("The upload is larger than " + limit + " bytes");
+		}
+
+	}
+
+	private final long maxBytes_;
+
+	public UploadSizeLimit(long maxBytes) {
+		maxBytes_ = maxBytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes_;
+	}
+
+	/**
+	 * Returns true if the request declares a body that is larger than the
+	 * limit.
+	 *
+	 * @param request
+	 * @return
+	 */
+	public boolean isExceededBy(HttpServletRequest request) {
+		// getContentLength() can't report lengths over 2GB
+		String length = request.getHeader("Content-Length");
+		if (length == null) {
+			return false;
+		}
+		try {
+			return Long.parseLong(length.trim()) > maxBytes_;
+		} catch (NumberFormatException e) {
+			// The container rejects malformed lengths itself
+			return false;
+		}
+	}
+
+	/**
+	 * Returns a stream that reads the given one, and that throws a
+	 * TooLargeException once more than the limit has been read.
+	 *
+	 * @param in
+	 * @return
+	 */
+	public InputStream limit(InputStream in) {
+		return new FilterInputStream(in) {
+			private long count_;
+
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b >= 0) {
+					count(1);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int read = super.read(b, off, len);
+				if (read > 0) {
+					count(read);
+				}
+				return read;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				long skipped = super.skip(n);
+				count(skipped);
+				return skipped;
+			}
+
+			private void count(long bytes) throws TooLargeException {
+				count_ += bytes;
+				if (count_ > maxBytes_) {
+					throw new TooLargeException(maxBytes_);
+				}
+			}
+		};
+	}
+
+}
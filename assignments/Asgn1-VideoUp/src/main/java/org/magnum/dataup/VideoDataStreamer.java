@@ -0,0 +1,245 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.magnum.dataup.model.Video;
+import org.magnum.dataup.transfer.TransferScheduler;
+
+/**
+ * This class writes the binary data of a video to an HTTP response. It
+ * honors the "Range" and "If-Range" request headers so that players can
+ * seek within a video by fetching only the bytes that they need:
+ *
+ *  - No (or an unusable) Range header produces a 200 with the whole file
+ *  - A single satisfiable range produces a 206 with a Content-Range header
+ *  - Several ranges produce a 206 with a multipart/byteranges body
+ *  - Ranges that are all outside of the file produce a 416
+ *
+ * A request whose If-None-Match or If-Modified-Since shows that the client
+ * already has the data gets a 304 without any of it.
+ *
+ * When the web container supports sendfile (e.g., Tomcat's NIO connector),
+ * single part responses are handed off to the container so that the
+ * kernel copies the file straight to the socket. Otherwise, the data is
+ * moved with FileChannel.transferTo() by the VideoFileManager. Videos
+ * that are in the VideoFileManager's read cache are always sent from
+ * memory. If the streamer has a VideoTransferExecutor, the bytes that it
+ * has to write itself are written by a transfer thread, so that a slow
+ * client doesn't hold up a request thread. When the executor limits the
+ * bandwidth of transfers, sendfile isn't used, since the container would
+ * send the data as fast as it can.
+ *
+ * @author jules
+ *
+ */
+public class VideoDataStreamer {
+
+	// Request attributes that Tomcat uses to negotiate sendfile with
+	// the application
+	public static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+	public static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+	public static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+	public static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+	private static final String DEFAULT_CONTENT_TYPE = "video/mpeg";
+
+	private static final String CRLF = "\r\n";
+
+	private final VideoFileManager fileManager_;
+
+	private final VideoTransferExecutor transfers_;
+
+	public VideoDataStreamer(VideoFileManager fileManager) {
+		this(fileManager, null);
+	}
+
+	/**
+	 * @param fileManager
+	 * @param transfers
+	 *            runs the writing of the data, or null to write it on the
+	 *            calling thread
+	 */
+	public VideoDataStreamer(VideoFileManager fileManager, VideoTransferExecutor transfers) {
+		fileManager_ = fileManager;
+		transfers_ = transfers;
+	}
+
+	/**
+	 * Sends the binary data for the given video, or the parts of it that
+	 * were asked for, to the client. If the video has no data, a 404 is
+	 * sent instead. The data may still be being written when this returns.
+	 *
+	 * @param v
+	 * @param request
+	 * @param response
+	 * @throws IOException
+	 */
+	public void stream(Video v, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		if (!fileManager_.hasVideoData(v)) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "Missing data for video [" + v.getId() + "]");
+			return;
+		}
+
+		long length = fileManager_.getVideoDataSize(v);
+		long lastModified = fileManager_.getVideoDataLastModified(v);
+		String digest = fileManager_.getVideoDataDigest(v);
+		String etag = (digest != null) ? ConditionalGet.toETag(digest) : null;
+		String contentType = (v.getContentType() != null) ? v.getContentType() : DEFAULT_CONTENT_TYPE;
+
+		response.setHeader("Accept-Ranges", "bytes");
+		// A client that already has the data only gets the headers back
+		if (ConditionalGet.checkNotModified(request, response, etag, lastModified)) {
+			return;
+		}
+
+		// A Range header only applies if the client's copy (if any) of the
+		// data is still current, otherwise the whole file must be resent
+		List<ByteRange> ranges = null;
+		if (isIfRangeSatisfied(request, lastModified, etag)) {
+			ranges = ByteRange.parse(request.getHeader("Range"), length);
+		}
+
+		if (ranges == null) {
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.setContentType(contentType);
+			sendRange(v, new ByteRange(0, length - 1), length, request, response);
+		} else if (ranges.isEmpty()) {
+			response.setHeader("Content-Range", "bytes */" + length);
+			response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+		} else if (ranges.size() == 1) {
+			ByteRange range = ranges.get(0);
+			response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			response.setContentType(contentType);
+			response.setHeader("Content-Range", range.toContentRange(length));
+			sendRange(v, range, length, request, response);
+		} else {
+			response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			sendMultipleRanges(v, ranges, length, contentType, request, response);
+		}
+	}
+
+	// Returns true if there is no If-Range header or the validator that it
+	// carries still matches the stored data
+	private boolean isIfRangeSatisfied(HttpServletRequest request, long lastModified, String etag) {
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange == null) {
+			return true;
+		}
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			// Only a strong entity tag can be used for ranges, and we only
+			// hand those out for data whose digest is known
+			return etag != null && etag.equals(ifRange.trim());
+		}
+		try {
+			long since = request.getDateHeader("If-Range");
+			// HTTP dates only have a resolution of seconds
+			return lastModified / 1000 <= since / 1000;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	private void sendRange(final Video v, final ByteRange range, long total, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		response.setHeader("Content-Length", Long.toString(range.getLength()));
+		if (total == 0) {
+			return;
+		}
+		// Popular videos are sent from the read cache, everything else is
+		// left to sendfile if we can use it
+		final ByteBuffer cached = fileManager_.getCachedVideoData(v);
+		if (cached == null && !isShaping() && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTR))) {
+			// Let the container send the bytes once we return. The container
+			// doesn't tie up a thread for this, so there is no need for a
+			// transfer thread either.
+			request.setAttribute(SENDFILE_FILENAME_ATTR, fileManager_.getVideoDataPath(v).toString());
+			request.setAttribute(SENDFILE_START_ATTR, range.getStart());
+			request.setAttribute(SENDFILE_END_ATTR, range.getEnd() + 1);
+		} else {
+			transfer(request, response, new VideoTransferExecutor.Transfer() {
+				@Override
+				public void run(HttpServletRequest request, HttpServletResponse response) throws IOException {
+					fileManager_.copyVideoData(v, cached, response.getOutputStream(), range.getStart(),
+							range.getLength());
+				}
+			});
+		}
+	}
+
+	private void sendMultipleRanges(final Video v, final List<ByteRange> ranges, long total, String contentType,
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String boundary = UUID.randomUUID().toString();
+		response.setContentType("multipart/byteranges; boundary=" + boundary);
+
+		// The part headers are small, so we build them up front in order
+		// to be able to send an exact Content-Length
+		final byte[][] partHeaders = new byte[ranges.size()][];
+		long contentLength = 0;
+		for (int i = 0; i < ranges.size(); i++) {
+			ByteRange range = ranges.get(i);
+			String header = CRLF + "--" + boundary + CRLF
+					+ "Content-Type: " + contentType + CRLF
+					+ "Content-Range: " + range.toContentRange(total) + CRLF
+					+ CRLF;
+			partHeaders[i] = header.getBytes(StandardCharsets.US_ASCII);
+			contentLength += partHeaders[i].length + range.getLength();
+		}
+		final byte[] trailer = (CRLF + "--" + boundary + "--" + CRLF).getBytes(StandardCharsets.US_ASCII);
+		contentLength += trailer.length;
+		response.setHeader("Content-Length", Long.toString(contentLength));
+
+		final ByteBuffer cached = fileManager_.getCachedVideoData(v);
+		transfer(request, response, new VideoTransferExecutor.Transfer() {
+			@Override
+			public void run(HttpServletRequest request, HttpServletResponse response) throws IOException {
+				OutputStream out = response.getOutputStream();
+				for (int i = 0; i < ranges.size(); i++) {
+					ByteRange range = ranges.get(i);
+					out.write(partHeaders[i]);
+					fileManager_.copyVideoData(v, cached, out, range.getStart(), range.getLength());
+				}
+				out.write(trailer);
+			}
+		});
+	}
+
+	// The container can't pace the data that it sends by itself
+	private boolean isShaping() {
+		return transfers_ != null && transfers_.isShaping();
+	}
+
+	private void transfer(HttpServletRequest request, HttpServletResponse response,
+			VideoTransferExecutor.Transfer transfer) throws IOException {
+		if (transfers_ != null) {
+			transfers_.execute(request, response, TransferScheduler.Direction.DOWNLOAD, transfer);
+		} else {
+			transfer.run(request, response);
+		}
+	}
+
+}
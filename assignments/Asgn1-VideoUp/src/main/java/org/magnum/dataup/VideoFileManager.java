@@ -17,40 +17,173 @@
  */
 package org.magnum.dataup;
 
+import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import org.magnum.dataup.media.Mp4FastStart;
+import org.magnum.dataup.media.Mp4FormatException;
+import org.magnum.dataup.media.Mp4Fragmenter;
 import org.magnum.dataup.model.Video;
+import org.magnum.dataup.storage.BlobStore;
+import org.magnum.dataup.storage.DigestFile;
+import org.magnum.dataup.storage.HotVideoCache;
+import org.magnum.dataup.storage.IntegrityScrubber;
+import org.magnum.dataup.storage.StoredVideoData;
+import org.magnum.dataup.storage.TieredStorage;
+import org.magnum.dataup.storage.VideoDataIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.BaseEncoding;
 
 /**
  * This class provides a simple implementation to store video binary
- * data on the file system in a "videos" folder. The class provides
- * methods for saving videos and retrieving their binary data.
+ * data on the file system in a "videos" folder (or the folder set with
+ * -Dvideo.storage.dir). The class provides methods for saving videos and
+ * retrieving their binary data.
+ * 
+ * There is a single, thread-safe instance of this class. It keeps an
+ * in-memory VideoDataIndex of the stored data (size, modification time
+ * and checksum), which is built when the instance is created and updated
+ * whenever data is written, so that looking up a video's data doesn't
+ * have to go to the file system.
+ * 
+ * If the application is launched with -Dvideo.storage.dedup=true, the
+ * data is kept in a content-addressed BlobStore instead of in one file
+ * per video, so that identical uploads for different videos are only
+ * stored once. Data that was stored before the switch is still served
+ * from its original file.
+ * 
+ * The most popular videos are served from a HotVideoCache of memory-mapped
+ * files, whose size is set with -Dvideo.cache.bytes (0 turns it off).
+ * 
+ * With -Dvideo.ingest.faststart=true, MP4 data is rewritten when it is
+ * stored so that its metadata comes first and players can start before
+ * they have the whole file. This is off by default, as it copies the whole
+ * upload (and hashes it again) before the upload is acknowledged. With
+ * -Dvideo.segment.seconds=N, MP4 data is also split into fragmented MP4
+ * segments of about N seconds, which are kept in a "segments" folder under
+ * the digest of the data they were cut from, so identical data is only
+ * split once.
+ * 
+ * Data that an IntegrityScrubber finds to be corrupt is moved to a
+ * "quarantine" folder and dropped from the index, so it's no longer served.
+ * 
+ * With -Dvideo.storage.hotDir=DIR, the most watched data is also copied to
+ * DIR/video-tier (e.g., on a faster disk) by a TieredStorage, and served
+ * from there.
+ * At most -Dvideo.storage.hotBytes of data is copied, and which data that
+ * should be is worked out every -Dvideo.storage.tierInterval seconds.
  * 
  * @author jules
  *
  */
 public class VideoFileManager {
 
+	private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+	
+	// Each request thread reuses one direct buffer for streamed uploads, so
+	// memory use stays flat no matter how many uploads are in flight and
+	// the JDK doesn't have to stage heap buffers in temporary direct ones
+	private static final ThreadLocal<ByteBuffer> transferBuffer = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(TRANSFER_BUFFER_SIZE);
+		}
+	};
+
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+	
+	private static final String VIDEO_FILE_PREFIX = "video";
+	
+	private static final String VIDEO_FILE_SUFFIX = ".mpg";
+	
+	private static final String UPLOAD_PREFIX = "upload-";
+	
+	private static final String UPLOAD_SUFFIX = ".part";
+	
+	private static final boolean DEDUPLICATE = Boolean.getBoolean("video.storage.dedup");
+	
+	private static final long CACHE_CAPACITY = Long.getLong("video.cache.bytes", 256L * 1024 * 1024);
+	
+	private static final boolean FAST_START = Boolean.getBoolean("video.ingest.faststart");
+	
+	private static final double SEGMENT_SECONDS = Double.parseDouble(System.getProperty("video.segment.seconds", "0"));
+	
+	private static final String STORAGE_DIR = System.getProperty("video.storage.dir", "videos");
+	
+	private static final String HOT_DIR = System.getProperty("video.storage.hotDir");
+	
+	private static final long HOT_CAPACITY = Long.getLong("video.storage.hotBytes", 10L * 1024 * 1024 * 1024);
+	
+	private static final long TIER_INTERVAL_SECONDS = Long.getLong("video.storage.tierInterval", 60);
+	
+	private static final Logger log = LoggerFactory.getLogger(VideoFileManager.class);
+	
+	private static volatile VideoFileManager instance;
+
 	/**
-	 * This static factory method creates and returns a 
-	 * VideoFileManager object to the caller. Feel free to customize
-	 * this method to take parameters, etc. if you want.
+	 * This static factory method returns the VideoFileManager, creating
+	 * it (and indexing the data that is already stored) the first time
+	 * that it is called.
 	 * 
 	 * @return
 	 * @throws IOException
 	 */
 	public static VideoFileManager get() throws IOException {
-		return new VideoFileManager();
+		VideoFileManager manager = instance;
+		if (manager == null) {
+			synchronized (VideoFileManager.class) {
+				if (instance == null) {
+					instance = new VideoFileManager();
+				}
+				manager = instance;
+			}
+		}
+		return manager;
 	}
 	
-	private Path targetDir_ = Paths.get("videos");
+	// Absolute, so that the paths in the index compare equal to the ones
+	// that the TieredStorage hands out
+	private final Path targetDir_ = Paths.get(STORAGE_DIR).toAbsolutePath();
+	
+	private final Path segmentsDir_ = targetDir_.resolve("segments");
+	
+	private final Path quarantineDir_ = targetDir_.resolve("quarantine");
+	
+	private final VideoDataIndex index_ = new VideoDataIndex();
+	
+	private final HotVideoCache readCache_ = new HotVideoCache(CACHE_CAPACITY);
+	
+	private BlobStore blobs_;
+	
+	private TieredStorage tiers_;
 	
 	// The VideoFileManager.get() method should be used
 	// to obtain an instance
@@ -58,13 +191,142 @@ public class VideoFileManager {
 		if(!Files.exists(targetDir_)){
 			Files.createDirectories(targetDir_);
 		}
+		if(SEGMENT_SECONDS > 0){
+			Files.createDirectories(segmentsDir_);
+		}
+		if(DEDUPLICATE){
+			blobs_ = new BlobStore(targetDir_);
+		}
+		loadIndex();
+		if(HOT_DIR != null){
+			tiers_ = new TieredStorage(targetDir_, Paths.get(HOT_DIR), HOT_CAPACITY, index_,
+					new TieredStorage.Relocator() {
+						@Override
+						public boolean relocate(List<StoredVideoData> entries, Path target) {
+							return relocateVideoData(entries, target);
+						}
+					});
+			tiers_.schedule(TIER_INTERVAL_SECONDS, TimeUnit.SECONDS);
+		}
 	}
 	
-	// Private helper method for resolving video file paths
+	// Private helper method for resolving the path that new data for
+	// a video is written to when the blob store isn't used
 	private Path getVideoPath(Video v){
 		assert(v != null);
 		
-		return targetDir_.resolve("video"+v.getId()+".mpg");
+		return targetDir_.resolve(VIDEO_FILE_PREFIX+v.getId()+VIDEO_FILE_SUFFIX);
+	}
+	
+	// Private helper method for finding the data of videos that must exist
+	private StoredVideoData getStoredData(Video v) throws FileNotFoundException {
+		StoredVideoData data = index_.get(v.getId());
+		if(data == null){
+			throw new FileNotFoundException("Unable to find the referenced video file for videoId:"+v.getId());
+		}
+		return data;
+	}
+	
+	/**
+	 * Returns the cache that the most popular video data is served from, e.g.
+	 * to report its hit and miss counts.
+	 * 
+	 * @return
+	 */
+	public HotVideoCache getReadCache() {
+		return readCache_;
+	}
+	
+	/**
+	 * Returns the TieredStorage that copies the most watched data to the hot
+	 * directory, or null if there is no hot directory.
+	 * 
+	 * @return
+	 */
+	public TieredStorage getTieredStorage() {
+		return tiers_;
+	}
+	
+	// Points index entries at a new copy of their data, unless they have
+	// been replaced in the meantime
+	private synchronized boolean relocateVideoData(List<StoredVideoData> entries, Path target) {
+		boolean relocated = false;
+		for (StoredVideoData data : entries) {
+			if(index_.get(data.getVideoId()) == data){
+				index_.put(new StoredVideoData(data.getVideoId(), target, data.getSize(),
+						data.getLastModified(), data.getDigest()));
+				readCache_.invalidate(data.getPath());
+				relocated = true;
+			}
+		}
+		return relocated;
+	}
+	
+	/**
+	 * This method creates an IntegrityScrubber that checks the stored data
+	 * against its digests, and quarantines the data that doesn't match.
+	 * 
+	 * @param parallelism
+	 *            the number of files to check at once
+	 * @param maxBytesPerSecond
+	 *            the most data to read per second, 0 for no limit
+	 * @return
+	 */
+	public IntegrityScrubber newIntegrityScrubber(int parallelism, long maxBytesPerSecond) {
+		return new IntegrityScrubber(index_, new IntegrityScrubber.Quarantine() {
+			@Override
+			public boolean quarantine(StoredVideoData data, String actualDigest) throws IOException {
+				return quarantineVideoData(data);
+			}
+		}, parallelism, maxBytesPerSecond);
+	}
+	
+	// Moves corrupt data out of the way, unless it has been replaced since
+	// it was checked. A blob is shared by every video with the same data, so
+	// all of them lose it. Their blob references are left alone, since the
+	// same data can be uploaded again. A corrupt hot copy is simply dropped,
+	// and its videos go back to the data in the main directory.
+	private synchronized boolean quarantineVideoData(StoredVideoData data) throws IOException {
+		if(index_.get(data.getVideoId()) != data){
+			return false;
+		}
+		Path file = data.getPath();
+		boolean hot = tiers_ != null && tiers_.isHot(file);
+		Files.createDirectories(quarantineDir_);
+		try {
+			// Not atomic, since a hot copy may be on another disk
+			Files.move(file, quarantineDir_.resolve(file.getFileName()+"."+System.currentTimeMillis()));
+		} catch (NoSuchFileException e) {
+			// Nothing left to serve anyway
+		}
+		readCache_.invalidate(file);
+		if(blobs_ == null && !hot){
+			Files.deleteIfExists(DigestFile.getPath(file));
+		}
+		for (StoredVideoData entry : index_.getAll()) {
+			if(!entry.getPath().equals(file)){
+				continue;
+			}
+			if(hot){
+				index_.put(new StoredVideoData(entry.getVideoId(), tiers_.getColdPath(file), entry.getSize(),
+						entry.getLastModified(), entry.getDigest()));
+			}
+			else {
+				index_.remove(entry);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * This method returns the highest id of any video that has binary data
+	 * stored on the file system, so that new videos don't pick up data that
+	 * was left behind by old ones.
+	 * 
+	 * @return
+	 */
+	public long getMaxVideoId() {
+		return index_.getMaxVideoId();
 	}
 	
 	/**
@@ -75,8 +337,7 @@ public class VideoFileManager {
 	 * @return
 	 */
 	public boolean hasVideoData(Video v){
-		Path source = getVideoPath(v);
-		return Files.exists(source);
+		return index_.get(v.getId()) != null;
 	}
 	
 	/**
@@ -90,11 +351,368 @@ public class VideoFileManager {
 	 * @throws IOException 
 	 */
 	public void copyVideoData(Video v, OutputStream out) throws IOException {
-		Path source = getVideoPath(v);
-		if(!Files.exists(source)){
+		copyVideoData(v, out, 0, getVideoDataSize(v));
+	}
+	
+	/**
+	 * This method copies length bytes of the binary data for the given
+	 * video, starting at offset, to the provided output stream. This is
+	 * what allows clients to seek within a video without downloading
+	 * the bytes in front of the position that they are interested in.
+	 * 
+	 * The data is moved with FileChannel.transferTo(), which lets the
+	 * operating system copy the file data straight into the target
+	 * without staging it in heap buffers when the target supports it.
+	 * 
+	 * @param v
+	 * @param out
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
+	public void copyVideoData(Video v, OutputStream out, long offset, long length) throws IOException {
+		copyVideoData(v, getCachedVideoData(v), out, offset, length);
+	}
+	
+	/**
+	 * This method returns a read-only view of the binary data for the given
+	 * video if it is in the read cache, or null if it isn't. Each call counts
+	 * as a read of the data, which is what gets popular videos cached.
+	 * 
+	 * @param v
+	 * @return
+	 * @throws IOException
+	 */
+	public ByteBuffer getCachedVideoData(Video v) throws IOException {
+		StoredVideoData data = index_.get(v.getId());
+		if(data == null){
+			return null;
+		}
+		if(tiers_ != null){
+			tiers_.recordAccess(data.getPath());
+		}
+		return readCache_.get(data.getPath());
+	}
+	
+	/**
+	 * This method works like copyVideoData(Video, OutputStream, long, long),
+	 * but takes the result of an earlier call to getCachedVideoData() (which
+	 * may be null) so that callers that copy several ranges of the same video
+	 * only look it up once.
+	 * 
+	 * @param v
+	 * @param cached
+	 * @param out
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
+	public void copyVideoData(Video v, ByteBuffer cached, OutputStream out, long offset, long length) throws IOException {
+		if(cached != null){
+			if(offset + length > cached.capacity()){
+				throw new EOFException("Unexpected end of video data for videoId:"+v.getId());
+			}
+			ByteBuffer range = cached.duplicate();
+			range.limit((int) (offset + length));
+			range.position((int) offset);
+			WritableByteChannel target = Channels.newChannel(out);
+			while (range.hasRemaining()) {
+				target.write(range);
+			}
+			return;
+		}
+		
+		// We intentionally don't close the target channel, since that
+		// would close the caller's output stream
+		WritableByteChannel target = Channels.newChannel(out);
+		try (FileChannel channel = openVideoData(v)) {
+			long position = offset;
+			long end = offset + length;
+			while (position < end) {
+				long sent = channel.transferTo(position, end - position, target);
+				if (sent <= 0) {
+					// The file was truncated underneath us
+					throw new EOFException("Unexpected end of video data for videoId:"+v.getId());
+				}
+				position += sent;
+			}
+		}
+	}
+	
+	private FileChannel openVideoData(Video v) throws IOException {
+		try {
+			return FileChannel.open(getStoredData(v).getPath(), StandardOpenOption.READ);
+		} catch (NoSuchFileException e) {
 			throw new FileNotFoundException("Unable to find the referenced video file for videoId:"+v.getId());
 		}
-		Files.copy(source, out);
+	}
+	
+	/**
+	 * This method moves a file that holds the complete binary data for the
+	 * given video into place, replacing any data that was previously stored.
+	 * The move is atomic, so readers either see the old data or the new data.
+	 * 
+	 * @param v
+	 * @param videoData
+	 * @throws IOException
+	 */
+	public void commitVideoData(Video v, Path videoData) throws IOException {
+		commitVideoData(v, videoData, prepareVideoData(videoData, hash(videoData)));
+	}
+	
+	// Returns the hex digest of a file
+	private String hash(Path file) throws IOException {
+		MessageDigest digest = newDigest();
+		ByteBuffer buffer = transferBuffer.get();
+		buffer.clear();
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (in.read(buffer) >= 0) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+		return toHex(digest);
+	}
+	
+	// Gets data that is about to be committed ready for playback: MP4 data
+	// is rewritten in place with its metadata in front, and split into
+	// segments, if those are switched on. Anything that isn't MP4 data is left
+	// alone. Returns the digest of the data as it will be stored.
+	private String prepareVideoData(Path videoData, String digest) throws IOException {
+		if(FAST_START){
+			Path relocated = videoData.resolveSibling(videoData.getFileName()+".faststart");
+			try {
+				if(Mp4FastStart.relocate(videoData, relocated)){
+					Files.move(relocated, videoData, StandardCopyOption.REPLACE_EXISTING,
+							StandardCopyOption.ATOMIC_MOVE);
+					digest = hash(videoData);
+				}
+			} catch (Mp4FormatException e) {
+				log.debug("Not rewriting {}: {}", videoData, e.getMessage());
+			} finally {
+				Files.deleteIfExists(relocated);
+			}
+		}
+		if(SEGMENT_SECONDS > 0){
+			segment(videoData, digest);
+		}
+		return digest;
+	}
+	
+	// Splits the data into segments, unless the same data has been split
+	// before. The segments are written to a temporary folder that is renamed
+	// into place once it is complete, so they are never seen half-written.
+	private void segment(Path videoData, String digest) throws IOException {
+		Path target = segmentsDir_.resolve(digest);
+		if(Files.exists(target)){
+			return;
+		}
+		Path temp = Files.createTempDirectory(segmentsDir_, digest);
+		try {
+			Mp4Fragmenter.fragment(videoData, temp, SEGMENT_SECONDS);
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+		} catch (Mp4FormatException e) {
+			log.debug("Not segmenting {}: {}", videoData, e.getMessage());
+		} catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+			// Another upload of the same data got there first
+		} finally {
+			deleteTree(temp);
+		}
+	}
+	
+	private static void deleteTree(Path dir) throws IOException {
+		if(!Files.exists(dir)){
+			return;
+		}
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				if(e != null){
+					throw e;
+				}
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+	
+	// Moves the data into place and updates the index. Commits only move
+	// files around, so they are simply serialized, which guarantees that the
+	// index ends up describing the data that was committed last.
+	private synchronized void commitVideoData(Video v, Path videoData, String digest) throws IOException {
+		StoredVideoData previous = index_.get(v.getId());
+		Path target;
+		if(blobs_ != null){
+			blobs_.store(v.getId(), videoData, digest);
+			target = blobs_.getBlobPath(digest);
+		}
+		else {
+			target = getVideoPath(v);
+			Files.move(videoData, target, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			// Only once the new data is in place, or a concurrent download
+			// could cache the old data again, and before the index hands out
+			// the new digest as an ETag
+			readCache_.invalidate(target);
+		}
+		BasicFileAttributes attrs = Files.readAttributes(target, BasicFileAttributes.class);
+		if(blobs_ == null){
+			// Blobs are named by their digest, other files need to have it
+			// recorded for it to be known after a restart
+			DigestFile.write(target, attrs, digest);
+		}
+		index_.put(new StoredVideoData(v.getId(), target, attrs.size(),
+				attrs.lastModifiedTime().toMillis(), digest));
+		if(previous != null && tiers_ != null && tiers_.isHot(previous.getPath())){
+			releaseHotCopy(previous.getPath());
+		}
+	}
+	
+	// Drops a hot copy of data that was replaced, unless another video
+	// (with the same blob) still points at it
+	private void releaseHotCopy(Path hot) {
+		for (StoredVideoData entry : index_.getAll()) {
+			if(entry.getPath().equals(hot)){
+				return;
+			}
+		}
+		readCache_.invalidate(hot);
+		tiers_.retire(hot);
+	}
+	
+	/**
+	 * This method returns the hex SHA-256 digest of the binary data for the
+	 * given video if it is known, which is the case for all data that has
+	 * been written by this version of the server (the digest is recorded in
+	 * a DigestFile next to the data, or is the name of the blob). Otherwise,
+	 * null is returned.
+	 * 
+	 * @param v
+	 * @return
+	 */
+	public String getVideoDataDigest(Video v) {
+		StoredVideoData data = index_.get(v.getId());
+		return (data != null) ? data.getDigest() : null;
+	}
+	
+	/**
+	 * This method returns the location of the index (a SegmentIndex in JSON)
+	 * of the segments that the data for the given video was split into.
+	 * Data that was stored while segmenting was turned off, or that isn't
+	 * MP4 data, has no segments.
+	 * 
+	 * @param v
+	 * @return
+	 * @throws FileNotFoundException
+	 *             if the data has no segments
+	 */
+	public Path getSegmentIndexPath(Video v) throws FileNotFoundException {
+		return getSegmentFile(v, Mp4Fragmenter.INDEX);
+	}
+	
+	/**
+	 * This method returns the location of one of the segments that the data
+	 * for the given video was split into. Segment 0 is the init segment,
+	 * which has to be fed to a player before any of the others.
+	 * 
+	 * @param v
+	 * @param segment
+	 * @return
+	 * @throws FileNotFoundException
+	 *             if there is no such segment
+	 */
+	public Path getSegmentPath(Video v, int segment) throws FileNotFoundException {
+		if(segment < 0){
+			throw new FileNotFoundException("No segment "+segment+" for videoId:"+v.getId());
+		}
+		return getSegmentFile(v, Mp4Fragmenter.getSegmentFileName(segment));
+	}
+	
+	private Path getSegmentFile(Video v, String name) throws FileNotFoundException {
+		String digest = getVideoDataDigest(v);
+		Path file = (digest != null) ? segmentsDir_.resolve(digest).resolve(name) : null;
+		if(file == null || !Files.isRegularFile(file)){
+			throw new FileNotFoundException("Unable to find "+name+" for videoId:"+v.getId());
+		}
+		return file.toAbsolutePath();
+	}
+	
+	/**
+	 * This method returns the location of the file that collects the data
+	 * for a resumable upload session until it is committed.
+	 * 
+	 * @param sessionId
+	 * @return
+	 */
+	public Path getUploadPath(String sessionId) {
+		return targetDir_.resolve(UPLOAD_PREFIX+sessionId+UPLOAD_SUFFIX);
+	}
+	
+	/**
+	 * This method deletes the partial data of the resumable uploads that
+	 * hasn't been written to since the given time, including the uploads of
+	 * sessions that were lost when the server restarted.
+	 * 
+	 * @param cutoff
+	 * @throws IOException
+	 */
+	public void deleteUploadsOlderThan(long cutoff) throws IOException {
+		try (DirectoryStream<Path> uploads = Files.newDirectoryStream(targetDir_, UPLOAD_PREFIX+"*"+UPLOAD_SUFFIX)) {
+			for (Path upload : uploads) {
+				try {
+					if(Files.getLastModifiedTime(upload).toMillis() < cutoff){
+						Files.delete(upload);
+					}
+				} catch (NoSuchFileException e) {
+					// Completed or deleted in the meantime
+				}
+			}
+		}
+	}
+	
+	/**
+	 * This method returns the size in bytes of the binary data stored for
+	 * the given video.
+	 * 
+	 * @param v
+	 * @return
+	 * @throws IOException
+	 */
+	public long getVideoDataSize(Video v) throws IOException {
+		return getStoredData(v).getSize();
+	}
+	
+	/**
+	 * This method returns the time (in milliseconds since the epoch) that
+	 * the binary data for the given video was last written.
+	 * 
+	 * @param v
+	 * @return
+	 * @throws IOException
+	 */
+	public long getVideoDataLastModified(Video v) throws IOException {
+		return getStoredData(v).getLastModified();
+	}
+	
+	/**
+	 * This method returns the location of the file that holds the binary
+	 * data for the given video. It is only intended for handing the file
+	 * off to the web container (e.g., for sendfile), callers should use the
+	 * other methods in this class to read and write the data.
+	 * 
+	 * @param v
+	 * @return
+	 * @throws IOException
+	 */
+	public Path getVideoDataPath(Video v) throws IOException {
+		return getStoredData(v).getPath().toAbsolutePath();
 	}
 	
 	/**
@@ -109,8 +727,102 @@ public class VideoFileManager {
 	public void saveVideoData(Video v, InputStream videoData) throws IOException{
 		assert(videoData != null);
 		
-		Path target = getVideoPath(v);
-		Files.copy(videoData, target, StandardCopyOption.REPLACE_EXISTING);
+		saveVideoData(v, Channels.newChannel(videoData));
+	}
+	
+	/**
+	 * This method reads all of the data in the provided channel and stores
+	 * it as the data for the given Video, replacing any data that was
+	 * previously stored. It is used for uploads that are parsed while they
+	 * arrive, so that the data only hits the disk once.
+	 * 
+	 * The data is written to a staging file and then moved into place,
+	 * since truncating a file that is mapped by the read cache would break
+	 * the downloads that are reading it. When the blob store is used, the
+	 * staging file is simply discarded if the same data is already stored.
+	 * 
+	 * @param v
+	 * @param videoData
+	 * @return the number of bytes that were stored
+	 * @throws IOException
+	 */
+	public long saveVideoData(Video v, ReadableByteChannel videoData) throws IOException {
+		assert(videoData != null);
+		
+		Path staged = (blobs_ != null) ? blobs_.createStagingPath()
+				: Files.createTempFile(targetDir_, VIDEO_FILE_PREFIX+v.getId(), ".tmp");
+		try {
+			MessageDigest digest = newDigest();
+			long total = writeVideoData(videoData, staged, digest);
+			commitVideoData(v, staged, prepareVideoData(staged, toHex(digest)));
+			return total;
+		} finally {
+			Files.deleteIfExists(staged);
+		}
+	}
+	
+	// Writes everything in the source channel to the target file, updating
+	// the digest with the data along the way
+	private long writeVideoData(ReadableByteChannel source, Path target, MessageDigest digest) throws IOException {
+		ByteBuffer buffer = transferBuffer.get();
+		buffer.clear();
+		long total = 0;
+		try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (source.read(buffer) >= 0) {
+				buffer.flip();
+				buffer.mark();
+				digest.update(buffer);
+				buffer.reset();
+				while (buffer.hasRemaining()) {
+					total += out.write(buffer);
+				}
+				buffer.clear();
+			}
+		}
+		return total;
+	}
+	
+	// Finds the data that is already stored. Files are listed here, but their
+	// attributes are read in parallel by the index, since on a large catalog
+	// that is where the time goes.
+	private void loadIndex() throws IOException {
+		Map<Long, Path> files = new HashMap<Long, Path>();
+		Map<Long, String> digests = new HashMap<Long, String>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(targetDir_,
+				VIDEO_FILE_PREFIX+"*"+VIDEO_FILE_SUFFIX)) {
+			for (Path file : stream) {
+				String name = file.getFileName().toString();
+				try {
+					files.put(Long.parseLong(name.substring(VIDEO_FILE_PREFIX.length(),
+							name.length() - VIDEO_FILE_SUFFIX.length())), file);
+				} catch (NumberFormatException e) {
+					// Not a video data file
+				}
+			}
+		}
+		// Data in the blob store replaces anything that was stored before it
+		// was switched on
+		if(blobs_ != null){
+			for (Map.Entry<Long, String> ref : blobs_.getReferences().entrySet()) {
+				files.put(ref.getKey(), blobs_.getBlobPath(ref.getValue()));
+				digests.put(ref.getKey(), ref.getValue());
+			}
+		}
+		index_.load(files, digests);
+	}
+	
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private static String toHex(MessageDigest digest) {
+		return BaseEncoding.base16().lowerCase().encode(digest.digest());
 	}
 	
 }
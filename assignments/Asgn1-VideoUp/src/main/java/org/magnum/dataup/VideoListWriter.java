@@ -0,0 +1,77 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Writes a list of videos to an HTTP response as a JSON array, one video
+ * at a time. Unlike returning a collection from a controller method, this
+ * never holds more than one video's JSON in memory, so the whole catalog
+ * can be sent without the memory use of the request growing with it.
+ *
+ * @author jules
+ *
+ */
+public class VideoListWriter {
+
+	private final ObjectMapper mapper_;
+
+	// Writing a value normally flushes the output, which would turn every
+	// video into its own network write
+	private final ObjectWriter writer_;
+
+	public VideoListWriter(ObjectMapper mapper) {
+		mapper_ = mapper;
+		writer_ = mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+	}
+
+	public void write(Iterable<?> values, HttpServletResponse response) throws IOException {
+		response.setContentType("application/json;charset=UTF-8");
+		write(values, response.getOutputStream());
+	}
+
+	/**
+	 * Writes the values to the stream as a JSON array. The stream is left
+	 * open.
+	 *
+	 * @param values
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(Iterable<?> values, OutputStream out) throws IOException {
+		JsonGenerator json = mapper_.getFactory().createGenerator(out, JsonEncoding.UTF8);
+		json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		json.writeStartArray();
+		for (Object value : values) {
+			writer_.writeValue(json, value);
+		}
+		json.writeEndArray();
+		json.close();
+	}
+
+}
@@ -44,6 +44,8 @@ package org.magnum.dataup;
  */
 import java.util.Collection;
 
+import org.magnum.dataup.model.SegmentIndex;
+import org.magnum.dataup.model.UploadStatus;
 import org.magnum.dataup.model.Video;
 import org.magnum.dataup.model.VideoStatus;
 
@@ -52,10 +54,13 @@ import retrofit.http.Body;
 import retrofit.http.GET;
 import retrofit.http.Multipart;
 import retrofit.http.POST;
+import retrofit.http.PUT;
 import retrofit.http.Part;
 import retrofit.http.Path;
+import retrofit.http.Query;
 import retrofit.http.Streaming;
 import retrofit.mime.TypedFile;
+import retrofit.mime.TypedOutput;
 
 /**
  * This interface defines an API for a VideoSvc. The
@@ -75,6 +80,15 @@ import retrofit.mime.TypedFile;
  *     Video objects should be able to be unmarshalled by the
  *     client into a Collection<Video>.
  *     
+ * GET /video?after={id}&limit={n}
+ *   - Returns one page of at most n videos (n defaults to 100 and is capped
+ *     at 1000) with ids greater than the given id, or from the lowest id if
+ *     no id is given, in id order. The id of the last video on a page is
+ *     the cursor for the next page, and since the server numbers new videos
+ *     in increasing order, a video added while a client is paging is on a
+ *     later page. If there are more videos, the response has a Link header
+ *     with the URL of the next page (rel="next").
+ *     
  * POST /video
  *   - The video data is provided as an application/json request
  *     body. The JSON should generate a valid instance of the 
@@ -112,6 +126,23 @@ import retrofit.mime.TypedFile;
  *     identifier. If no mpeg data has been uploaded for the specified video,
  *     then the server should return a 404 status code.
  *     
+ * POST /video/{id}/upload?length={length}
+ *   - Starts a resumable upload of length bytes of mpeg data for the video
+ *     and returns the upload's status, including its session identifier.
+ *     
+ * PUT /video/{id}/upload/{session}?offset={offset}
+ *   - Stores the request body at the given offset of the upload's data and
+ *     returns the upload's status.
+ *     
+ * GET /video/{id}/upload/{session}
+ *   - Returns the upload's status. The offset in the status is the number
+ *     of bytes that have been durably stored, which is where a client should
+ *     resume the upload from.
+ *     
+ * POST /video/{id}/upload/{session}/complete
+ *   - Makes the uploaded data available from GET /video/{id}/data. Returns
+ *     a 400 if some of the data has not been uploaded yet.
+ *     
  *     
  * The VideoSvcApi interface described below should be used as the ultimate ground
  * truth for what should be implemented in the assignment. If there are any details
@@ -134,7 +165,33 @@ public interface VideoSvcApi {
 
 	public static final String VIDEO_SVC_PATH = "/video";
 	
+	public static final String VIDEO_ID_PATH = VIDEO_SVC_PATH + "/{id}";
+	
 	public static final String VIDEO_DATA_PATH = VIDEO_SVC_PATH + "/{id}/data";
+	
+	public static final String SESSION_PARAMETER = "session";
+	
+	public static final String LENGTH_PARAMETER = "length";
+	
+	public static final String OFFSET_PARAMETER = "offset";
+	
+	public static final String AFTER_PARAMETER = "after";
+	
+	public static final String LIMIT_PARAMETER = "limit";
+	
+	public static final String VIDEO_UPLOAD_PATH = VIDEO_SVC_PATH + "/{id}/upload";
+	
+	public static final String VIDEO_UPLOAD_SESSION_PATH = VIDEO_UPLOAD_PATH + "/{session}";
+	
+	public static final String VIDEO_UPLOAD_COMPLETE_PATH = VIDEO_UPLOAD_SESSION_PATH + "/complete";
+	
+	public static final String SEGMENT_PARAMETER = "segment";
+	
+	public static final String INIT_SEGMENT = "init";
+	
+	public static final String VIDEO_SEGMENTS_PATH = VIDEO_SVC_PATH + "/{id}/segments";
+	
+	public static final String VIDEO_SEGMENT_PATH = VIDEO_SEGMENTS_PATH + "/{segment}";
 
 	/**
 	 * This endpoint in the API returns a list of the videos that have
@@ -149,6 +206,36 @@ public interface VideoSvcApi {
 	@GET(VIDEO_SVC_PATH)
 	public Collection<Video> getVideoList();
 	
+	/**
+	 * This endpoint returns one page of the videos that have been added to
+	 * the server, with ids greater than "after", in id order. Pass the id of
+	 * the last video of the previous page as "after" (or null for the first
+	 * page) to get the next one. A page with fewer than "limit" videos is the
+	 * last one.
+	 * 
+	 * @param after
+	 * @param limit
+	 * @return
+	 */
+	@GET(VIDEO_SVC_PATH)
+	public Collection<Video> getVideoList(@Query(AFTER_PARAMETER) Long after, @Query(LIMIT_PARAMETER) Integer limit);
+	
+	/**
+	 * This endpoint returns a single Video as JSON, or a 404 if there is no
+	 * video with the given id.
+	 * 
+	 * This endpoint, the video list and the video data all return an ETag
+	 * and a Last-Modified header. A client that keeps its copy and sends
+	 * them back in If-None-Match or If-Modified-Since gets a 304 with no
+	 * body if the copy is still current (an HTTP cache on the client, such
+	 * as OkHttp's, does this automatically).
+	 * 
+	 * @param id
+	 * @return
+	 */
+	@GET(VIDEO_ID_PATH)
+	public Video getVideoById(@Path(ID_PARAMETER) long id);
+	
 	/**
 	 * This endpoint allows clients to add Video objects by sending POST requests
 	 * that have an application/json body containing the Video object information. 
@@ -194,4 +281,90 @@ public interface VideoSvcApi {
     @GET(VIDEO_DATA_PATH)
     Response getData(@Path(ID_PARAMETER) long id);
 	
+	/**
+	 * This endpoint returns the index of the fragmented MP4 segments that
+	 * the video data was split into when it was uploaded, or a 404 if it
+	 * wasn't (segmenting is switched on with -Dvideo.segment.seconds on the
+	 * server, and only applies to MP4 data).
+	 * 
+	 * @param id
+	 * @return
+	 */
+	@GET(VIDEO_SEGMENTS_PATH)
+	public SegmentIndex getSegmentIndex(@Path(ID_PARAMETER) long id);
+	
+	/**
+	 * This endpoint returns one segment of the video data, where segment
+	 * "init" (which holds the track metadata) has to be played before any
+	 * of the numbered segments in the index. A player can start as soon as
+	 * it has the init segment and the first media segment, and seek by
+	 * fetching the segment that holds the time it wants.
+	 * 
+	 * @param id
+	 * @param segment
+	 *            "init" or the number of a segment in the index
+	 * @return
+	 */
+	@Streaming
+	@GET(VIDEO_SEGMENT_PATH)
+	Response getSegment(@Path(ID_PARAMETER) long id, @Path(SEGMENT_PARAMETER) String segment);
+	
+	/**
+	 * This endpoint starts a resumable upload of the mpeg video data for a
+	 * previously added Video. The client states how many bytes it is going
+	 * to send and gets back the identifier of the upload session that the
+	 * data should be sent to.
+	 * 
+	 * Resumable uploads are meant for flaky mobile links. Instead of sending
+	 * the whole file in one multipart request, the client sends it in chunks
+	 * with uploadChunk(). If the connection drops, the client asks for the
+	 * upload's status with getUploadStatus() and only resends the data that
+	 * follows the offset that the server reports. Once all of the data has
+	 * been sent, completeUpload() makes it available from getData().
+	 * 
+	 * @param id
+	 * @param length
+	 * @return
+	 */
+	@POST(VIDEO_UPLOAD_PATH)
+	public UploadStatus startUpload(@Path(ID_PARAMETER) long id, @Query(LENGTH_PARAMETER) long length);
+	
+	/**
+	 * This endpoint stores a chunk of the video data at the given offset of an
+	 * upload session. The returned status has the offset up to which all of the
+	 * data has been durably stored.
+	 * 
+	 * @param id
+	 * @param session
+	 * @param offset
+	 * @param chunk
+	 * @return
+	 */
+	@PUT(VIDEO_UPLOAD_SESSION_PATH)
+	public UploadStatus uploadChunk(@Path(ID_PARAMETER) long id, @Path(SESSION_PARAMETER) String session,
+			@Query(OFFSET_PARAMETER) long offset, @Body TypedOutput chunk);
+	
+	/**
+	 * This endpoint returns the status of an upload session, including the
+	 * offset that a client should resume the upload from.
+	 * 
+	 * @param id
+	 * @param session
+	 * @return
+	 */
+	@GET(VIDEO_UPLOAD_SESSION_PATH)
+	public UploadStatus getUploadStatus(@Path(ID_PARAMETER) long id, @Path(SESSION_PARAMETER) String session);
+	
+	/**
+	 * This endpoint finishes an upload session once all of its data has been
+	 * sent and makes the data available as the Video's mpeg data. A 400 is
+	 * returned if some of the data is still missing.
+	 * 
+	 * @param id
+	 * @param session
+	 * @return
+	 */
+	@POST(VIDEO_UPLOAD_COMPLETE_PATH)
+	public VideoStatus completeUpload(@Path(ID_PARAMETER) long id, @Path(SESSION_PARAMETER) String session);
+	
 }
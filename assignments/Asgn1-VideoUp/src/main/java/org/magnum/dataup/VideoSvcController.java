@@ -17,18 +17,26 @@
  */
 package org.magnum.dataup;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicLong;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.magnum.dataup.model.UploadStatus;
 import org.magnum.dataup.model.Video;
 import org.magnum.dataup.model.VideoStatus;
 import org.magnum.dataup.model.VideoStatus.VideoState;
+import org.magnum.dataup.repository.IdAllocator;
+import org.magnum.dataup.repository.VideoCatalog;
+import org.magnum.dataup.transfer.TransferScheduler;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
@@ -39,6 +47,12 @@ import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.context.request.RequestContextHolder;
 import org.springframework.web.context.request.ServletRequestAttributes;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+import org.springframework.web.multipart.support.MissingServletRequestPartException;
+import org.springframework.web.util.WebUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
 
 @Controller
 public class VideoSvcController {
@@ -66,56 +80,307 @@ public class VideoSvcController {
 
 	public static final String VIDEO_SVC_PATH = "/video";
 	
+	public static final String VIDEO_ID_PATH = VIDEO_SVC_PATH + "/{id}";
+	
 	public static final String VIDEO_DATA_PATH = VIDEO_SVC_PATH + "/{id}/data";
 	
-	private static final AtomicLong currentId = new AtomicLong(0L);
+	public static final String SESSION_PARAMETER = "session";
+	
+	public static final String LENGTH_PARAMETER = "length";
+	
+	public static final String OFFSET_PARAMETER = "offset";
+	
+	public static final String AFTER_PARAMETER = "after";
+	
+	public static final String LIMIT_PARAMETER = "limit";
+	
+	private static final int DEFAULT_PAGE_SIZE = 100;
+	
+	private static final int MAX_PAGE_SIZE = 1000;
+	
+	public static final String VIDEO_UPLOAD_PATH = VIDEO_SVC_PATH + "/{id}/upload";
+	
+	public static final String VIDEO_UPLOAD_SESSION_PATH = VIDEO_UPLOAD_PATH + "/{session}";
+	
+	public static final String VIDEO_UPLOAD_COMPLETE_PATH = VIDEO_UPLOAD_SESSION_PATH + "/complete";
+	
+	public static final String SEGMENT_PARAMETER = "segment";
+	
+	public static final String INIT_SEGMENT = "init";
+	
+	public static final String VIDEO_SEGMENTS_PATH = VIDEO_SVC_PATH + "/{id}/segments";
+	
+	public static final String VIDEO_SEGMENT_PATH = VIDEO_SEGMENTS_PATH + "/{segment}";
+	
+	// The catalog is created by Application.videoCatalog() and keeps the
+	// videos across restarts
+	@Autowired
+	private VideoCatalog videos;
 	
-	private Map<Long,Video> videos = new HashMap<Long, Video>();
+	// Moves video data to and from clients without holding up the
+	// container's request threads (see Application.videoTransferExecutor())
+	@Autowired
+	private VideoTransferExecutor transfers;
 	
-	private void checkAndSetId(Video entity) {
+	// Hands out ids that stay unique across restarts and across servers
+	// that share the counter (see Application.idAllocator())
+	@Autowired
+	private IdAllocator ids;
+	
+	private final ResumableUploadManager uploads = new ResumableUploadManager();
+	
+	private final ObjectMapper mapper = new ObjectMapper();
+	
+	private final VideoListWriter listWriter = new VideoListWriter(mapper);
+	
+	// Streamed uploads aren't limited by the container, which only limits
+	// the multipart requests that it parses itself (see
+	// Application.uploadSizeLimit())
+	@Autowired
+	private UploadSizeLimit uploadLimit;
+	
+	private void checkAndSetId(Video entity) throws IOException, VideoServiceException {
 		if(entity.getId() == 0){
-			entity.setId(currentId.incrementAndGet());
+			entity.setId(ids.nextId());
+		}
+		else if(entity.getId() < 0 || entity.getId() > ids.getMaxId()){
+			// Ids near the top of the range would leave no room for the
+			// blocks that the IdAllocator hands out after them
+			throw new VideoServiceException("Invalid video id " + entity.getId());
+		}
+		else {
+			ids.reserve(entity.getId());
 		}
 	}
 	
 	@RequestMapping(value=VIDEO_SVC_PATH, method=RequestMethod.POST)
-	public @ResponseBody Video addVideo(@RequestBody Video v) {
+	public @ResponseBody Video addVideo(@RequestBody Video v) throws IOException, VideoServiceException {
 		checkAndSetId(v);
 		v.setDataUrl(getDataUrl(v.getId()));
-		videos.put(v.getId(), v);
+		videos.save(v);
 		return v;
 	}
 
+	// Without paging parameters, the whole catalog is streamed to the client.
+	// Otherwise, one page is returned along with a Link to the next one.
+	// Either way, a client that sends back the ETag of its last listing gets
+	// a 304 if no video has changed since.
 	@RequestMapping(value=VIDEO_SVC_PATH, method=RequestMethod.GET)
-	public @ResponseBody Collection<Video> getVideoList() {
-		return videos.values();
+	public void getVideoList(@RequestParam(value=AFTER_PARAMETER, required=false) Long after,
+			@RequestParam(value=LIMIT_PARAMETER, required=false) Integer limit,
+			HttpServletRequest request, HttpServletResponse response) throws IOException, VideoServiceException {
+		String etag = ConditionalGet.toETag(videos.getVersion());
+		if (ConditionalGet.checkNotModified(request, response, etag, videos.getLastModified())) {
+			return;
+		}
+		if (after == null && limit == null) {
+			listWriter.write(videos.getAll(), response);
+			return;
+		}
+		
+		int pageSize = (limit != null) ? limit : DEFAULT_PAGE_SIZE;
+		if (pageSize <= 0) {
+			throw new VideoServiceException("Invalid page size " + pageSize);
+		}
+		pageSize = Math.min(pageSize, MAX_PAGE_SIZE);
+		
+		Iterator<Video> iter = videos.getAllAfter((after != null) ? after : Long.MIN_VALUE).iterator();
+		List<Video> page = new ArrayList<Video>(pageSize);
+		while (page.size() < pageSize && iter.hasNext()) {
+			page.add(iter.next());
+		}
+		if (iter.hasNext()) {
+			long cursor = page.get(page.size() - 1).getId();
+			response.setHeader("Link", "<" + request.getRequestURI() + "?" + AFTER_PARAMETER + "=" + cursor
+					+ "&" + LIMIT_PARAMETER + "=" + pageSize + ">; rel=\"next\"");
+		}
+		listWriter.write(page, response);
+	}
+	
+	// The ETag of a single video is derived from its JSON, so it only
+	// changes when the video itself does
+	@RequestMapping(value=VIDEO_ID_PATH, method=RequestMethod.GET)
+	public void getVideoById(@PathVariable(ID_PARAMETER) Long id, HttpServletRequest request,
+			HttpServletResponse response) throws IOException, VideoNotFoundException {
+		long lastModified = videos.getLastModified();
+		byte[] json = mapper.writeValueAsBytes(getVideo(id));
+		String etag = ConditionalGet.toETag(Hashing.sha1().hashBytes(json).toString());
+		if (ConditionalGet.checkNotModified(request, response, etag, lastModified)) {
+			return;
+		}
+		response.setContentType("application/json");
+		response.setContentLength(json.length);
+		response.getOutputStream().write(json);
 	}
 	
 	@RequestMapping(value=VIDEO_DATA_PATH, method=RequestMethod.POST)
-	public @ResponseBody VideoStatus setVideoData(@PathVariable(ID_PARAMETER) Long id, @RequestParam(DATA_PARAMETER) MultipartFile videoData,
-            HttpServletResponse response) throws VideoNotFoundException {
-		Video video = videos.get(id);
-		if (video == null) {
-			throw new VideoNotFoundException("Missing video with id [" + id + "]");
+	public void setVideoData(@PathVariable(ID_PARAMETER) Long id, HttpServletRequest request,
+			HttpServletResponse response) throws IOException, VideoNotFoundException, MissingServletRequestPartException {
+		final Video video = getVideo(id);
+		// The request has only been parsed by the container if streaming
+		// uploads are switched off (see Application.multipartResolver())
+		MultipartHttpServletRequest multipart = WebUtils.getNativeRequest(request, MultipartHttpServletRequest.class);
+		if (multipart != null) {
+			MultipartFile videoData = multipart.getFile(DATA_PARAMETER);
+			if (videoData == null) {
+				throw new MissingServletRequestPartException(DATA_PARAMETER);
+			}
+			try {
+				VideoFileManager.get().saveVideoData(video, videoData.getInputStream());
+			} catch (IOException e) {
+				throw new VideoNotFoundException("Missing video with id [" + id + "]");
+			}
+			writeStatus(response, new VideoStatus(VideoState.READY));
+			return;
+		}
+		
+		// Otherwise the body is still on its way, and is read by a transfer
+		// thread for as long as the client takes to send it, unless it has
+		// already said that it's too large
+		if (uploadLimit.isExceededBy(request)) {
+			response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+			return;
+		}
+		transfers.execute(request, response, TransferScheduler.Direction.UPLOAD, new VideoTransferExecutor.Transfer() {
+			@Override
+			public void run(HttpServletRequest request, HttpServletResponse response) throws IOException {
+				try {
+					saveStreamedVideoData(video, request);
+				} catch (MissingServletRequestPartException e) {
+					response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+					return;
+				} catch (UploadSizeLimit.TooLargeException e) {
+					// Nothing was stored, and the rest of the body is left unread
+					response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+					return;
+				} catch (IOException e) {
+					response.sendError(HttpServletResponse.SC_NOT_FOUND, "Missing video with id [" + video.getId() + "]");
+					return;
+				}
+				writeStatus(response, new VideoStatus(VideoState.READY));
+			}
+		});
+	}
+	
+	// The status is written by hand, since the response may outlive the
+	// handler method when the upload is read by a transfer thread
+	private void writeStatus(HttpServletResponse response, Object status) throws IOException {
+		response.setContentType("application/json;charset=UTF-8");
+		response.getOutputStream().write(mapper.writeValueAsBytes(status));
+	}
+	
+	// Parses the multipart request body while it arrives and writes the
+	// "data" part straight into the video's file. The body is counted as it
+	// is read, and a TooLargeException is thrown (before the data is
+	// committed) once it goes over the limit.
+	private void saveStreamedVideoData(Video video, HttpServletRequest request)
+			throws IOException, MissingServletRequestPartException {
+		String boundary = MultipartStreamParser.getBoundary(request.getContentType());
+		if (boundary == null) {
+			throw new MissingServletRequestPartException(DATA_PARAMETER);
 		}
+		MultipartStreamParser parser = new MultipartStreamParser(uploadLimit.limit(request.getInputStream()), boundary);
+		while (parser.nextPart()) {
+			if (DATA_PARAMETER.equals(parser.getPartName())) {
+				VideoFileManager.get().saveVideoData(video, parser.getPartBody());
+				return;
+			}
+		}
+		throw new MissingServletRequestPartException(DATA_PARAMETER);
+	}
+	
+	@RequestMapping(value=VIDEO_DATA_PATH, method=RequestMethod.GET)
+	public void getData(@PathVariable(ID_PARAMETER) Long id, HttpServletRequest request,
+			HttpServletResponse response) throws IOException, VideoNotFoundException {
+		Video video = getVideo(id);
+		// Handles Range requests so that seeking only costs the bytes asked for
+		new VideoDataStreamer(VideoFileManager.get(), transfers).stream(video, request, response);
+	}
+	
+	@RequestMapping(value=VIDEO_SEGMENTS_PATH, method=RequestMethod.GET)
+	public void getSegmentIndex(@PathVariable(ID_PARAMETER) Long id, HttpServletRequest request,
+			HttpServletResponse response) throws IOException, VideoNotFoundException {
+		Video video = getVideo(id);
 		try {
-			VideoFileManager.get().saveVideoData(video, videoData.getInputStream());
-		} catch (IOException e) {
-			throw new VideoNotFoundException("Missing video with id [" + id + "]");
+			sendSegmentFile(VideoFileManager.get().getSegmentIndexPath(video), "application/json", request, response);
+		} catch (FileNotFoundException e) {
+			throw new VideoNotFoundException("Missing segments for video with id [" + id + "]");
 		}
+	}
+	
+	@RequestMapping(value=VIDEO_SEGMENT_PATH, method=RequestMethod.GET)
+	public void getSegment(@PathVariable(ID_PARAMETER) Long id, @PathVariable(SEGMENT_PARAMETER) String segment,
+			HttpServletRequest request, HttpServletResponse response) throws IOException, VideoNotFoundException {
+		Video video = getVideo(id);
+		try {
+			int number = INIT_SEGMENT.equals(segment) ? 0 : Integer.parseInt(segment);
+			sendSegmentFile(VideoFileManager.get().getSegmentPath(video, number), "video/mp4", request, response);
+		} catch (NumberFormatException | FileNotFoundException e) {
+			throw new VideoNotFoundException("Missing segment [" + segment + "] for video with id [" + id + "]");
+		}
+	}
+	
+	// Segments are small, so they are simply copied, but they still go
+	// through the transfer threads so that they are paced like any other
+	// download
+	private void sendSegmentFile(final Path file, String contentType, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		response.setContentType(contentType);
+		response.setHeader("Content-Length", Long.toString(Files.size(file)));
+		transfers.execute(request, response, TransferScheduler.Direction.DOWNLOAD, new VideoTransferExecutor.Transfer() {
+			@Override
+			public void run(HttpServletRequest request, HttpServletResponse response) throws IOException {
+				Files.copy(file, response.getOutputStream());
+			}
+		});
+	}
+	
+	@RequestMapping(value=VIDEO_UPLOAD_PATH, method=RequestMethod.POST)
+	public @ResponseBody UploadStatus startUpload(@PathVariable(ID_PARAMETER) Long id,
+			@RequestParam(LENGTH_PARAMETER) long length)
+			throws IOException, VideoNotFoundException, VideoServiceException, TooManyUploadsException {
+		return uploads.start(getVideo(id), length).getStatus();
+	}
+	
+	@RequestMapping(value=VIDEO_UPLOAD_SESSION_PATH, method=RequestMethod.PUT)
+	public void uploadChunk(@PathVariable(ID_PARAMETER) Long id,
+			@PathVariable(SESSION_PARAMETER) String session, @RequestParam(OFFSET_PARAMETER) final long offset,
+			HttpServletRequest request, HttpServletResponse response) throws IOException, VideoNotFoundException {
+		final UploadSession upload = uploads.get(getVideo(id), session);
+		// Chunks are paced and scheduled along with the other transfers
+		transfers.execute(request, response, TransferScheduler.Direction.UPLOAD, new VideoTransferExecutor.Transfer() {
+			@Override
+			public void run(HttpServletRequest request, HttpServletResponse response) throws IOException {
+				try {
+					upload.write(offset, request.getContentLength(), Channels.newChannel(request.getInputStream()));
+				} catch (VideoServiceException e) {
+					response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+					return;
+				}
+				writeStatus(response, upload.getStatus());
+			}
+		});
+	}
+	
+	@RequestMapping(value=VIDEO_UPLOAD_SESSION_PATH, method=RequestMethod.GET)
+	public @ResponseBody UploadStatus getUploadStatus(@PathVariable(ID_PARAMETER) Long id,
+			@PathVariable(SESSION_PARAMETER) String session) throws VideoNotFoundException {
+		return uploads.get(getVideo(id), session).getStatus();
+	}
+	
+	@RequestMapping(value=VIDEO_UPLOAD_COMPLETE_PATH, method=RequestMethod.POST)
+	public @ResponseBody VideoStatus completeUpload(@PathVariable(ID_PARAMETER) Long id,
+			@PathVariable(SESSION_PARAMETER) String session) throws IOException, VideoNotFoundException, VideoServiceException {
+		uploads.complete(getVideo(id), session);
 		return new VideoStatus(VideoState.READY);
 	}
 	
-	@RequestMapping(value=VIDEO_DATA_PATH, method=RequestMethod.GET)
-	public void getData(@PathVariable(ID_PARAMETER) Long id, HttpServletResponse response) throws IOException, VideoNotFoundException {
+	private Video getVideo(Long id) throws VideoNotFoundException {
 		Video video = videos.get(id);
 		if (video == null) {
 			throw new VideoNotFoundException("Missing video with id [" + id + "]");
 		}
-		if (!VideoFileManager.get().hasVideoData(video)) {
-			response.sendError(HttpServletResponse.SC_NOT_FOUND, "Missing data for video [" + id + "]");
-		}
-		VideoFileManager.get().copyVideoData(video, response.getOutputStream());
+		return video;
 	}
 	
 	private String getUrlBaseForLocalServer() {
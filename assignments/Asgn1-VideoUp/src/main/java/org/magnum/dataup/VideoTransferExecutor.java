@@ -0,0 +1,319 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.magnum.dataup.transfer.TransferScheduler;
+import org.magnum.dataup.transfer.TransferStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves the bytes of video uploads and downloads off of the web container's
+ * request threads. A transfer puts its request into asynchronous mode and
+ * is then run on a separate pool of transfer threads, so the container's
+ * thread goes straight back to serving other requests. However many slow
+ * clients are sending or receiving video data, cheap calls like GET /video
+ * never have to queue up behind them.
+ *
+ * Servlet 3.0 containers (e.g., Tomcat 7) don't have non-blocking streams,
+ * so each running transfer still blocks a transfer thread while it waits
+ * for its client. The transfer pool is separate from, and can be much
+ * larger than, the container's pool, and once all of its threads are busy,
+ * further transfers wait in a queue without holding any thread. Once the
+ * queue is full too, transfers are turned away with a 503.
+ *
+ * If the container gives up on an asynchronous transfer (it times out, or
+ * the connection fails), the transfer is cancelled: it's dropped if it's
+ * still queued, and otherwise its paced streams fail the next time that it
+ * uses them, as the container may already have recycled its request and
+ * response for another one.
+ *
+ * If the request doesn't support asynchronous processing, or asynchronous
+ * transfers are switched off, the transfer simply runs on the calling
+ * thread.
+ *
+ * Either way, the transfer is given a request and response whose streams
+ * are paced by the TransferScheduler, which also keeps track of each
+ * transfer's throughput.
+ *
+ * @author jules
+ *
+ */
+public class VideoTransferExecutor {
+
+	/**
+	 * The work of a single transfer. It may run on another thread after
+	 * the request's handler has returned, so it can't rely on anything
+	 * that's bound to the request thread.
+	 */
+	public interface Transfer {
+		public void run(HttpServletRequest request, HttpServletResponse response) throws IOException;
+	}
+
+	private static final Logger log = LoggerFactory.getLogger(VideoTransferExecutor.class);
+
+	private final boolean async_;
+	private final long timeout_;
+	private final TransferScheduler scheduler_;
+	private final ThreadPoolExecutor threads_;
+	private final AtomicInteger active_ = new AtomicInteger();
+	private final AtomicInteger queued_ = new AtomicInteger();
+
+	/**
+	 * @param async
+	 *            false to run every transfer on the calling thread
+	 * @param threads
+	 *            the most transfers that run at the same time
+	 * @param maxQueued
+	 *            the most transfers that wait for a thread
+	 * @param timeout
+	 *            the number of milliseconds that an asynchronous transfer
+	 *            may take before the container gives up on it, or 0 for no
+	 *            limit
+	 * @param scheduler
+	 *            paces the data of the transfers
+	 */
+	public VideoTransferExecutor(boolean async, int threads, int maxQueued, long timeout,
+			TransferScheduler scheduler) {
+		async_ = async;
+		timeout_ = timeout;
+		scheduler_ = scheduler;
+		final AtomicInteger count = new AtomicInteger();
+		threads_ = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(maxQueued), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "video-transfer-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Runs the transfer for the request. When this returns, the transfer
+	 * may still be running, in which case the response is completed when
+	 * it finishes. The caller must not touch the request or the response
+	 * afterwards.
+	 *
+	 * @param request
+	 * @param response
+	 * @param direction
+	 *            whether the transfer reads the request body (an upload) or
+	 *            writes the response body (a download)
+	 * @param transfer
+	 * @throws IOException
+	 *             if the transfer ran on the calling thread and failed
+	 */
+	public void execute(HttpServletRequest request, HttpServletResponse response,
+			TransferScheduler.Direction direction, final Transfer transfer) throws IOException {
+		final TransferStream stream = scheduler_.open(direction, request.getRemoteAddr(), request.getRequestURI());
+		HttpServletRequest shapedRequest = request;
+		HttpServletResponse shapedResponse = response;
+		if (direction == TransferScheduler.Direction.UPLOAD) {
+			shapedRequest = stream.shape(request);
+		} else {
+			shapedResponse = stream.shape(response);
+		}
+
+		if (!async_ || !request.isAsyncSupported()) {
+			try {
+				transfer.run(shapedRequest, shapedResponse);
+			} finally {
+				stream.close();
+			}
+			return;
+		}
+
+		AsyncContext context = request.startAsync(shapedRequest, shapedResponse);
+		context.setTimeout(timeout_);
+		AsyncTransfer task = new AsyncTransfer(context, transfer, stream);
+		context.addListener(task);
+		queued_.incrementAndGet();
+		try {
+			threads_.execute(task);
+		} catch (RejectedExecutionException e) {
+			queued_.decrementAndGet();
+			stream.close();
+			sendError(context, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			complete(context);
+		}
+	}
+
+	/**
+	 * Returns true if transfers are paced by the TransferScheduler, in which
+	 * case the data has to go through the streams that the transfer is
+	 * given, rather than around them (e.g., with sendfile).
+	 *
+	 * @return
+	 */
+	public boolean isShaping() {
+		return scheduler_.isShaping();
+	}
+
+	/**
+	 * Returns the number of transfers that are running on a transfer
+	 * thread.
+	 *
+	 * @return
+	 */
+	public int getActiveCount() {
+		return active_.get();
+	}
+
+	/**
+	 * Returns the number of transfers that are waiting for a transfer
+	 * thread.
+	 *
+	 * @return
+	 */
+	public int getQueuedCount() {
+		return queued_.get();
+	}
+
+	/**
+	 * Stops accepting transfers and waits a little while for the running
+	 * ones to finish.
+	 */
+	public void shutdown() {
+		threads_.shutdown();
+		try {
+			threads_.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// A transfer that runs on a transfer thread, and that is cancelled if
+	// the container gives up on its request first
+	private class AsyncTransfer implements Runnable, AsyncListener {
+
+		private final AsyncContext context_;
+		private final Transfer transfer_;
+		private final TransferStream stream_;
+
+		private AsyncTransfer(AsyncContext context, Transfer transfer, TransferStream stream) {
+			context_ = context;
+			transfer_ = transfer;
+			stream_ = stream;
+		}
+
+		@Override
+		public void run() {
+			queued_.decrementAndGet();
+			active_.incrementAndGet();
+			try {
+				if (!stream_.isCancelled()) {
+					runTransfer();
+				}
+			} finally {
+				active_.decrementAndGet();
+				stream_.close();
+			}
+		}
+
+		private void runTransfer() {
+			try {
+				transfer_.run((HttpServletRequest) context_.getRequest(), (HttpServletResponse) context_.getResponse());
+			} catch (IOException e) {
+				// Usually the client has gone away, in which case there is
+				// nobody to tell
+				log.debug("Video transfer failed", e);
+				if (!stream_.isCancelled()) {
+					sendError(context_, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+				}
+			} catch (RuntimeException e) {
+				log.error("Video transfer failed", e);
+				if (!stream_.isCancelled()) {
+					sendError(context_, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+				}
+			} finally {
+				if (!stream_.isCancelled()) {
+					complete(context_);
+				}
+			}
+		}
+
+		private void cancel() {
+			stream_.cancel();
+			if (threads_.remove(this)) {
+				// It never started
+				queued_.decrementAndGet();
+				stream_.close();
+			}
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) {
+			log.debug("Video transfer of " + stream_.getResource() + " timed out");
+			cancel();
+		}
+
+		@Override
+		public void onError(AsyncEvent event) {
+			cancel();
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) {
+			// Nothing to clean up
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+			// Not restarted
+		}
+
+	}
+
+	private void sendError(AsyncContext context, int status) {
+		HttpServletResponse response = (HttpServletResponse) context.getResponse();
+		if (!response.isCommitted()) {
+			try {
+				response.sendError(status);
+			} catch (IOException e) {
+				// The client has gone away
+			} catch (IllegalStateException e) {
+				// The container has already timed the request out
+			}
+		}
+	}
+
+	private void complete(AsyncContext context) {
+		try {
+			context.complete();
+		} catch (IllegalStateException e) {
+			// The container has already timed the request out
+		}
+	}
+
+}
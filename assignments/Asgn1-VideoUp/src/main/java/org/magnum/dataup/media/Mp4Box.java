@@ -0,0 +1,242 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.media;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An MP4 box that has been read into memory. Boxes that only hold other
+ * boxes (moov, trak, etc.) are parsed into their children, all others
+ * keep their raw payload. Boxes can be put back together with toBuffer(),
+ * so a tree can be read, changed and written out again.
+ *
+ * This is only meant for the metadata boxes, which are small. The media
+ * data (mdat) is never read into memory.
+ *
+ * @author jules
+ *
+ */
+class Mp4Box {
+
+	// The boxes that hold nothing but other boxes
+	private static final Set<String> CONTAINERS = new HashSet<String>(Arrays.asList(
+			"moov", "trak", "mdia", "minf", "stbl", "edts", "dinf", "mvex", "moof", "traf"));
+
+	private static final int HEADER_SIZE = 8;
+
+	private final String type_;
+	private final ByteBuffer payload_;
+	private final List<Mp4Box> children_;
+
+	/**
+	 * Creates a box with a raw payload.
+	 *
+	 * @param type
+	 * @param payload
+	 */
+	public Mp4Box(String type, ByteBuffer payload) {
+		type_ = type;
+		payload_ = payload.slice();
+		children_ = null;
+	}
+
+	/**
+	 * Creates a box that holds other boxes.
+	 *
+	 * @param type
+	 * @param children
+	 */
+	public Mp4Box(String type, List<Mp4Box> children) {
+		type_ = type;
+		payload_ = null;
+		children_ = new ArrayList<Mp4Box>(children);
+	}
+
+	/**
+	 * Parses the payload of a box with the given type.
+	 *
+	 * @param type
+	 * @param payload
+	 * @return
+	 * @throws Mp4FormatException
+	 */
+	public static Mp4Box parse(String type, ByteBuffer payload) throws Mp4FormatException {
+		return CONTAINERS.contains(type) ? new Mp4Box(type, parseAll(payload)) : new Mp4Box(type, payload);
+	}
+
+	/**
+	 * Parses a sequence of boxes that fills the buffer.
+	 *
+	 * @param buffer
+	 * @return
+	 * @throws Mp4FormatException
+	 */
+	public static List<Mp4Box> parseAll(ByteBuffer buffer) throws Mp4FormatException {
+		List<Mp4Box> boxes = new ArrayList<Mp4Box>();
+		ByteBuffer in = buffer.slice();
+		while (in.hasRemaining()) {
+			if (in.remaining() < HEADER_SIZE) {
+				throw new Mp4FormatException("Truncated box header");
+			}
+			int start = in.position();
+			long size = in.getInt() & 0xffffffffL;
+			String type = readType(in);
+			if (size == 1) {
+				if (in.remaining() < 8) {
+					throw new Mp4FormatException("Truncated box header");
+				}
+				size = in.getLong();
+			} else if (size == 0) {
+				size = in.limit() - start;
+			}
+			int header = in.position() - start;
+			if (size < header || size > in.limit() - start) {
+				throw new Mp4FormatException("Invalid size " + size + " for box " + type);
+			}
+			ByteBuffer payload = in.duplicate();
+			payload.limit((int) (start + size));
+			boxes.add(parse(type, payload));
+			in.position((int) (start + size));
+		}
+		return boxes;
+	}
+
+	public static String readType(ByteBuffer in) {
+		byte[] type = new byte[4];
+		in.get(type);
+		return new String(type, StandardCharsets.ISO_8859_1);
+	}
+
+	public String getType() {
+		return type_;
+	}
+
+	public boolean isContainer() {
+		return children_ != null;
+	}
+
+	/**
+	 * Returns the payload of a box that isn't a container, positioned at its
+	 * start. Changes to the buffer are changes to the box.
+	 *
+	 * @return
+	 */
+	public ByteBuffer getPayload() {
+		return payload_.duplicate();
+	}
+
+	public List<Mp4Box> getChildren() {
+		return (children_ != null) ? Collections.unmodifiableList(children_) : Collections.<Mp4Box> emptyList();
+	}
+
+	/**
+	 * Follows the path of box types down from this box and returns the
+	 * first box that matches, or null if there is none.
+	 *
+	 * @param path
+	 * @return
+	 */
+	public Mp4Box find(String... path) {
+		Mp4Box box = this;
+		for (String type : path) {
+			Mp4Box next = null;
+			for (Mp4Box child : box.getChildren()) {
+				if (child.getType().equals(type)) {
+					next = child;
+					break;
+				}
+			}
+			if (next == null) {
+				return null;
+			}
+			box = next;
+		}
+		return box;
+	}
+
+	/**
+	 * Returns the children with the given type.
+	 *
+	 * @param type
+	 * @return
+	 */
+	public List<Mp4Box> findAll(String type) {
+		List<Mp4Box> found = new ArrayList<Mp4Box>();
+		for (Mp4Box child : getChildren()) {
+			if (child.getType().equals(type)) {
+				found.add(child);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Returns the size of the whole box, including its header.
+	 *
+	 * @return
+	 */
+	public long getSize() {
+		long size = HEADER_SIZE;
+		if (children_ != null) {
+			for (Mp4Box child : children_) {
+				size += child.getSize();
+			}
+		} else {
+			size += payload_.remaining();
+		}
+		return size;
+	}
+
+	/**
+	 * Serializes the box, including its header.
+	 *
+	 * @return
+	 * @throws Mp4FormatException
+	 *             if the box is too big to be held in memory
+	 */
+	public ByteBuffer toBuffer() throws Mp4FormatException {
+		long size = getSize();
+		if (size > Integer.MAX_VALUE) {
+			throw new Mp4FormatException("Box " + type_ + " is too large");
+		}
+		ByteBuffer out = ByteBuffer.allocate((int) size);
+		writeTo(out);
+		out.flip();
+		return out;
+	}
+
+	private void writeTo(ByteBuffer out) {
+		out.putInt((int) getSize());
+		out.put(type_.getBytes(StandardCharsets.ISO_8859_1));
+		if (children_ != null) {
+			for (Mp4Box child : children_) {
+				child.writeTo(out);
+			}
+		} else {
+			out.put(payload_.duplicate());
+		}
+	}
+
+}
@@ -0,0 +1,177 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.media;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rewrites MP4 files so that their metadata (the moov box) comes before the
+ * media data. Players need the metadata before they can play anything, so
+ * when a file has it at the end (which is what most recorders write), a
+ * player either has to download the whole file or make an extra range
+ * request for the tail before it can start.
+ *
+ * The media data is copied as it is, only the chunk offset tables in the
+ * metadata are shifted to match where the data ends up.
+ *
+ * @author jules
+ *
+ */
+public class Mp4FastStart {
+
+	private Mp4FastStart() {
+	}
+
+	/**
+	 * Checks whether a file has its metadata after its media data.
+	 *
+	 * @param source
+	 * @return
+	 * @throws Mp4FormatException
+	 *             if the file isn't an MP4 file
+	 * @throws IOException
+	 */
+	public static boolean needsRelocation(Path source) throws IOException {
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+			return needsRelocation(Mp4File.scan(in));
+		}
+	}
+
+	/**
+	 * Writes a copy of the source file with the moov box moved in front of
+	 * the first mdat box. Nothing is written if the file is already laid out
+	 * that way.
+	 *
+	 * @param source
+	 * @param target
+	 * @return true if the target was written
+	 * @throws Mp4FormatException
+	 *             if the file isn't an MP4 file, or its chunk offsets can't
+	 *             be moved
+	 * @throws IOException
+	 */
+	public static boolean relocate(Path source, Path target) throws IOException {
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+			Mp4File file = Mp4File.scan(in);
+			if (!needsRelocation(file)) {
+				return false;
+			}
+
+			Mp4File.Entry moovEntry = file.find("moov");
+			Mp4Box moov = file.read(moovEntry);
+
+			// Work out where each of the other boxes ends up once the moov
+			// box has been taken out and put back in before the first mdat
+			List<Mp4File.Entry> layout = new ArrayList<Mp4File.Entry>();
+			long[] newOffsets = new long[file.getEntries().size()];
+			long position = 0;
+			for (Mp4File.Entry entry : file.getEntries()) {
+				if (entry == moovEntry) {
+					continue;
+				}
+				if (entry.getType().equals("mdat") && !layout.contains(moovEntry)) {
+					newOffsets[file.getEntries().indexOf(moovEntry)] = position;
+					layout.add(moovEntry);
+					position += moovEntry.getSize();
+				}
+				newOffsets[file.getEntries().indexOf(entry)] = position;
+				layout.add(entry);
+				position += entry.getSize();
+			}
+
+			try {
+				for (Mp4Box trak : moov.findAll("trak")) {
+					Mp4Box stbl = trak.find("mdia", "minf", "stbl");
+					if (stbl == null) {
+						continue;
+					}
+					Mp4Box stco = stbl.find("stco");
+					if (stco != null) {
+						shiftOffsets(stco, false, file, newOffsets);
+					}
+					Mp4Box co64 = stbl.find("co64");
+					if (co64 != null) {
+						shiftOffsets(co64, true, file, newOffsets);
+					}
+				}
+			} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+				throw new Mp4FormatException("Truncated chunk offsets");
+			}
+
+			try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				for (Mp4File.Entry entry : layout) {
+					if (entry == moovEntry) {
+						Mp4File.writeFully(out, moov.toBuffer());
+					} else {
+						Mp4File.copy(in, entry.getOffset(), entry.getSize(), out);
+					}
+				}
+				out.force(true);
+			}
+			return true;
+		}
+	}
+
+	private static boolean needsRelocation(Mp4File file) {
+		Mp4File.Entry moov = file.find("moov");
+		Mp4File.Entry mdat = file.find("mdat");
+		return moov != null && mdat != null && moov.getOffset() > mdat.getOffset();
+	}
+
+	// Moves every chunk offset in the table by however far the top-level box
+	// that contains it has moved
+	private static void shiftOffsets(Mp4Box table, boolean wide, Mp4File file, long[] newOffsets)
+			throws Mp4FormatException {
+		ByteBuffer payload = table.getPayload();
+		payload.position(4);
+		int count = payload.getInt();
+		List<Mp4File.Entry> entries = file.getEntries();
+		for (int i = 0; i < count; i++) {
+			int at = payload.position();
+			long offset = wide ? payload.getLong() : payload.getInt() & 0xffffffffL;
+			int box = indexOf(entries, offset);
+			long shifted = offset - entries.get(box).getOffset() + newOffsets[box];
+			if (wide) {
+				payload.putLong(at, shifted);
+			} else if (shifted > 0xffffffffL) {
+				throw new Mp4FormatException("Chunk offset doesn't fit in stco");
+			} else {
+				payload.putInt(at, (int) shifted);
+			}
+		}
+	}
+
+	private static int indexOf(List<Mp4File.Entry> entries, long offset) throws Mp4FormatException {
+		for (int i = 0; i < entries.size(); i++) {
+			Mp4File.Entry entry = entries.get(i);
+			if (offset >= entry.getOffset() && offset < entry.getEnd()) {
+				return i;
+			}
+		}
+		throw new Mp4FormatException("Chunk offset " + offset + " is outside of the file");
+	}
+
+}
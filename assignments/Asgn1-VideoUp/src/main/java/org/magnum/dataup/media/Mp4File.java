@@ -0,0 +1,217 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.media;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The top-level box layout of an MP4 file. Only the box headers are read
+ * while the file is scanned, the metadata (moov) is read into memory on
+ * demand and the media data is left where it is.
+ *
+ * @author jules
+ *
+ */
+class Mp4File {
+
+	/**
+	 * A top-level box in the file.
+	 */
+	public static class Entry {
+
+		private final String type_;
+		private final long offset_;
+		private final long size_;
+
+		Entry(String type, long offset, long size) {
+			type_ = type;
+			offset_ = offset;
+			size_ = size;
+		}
+
+		public String getType() {
+			return type_;
+		}
+
+		/**
+		 * The offset of the box header in the file.
+		 */
+		public long getOffset() {
+			return offset_;
+		}
+
+		/**
+		 * The size of the box, including its header.
+		 */
+		public long getSize() {
+			return size_;
+		}
+
+		public long getEnd() {
+			return offset_ + size_;
+		}
+	}
+
+	// The metadata is read into memory, so refuse anything absurdly large
+	private static final long MAX_MOOV_SIZE = 64 * 1024 * 1024;
+
+	private final FileChannel channel_;
+	private final List<Entry> entries_;
+
+	private Mp4File(FileChannel channel, List<Entry> entries) {
+		channel_ = channel;
+		entries_ = entries;
+	}
+
+	/**
+	 * Scans the top-level boxes of the file. The channel stays owned by the
+	 * caller.
+	 *
+	 * @param channel
+	 * @return
+	 * @throws Mp4FormatException
+	 *             if the file doesn't start with an ftyp box or its boxes
+	 *             don't line up with the end of the file
+	 * @throws IOException
+	 */
+	public static Mp4File scan(FileChannel channel) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		long length = channel.size();
+		long offset = 0;
+		ByteBuffer header = ByteBuffer.allocate(16);
+		while (offset < length) {
+			header.clear();
+			header.limit((int) Math.min(16, length - offset));
+			readFully(channel, header, offset);
+			header.flip();
+			if (header.remaining() < 8) {
+				throw new Mp4FormatException("Truncated box header at " + offset);
+			}
+			long size = header.getInt() & 0xffffffffL;
+			String type = Mp4Box.readType(header);
+			if (size == 1) {
+				if (header.remaining() < 8) {
+					throw new Mp4FormatException("Truncated box header at " + offset);
+				}
+				size = header.getLong();
+			} else if (size == 0) {
+				size = length - offset;
+			}
+			if (size < 8 || size > length - offset) {
+				throw new Mp4FormatException("Invalid size " + size + " for box " + type + " at " + offset);
+			}
+			if (entries.isEmpty() && !type.equals("ftyp")) {
+				throw new Mp4FormatException("Not an MP4 file");
+			}
+			entries.add(new Entry(type, offset, size));
+			offset += size;
+		}
+		if (entries.isEmpty()) {
+			throw new Mp4FormatException("Not an MP4 file");
+		}
+		return new Mp4File(channel, entries);
+	}
+
+	public List<Entry> getEntries() {
+		return Collections.unmodifiableList(entries_);
+	}
+
+	/**
+	 * Returns the first top-level box with the given type, or null.
+	 *
+	 * @param type
+	 * @return
+	 */
+	public Entry find(String type) {
+		for (Entry entry : entries_) {
+			if (entry.getType().equals(type)) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads a whole top-level box into memory.
+	 *
+	 * @param entry
+	 * @return
+	 * @throws IOException
+	 */
+	public Mp4Box read(Entry entry) throws IOException {
+		if (entry.getSize() > MAX_MOOV_SIZE) {
+			throw new Mp4FormatException("Box " + entry.getType() + " is too large");
+		}
+		ByteBuffer data = ByteBuffer.allocate((int) entry.getSize());
+		readFully(channel_, data, entry.getOffset());
+		data.flip();
+		List<Mp4Box> boxes = Mp4Box.parseAll(data);
+		return boxes.get(0);
+	}
+
+	/**
+	 * Reads the moov box, which holds the metadata of the whole file.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public Mp4Box readMovie() throws IOException {
+		Entry moov = find("moov");
+		if (moov == null) {
+			throw new Mp4FormatException("No moov box");
+		}
+		return read(moov);
+	}
+
+	static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if (n < 0) {
+				throw new EOFException();
+			}
+			position += n;
+		}
+	}
+
+	static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Copies a range of one file to the current position of another.
+	 */
+	static void copy(FileChannel from, long position, long count, FileChannel to) throws IOException {
+		long end = position + count;
+		while (position < end) {
+			long n = from.transferTo(position, end - position, to);
+			if (n <= 0) {
+				throw new EOFException();
+			}
+			position += n;
+		}
+	}
+
+}
@@ -0,0 +1,38 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.media;
+
+import java.io.IOException;
+
+/**
+ * Thrown when data isn't an MP4 file, or uses parts of the format that the
+ * media classes don't handle. The data itself can still be stored and
+ * served as it is.
+ *
+ * @author jules
+ *
+ */
+public class Mp4FormatException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public Mp4FormatException(String reason) {
+		super(reason);
+	}
+
+}
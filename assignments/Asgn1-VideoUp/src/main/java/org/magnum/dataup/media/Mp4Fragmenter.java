@@ -0,0 +1,380 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.media;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.magnum.dataup.model.SegmentIndex;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Splits an MP4 file into fragmented MP4 segments of roughly a fixed
+ * duration, so that players can start playing after fetching the (small)
+ * init segment and the first media segment, instead of a large range of
+ * one monolithic file.
+ *
+ * The output directory holds:
+ *
+ * init.mp4 - the ftyp and moov boxes of the source, with the sample tables
+ * emptied and an mvex box added
+ *
+ * 1.m4s, 2.m4s, ... - a moof box describing the samples of each track,
+ * followed by an mdat box with their data
+ *
+ * index.json - a SegmentIndex of the above
+ *
+ * Segments are cut at the first key frame of the video track at or after
+ * each multiple of the segment duration, so they may be a little longer
+ * than asked for. The samples themselves are copied as they are.
+ *
+ * @author jules
+ *
+ */
+public class Mp4Fragmenter {
+
+	public static final String INIT_SEGMENT = "init.mp4";
+	public static final String INDEX = "index.json";
+	public static final String SEGMENT_EXTENSION = ".m4s";
+
+	// trun flags
+	private static final int DATA_OFFSET_PRESENT = 0x000001;
+	private static final int SAMPLE_DURATION_PRESENT = 0x000100;
+	private static final int SAMPLE_SIZE_PRESENT = 0x000200;
+	private static final int SAMPLE_FLAGS_PRESENT = 0x000400;
+	private static final int SAMPLE_COMPOSITION_OFFSET_PRESENT = 0x000800;
+
+	// tfhd flags
+	private static final int DEFAULT_BASE_IS_MOOF = 0x020000;
+
+	// Sample flags: sample_depends_on = 2 (a key frame), or sample_depends_on
+	// = 1 and sample_is_non_sync_sample
+	private static final int SYNC_SAMPLE = 0x02000000;
+	private static final int NON_SYNC_SAMPLE = 0x01010000;
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private Mp4Fragmenter() {
+	}
+
+	/**
+	 * Returns the name of the file that holds a segment in the output
+	 * directory, where segment 0 is the init segment.
+	 *
+	 * @param segment
+	 * @return
+	 */
+	public static String getSegmentFileName(int segment) {
+		return (segment == 0) ? INIT_SEGMENT : segment + SEGMENT_EXTENSION;
+	}
+
+	/**
+	 * Splits the source file into segments in the (existing, empty)
+	 * directory.
+	 *
+	 * @param source
+	 * @param dir
+	 * @param segmentSeconds
+	 *            the target duration of each segment
+	 * @return
+	 * @throws Mp4FormatException
+	 *             if the file isn't an MP4 file that can be fragmented
+	 * @throws IOException
+	 */
+	public static SegmentIndex fragment(Path source, Path dir, double segmentSeconds) throws IOException {
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+			Mp4File file = Mp4File.scan(in);
+			Mp4Box moov = file.readMovie();
+			if (moov.find("mvex") != null) {
+				throw new Mp4FormatException("File is already fragmented");
+			}
+
+			List<Mp4Track> tracks = new ArrayList<Mp4Track>();
+			try {
+				for (Mp4Box trak : moov.findAll("trak")) {
+					tracks.add(new Mp4Track(trak));
+				}
+			} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+				throw new Mp4FormatException("Truncated sample tables");
+			}
+			Mp4Track reference = findReferenceTrack(tracks);
+
+			SegmentIndex index = new SegmentIndex();
+			index.setDuration(reference.getDuration() / (double) reference.getTimescale());
+			index.setInitSize(write(dir.resolve(INIT_SEGMENT), initSegment(file, moov, tracks)));
+
+			// Cut the reference track at key frames and every other track at
+			// the same points in time
+			long[] boundaries = findBoundaries(reference, segmentSeconds);
+			for (int s = 0; s + 1 < boundaries.length; s++) {
+				int[] first = new int[tracks.size()];
+				int[] end = new int[tracks.size()];
+				for (int t = 0; t < tracks.size(); t++) {
+					Mp4Track track = tracks.get(t);
+					first[t] = track.sampleAt(convert(boundaries[s], reference, track));
+					end[t] = (s + 2 == boundaries.length) ? track.getSampleCount() : track.sampleAt(convert(
+							boundaries[s + 1], reference, track));
+				}
+
+				int number = s + 1;
+				long size = writeSegment(in, dir.resolve(getSegmentFileName(number)), number, tracks, first, end);
+				double start = boundaries[s] / (double) reference.getTimescale();
+				double duration = (boundaries[s + 1] - boundaries[s]) / (double) reference.getTimescale();
+				index.getSegments().add(new SegmentIndex.Segment(number, start, duration, size));
+			}
+
+			mapper.writeValue(dir.resolve(INDEX).toFile(), index);
+			return index;
+		}
+	}
+
+	// The video track if there is one, otherwise the first track
+	private static Mp4Track findReferenceTrack(List<Mp4Track> tracks) throws Mp4FormatException {
+		Mp4Track reference = null;
+		for (Mp4Track track : tracks) {
+			if (track.getSampleCount() == 0) {
+				continue;
+			}
+			if (track.getHandler().equals("vide")) {
+				return track;
+			}
+			if (reference == null) {
+				reference = track;
+			}
+		}
+		if (reference == null) {
+			throw new Mp4FormatException("No samples");
+		}
+		return reference;
+	}
+
+	// Returns the start times of the segments in the reference track, along
+	// with the end of the track
+	private static long[] findBoundaries(Mp4Track reference, double segmentSeconds) {
+		long step = Math.max(1, Math.round(segmentSeconds * reference.getTimescale()));
+		List<Long> boundaries = new ArrayList<Long>();
+		boundaries.add(0L);
+		int sample = 0;
+		while (true) {
+			long target = boundaries.get(boundaries.size() - 1) + step;
+			sample = Math.max(sample + 1, reference.sampleAt(target));
+			while (sample < reference.getSampleCount() && !reference.isSync(sample)) {
+				sample++;
+			}
+			if (sample >= reference.getSampleCount()) {
+				break;
+			}
+			boundaries.add(reference.getDecodeTime(sample));
+		}
+		boundaries.add(reference.getDuration());
+
+		long[] times = new long[boundaries.size()];
+		for (int i = 0; i < times.length; i++) {
+			times[i] = boundaries.get(i);
+		}
+		return times;
+	}
+
+	private static long convert(long time, Mp4Track from, Mp4Track to) {
+		if (from == to) {
+			return time;
+		}
+		return (long) Math.ceil(time * (double) to.getTimescale() / from.getTimescale());
+	}
+
+	private static List<ByteBuffer> initSegment(Mp4File file, Mp4Box moov, List<Mp4Track> tracks)
+			throws IOException {
+		List<Mp4Box> children = new ArrayList<Mp4Box>();
+		for (Mp4Box child : moov.getChildren()) {
+			children.add(child.getType().equals("trak") ? emptySampleTables(child) : child);
+		}
+		List<Mp4Box> trex = new ArrayList<Mp4Box>();
+		for (Mp4Track track : tracks) {
+			ByteBuffer payload = ByteBuffer.allocate(24);
+			payload.putInt(0);
+			payload.putInt(track.getTrackId());
+			payload.putInt(1);
+			payload.putInt(0);
+			payload.putInt(0);
+			payload.putInt(0);
+			payload.flip();
+			trex.add(new Mp4Box("trex", payload));
+		}
+		children.add(new Mp4Box("mvex", trex));
+
+		List<ByteBuffer> init = new ArrayList<ByteBuffer>();
+		init.add(file.read(file.find("ftyp")).toBuffer());
+		init.add(new Mp4Box("moov", children).toBuffer());
+		return init;
+	}
+
+	// Copies a trak box with its sample tables emptied out, keeping only the
+	// sample descriptions
+	private static Mp4Box emptySampleTables(Mp4Box box) {
+		if (box.getType().equals("stbl")) {
+			List<Mp4Box> tables = new ArrayList<Mp4Box>();
+			tables.add(box.find("stsd"));
+			tables.add(new Mp4Box("stts", ByteBuffer.allocate(8)));
+			tables.add(new Mp4Box("stsc", ByteBuffer.allocate(8)));
+			tables.add(new Mp4Box("stsz", ByteBuffer.allocate(12)));
+			tables.add(new Mp4Box("stco", ByteBuffer.allocate(8)));
+			return new Mp4Box("stbl", tables);
+		}
+		if (!box.isContainer()) {
+			return box;
+		}
+		List<Mp4Box> children = new ArrayList<Mp4Box>();
+		for (Mp4Box child : box.getChildren()) {
+			children.add(emptySampleTables(child));
+		}
+		return new Mp4Box(box.getType(), children);
+	}
+
+	private static long writeSegment(FileChannel in, Path target, int number, List<Mp4Track> tracks, int[] first,
+			int[] end) throws IOException {
+		long dataSize = 0;
+		for (int t = 0; t < tracks.size(); t++) {
+			for (int i = first[t]; i < end[t]; i++) {
+				dataSize += tracks.get(t).getSize(i);
+			}
+		}
+		boolean largeData = dataSize + 8 > 0xffffffffL;
+		int mdatHeader = largeData ? 16 : 8;
+
+		// The size of the moof box doesn't depend on the data offsets, so it
+		// is built twice: once to size it and once with the offsets filled in
+		Mp4Box moof = moof(number, tracks, first, end, 0);
+		moof = moof(number, tracks, first, end, moof.getSize() + mdatHeader);
+
+		ByteBuffer header = ByteBuffer.allocate(mdatHeader);
+		if (largeData) {
+			header.putInt(1);
+			header.put(new byte[] { 'm', 'd', 'a', 't' });
+			header.putLong(dataSize + 16);
+		} else {
+			header.putInt((int) (dataSize + 8));
+			header.put(new byte[] { 'm', 'd', 'a', 't' });
+		}
+		header.flip();
+
+		try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+			Mp4File.writeFully(out, moof.toBuffer());
+			Mp4File.writeFully(out, header);
+
+			// Copy the samples in runs, since they are usually stored next to
+			// each other
+			for (int t = 0; t < tracks.size(); t++) {
+				Mp4Track track = tracks.get(t);
+				long runStart = 0;
+				long runEnd = 0;
+				for (int i = first[t]; i < end[t]; i++) {
+					if (track.getOffset(i) != runEnd) {
+						Mp4File.copy(in, runStart, runEnd - runStart, out);
+						runStart = track.getOffset(i);
+						runEnd = runStart;
+					}
+					runEnd += track.getSize(i);
+				}
+				Mp4File.copy(in, runStart, runEnd - runStart, out);
+			}
+			out.force(true);
+			return out.size();
+		}
+	}
+
+	private static Mp4Box moof(int number, List<Mp4Track> tracks, int[] first, int[] end, long dataOffset)
+			throws Mp4FormatException {
+		List<Mp4Box> children = new ArrayList<Mp4Box>();
+		ByteBuffer mfhd = ByteBuffer.allocate(8);
+		mfhd.putInt(0);
+		mfhd.putInt(number);
+		mfhd.flip();
+		children.add(new Mp4Box("mfhd", mfhd));
+
+		for (int t = 0; t < tracks.size(); t++) {
+			Mp4Track track = tracks.get(t);
+			int count = end[t] - first[t];
+			if (count <= 0) {
+				continue;
+			}
+			if (dataOffset > Integer.MAX_VALUE) {
+				throw new Mp4FormatException("Segment is too large");
+			}
+
+			ByteBuffer tfhd = ByteBuffer.allocate(8);
+			tfhd.putInt(DEFAULT_BASE_IS_MOOF);
+			tfhd.putInt(track.getTrackId());
+			tfhd.flip();
+
+			ByteBuffer tfdt = ByteBuffer.allocate(12);
+			tfdt.putInt(1 << 24);
+			tfdt.putLong(track.getDecodeTime(first[t]));
+			tfdt.flip();
+
+			boolean negative = false;
+			for (int i = first[t]; i < end[t]; i++) {
+				negative |= track.getCompositionOffset(i) < 0;
+			}
+			int flags = DATA_OFFSET_PRESENT | SAMPLE_DURATION_PRESENT | SAMPLE_SIZE_PRESENT | SAMPLE_FLAGS_PRESENT;
+			int sampleSize = 12;
+			if (track.hasCompositionOffsets()) {
+				flags |= SAMPLE_COMPOSITION_OFFSET_PRESENT;
+				sampleSize += 4;
+			}
+			ByteBuffer trun = ByteBuffer.allocate(12 + count * sampleSize);
+			trun.putInt(((negative ? 1 : 0) << 24) | flags);
+			trun.putInt(count);
+			trun.putInt((int) dataOffset);
+			for (int i = first[t]; i < end[t]; i++) {
+				trun.putInt(track.getDuration(i));
+				trun.putInt(track.getSize(i));
+				trun.putInt(track.isSync(i) ? SYNC_SAMPLE : NON_SYNC_SAMPLE);
+				if (track.hasCompositionOffsets()) {
+					trun.putInt(track.getCompositionOffset(i));
+				}
+				dataOffset += track.getSize(i);
+			}
+			trun.flip();
+
+			List<Mp4Box> traf = new ArrayList<Mp4Box>();
+			traf.add(new Mp4Box("tfhd", tfhd));
+			traf.add(new Mp4Box("tfdt", tfdt));
+			traf.add(new Mp4Box("trun", trun));
+			children.add(new Mp4Box("traf", traf));
+		}
+		return new Mp4Box("moof", children);
+	}
+
+	private static long write(Path target, List<ByteBuffer> buffers) throws IOException {
+		try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+			for (ByteBuffer buffer : buffers) {
+				Mp4File.writeFully(out, buffer);
+			}
+			out.force(true);
+			return out.size();
+		}
+	}
+
+}
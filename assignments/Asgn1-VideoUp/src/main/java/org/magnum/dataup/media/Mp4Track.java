@@ -0,0 +1,281 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.media;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The samples of one track of an MP4 file, unpacked from the (heavily
+ * compressed) sample tables in its stbl box into flat arrays that are
+ * indexed by sample number.
+ *
+ * @author jules
+ *
+ */
+class Mp4Track {
+
+	private final int trackId_;
+	private final long timescale_;
+	private final String handler_;
+
+	private final long[] offsets_;
+	private final int[] sizes_;
+	private final long[] decodeTimes_;
+	private final int[] durations_;
+	private final int[] compositionOffsets_;
+	private final boolean[] sync_;
+	private final boolean hasCompositionOffsets_;
+
+	/**
+	 * Unpacks the sample tables of a trak box.
+	 *
+	 * @param trak
+	 * @throws Mp4FormatException
+	 *             if the track is missing tables, or uses more than one
+	 *             sample description
+	 */
+	public Mp4Track(Mp4Box trak) throws Mp4FormatException {
+		trackId_ = readTrackId(require(trak, "tkhd"));
+		timescale_ = readTimescale(require(trak, "mdia", "mdhd"));
+		ByteBuffer hdlr = require(trak, "mdia", "hdlr").getPayload();
+		hdlr.position(8);
+		handler_ = Mp4Box.readType(hdlr);
+
+		Mp4Box stbl = require(trak, "mdia", "minf", "stbl");
+		require(stbl, "stsd");
+
+		// Sample sizes
+		ByteBuffer stsz = require(stbl, "stsz").getPayload();
+		stsz.position(4);
+		int fixedSize = stsz.getInt();
+		int count = stsz.getInt();
+		if (count < 0 || (fixedSize == 0 && count > stsz.remaining() / 4)) {
+			throw new Mp4FormatException("Invalid sample count");
+		}
+		sizes_ = new int[count];
+		for (int i = 0; i < count; i++) {
+			sizes_[i] = (fixedSize != 0) ? fixedSize : stsz.getInt();
+		}
+
+		// Sample offsets, from the chunk offsets and the chunk each sample
+		// belongs to
+		long[] chunks = readChunkOffsets(stbl);
+		ByteBuffer stsc = require(stbl, "stsc").getPayload();
+		stsc.position(4);
+		int runs = stsc.getInt();
+		offsets_ = new long[count];
+		int sample = 0;
+		for (int run = 0; run < runs; run++) {
+			int firstChunk = stsc.getInt() - 1;
+			int samplesPerChunk = stsc.getInt();
+			if (stsc.getInt() != 1) {
+				throw new Mp4FormatException("Multiple sample descriptions aren't supported");
+			}
+			int lastChunk = (run + 1 < runs) ? stsc.getInt(stsc.position()) - 1 : chunks.length;
+			for (int chunk = firstChunk; chunk < lastChunk && chunk < chunks.length; chunk++) {
+				long offset = chunks[chunk];
+				for (int i = 0; i < samplesPerChunk && sample < count; i++) {
+					offsets_[sample] = offset;
+					offset += sizes_[sample];
+					sample++;
+				}
+			}
+		}
+		if (sample != count) {
+			throw new Mp4FormatException("Sample tables of track " + trackId_ + " don't match");
+		}
+
+		// Decode times
+		ByteBuffer stts = require(stbl, "stts").getPayload();
+		stts.position(4);
+		runs = stts.getInt();
+		decodeTimes_ = new long[count];
+		durations_ = new int[count];
+		long time = 0;
+		sample = 0;
+		for (int run = 0; run < runs; run++) {
+			int n = stts.getInt();
+			int delta = stts.getInt();
+			for (int i = 0; i < n && sample < count; i++) {
+				decodeTimes_[sample] = time;
+				durations_[sample] = delta;
+				time += delta;
+				sample++;
+			}
+		}
+		if (sample != count) {
+			throw new Mp4FormatException("Sample tables of track " + trackId_ + " don't match");
+		}
+
+		// Composition offsets, for tracks with reordered frames
+		compositionOffsets_ = new int[count];
+		Mp4Box ctts = stbl.find("ctts");
+		hasCompositionOffsets_ = ctts != null;
+		if (ctts != null) {
+			ByteBuffer in = ctts.getPayload();
+			in.position(4);
+			runs = in.getInt();
+			sample = 0;
+			for (int run = 0; run < runs; run++) {
+				int n = in.getInt();
+				int offset = in.getInt();
+				for (int i = 0; i < n && sample < count; i++) {
+					compositionOffsets_[sample++] = offset;
+				}
+			}
+		}
+
+		// Sync samples; every sample is one if there's no table
+		sync_ = new boolean[count];
+		Mp4Box stss = stbl.find("stss");
+		if (stss == null) {
+			Arrays.fill(sync_, true);
+		} else {
+			ByteBuffer in = stss.getPayload();
+			in.position(4);
+			int n = in.getInt();
+			for (int i = 0; i < n; i++) {
+				int s = in.getInt() - 1;
+				if (s >= 0 && s < count) {
+					sync_[s] = true;
+				}
+			}
+		}
+	}
+
+	public int getTrackId() {
+		return trackId_;
+	}
+
+	public long getTimescale() {
+		return timescale_;
+	}
+
+	/**
+	 * The handler type of the track ("vide", "soun", etc.).
+	 */
+	public String getHandler() {
+		return handler_;
+	}
+
+	public int getSampleCount() {
+		return sizes_.length;
+	}
+
+	public long getOffset(int sample) {
+		return offsets_[sample];
+	}
+
+	public int getSize(int sample) {
+		return sizes_[sample];
+	}
+
+	public long getDecodeTime(int sample) {
+		return decodeTimes_[sample];
+	}
+
+	public int getDuration(int sample) {
+		return durations_[sample];
+	}
+
+	public int getCompositionOffset(int sample) {
+		return compositionOffsets_[sample];
+	}
+
+	public boolean hasCompositionOffsets() {
+		return hasCompositionOffsets_;
+	}
+
+	public boolean isSync(int sample) {
+		return sync_[sample];
+	}
+
+	/**
+	 * Returns the end of the last sample, in the track's timescale.
+	 *
+	 * @return
+	 */
+	public long getDuration() {
+		int last = sizes_.length - 1;
+		return (last < 0) ? 0 : decodeTimes_[last] + durations_[last];
+	}
+
+	/**
+	 * Returns the first sample that is decoded at or after the given time,
+	 * or the sample count if there is none.
+	 *
+	 * @param time
+	 * @return
+	 */
+	public int sampleAt(long time) {
+		int low = 0;
+		int high = decodeTimes_.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (decodeTimes_[mid] < time) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private static long[] readChunkOffsets(Mp4Box stbl) throws Mp4FormatException {
+		Mp4Box stco = stbl.find("stco");
+		Mp4Box co64 = stbl.find("co64");
+		if (stco == null && co64 == null) {
+			throw new Mp4FormatException("No chunk offsets");
+		}
+		ByteBuffer in = (stco != null) ? stco.getPayload() : co64.getPayload();
+		in.position(4);
+		int count = in.getInt();
+		if (count < 0 || count > in.remaining() / ((stco != null) ? 4 : 8)) {
+			throw new Mp4FormatException("Invalid chunk count");
+		}
+		long[] chunks = new long[count];
+		for (int i = 0; i < chunks.length; i++) {
+			chunks[i] = (stco != null) ? in.getInt() & 0xffffffffL : in.getLong();
+		}
+		return chunks;
+	}
+
+	private static int readTrackId(Mp4Box tkhd) {
+		ByteBuffer in = tkhd.getPayload();
+		int version = in.get() & 0xff;
+		in.position((version == 1) ? 20 : 12);
+		return in.getInt();
+	}
+
+	private static long readTimescale(Mp4Box mdhd) {
+		ByteBuffer in = mdhd.getPayload();
+		int version = in.get() & 0xff;
+		in.position((version == 1) ? 20 : 12);
+		return in.getInt() & 0xffffffffL;
+	}
+
+	private static Mp4Box require(Mp4Box box, String... path) throws Mp4FormatException {
+		Mp4Box found = box.find(path);
+		if (found == null) {
+			throw new Mp4FormatException("No " + path[path.length - 1] + " box");
+		}
+		return found;
+	}
+
+}
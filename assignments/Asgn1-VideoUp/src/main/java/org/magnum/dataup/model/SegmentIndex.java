@@ -0,0 +1,117 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The index of a video that has been split into fragmented MP4 segments.
+ * A player fetches the init segment (which holds the metadata of the
+ * tracks) once, and then the numbered segments in order, or starting from
+ * whichever one holds the time it wants to seek to. Segments start on a
+ * key frame, so each one can be decoded on its own.
+ *
+ * Times are in seconds.
+ *
+ * @author jules
+ *
+ */
+public class SegmentIndex {
+
+	public static class Segment {
+
+		private int number;
+		private double start;
+		private double duration;
+		private long size;
+
+		public Segment() {
+		}
+
+		public Segment(int number, double start, double duration, long size) {
+			super();
+			this.number = number;
+			this.start = start;
+			this.duration = duration;
+			this.size = size;
+		}
+
+		public int getNumber() {
+			return number;
+		}
+
+		public void setNumber(int number) {
+			this.number = number;
+		}
+
+		public double getStart() {
+			return start;
+		}
+
+		public void setStart(double start) {
+			this.start = start;
+		}
+
+		public double getDuration() {
+			return duration;
+		}
+
+		public void setDuration(double duration) {
+			this.duration = duration;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public void setSize(long size) {
+			this.size = size;
+		}
+
+	}
+
+	private double duration;
+	private long initSize;
+	private List<Segment> segments = new ArrayList<Segment>();
+
+	public double getDuration() {
+		return duration;
+	}
+
+	public void setDuration(double duration) {
+		this.duration = duration;
+	}
+
+	public long getInitSize() {
+		return initSize;
+	}
+
+	public void setInitSize(long initSize) {
+		this.initSize = initSize;
+	}
+
+	public List<Segment> getSegments() {
+		return segments;
+	}
+
+	public void setSegments(List<Segment> segments) {
+		this.segments = segments;
+	}
+
+}
@@ -0,0 +1,79 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.model;
+
+/**
+ * The state of a resumable upload session, as reported to clients. The
+ * offset is the number of bytes, counted from the start of the video
+ * data, that the server has durably stored. A client that loses its
+ * connection only needs to resend the data from this offset on.
+ * 
+ * @author jules
+ *
+ */
+public class UploadStatus {
+
+	private String sessionId;
+	private long videoId;
+	private long length;
+	private long offset;
+
+	public UploadStatus() {
+	}
+
+	public UploadStatus(String sessionId, long videoId, long length, long offset) {
+		super();
+		this.sessionId = sessionId;
+		this.videoId = videoId;
+		this.length = length;
+		this.offset = offset;
+	}
+
+	public String getSessionId() {
+		return sessionId;
+	}
+
+	public void setSessionId(String sessionId) {
+		this.sessionId = sessionId;
+	}
+
+	public long getVideoId() {
+		return videoId;
+	}
+
+	public void setVideoId(long videoId) {
+		this.videoId = videoId;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public void setLength(long length) {
+		this.length = length;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public void setOffset(long offset) {
+		this.offset = offset;
+	}
+
+}
@@ -0,0 +1,341 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.repository;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A lock-free map from primitive long keys to values. It's built as an
+ * immutable hash array mapped trie: each node has up to 32 children, picked
+ * by 5 bits of the key's hash at a time, and only the children that exist
+ * are stored. Writers copy the nodes on the path to the key (at most 13 of
+ * them) and swing the root over with a compare-and-set, retrying if another
+ * writer got there first. Readers never wait and never retry.
+ *
+ * Since nodes are never modified, any root is a consistent point-in-time
+ * view of the whole map. values() hands out such a view, so callers can
+ * iterate over every entry without copying anything and without holding
+ * up writers, and are guaranteed not to see any change that was made after
+ * the call.
+ *
+ * The iteration order depends only on the keys (it's the order of their
+ * hashes), so it never changes and valuesAfter() can pick up where an
+ * earlier iteration left off, which is what cursor pagination needs.
+ *
+ * Entries can't be removed, which is all that the VideoCatalog needs.
+ *
+ * @author jules
+ *
+ * @param <V>
+ */
+public class ConcurrentLongIndex<V> {
+
+	private static final int BITS = 5;
+
+	private static final int MASK = (1 << BITS) - 1;
+
+	private static final Node EMPTY = new Node(0, new Object[0]);
+
+	private static class Leaf {
+		private final long key_;
+		private final Object value_;
+
+		private Leaf(long key, Object value) {
+			key_ = key;
+			value_ = value;
+		}
+	}
+
+	private static class Node {
+		// Bit n is set if the child for index n exists, the children are
+		// stored in the order of their indexes
+		private final int bitmap_;
+		private final Object[] children_;
+
+		private Node(int bitmap, Object[] children) {
+			bitmap_ = bitmap;
+			children_ = children;
+		}
+	}
+
+	private static class Root {
+		private final Node node_;
+		private final int size_;
+
+		private Root(Node node, int size) {
+			node_ = node;
+			size_ = size;
+		}
+	}
+
+	private final AtomicReference<Root> root_ = new AtomicReference<Root>(new Root(EMPTY, 0));
+
+	/**
+	 * Returns the value stored for the key, or null if there is none.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public V get(long key) {
+		return find(root_.get().node_, key);
+	}
+
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	public int size() {
+		return root_.get().size_;
+	}
+
+	/**
+	 * Stores the value for the key and returns the value that it replaced,
+	 * if any.
+	 *
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	public V put(long key, V value) {
+		if (value == null) {
+			throw new NullPointerException("Null values are not supported");
+		}
+		long hash = hash(key);
+		while (true) {
+			Root root = root_.get();
+			V previous = find(root.node_, key);
+			Node node = insert(root.node_, hash, new Leaf(key, value), 0);
+			Root updated = new Root(node, (previous == null) ? root.size_ + 1 : root.size_);
+			if (root_.compareAndSet(root, updated)) {
+				return previous;
+			}
+		}
+	}
+
+	/**
+	 * Returns a read-only, point-in-time view of the values in the map. The
+	 * view doesn't change when the map does.
+	 *
+	 * @return
+	 */
+	public Collection<V> values() {
+		final Root root = root_.get();
+		return new AbstractCollection<V>() {
+			@Override
+			public Iterator<V> iterator() {
+				return new ValueIterator<V>(root.node_);
+			}
+
+			@Override
+			public int size() {
+				return root.size_;
+			}
+		};
+	}
+
+	/**
+	 * Returns a point-in-time view of the values whose keys come after the
+	 * given key in iteration order. The key itself doesn't have to be in the
+	 * map.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public Iterable<V> valuesAfter(final long key) {
+		final Root root = root_.get();
+		return new Iterable<V>() {
+			@Override
+			public Iterator<V> iterator() {
+				return new ValueIterator<V>(root.node_, key);
+			}
+		};
+	}
+
+	// The murmur3 finalizer spreads sequential ids over the trie. It's a
+	// bijection, so two different keys always have different hashes.
+	private static long hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	private static int index(long hash, int shift) {
+		return (int) (hash >>> shift) & MASK;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <V> V find(Node node, long key) {
+		long hash = hash(key);
+		for (int shift = 0;; shift += BITS) {
+			int bit = 1 << index(hash, shift);
+			if ((node.bitmap_ & bit) == 0) {
+				return null;
+			}
+			Object child = node.children_[Integer.bitCount(node.bitmap_ & (bit - 1))];
+			if (child instanceof Leaf) {
+				Leaf leaf = (Leaf) child;
+				return (leaf.key_ == key) ? (V) leaf.value_ : null;
+			}
+			node = (Node) child;
+		}
+	}
+
+	// Returns a copy of the node with the leaf added to it (or to one of
+	// its descendants)
+	private static Node insert(Node node, long hash, Leaf leaf, int shift) {
+		int bit = 1 << index(hash, shift);
+		int pos = Integer.bitCount(node.bitmap_ & (bit - 1));
+
+		if ((node.bitmap_ & bit) == 0) {
+			Object[] children = new Object[node.children_.length + 1];
+			System.arraycopy(node.children_, 0, children, 0, pos);
+			children[pos] = leaf;
+			System.arraycopy(node.children_, pos, children, pos + 1, node.children_.length - pos);
+			return new Node(node.bitmap_ | bit, children);
+		}
+
+		Object child = node.children_[pos];
+		Object replacement;
+		if (child instanceof Node) {
+			replacement = insert((Node) child, hash, leaf, shift + BITS);
+		} else if (((Leaf) child).key_ == leaf.key_) {
+			replacement = leaf;
+		} else {
+			Leaf existing = (Leaf) child;
+			replacement = split(existing, hash(existing.key_), leaf, hash, shift + BITS);
+		}
+		Object[] children = node.children_.clone();
+		children[pos] = replacement;
+		return new Node(node.bitmap_, children);
+	}
+
+	// Builds the subtree that holds two leaves whose hashes are the same up
+	// to the given shift. The hashes differ somewhere in their 64 bits, so
+	// this ends by the last level at the latest.
+	private static Node split(Leaf a, long hashA, Leaf b, long hashB, int shift) {
+		int indexA = index(hashA, shift);
+		int indexB = index(hashB, shift);
+		if (indexA == indexB) {
+			return new Node(1 << indexA, new Object[] { split(a, hashA, b, hashB, shift + BITS) });
+		}
+		Object[] children = (indexA < indexB) ? new Object[] { a, b } : new Object[] { b, a };
+		return new Node((1 << indexA) | (1 << indexB), children);
+	}
+
+	// Returns true if the first hash comes after the second one in iteration
+	// order, given that they are the same up to the shift
+	private static boolean follows(long hash, long other, int shift) {
+		for (int s = shift; s < Long.SIZE; s += BITS) {
+			int a = index(hash, s);
+			int b = index(other, s);
+			if (a != b) {
+				return a > b;
+			}
+		}
+		return false;
+	}
+
+	// Walks the trie depth first, keeping the path from the root to the
+	// current node on a stack. The trie is at most 13 levels deep.
+	private static class ValueIterator<V> implements Iterator<V> {
+
+		private final Node[] nodes_ = new Node[14];
+		private final int[] positions_ = new int[14];
+		private int depth_;
+		private Leaf next_;
+
+		private ValueIterator(Node root) {
+			nodes_[0] = root;
+			advance();
+		}
+
+		// Sets up the stack as if the iteration had just passed the key
+		private ValueIterator(Node root, long key) {
+			long hash = hash(key);
+			Node node = root;
+			for (int shift = 0;; shift += BITS) {
+				nodes_[depth_] = node;
+				int bit = 1 << index(hash, shift);
+				int pos = Integer.bitCount(node.bitmap_ & (bit - 1));
+				if ((node.bitmap_ & bit) == 0) {
+					positions_[depth_] = pos;
+					break;
+				}
+				Object child = node.children_[pos];
+				if (child instanceof Leaf) {
+					Leaf leaf = (Leaf) child;
+					boolean after = leaf.key_ != key && follows(hash(leaf.key_), hash, shift + BITS);
+					positions_[depth_] = after ? pos : pos + 1;
+					break;
+				}
+				positions_[depth_] = pos + 1;
+				node = (Node) child;
+				depth_++;
+			}
+			advance();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next_ != null;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V next() {
+			if (next_ == null) {
+				throw new NoSuchElementException();
+			}
+			V value = (V) next_.value_;
+			advance();
+			return value;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private void advance() {
+			next_ = null;
+			while (depth_ >= 0) {
+				Node node = nodes_[depth_];
+				if (positions_[depth_] == node.children_.length) {
+					depth_--;
+					continue;
+				}
+				Object child = node.children_[positions_[depth_]++];
+				if (child instanceof Leaf) {
+					next_ = (Leaf) child;
+					return;
+				}
+				depth_++;
+				nodes_[depth_] = (Node) child;
+				positions_[depth_] = 0;
+			}
+		}
+	}
+
+}
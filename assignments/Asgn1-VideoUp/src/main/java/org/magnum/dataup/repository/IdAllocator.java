@@ -0,0 +1,359 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.repository;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out video ids that are unique across restarts and across every
+ * server on the host that shares the same counter directory.
+ *
+ * The counter (the highest id that has been handed out to any server) is
+ * kept in a file, and servers take blocks of ids from it. In between,
+ * nextId() is a local atomic increment. The ids that are left in a block
+ * when a server stops are never used.
+ *
+ * The counter is updated without locks, by compare-and-swap on file names:
+ *
+ * 1. Claim the counter by renaming "counter" to a name that is unique to
+ * this attempt. Exactly one server's rename can succeed, the others find
+ * the file missing and try again in a moment.
+ *
+ * 2. Read the value from the claimed file, and write the new value to a
+ * temporary file, which is forced to disk.
+ *
+ * 3. Publish the new value by hard-linking "counter" to the temporary
+ * file. Unlike a rename, a link fails if "counter" already exists, so a
+ * server that was presumed dead (see below) can never overwrite a newer
+ * value. The block is only used once the link has succeeded.
+ *
+ * A server that dies while it holds a claim leaves no "counter" behind.
+ * Once the counter has been missing for STALE_CLAIM, the others put back
+ * the highest value among the leftover claims, again with a link, so only
+ * one of them can succeed. This assumes that no live server takes that
+ * long between its claim and its link, which only span a small read and
+ * write. The "counter.init" file marks that the counter was created, so
+ * that it's never created again from scratch.
+ *
+ * @author jules
+ *
+ */
+public class IdAllocator {
+
+	private static final Logger log = LoggerFactory.getLogger(IdAllocator.class);
+
+	private static final String COUNTER = "counter";
+
+	private static final String INIT = "counter.init";
+
+	private static final String CLAIM_SUFFIX = ".claim";
+
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	// How long the counter can be missing before its holder is presumed dead
+	private static final long STALE_CLAIM = TimeUnit.SECONDS.toMillis(10);
+
+	private static final long RETRY_MILLIS = 1;
+
+	private static final class Block {
+
+		private final AtomicLong next_;
+		private final long end_;
+
+		private Block(long first, long end) {
+			next_ = new AtomicLong(first);
+			end_ = end;
+		}
+	}
+
+	private final Path dir_;
+	private final long blockSize_;
+	private final AtomicLong floor_;
+
+	private volatile Block block_ = new Block(0, 0);
+
+	/**
+	 * @param dir
+	 *            the directory that holds the counter, which is created if
+	 *            it doesn't exist
+	 * @param blockSize
+	 *            the number of ids that are taken from the counter at once
+	 * @param floor
+	 *            the highest id that is known to be in use already, which
+	 *            is skipped even if the counter is behind it (e.g., because
+	 *            the counter was created after the videos)
+	 * @throws IOException
+	 */
+	public IdAllocator(Path dir, long blockSize, long floor) throws IOException {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("Block size must be positive");
+		}
+		dir_ = dir;
+		blockSize_ = blockSize;
+		floor_ = new AtomicLong(floor);
+		Files.createDirectories(dir);
+		initialize();
+	}
+
+	/**
+	 * Returns an id that has never been returned before, by this or any
+	 * other allocator that shares the counter directory.
+	 *
+	 * @return
+	 * @throws IOException
+	 *             if a new block can't be taken from the counter
+	 */
+	public long nextId() throws IOException {
+		while (true) {
+			Block block = block_;
+			long id = block.next_.getAndIncrement();
+			if (id >= block.end_) {
+				refill(block);
+			} else if (id > floor_.get()) {
+				return id;
+			}
+		}
+	}
+
+	/**
+	 * Returns the highest id that can be reserved. Above it, there wouldn't
+	 * be room for another block of ids.
+	 *
+	 * @return
+	 */
+	public long getMaxId() {
+		return Long.MAX_VALUE - 1 - blockSize_;
+	}
+
+	/**
+	 * Makes sure that this allocator never returns the id, or any id below
+	 * it, e.g. because a client picked it for a video itself.
+	 *
+	 * @param id
+	 * @throws IllegalArgumentException
+	 *             if the id is above getMaxId()
+	 */
+	public void reserve(long id) {
+		if (id > getMaxId()) {
+			throw new IllegalArgumentException("Video ids can't be higher than " + getMaxId());
+		}
+		long floor = floor_.get();
+		while (id > floor && !floor_.compareAndSet(floor, id)) {
+			floor = floor_.get();
+		}
+	}
+
+	private synchronized void refill(Block exhausted) throws IOException {
+		if (block_ != exhausted) {
+			return;
+		}
+		long last = allocate();
+		block_ = new Block(last - blockSize_ + 1, last + 1);
+	}
+
+	// Takes a block of ids from the counter and returns the last one
+	private long allocate() throws IOException {
+		Path counter = dir_.resolve(COUNTER);
+		long missingSince = 0;
+		while (true) {
+			Path claim = dir_.resolve(UUID.randomUUID() + CLAIM_SUFFIX);
+			try {
+				Files.move(counter, claim, StandardCopyOption.ATOMIC_MOVE);
+			} catch (NoSuchFileException e) {
+				// Somebody else holds the counter
+				long now = System.currentTimeMillis();
+				if (missingSince == 0) {
+					missingSince = now;
+				} else if (now - missingSince > STALE_CLAIM) {
+					recover();
+					missingSince = 0;
+				}
+				pause();
+				continue;
+			}
+
+			long current;
+			try {
+				current = read(claim);
+			} catch (NoSuchFileException e) {
+				// The counter was recovered from our claim while we were
+				// slow to read it
+				continue;
+			}
+			long base = Math.max(current, floor_.get());
+			if (base > getMaxId()) {
+				// The block would overflow, so the counter is put back as it
+				// was rather than left for the others to recover
+				try {
+					Files.createLink(counter, claim);
+					sync();
+				} catch (FileAlreadyExistsException e) {
+					// It was recovered from our claim in the meantime
+				} finally {
+					Files.deleteIfExists(claim);
+				}
+				throw new IOException("Out of video ids, the counter is at " + base);
+			}
+			long last = base + blockSize_;
+			Path next = write(last);
+			try {
+				Files.createLink(counter, next);
+				sync();
+				return last;
+			} catch (FileAlreadyExistsException e) {
+				// We took so long that the counter was recovered from our
+				// claim, so the block may already have been handed out
+				log.warn("Lost the id counter while holding it, retrying");
+			} finally {
+				Files.deleteIfExists(next);
+				Files.deleteIfExists(claim);
+			}
+		}
+	}
+
+	// Creates the counter the first time that any server uses the directory
+	private void initialize() throws IOException {
+		if (Files.exists(dir_.resolve(INIT))) {
+			return;
+		}
+		Path initial = write(floor_.get());
+		try {
+			Files.createLink(dir_.resolve(INIT), initial);
+			Files.createLink(dir_.resolve(COUNTER), initial);
+			sync();
+		} catch (FileAlreadyExistsException e) {
+			// Another server got there first
+		} finally {
+			Files.deleteIfExists(initial);
+		}
+	}
+
+	// Puts back the highest value that a dead holder could have claimed.
+	// If there are no claims, the counter was never published after it was
+	// initialized.
+	private void recover() throws IOException {
+		Path best = dir_.resolve(INIT);
+		long value = read(best);
+		try (DirectoryStream<Path> claims = Files.newDirectoryStream(dir_, "*" + CLAIM_SUFFIX)) {
+			for (Path claim : claims) {
+				try {
+					long claimed = read(claim);
+					if (claimed > value) {
+						best = claim;
+						value = claimed;
+					}
+				} catch (NoSuchFileException e) {
+					// Its holder finished in the meantime
+				}
+			}
+		}
+		try {
+			Files.createLink(dir_.resolve(COUNTER), best);
+			sync();
+			log.warn("Recovered the id counter at " + value + " from " + best.getFileName());
+		} catch (FileAlreadyExistsException | NoSuchFileException e) {
+			// The holder or another server got there first
+			return;
+		}
+		if (!best.getFileName().toString().equals(INIT)) {
+			Files.deleteIfExists(best);
+		}
+		deleteStaleFiles(value);
+	}
+
+	// Removes the files that were left behind by servers that died: claims
+	// of older values than the one that was recovered (a claim of the same
+	// value may belong to a server that has just taken the counter), and
+	// temporary files that are far older than any update takes. A claim
+	// keeps the modification time of the counter, so only its value says
+	// anything about it.
+	private void deleteStaleFiles(long recovered) throws IOException {
+		long cutoff = System.currentTimeMillis() - STALE_CLAIM;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir_)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				try {
+					if (name.endsWith(CLAIM_SUFFIX) && read(file) < recovered) {
+						Files.deleteIfExists(file);
+					} else if (name.endsWith(TEMP_SUFFIX) && Files.getLastModifiedTime(file).toMillis() < cutoff) {
+						Files.deleteIfExists(file);
+					}
+				} catch (NoSuchFileException e) {
+					// Already gone
+				}
+			}
+		}
+	}
+
+	private Path write(long value) throws IOException {
+		Path temp = dir_.resolve(UUID.randomUUID() + TEMP_SUFFIX);
+		try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+			ByteBuffer data = ByteBuffer.wrap(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+			while (data.hasRemaining()) {
+				out.write(data);
+			}
+			out.force(true);
+		}
+		return temp;
+	}
+
+	private static long read(Path file) throws IOException {
+		String value = new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IOException("Corrupt id counter " + file + ": " + value);
+		}
+	}
+
+	// Makes the new name of the counter durable. Not every platform allows
+	// directories to be opened, in which case this is left to the OS.
+	private void sync() {
+		try (FileChannel dir = FileChannel.open(dir_, StandardOpenOption.READ)) {
+			dir.force(true);
+		} catch (IOException e) {
+			// Best effort
+		}
+	}
+
+	private static void pause() throws IOException {
+		try {
+			Thread.sleep(RETRY_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the id counter");
+		}
+	}
+
+}
@@ -0,0 +1,364 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.repository;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.magnum.dataup.model.Video;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The durable store for video metadata. The videos are kept in memory and
+ * every change is appended to a VideoJournal before it is acknowledged,
+ * so the catalog survives restarts.
+ *
+ * The journal is compacted by periodically writing a snapshot of all of
+ * the videos. A snapshot written when the journal moved on to generation
+ * N contains every change recorded in the generations before N, so those
+ * journal files can be deleted once it's on disk. At startup, the latest
+ * snapshot is memory-mapped and loaded, and the journal generations that
+ * follow it are replayed. A record that was torn by a crash ends the
+ * replay of its file; it was never acknowledged to a client.
+ *
+ * @author jules
+ *
+ */
+public class VideoCatalog implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(VideoCatalog.class);
+
+	private static final long SNAPSHOT_MAGIC = 0x5649444541544c47L;
+
+	private static final int SNAPSHOT_VERSION = 1;
+
+	private static final int SNAPSHOT_HEADER_SIZE = 8 + 4 + 8;
+
+	private static final String SNAPSHOT = "snapshot";
+
+	// Matches the names of snapshot and journal files (see
+	// VideoJournal.getFileName()), capturing their type and generation
+	private static final Pattern FILE_NAME = Pattern.compile("(snapshot|journal)-(\\p{XDigit}{16})\\.(dat|log)");
+
+	// Matches the snapshots that were still being written when the server
+	// stopped
+	private static final Pattern TEMP_FILE_NAME = Pattern.compile("snapshot-\\p{XDigit}{16}\\.dat\\.tmp");
+
+	private final Path dir_;
+
+	private final ConcurrentLongIndex<Video> videos_ = new ConcurrentLongIndex<Video>();
+
+	// The same videos in id order, for paging. The IdAllocator only hands
+	// out higher ids, so a video that is added while a client is paging
+	// lands on a later page.
+	private final ConcurrentSkipListMap<Long, Video> byId_ = new ConcurrentSkipListMap<Long, Video>();
+
+	private final AtomicLong maxId_ = new AtomicLong();
+
+	// Identifies this run of the catalog, since the change count starts
+	// over every time the catalog is opened
+	private final String epoch_ = Long.toHexString(System.currentTimeMillis());
+
+	private volatile long changes_;
+
+	private volatile long lastModified_ = System.currentTimeMillis();
+
+	private final ExecutorService snapshotWriter_;
+
+	private VideoJournal journal_;
+
+	/**
+	 * Opens the catalog stored in the given directory, creating it if it
+	 * doesn't exist.
+	 *
+	 * @param dir
+	 * @param snapshotInterval
+	 *            the number of changes between snapshots
+	 * @return
+	 * @throws IOException
+	 */
+	public static VideoCatalog open(Path dir, long snapshotInterval) throws IOException {
+		VideoCatalog catalog = new VideoCatalog(dir);
+		catalog.recover(snapshotInterval);
+		return catalog;
+	}
+
+	private VideoCatalog(Path dir) throws IOException {
+		dir_ = dir;
+		Files.createDirectories(dir);
+		snapshotWriter_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "video-snapshot-writer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public Video get(long id) {
+		return videos_.get(id);
+	}
+
+	/**
+	 * Returns a point-in-time view of all of the videos in the catalog,
+	 * which can be iterated while other requests add videos.
+	 *
+	 * @return
+	 */
+	public Collection<Video> getAll() {
+		return videos_.values();
+	}
+
+	/**
+	 * Returns the videos with ids greater than the given id, in id order,
+	 * so that a listing can be continued from the last video that a client
+	 * received. Unlike getAll(), the view isn't point-in-time: videos that
+	 * are saved while it's iterated may or may not be in it.
+	 *
+	 * @param id
+	 * @return
+	 */
+	public Iterable<Video> getAllAfter(long id) {
+		return byId_.tailMap(id, false).values();
+	}
+
+	/**
+	 * Returns the highest id of any video in the catalog, or 0 if it's
+	 * empty. New ids are handed out by an IdAllocator.
+	 *
+	 * @return
+	 */
+	public long getMaxId() {
+		return maxId_.get();
+	}
+
+	/**
+	 * Adds the video to the catalog, or replaces the stored video with the
+	 * same id, and returns once the change is durable.
+	 *
+	 * @param v
+	 * @throws IOException
+	 */
+	public void save(Video v) throws IOException {
+		VideoJournal.PendingWrite write;
+		// The map and the journal have to see changes in the same order,
+		// otherwise replaying the journal could produce a different state.
+		// The lock also keeps snapshots from being taken between the two
+		// (see writeSnapshot()).
+		synchronized (this) {
+			byte type = videos_.containsKey(v.getId()) ? VideoRecords.UPDATE : VideoRecords.ADD;
+			write = journal_.append(VideoRecords.encode(type, v));
+			videos_.put(v.getId(), v);
+			byId_.put(v.getId(), v);
+			updateMaxId(v.getId());
+			changes_++;
+			lastModified_ = System.currentTimeMillis();
+		}
+		write.await();
+	}
+
+	/**
+	 * Returns a stamp that changes whenever any video in the catalog does,
+	 * so that clients can tell whether a listing that they fetched earlier
+	 * is still current. The stamp has to be read before the listing is.
+	 *
+	 * @return
+	 */
+	public String getVersion() {
+		return epoch_ + "-" + Long.toHexString(changes_);
+	}
+
+	/**
+	 * Returns the time that the catalog last changed, or that it was opened
+	 * if it hasn't changed since.
+	 *
+	 * @return
+	 */
+	public long getLastModified() {
+		return lastModified_;
+	}
+
+	@Override
+	public void close() throws IOException {
+		journal_.close();
+		snapshotWriter_.shutdown();
+		try {
+			snapshotWriter_.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void updateMaxId(long id) {
+		long max = maxId_.get();
+		while (id > max && !maxId_.compareAndSet(max, id)) {
+			max = maxId_.get();
+		}
+	}
+
+	private void recover(long snapshotInterval) throws IOException {
+		TreeMap<Long, Path> snapshots = new TreeMap<Long, Path>();
+		TreeMap<Long, Path> journals = new TreeMap<Long, Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir_)) {
+			for (Path file : stream) {
+				Matcher name = FILE_NAME.matcher(file.getFileName().toString());
+				if (name.matches()) {
+					long generation = Long.parseLong(name.group(2), 16);
+					(SNAPSHOT.equals(name.group(1)) ? snapshots : journals).put(generation, file);
+				} else if (TEMP_FILE_NAME.matcher(file.getFileName().toString()).matches()) {
+					Files.deleteIfExists(file);
+				}
+			}
+		}
+
+		long generation = 0;
+		if (!snapshots.isEmpty()) {
+			generation = snapshots.lastKey();
+			loadSnapshot(snapshots.lastEntry().getValue());
+		}
+		for (Map.Entry<Long, Path> journal : journals.tailMap(generation).entrySet()) {
+			replay(journal.getValue());
+		}
+		log.info("Recovered " + videos_.size() + " videos from " + dir_);
+
+		// Every run starts a fresh generation, so a torn record at the end
+		// of the last one never has anything appended after it
+		long next = journals.isEmpty() ? generation : Math.max(generation, journals.lastKey() + 1);
+		journal_ = new VideoJournal(dir_, next, snapshotInterval, new VideoJournal.RotationListener() {
+			@Override
+			public void rotated(final long generation) {
+				snapshotWriter_.execute(new Runnable() {
+					@Override
+					public void run() {
+						writeSnapshot(generation);
+					}
+				});
+			}
+		});
+	}
+
+	private void loadSnapshot(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			// Snapshots are written whole and moved into place atomically, so
+			// unlike the journal, any damage means that the file is corrupt
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.remaining() < SNAPSHOT_HEADER_SIZE || buffer.getLong() != SNAPSHOT_MAGIC
+					|| buffer.getInt() != SNAPSHOT_VERSION) {
+				throw new IOException("Invalid video snapshot " + file);
+			}
+			long count = buffer.getLong();
+			for (long i = 0; i < count; i++) {
+				Video v = VideoRecords.decode(buffer);
+				if (v == null) {
+					throw new IOException("Corrupt record " + i + " in video snapshot " + file);
+				}
+				videos_.put(v.getId(), v);
+				byId_.put(v.getId(), v);
+				updateMaxId(v.getId());
+			}
+		}
+	}
+
+	private void replay(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			Video v;
+			while ((v = VideoRecords.decode(buffer)) != null) {
+				videos_.put(v.getId(), v);
+				byId_.put(v.getId(), v);
+				updateMaxId(v.getId());
+			}
+			if (buffer.hasRemaining()) {
+				log.warn("Ignoring " + buffer.remaining() + " bytes of incomplete records at the end of " + file);
+			}
+		}
+	}
+
+	private void writeSnapshot(long generation) {
+		Path target = dir_.resolve(String.format(SNAPSHOT + "-%016x.dat", generation));
+		Path tmp = dir_.resolve(target.getFileName() + ".tmp");
+		try {
+			// The view doesn't change while we write it, so the count in the
+			// header matches the number of records that follow. It's taken
+			// under the lock that save() appends and updates the map under,
+			// so every record that went into the generations before this one
+			// is in it, even if its save() hadn't reached the map yet when the
+			// journal rotated.
+			Collection<Video> snapshot;
+			synchronized (this) {
+				snapshot = videos_.values();
+			}
+			try (FileOutputStream file = new FileOutputStream(tmp.toFile())) {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+				out.writeLong(SNAPSHOT_MAGIC);
+				out.writeInt(SNAPSHOT_VERSION);
+				out.writeLong(snapshot.size());
+				for (Video v : snapshot) {
+					out.write(VideoRecords.encode(VideoRecords.ADD, v));
+				}
+				out.flush();
+				file.getFD().sync();
+			}
+			Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			// The snapshot's name has to be durable before the generations
+			// that it replaces are deleted, or a crash could leave neither
+			VideoJournal.sync(dir_);
+			deleteBefore(generation);
+		} catch (IOException e) {
+			// The journal still has everything, so we can try again at the
+			// next rotation
+			log.error("Unable to write video snapshot " + target, e);
+		}
+	}
+
+	private void deleteBefore(long generation) throws IOException {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir_)) {
+			for (Path file : stream) {
+				Matcher name = FILE_NAME.matcher(file.getFileName().toString());
+				if (name.matches() && Long.parseLong(name.group(2), 16) < generation) {
+					Files.deleteIfExists(file);
+				}
+			}
+		}
+	}
+
+}
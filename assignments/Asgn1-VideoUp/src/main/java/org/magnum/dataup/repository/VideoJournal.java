@@ -0,0 +1,278 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.repository;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only journal of video records. Records are appended by a
+ * single writer thread, which takes all of the records that have queued
+ * up since its last write, writes them with one call and then forces them
+ * to disk with one fsync (a "group commit"). Callers block until their
+ * record is durable, but concurrent callers share the cost of the fsync.
+ *
+ * The journal is split into numbered generations, one file per
+ * generation. Once a generation holds enough records, the writer moves
+ * on to the next one and tells its listener, so that a snapshot covering
+ * the finished generations can be written and the old files removed.
+ *
+ * @author jules
+ *
+ */
+class VideoJournal implements Closeable {
+
+	/**
+	 * Notified on the writer thread when the journal starts a new
+	 * generation.
+	 */
+	public interface RotationListener {
+		public void rotated(long generation);
+	}
+
+	/**
+	 * A record that has been handed to the journal but may not be on disk
+	 * yet.
+	 */
+	public static class PendingWrite {
+
+		private final byte[] record_;
+		private final CountDownLatch done_ = new CountDownLatch(1);
+		private volatile IOException failure_;
+
+		private PendingWrite(byte[] record) {
+			record_ = record;
+		}
+
+		/**
+		 * Blocks until the record is on disk.
+		 *
+		 * @throws IOException
+		 *             if the record couldn't be written
+		 */
+		public void await() throws IOException {
+			try {
+				done_.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the journal");
+			}
+			if (failure_ != null) {
+				throw failure_;
+			}
+		}
+
+		private void complete(IOException failure) {
+			failure_ = failure;
+			done_.countDown();
+		}
+	}
+
+	private static final Logger log = LoggerFactory.getLogger(VideoJournal.class);
+
+	// The most records that are written with a single fsync
+	private static final int MAX_BATCH_SIZE = 1024;
+
+	private static final PendingWrite SHUTDOWN = new PendingWrite(new byte[0]);
+
+	private final Path dir_;
+	private final long rotationSize_;
+	private final RotationListener listener_;
+	private final BlockingQueue<PendingWrite> queue_ = new LinkedBlockingQueue<PendingWrite>();
+	private final Thread writer_;
+
+	private FileChannel channel_;
+	private long generation_;
+	private long records_;
+	private volatile IOException failure_;
+	private volatile boolean closed_;
+
+	/**
+	 * Starts a new journal generation in the given directory.
+	 *
+	 * @param dir
+	 * @param generation
+	 *            the number of the first generation, which must not exist yet
+	 * @param rotationSize
+	 *            the number of records after which a new generation is
+	 *            started
+	 * @param listener
+	 * @throws IOException
+	 */
+	public VideoJournal(Path dir, long generation, long rotationSize, RotationListener listener)
+			throws IOException {
+		dir_ = dir;
+		rotationSize_ = rotationSize;
+		listener_ = listener;
+		generation_ = generation;
+		channel_ = open(generation);
+
+		writer_ = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeRecords();
+			}
+		}, "video-journal-writer");
+		writer_.setDaemon(true);
+		writer_.start();
+	}
+
+	public static String getFileName(long generation) {
+		return String.format("journal-%016x.log", generation);
+	}
+
+	/**
+	 * Queues an encoded record (see VideoRecords) for writing. The returned
+	 * PendingWrite can be used to wait until it's durable.
+	 *
+	 * @param record
+	 * @return
+	 * @throws IOException
+	 *             if the journal has already failed or been closed
+	 */
+	public PendingWrite append(byte[] record) throws IOException {
+		if (failure_ != null) {
+			throw failure_;
+		}
+		if (closed_) {
+			throw new IOException("The video journal is closed");
+		}
+		PendingWrite write = new PendingWrite(record);
+		queue_.add(write);
+		return write;
+	}
+
+	/**
+	 * Writes out the records that have already been queued and stops the
+	 * writer thread.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed_ = true;
+		queue_.add(SHUTDOWN);
+		try {
+			writer_.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		channel_.close();
+	}
+
+	/**
+	 * Makes the names of the files that were created in, moved into or
+	 * deleted from the directory durable. Not every platform allows
+	 * directories to be opened, in which case this is left to the OS.
+	 *
+	 * @param dir
+	 */
+	static void sync(Path dir) {
+		try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// Best effort
+		}
+	}
+
+	// Forcing the file only makes its contents durable, so the directory
+	// is synced too, before any record is written to it
+	private FileChannel open(long generation) throws IOException {
+		FileChannel channel = FileChannel.open(dir_.resolve(getFileName(generation)), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.WRITE);
+		sync(dir_);
+		return channel;
+	}
+
+	private void writeRecords() {
+		List<PendingWrite> batch = new ArrayList<PendingWrite>();
+		boolean running = true;
+		while (running) {
+			try {
+				batch.add(queue_.take());
+			} catch (InterruptedException e) {
+				// Only close() stops the writer
+				continue;
+			}
+			queue_.drainTo(batch, MAX_BATCH_SIZE - 1);
+			if (batch.remove(SHUTDOWN)) {
+				running = false;
+			}
+
+			IOException failure = failure_;
+			if (failure == null && !batch.isEmpty()) {
+				try {
+					write(batch);
+				} catch (IOException e) {
+					log.error("Unable to write to the video journal", e);
+					failure = failure_ = e;
+				}
+			}
+			for (PendingWrite write : batch) {
+				write.complete(failure);
+			}
+			batch.clear();
+		}
+		// Fail anything that raced with close()
+		for (PendingWrite write : queue_) {
+			write.complete(new IOException("The video journal is closed"));
+		}
+	}
+
+	private void write(List<PendingWrite> batch) throws IOException {
+		int size = 0;
+		for (PendingWrite write : batch) {
+			size += write.record_.length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		for (PendingWrite write : batch) {
+			buffer.put(write.record_);
+		}
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel_.write(buffer);
+		}
+		channel_.force(false);
+
+		records_ += batch.size();
+		if (records_ >= rotationSize_) {
+			rotate();
+		}
+	}
+
+	private void rotate() throws IOException {
+		FileChannel next = open(generation_ + 1);
+		channel_.close();
+		channel_ = next;
+		generation_++;
+		records_ = 0;
+		listener_.rotated(generation_);
+	}
+
+}
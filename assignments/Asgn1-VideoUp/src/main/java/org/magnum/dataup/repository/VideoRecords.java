@@ -0,0 +1,158 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.repository;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+import org.magnum.dataup.model.Video;
+
+/**
+ * The binary encoding of the video records that are stored in the journal
+ * and in snapshots. Each record is framed as:
+ *
+ *  [int payload length][int CRC32 of payload][payload]
+ *
+ * where the payload is a type byte followed by the video's fields. The
+ * frame lets a reader detect a record that was only partially written
+ * (e.g., because the server died in the middle of an append) and stop
+ * there.
+ *
+ * @author jules
+ *
+ */
+class VideoRecords {
+
+	public static final byte ADD = 1;
+
+	public static final byte UPDATE = 2;
+
+	private static final int HEADER_SIZE = 8;
+
+	private VideoRecords() {
+	}
+
+	public static byte[] encode(byte type, Video v) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0);
+			out.writeInt(0);
+			out.writeByte(type);
+			out.writeLong(v.getId());
+			writeString(out, v.getTitle());
+			out.writeLong(v.getDuration());
+			writeString(out, v.getLocation());
+			writeString(out, v.getSubject());
+			writeString(out, v.getContentType());
+			writeString(out, v.getDataUrl());
+			out.flush();
+
+			ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+			int length = record.capacity() - HEADER_SIZE;
+			CRC32 crc = new CRC32();
+			crc.update(record.array(), HEADER_SIZE, length);
+			record.putInt(0, length);
+			record.putInt(4, (int) crc.getValue());
+			return record.array();
+		} catch (IOException e) {
+			// Writing to a byte array can't fail
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Decodes the record at the buffer's position and advances the position
+	 * past it. If there isn't a complete, intact record at the position, null
+	 * is returned and the position is left alone.
+	 *
+	 * @param buffer
+	 * @return
+	 */
+	public static Video decode(ByteBuffer buffer) {
+		int start = buffer.position();
+		if (buffer.remaining() < HEADER_SIZE) {
+			return null;
+		}
+		int length = buffer.getInt();
+		int checksum = buffer.getInt();
+		if (length <= 0 || length > buffer.remaining()) {
+			buffer.position(start);
+			return null;
+		}
+
+		byte[] payload = new byte[length];
+		buffer.get(payload);
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, length);
+		if ((int) crc.getValue() != checksum) {
+			buffer.position(start);
+			return null;
+		}
+
+		ByteBuffer in = ByteBuffer.wrap(payload);
+		try {
+			byte type = in.get();
+			if (type != ADD && type != UPDATE) {
+				buffer.position(start);
+				return null;
+			}
+			Video v = new Video();
+			v.setId(in.getLong());
+			v.setTitle(readString(in));
+			v.setDuration(in.getLong());
+			v.setLocation(readString(in));
+			v.setSubject(readString(in));
+			v.setContentType(readString(in));
+			v.setDataUrl(readString(in));
+			return v;
+		} catch (BufferUnderflowException e) {
+			buffer.position(start);
+			return null;
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0) {
+			return null;
+		}
+		if (length > in.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+}
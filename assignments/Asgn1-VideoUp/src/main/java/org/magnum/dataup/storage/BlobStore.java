@@ -0,0 +1,320 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A content-addressed store for video binary data. Each distinct piece of
+ * data is stored exactly once, under the hex SHA-256 digest of its bytes,
+ * in a directory tree that is sharded on the first two bytes of the
+ * digest (e.g., blobs/3f/a9/3fa9...). Videos refer to blobs by digest, so
+ * when the same clip is uploaded for several videos, only the first upload
+ * is written into the store.
+ *
+ * The video -> digest references are kept in small ref files so that they
+ * survive restarts. Blobs that are no longer referenced by any video are
+ * deleted by a background collector once they have been unreferenced for
+ * a grace period, which gives downloads that are already under way time
+ * to finish.
+ *
+ * A blob and its directory entry are forced to disk before any ref file
+ * names it, and a ref file is forced before it replaces the old one, so
+ * a crash can lose a store() that was under way, but it can't leave a
+ * video referring to a blob that was never made durable.
+ *
+ * @author jules
+ *
+ */
+public class BlobStore {
+
+	private static final Logger log = LoggerFactory.getLogger(BlobStore.class);
+
+	private static final String REF_SUFFIX = ".ref";
+
+	private static final long GC_INTERVAL_MINUTES = 10;
+
+	private static final long GC_GRACE_PERIOD = TimeUnit.MINUTES.toMillis(10);
+
+	private final Path blobDir_;
+	private final Path refDir_;
+	private final Path stagingDir_;
+
+	// video id -> digest of the blob holding its data
+	private final Map<Long, String> refs_ = new HashMap<Long, String>();
+
+	// digest -> number of videos that refer to the blob
+	private final Map<String, Integer> refCounts_ = new HashMap<String, Integer>();
+
+	// digest -> time that the blob lost its last reference
+	private final Map<String, Long> unreferenced_ = new HashMap<String, Long>();
+
+	private final ScheduledExecutorService collector_;
+
+	public BlobStore(Path root) throws IOException {
+		blobDir_ = root.resolve("blobs");
+		refDir_ = root.resolve("refs");
+		stagingDir_ = root.resolve("staging");
+		Files.createDirectories(blobDir_);
+		Files.createDirectories(refDir_);
+		Files.createDirectories(stagingDir_);
+
+		loadRefs();
+		findUnreferencedBlobs();
+
+		collector_ = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "blob-collector");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+		collector_.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				collectGarbage();
+			}
+		}, GC_INTERVAL_MINUTES, GC_INTERVAL_MINUTES, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Returns a new, unique location that data can be written to before it
+	 * is added to the store with store().
+	 *
+	 * @return
+	 */
+	public Path createStagingPath() {
+		return stagingDir_.resolve(UUID.randomUUID().toString());
+	}
+
+	/**
+	 * Adds the data in the staged file to the store and makes the given
+	 * video refer to it. If the store already holds data with the same
+	 * digest, the staged file is simply discarded.
+	 *
+	 * @param videoId
+	 * @param staged
+	 * @param digest
+	 *            the hex SHA-256 digest of the staged file's contents
+	 * @throws IOException
+	 */
+	public synchronized void store(long videoId, Path staged, String digest) throws IOException {
+		Path blob = getBlobPath(digest);
+		if (Files.exists(blob)) {
+			Files.delete(staged);
+			// The blob's modification time doubles as the Last-Modified time
+			// of the videos that refer to it, so it has to move forward
+			Files.setLastModifiedTime(blob, FileTime.fromMillis(System.currentTimeMillis()));
+		} else {
+			try (FileChannel data = FileChannel.open(staged, StandardOpenOption.WRITE)) {
+				data.force(true);
+			}
+			Files.createDirectories(blob.getParent());
+			Files.move(staged, blob, StandardCopyOption.ATOMIC_MOVE);
+			sync(blob.getParent());
+		}
+
+		// The ref file is durable before the blob that it replaces can be
+		// collected, so a crash leaves the video with either its old data
+		// or its new data
+		Path ref = getRefPath(videoId);
+		Path tmp = ref.resolveSibling(ref.getFileName() + ".tmp");
+		try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer data = ByteBuffer.wrap(digest.getBytes(StandardCharsets.US_ASCII));
+			while (data.hasRemaining()) {
+				out.write(data);
+			}
+			out.force(true);
+		}
+		Files.move(tmp, ref, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		sync(refDir_);
+
+		String previous = refs_.put(videoId, digest);
+		addReference(digest);
+		if (previous != null) {
+			removeReference(previous);
+		}
+	}
+
+	/**
+	 * Returns the digest of the data that the given video refers to, or
+	 * null if it doesn't have any.
+	 *
+	 * @param videoId
+	 * @return
+	 */
+	public synchronized String getDigest(long videoId) {
+		return refs_.get(videoId);
+	}
+
+	/**
+	 * Returns a copy of all of the references in the store, as video id ->
+	 * digest.
+	 *
+	 * @return
+	 */
+	public synchronized Map<Long, String> getReferences() {
+		return new HashMap<Long, String>(refs_);
+	}
+
+	/**
+	 * Returns the location of the blob that holds the given video's data,
+	 * or null if it doesn't have any.
+	 *
+	 * @param videoId
+	 * @return
+	 */
+	public Path getBlobPath(long videoId) {
+		String digest = getDigest(videoId);
+		return (digest != null) ? getBlobPath(digest) : null;
+	}
+
+	public Path getBlobPath(String digest) {
+		return blobDir_.resolve(digest.substring(0, 2)).resolve(digest.substring(2, 4)).resolve(digest);
+	}
+
+	/**
+	 * Returns the number of distinct blobs in the store.
+	 *
+	 * @return
+	 */
+	public synchronized int getBlobCount() {
+		return refCounts_.size() + unreferenced_.size();
+	}
+
+	public void shutdown() {
+		collector_.shutdownNow();
+	}
+
+	/**
+	 * Deletes the blobs that have had no references for longer than the
+	 * grace period. This normally runs on a background thread.
+	 */
+	public synchronized void collectGarbage() {
+		long cutoff = System.currentTimeMillis() - GC_GRACE_PERIOD;
+		Iterator<Map.Entry<String, Long>> iter = unreferenced_.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<String, Long> entry = iter.next();
+			if (entry.getValue() > cutoff) {
+				continue;
+			}
+			try {
+				Files.deleteIfExists(getBlobPath(entry.getKey()));
+				iter.remove();
+			} catch (IOException e) {
+				log.warn("Unable to delete unreferenced blob " + entry.getKey(), e);
+			}
+		}
+	}
+
+	// Makes the names of the files that were just moved into the directory
+	// durable. Not every platform allows directories to be opened, in which
+	// case this is left to the OS.
+	private static void sync(Path dir) {
+		try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// Best effort
+		}
+	}
+
+	private Path getRefPath(long videoId) {
+		return refDir_.resolve("video" + videoId + REF_SUFFIX);
+	}
+
+	private void addReference(String digest) {
+		Integer count = refCounts_.get(digest);
+		refCounts_.put(digest, (count == null) ? 1 : count + 1);
+		unreferenced_.remove(digest);
+	}
+
+	private void removeReference(String digest) {
+		Integer count = refCounts_.get(digest);
+		if (count == null || count <= 1) {
+			refCounts_.remove(digest);
+			unreferenced_.put(digest, System.currentTimeMillis());
+		} else {
+			refCounts_.put(digest, count - 1);
+		}
+	}
+
+	private void loadRefs() throws IOException {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(refDir_, "*" + REF_SUFFIX)) {
+			for (Path ref : stream) {
+				String name = ref.getFileName().toString();
+				try {
+					long videoId = Long.parseLong(name.substring("video".length(), name.length() - REF_SUFFIX.length()));
+					String digest = new String(Files.readAllBytes(ref), StandardCharsets.US_ASCII).trim();
+					refs_.put(videoId, digest);
+					addReference(digest);
+				} catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+					log.warn("Ignoring malformed blob reference " + ref);
+				}
+			}
+		}
+	}
+
+	// Blobs can be left without references if the server stops between
+	// rewriting a ref file and collecting the blob that it used to point to
+	private void findUnreferencedBlobs() throws IOException {
+		final long now = System.currentTimeMillis();
+		Files.walkFileTree(blobDir_, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				String digest = file.getFileName().toString();
+				if (!refCounts_.containsKey(digest)) {
+					unreferenced_.put(digest, now);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		// Anything left in staging is from uploads that never finished
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(stagingDir_)) {
+			for (Path staged : stream) {
+				Files.deleteIfExists(staged);
+			}
+		}
+	}
+
+}
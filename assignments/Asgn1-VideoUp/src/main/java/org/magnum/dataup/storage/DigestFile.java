@@ -0,0 +1,96 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.storage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Keeps the digest of a data file in a small file next to it (e.g.,
+ * video1.mpg.sha256), so that the digest survives restarts without the
+ * data having to be read again. The size and modification time of the data
+ * are recorded along with it, and a digest whose data has changed since it
+ * was written is ignored.
+ *
+ * @author jules
+ *
+ */
+public class DigestFile {
+
+	private static final String SUFFIX = ".sha256";
+
+	private DigestFile() {
+	}
+
+	public static Path getPath(Path data) {
+		return data.resolveSibling(data.getFileName() + SUFFIX);
+	}
+
+	/**
+	 * Records the digest of the data, which has the given attributes.
+	 *
+	 * @param data
+	 * @param attrs
+	 * @param digest
+	 * @throws IOException
+	 */
+	public static void write(Path data, BasicFileAttributes attrs, String digest) throws IOException {
+		Path target = getPath(data);
+		Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+		String line = digest + " " + attrs.size() + " " + attrs.lastModifiedTime().toMillis() + "\n";
+		Files.write(temp, line.getBytes(StandardCharsets.US_ASCII));
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Returns the recorded digest of the data, or null if there is none or
+	 * the data has changed since it was recorded.
+	 *
+	 * @param data
+	 * @param attrs
+	 *            the current attributes of the data
+	 * @return
+	 * @throws IOException
+	 */
+	public static String read(Path data, BasicFileAttributes attrs) throws IOException {
+		String[] fields;
+		try {
+			fields = new String(Files.readAllBytes(getPath(data)), StandardCharsets.US_ASCII).trim().split(" ");
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		if (fields.length != 3) {
+			return null;
+		}
+		try {
+			if (Long.parseLong(fields[1]) != attrs.size()
+					|| Long.parseLong(fields[2]) != attrs.lastModifiedTime().toMillis()) {
+				return null;
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return fields[0];
+	}
+
+}
@@ -0,0 +1,86 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.storage;
+
+/**
+ * A small count-min sketch that estimates how often each key has been seen
+ * recently. All of the counters are halved once enough keys have been
+ * recorded, so keys that were popular a long time ago gradually lose their
+ * advantage over keys that are popular now.
+ *
+ * This class isn't thread-safe, callers have to synchronize on it.
+ *
+ * @author jules
+ *
+ */
+class FrequencySketch {
+
+	private static final int DEPTH = 4;
+
+	private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+	private final int[][] counters_;
+	private final int mask_;
+	private final int sampleSize_;
+	private int samples_;
+
+	/**
+	 * @param width
+	 *            the number of counters per row, rounded up to a power of two
+	 */
+	public FrequencySketch(int width) {
+		int size = Integer.highestOneBit(Math.max(width, 16) - 1) << 1;
+		counters_ = new int[DEPTH][size];
+		mask_ = size - 1;
+		sampleSize_ = size * 10;
+	}
+
+	public void increment(Object key) {
+		int hash = key.hashCode();
+		for (int i = 0; i < DEPTH; i++) {
+			counters_[i][index(hash, i)]++;
+		}
+		if (++samples_ >= sampleSize_) {
+			age();
+		}
+	}
+
+	public int estimate(Object key) {
+		int hash = key.hashCode();
+		int min = Integer.MAX_VALUE;
+		for (int i = 0; i < DEPTH; i++) {
+			min = Math.min(min, counters_[i][index(hash, i)]);
+		}
+		return min;
+	}
+
+	private int index(int hash, int row) {
+		int h = (hash ^ SEEDS[row]) * SEEDS[row];
+		return (h ^ (h >>> 16)) & mask_;
+	}
+
+	private void age() {
+		for (int[] row : counters_) {
+			for (int i = 0; i < row.length; i++) {
+				row[i] >>>= 1;
+			}
+		}
+		samples_ /= 2;
+	}
+
+}
@@ -0,0 +1,297 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A read cache that keeps the most popular video files memory-mapped, so
+ * that downloads of them are served straight from memory instead of
+ * opening and reading the file for every request.
+ *
+ * The cache holds at most a fixed number of bytes and is split into two
+ * LRU segments (a segmented LRU). Files enter the probationary segment
+ * and are promoted to the protected segment when they are read again, so
+ * a burst of one-off downloads can only push out other probationary files
+ * and never the steadily popular ones. A file is only admitted once it has
+ * been read a few times, and only if it is read more often than the files
+ * that it would push out of the cache (as estimated by a FrequencySketch).
+ *
+ * The cached data is never modified, so callers must invalidate a file's
+ * entry once its data has been replaced (i.e., after the new data has been
+ * moved into place, and before anything that points readers at the new
+ * data, like an ETag). A file that was being mapped while an entry was
+ * invalidated isn't admitted, as it may have been opened before the data
+ * was replaced.
+ *
+ * @author jules
+ *
+ */
+public class HotVideoCache {
+
+	// A file has to be read this many times (recently) before it's cached
+	private static final int MIN_ADMISSION_FREQUENCY = 2;
+
+	// The share of the capacity that can be taken by the protected segment
+	private static final double PROTECTED_FRACTION = 0.8;
+
+	// No single file can take more than this share of the capacity
+	private static final int MAX_ENTRY_FRACTION = 4;
+
+	private static class Entry {
+		private final MappedByteBuffer data_;
+		private final long size_;
+
+		private Entry(MappedByteBuffer data, long size) {
+			data_ = data;
+			size_ = size;
+		}
+	}
+
+	private final long capacity_;
+	private final long maxEntrySize_;
+
+	private final FrequencySketch frequency_ = new FrequencySketch(4096);
+
+	// Both segments are in access order, so their first entry is the least
+	// recently used one
+	private final LinkedHashMap<Path, Entry> probation_ = new LinkedHashMap<Path, Entry>(16, 0.75f, true);
+	private final LinkedHashMap<Path, Entry> protected_ = new LinkedHashMap<Path, Entry>(16, 0.75f, true);
+	private long probationBytes_;
+	private long protectedBytes_;
+
+	// Bumped by every invalidate(), so that admit() can tell whether the
+	// file it mapped may have been replaced in the meantime
+	private long invalidations_;
+
+	private final AtomicLong hits_ = new AtomicLong();
+	private final AtomicLong misses_ = new AtomicLong();
+	private final AtomicLong evictions_ = new AtomicLong();
+	private final AtomicLong rejections_ = new AtomicLong();
+
+	/**
+	 * @param capacity
+	 *            the most bytes of video data to keep mapped, 0 turns the
+	 *            cache off
+	 */
+	public HotVideoCache(long capacity) {
+		capacity_ = Math.max(capacity, 0);
+		maxEntrySize_ = Math.min(capacity_ / MAX_ENTRY_FRACTION, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns a read-only view of the cached contents of the given file, or
+	 * null if the file isn't cached. Every call counts as an access of the
+	 * file, which may get it admitted into the cache.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public ByteBuffer get(Path file) throws IOException {
+		if (capacity_ == 0) {
+			return null;
+		}
+		int frequency;
+		long invalidations;
+		synchronized (this) {
+			frequency_.increment(file);
+			Entry entry = probation_.remove(file);
+			if (entry != null) {
+				probationBytes_ -= entry.size_;
+				protect(file, entry);
+			} else {
+				entry = protected_.get(file);
+			}
+			if (entry != null) {
+				hits_.incrementAndGet();
+				return entry.data_.asReadOnlyBuffer();
+			}
+			frequency = frequency_.estimate(file);
+			invalidations = invalidations_;
+		}
+		misses_.incrementAndGet();
+		if (frequency < MIN_ADMISSION_FREQUENCY) {
+			return null;
+		}
+		return admit(file, frequency, invalidations);
+	}
+
+	/**
+	 * Drops the given file from the cache. This has to be called after the
+	 * contents of the file are changed.
+	 *
+	 * @param file
+	 */
+	public synchronized void invalidate(Path file) {
+		invalidations_++;
+		Entry entry = probation_.remove(file);
+		if (entry != null) {
+			probationBytes_ -= entry.size_;
+		}
+		entry = protected_.remove(file);
+		if (entry != null) {
+			protectedBytes_ -= entry.size_;
+		}
+	}
+
+	public long getCapacity() {
+		return capacity_;
+	}
+
+	public synchronized long getSize() {
+		return probationBytes_ + protectedBytes_;
+	}
+
+	public long getHitCount() {
+		return hits_.get();
+	}
+
+	public long getMissCount() {
+		return misses_.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions_.get();
+	}
+
+	/**
+	 * Returns the number of times that a file was read often enough to be
+	 * cached, but was turned away because the cache was full of files that
+	 * are read more often.
+	 *
+	 * @return
+	 */
+	public long getRejectionCount() {
+		return rejections_.get();
+	}
+
+	private ByteBuffer admit(Path file, int frequency, long invalidations) throws IOException {
+		long size;
+		MappedByteBuffer data;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			size = channel.size();
+			if (size == 0 || size > maxEntrySize_ || !isAdmissible(size, frequency)) {
+				return null;
+			}
+			// The mapping stays valid after the channel is closed
+			data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+
+		synchronized (this) {
+			Entry existing = protected_.get(file);
+			if (existing == null) {
+				existing = probation_.get(file);
+			}
+			if (existing != null) {
+				// Another request mapped the file while we were
+				return existing.data_.asReadOnlyBuffer();
+			}
+			if (invalidations_ != invalidations) {
+				// The mapping may be of data that was replaced since
+				return null;
+			}
+			if (!isAdmissible(size, frequency)) {
+				return null;
+			}
+			evict(size - (capacity_ - probationBytes_ - protectedBytes_));
+			probation_.put(file, new Entry(data, size));
+			probationBytes_ += size;
+		}
+		return data.asReadOnlyBuffer();
+	}
+
+	// Returns true if there is room for size more bytes in the cache, or if
+	// the files that would have to be evicted to make room are all read less
+	// often than the candidate
+	private synchronized boolean isAdmissible(long size, int frequency) {
+		long needed = size - (capacity_ - probationBytes_ - protectedBytes_);
+		needed = countVictims(probation_, needed, frequency);
+		if (needed > 0) {
+			needed = countVictims(protected_, needed, frequency);
+		}
+		if (needed > 0) {
+			rejections_.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	private long countVictims(LinkedHashMap<Path, Entry> segment, long needed, int frequency) {
+		for (Map.Entry<Path, Entry> victim : segment.entrySet()) {
+			if (needed <= 0) {
+				break;
+			}
+			if (frequency_.estimate(victim.getKey()) >= frequency) {
+				return Long.MAX_VALUE;
+			}
+			needed -= victim.getValue().size_;
+		}
+		return needed;
+	}
+
+	private void evict(long needed) {
+		Iterator<Entry> iter = probation_.values().iterator();
+		while (needed > 0 && iter.hasNext()) {
+			Entry victim = iter.next();
+			iter.remove();
+			probationBytes_ -= victim.size_;
+			needed -= victim.size_;
+			evictions_.incrementAndGet();
+		}
+		iter = protected_.values().iterator();
+		while (needed > 0 && iter.hasNext()) {
+			Entry victim = iter.next();
+			iter.remove();
+			protectedBytes_ -= victim.size_;
+			needed -= victim.size_;
+			evictions_.incrementAndGet();
+		}
+	}
+
+	// Moves an entry into the protected segment, demoting the protected
+	// segment's least recently used entries back to probation if it grows
+	// past its share of the capacity
+	private void protect(Path file, Entry entry) {
+		protected_.put(file, entry);
+		protectedBytes_ += entry.size_;
+
+		long limit = (long) (capacity_ * PROTECTED_FRACTION);
+		Iterator<Map.Entry<Path, Entry>> iter = protected_.entrySet().iterator();
+		while (protectedBytes_ > limit && protected_.size() > 1) {
+			Map.Entry<Path, Entry> demoted = iter.next();
+			iter.remove();
+			protectedBytes_ -= demoted.getValue().size_;
+			probation_.put(demoted.getKey(), demoted.getValue());
+			probationBytes_ += demoted.getValue().size_;
+		}
+	}
+
+}
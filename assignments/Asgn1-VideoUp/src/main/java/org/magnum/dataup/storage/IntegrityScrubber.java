@@ -0,0 +1,468 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.magnum.dataup.transfer.TokenBucket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Periodically reads back all of the stored video data and checks it
+ * against its recorded digest, so that data that has rotted on disk is
+ * found before a client downloads it. Data whose digest doesn't match is
+ * handed to a Quarantine, which takes it out of service.
+ *
+ * The files are hashed in parallel by a small fork-join pool of its own,
+ * whose threads (like the one that schedules the runs) have the lowest
+ * priority. Reads are throttled by a TokenBucket to a fixed number of bytes
+ * per second for the whole pool, so a run never takes more disk bandwidth
+ * than it's given, however long it has to take because of it. Data
+ * without a recorded digest can't be checked and is skipped.
+ *
+ * Data that is replaced while it's being checked may look corrupt, so the
+ * Quarantine has to make sure that the data it's given is still current
+ * before it does anything.
+ *
+ * @author jules
+ *
+ */
+public class IntegrityScrubber {
+
+	private static final Logger log = LoggerFactory.getLogger(IntegrityScrubber.class);
+
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	// The number of quarantined files that are remembered for the metrics
+	private static final int MAX_RECENT_CORRUPTIONS = 100;
+
+	/**
+	 * Takes corrupt data out of service.
+	 */
+	public interface Quarantine {
+
+		/**
+		 * @param data
+		 *            the data that was checked
+		 * @param actualDigest
+		 *            the digest that the data actually has
+		 * @return true if the data was quarantined, false if it had been
+		 *         replaced in the meantime
+		 * @throws IOException
+		 */
+		public boolean quarantine(StoredVideoData data, String actualDigest) throws IOException;
+	}
+
+	/**
+	 * A file that was found to be corrupt.
+	 */
+	public static class Corruption {
+
+		private final long videoId_;
+		private final Path path_;
+		private final String expectedDigest_;
+		private final String actualDigest_;
+		private final long time_;
+
+		private Corruption(StoredVideoData data, String actualDigest) {
+			videoId_ = data.getVideoId();
+			path_ = data.getPath();
+			expectedDigest_ = data.getDigest();
+			actualDigest_ = actualDigest;
+			time_ = System.currentTimeMillis();
+		}
+
+		public long getVideoId() {
+			return videoId_;
+		}
+
+		public Path getPath() {
+			return path_;
+		}
+
+		public String getExpectedDigest() {
+			return expectedDigest_;
+		}
+
+		public String getActualDigest() {
+			return actualDigest_;
+		}
+
+		public long getTime() {
+			return time_;
+		}
+	}
+
+	private final VideoDataIndex index_;
+	private final Quarantine quarantine_;
+	private final int parallelism_;
+	private final long maxBytesPerSecond_;
+	private final TokenBucket throttle_;
+	private final ForkJoinPool pool_;
+	private final ScheduledExecutorService scheduler_;
+
+	private final AtomicBoolean running_ = new AtomicBoolean();
+
+	// Progress of the current (or last) run
+	private volatile long runStart_;
+	private volatile long runEnd_;
+	private volatile int runFiles_;
+	private volatile long runBytes_;
+	private final AtomicInteger runFilesChecked_ = new AtomicInteger();
+	private final AtomicLong runBytesChecked_ = new AtomicLong();
+
+	// Totals since the server started
+	private final AtomicLong runs_ = new AtomicLong();
+	private final AtomicLong filesChecked_ = new AtomicLong();
+	private final AtomicLong bytesChecked_ = new AtomicLong();
+	private final AtomicLong filesSkipped_ = new AtomicLong();
+	private final AtomicLong corruptFiles_ = new AtomicLong();
+	private final AtomicLong errors_ = new AtomicLong();
+	private final ConcurrentLinkedDeque<Corruption> recentCorruptions_ = new ConcurrentLinkedDeque<Corruption>();
+
+	/**
+	 * @param index
+	 *            the data to check
+	 * @param quarantine
+	 * @param parallelism
+	 *            the number of files that are checked at once
+	 * @param maxBytesPerSecond
+	 *            the most data to read per second, 0 for no limit
+	 */
+	public IntegrityScrubber(VideoDataIndex index, Quarantine quarantine, int parallelism, long maxBytesPerSecond) {
+		index_ = index;
+		quarantine_ = quarantine;
+		parallelism_ = Math.max(parallelism, 1);
+		maxBytesPerSecond_ = Math.max(maxBytesPerSecond, 0);
+		throttle_ = (maxBytesPerSecond_ > 0) ? new TokenBucket(maxBytesPerSecond_, READ_BUFFER_SIZE) : null;
+
+		pool_ = new ForkJoinPool(parallelism_, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+			private final AtomicInteger count_ = new AtomicInteger();
+
+			@Override
+			public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+				ForkJoinWorkerThread t = new ForkJoinWorkerThread(pool) {
+				};
+				t.setName("integrity-scrubber-" + count_.incrementAndGet());
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		}, null, false);
+		scheduler_ = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "integrity-scrubber");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Checks all of the data every interval, starting one interval from now.
+	 *
+	 * @param interval
+	 * @param unit
+	 */
+	public void schedule(long interval, TimeUnit unit) {
+		scheduler_.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					scrub();
+				} catch (RuntimeException e) {
+					// Keep the schedule going
+					log.warn("Integrity scrub failed", e);
+				}
+			}
+		}, interval, interval, unit);
+	}
+
+	public void shutdown() {
+		scheduler_.shutdownNow();
+		pool_.shutdownNow();
+	}
+
+	/**
+	 * Checks all of the data that is in the index now, and returns once it
+	 * has. If a run is already under way, this returns right away.
+	 *
+	 * @return false if another run was under way
+	 */
+	public boolean scrub() {
+		if (!running_.compareAndSet(false, true)) {
+			return false;
+		}
+		try {
+			// Blobs are shared by the videos with the same data, but only
+			// have to be read once
+			Map<Path, StoredVideoData> unique = new LinkedHashMap<Path, StoredVideoData>();
+			long bytes = 0;
+			for (StoredVideoData data : index_.getAll()) {
+				if (data.getDigest() == null) {
+					filesSkipped_.incrementAndGet();
+				} else if (!unique.containsKey(data.getPath())) {
+					unique.put(data.getPath(), data);
+					bytes += data.getSize();
+				}
+			}
+			List<StoredVideoData> files = new ArrayList<StoredVideoData>(unique.values());
+
+			runFiles_ = files.size();
+			runBytes_ = bytes;
+			runFilesChecked_.set(0);
+			runBytesChecked_.set(0);
+			runStart_ = System.currentTimeMillis();
+			runEnd_ = 0;
+
+			pool_.invoke(new CheckTask(files, 0, files.size()));
+
+			runEnd_ = System.currentTimeMillis();
+			runs_.incrementAndGet();
+			log.info("Checked " + runFilesChecked_.get() + " files (" + runBytesChecked_.get() + " bytes) in "
+					+ (runEnd_ - runStart_) + "ms");
+			return true;
+		} finally {
+			running_.set(false);
+		}
+	}
+
+	private class CheckTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<StoredVideoData> files_;
+		private final int start_;
+		private final int end_;
+
+		private CheckTask(List<StoredVideoData> files, int start, int end) {
+			files_ = files;
+			start_ = start;
+			end_ = end;
+		}
+
+		@Override
+		protected void compute() {
+			// Files differ too much in size for batches to be worth it
+			if (end_ - start_ > 1) {
+				int middle = (start_ + end_) >>> 1;
+				invokeAll(new CheckTask(files_, start_, middle), new CheckTask(files_, middle, end_));
+			} else if (end_ > start_ && !pool_.isShutdown()) {
+				check(files_.get(start_));
+			}
+		}
+	}
+
+	private void check(StoredVideoData data) {
+		String actual;
+		try {
+			actual = hash(data.getPath());
+		} catch (NoSuchFileException e) {
+			// Replaced or deleted since the run started
+			return;
+		} catch (IOException e) {
+			errors_.incrementAndGet();
+			log.warn("Unable to check the data for video " + data.getVideoId(), e);
+			return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		filesChecked_.incrementAndGet();
+		runFilesChecked_.incrementAndGet();
+		if (actual.equals(data.getDigest())) {
+			return;
+		}
+		try {
+			if (quarantine_.quarantine(data, actual)) {
+				corruptFiles_.incrementAndGet();
+				recentCorruptions_.addFirst(new Corruption(data, actual));
+				while (recentCorruptions_.size() > MAX_RECENT_CORRUPTIONS) {
+					recentCorruptions_.pollLast();
+				}
+				log.warn("Quarantined the data for video " + data.getVideoId() + " at " + data.getPath()
+						+ ", expected digest " + data.getDigest() + " but found " + actual);
+			}
+		} catch (IOException e) {
+			errors_.incrementAndGet();
+			log.warn("Unable to quarantine the corrupt data for video " + data.getVideoId(), e);
+		}
+	}
+
+	private String hash(Path file) throws IOException, InterruptedException {
+		MessageDigest digest = newDigest();
+		ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (true) {
+				if (throttle_ != null) {
+					TimeUnit.NANOSECONDS.sleep(throttle_.reserve(buffer.remaining()));
+				}
+				int read = in.read(buffer);
+				if (read < 0) {
+					break;
+				}
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+				bytesChecked_.addAndGet(read);
+				runBytesChecked_.addAndGet(read);
+			}
+		}
+		return BaseEncoding.base16().lowerCase().encode(digest.digest());
+	}
+
+	public boolean isRunning() {
+		return running_.get();
+	}
+
+	public int getParallelism() {
+		return parallelism_;
+	}
+
+	public long getMaxBytesPerSecond() {
+		return maxBytesPerSecond_;
+	}
+
+	/**
+	 * Returns the time that the current (or last) run started, or 0 if
+	 * there hasn't been one.
+	 *
+	 * @return
+	 */
+	public long getRunStart() {
+		return runStart_;
+	}
+
+	/**
+	 * Returns the time that the last run finished, or 0 if one is under way.
+	 *
+	 * @return
+	 */
+	public long getRunEnd() {
+		return runEnd_;
+	}
+
+	public int getRunFiles() {
+		return runFiles_;
+	}
+
+	public long getRunBytes() {
+		return runBytes_;
+	}
+
+	public int getRunFilesChecked() {
+		return runFilesChecked_.get();
+	}
+
+	public long getRunBytesChecked() {
+		return runBytesChecked_.get();
+	}
+
+	/**
+	 * Returns the average number of bytes checked per second during the
+	 * current (or last) run.
+	 *
+	 * @return
+	 */
+	public long getRunBytesPerSecond() {
+		long start = runStart_;
+		if (start == 0) {
+			return 0;
+		}
+		long end = runEnd_;
+		long elapsed = Math.max(((end != 0) ? end : System.currentTimeMillis()) - start, 1);
+		return runBytesChecked_.get() * 1000 / elapsed;
+	}
+
+	public long getRuns() {
+		return runs_.get();
+	}
+
+	public long getFilesChecked() {
+		return filesChecked_.get();
+	}
+
+	public long getBytesChecked() {
+		return bytesChecked_.get();
+	}
+
+	public long getFilesSkipped() {
+		return filesSkipped_.get();
+	}
+
+	public long getCorruptFiles() {
+		return corruptFiles_.get();
+	}
+
+	public long getErrors() {
+		return errors_.get();
+	}
+
+	/**
+	 * Returns the files that were quarantined most recently, newest first.
+	 *
+	 * @return
+	 */
+	public List<Corruption> getRecentCorruptions() {
+		List<Corruption> recent = new ArrayList<Corruption>();
+		Iterator<Corruption> iter = recentCorruptions_.iterator();
+		while (iter.hasNext()) {
+			recent.add(iter.next());
+		}
+		return recent;
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
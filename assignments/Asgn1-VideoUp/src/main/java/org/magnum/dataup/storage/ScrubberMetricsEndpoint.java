@@ -0,0 +1,84 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.storage;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.boot.actuate.endpoint.AbstractEndpoint;
+
+/**
+ * An actuator endpoint (/scrubber) that reports the progress and throughput
+ * of the IntegrityScrubber's current (or last) run, along with the totals
+ * since the server started and the files that were quarantined last.
+ *
+ * @author jules
+ *
+ */
+public class ScrubberMetricsEndpoint extends AbstractEndpoint<Map<String, Object>> {
+
+	private final IntegrityScrubber scrubber_;
+
+	public ScrubberMetricsEndpoint(IntegrityScrubber scrubber) {
+		// The corruptions include the locations of the files
+		super("scrubber", true, true);
+		scrubber_ = scrubber;
+	}
+
+	@Override
+	public Map<String, Object> invoke() {
+		Map<String, Object> run = new LinkedHashMap<String, Object>();
+		run.put("running", scrubber_.isRunning());
+		run.put("startTime", scrubber_.getRunStart());
+		run.put("endTime", scrubber_.getRunEnd());
+		run.put("files", scrubber_.getRunFiles());
+		run.put("filesChecked", scrubber_.getRunFilesChecked());
+		run.put("bytes", scrubber_.getRunBytes());
+		run.put("bytesChecked", scrubber_.getRunBytesChecked());
+		long bytes = scrubber_.getRunBytes();
+		run.put("progress", (bytes > 0) ? scrubber_.getRunBytesChecked() / (double) bytes : 1.0);
+		run.put("bytesPerSecond", scrubber_.getRunBytesPerSecond());
+
+		List<Map<String, Object>> corruptions = new ArrayList<Map<String, Object>>();
+		for (IntegrityScrubber.Corruption corruption : scrubber_.getRecentCorruptions()) {
+			Map<String, Object> c = new LinkedHashMap<String, Object>();
+			c.put("videoId", corruption.getVideoId());
+			c.put("path", corruption.getPath().toString());
+			c.put("expectedDigest", corruption.getExpectedDigest());
+			c.put("actualDigest", corruption.getActualDigest());
+			c.put("time", corruption.getTime());
+			corruptions.add(c);
+		}
+
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put("parallelism", scrubber_.getParallelism());
+		metrics.put("maxBytesPerSecond", scrubber_.getMaxBytesPerSecond());
+		metrics.put("runs", scrubber_.getRuns());
+		metrics.put("filesChecked", scrubber_.getFilesChecked());
+		metrics.put("bytesChecked", scrubber_.getBytesChecked());
+		metrics.put("filesSkipped", scrubber_.getFilesSkipped());
+		metrics.put("corruptFiles", scrubber_.getCorruptFiles());
+		metrics.put("errors", scrubber_.getErrors());
+		metrics.put("currentRun", run);
+		metrics.put("corruptions", corruptions);
+		return metrics;
+	}
+
+}
@@ -0,0 +1,72 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.storage;
+
+import java.nio.file.Path;
+
+/**
+ * An immutable description of the binary data that is stored for a video:
+ * where it lives, how big it is, when it was written and (if known) the
+ * hex SHA-256 digest of its contents.
+ *
+ * @author jules
+ *
+ */
+public class StoredVideoData {
+
+	private final long videoId_;
+	private final Path path_;
+	private final long size_;
+	private final long lastModified_;
+	private final String digest_;
+
+	public StoredVideoData(long videoId, Path path, long size, long lastModified, String digest) {
+		videoId_ = videoId;
+		path_ = path;
+		size_ = size;
+		lastModified_ = lastModified;
+		digest_ = digest;
+	}
+
+	public long getVideoId() {
+		return videoId_;
+	}
+
+	public Path getPath() {
+		return path_;
+	}
+
+	public long getSize() {
+		return size_;
+	}
+
+	public long getLastModified() {
+		return lastModified_;
+	}
+
+	/**
+	 * Returns the hex SHA-256 digest of the data, or null if it hasn't been
+	 * computed.
+	 *
+	 * @return
+	 */
+	public String getDigest() {
+		return digest_;
+	}
+
+}
@@ -0,0 +1,436 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.storage;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps copies of the most watched video data in a small, fast directory
+ * (the hot tier, e.g. on a local SSD), while all of the data stays in the
+ * large main directory (the cold tier). Reads of the data are counted in a
+ * FrequencySketch, and a background mover regularly works out which data
+ * is read often enough to be worth the space in the hot tier, copies it
+ * there, and drops the copies of the data that has gone cold.
+ *
+ * Data is moved by repointing its entries in the VideoDataIndex, which is
+ * left to a Relocator that serializes it with the other changes to the
+ * data. The hot copy of a file is complete before anything points at it,
+ * and a copy that was dropped is only deleted after a grace period, so
+ * downloads that are already under way (or have been handed the path of
+ * the file) are never cut off. Since the main directory always has all of
+ * the data, a copy can be dropped at any time, and the copies that are
+ * left over from the last run are simply deleted when the server starts.
+ *
+ * The copies are kept in a subdirectory of the hot directory (COPY_DIR)
+ * that mirrors the layout of the main directory, e.g.
+ * videos/blobs/3f/a9/3fa9... is copied to hot/video-tier/blobs/3f/a9/3fa9...
+ * Nothing else in the hot directory is ever touched.
+ *
+ * @author jules
+ *
+ */
+public class TieredStorage {
+
+	private static final Logger log = LoggerFactory.getLogger(TieredStorage.class);
+
+	// Data has to be read this many times (recently) to be promoted
+	private static final int MIN_PROMOTION_FREQUENCY = 2;
+
+	// How long a dropped copy is kept around for the downloads reading it
+	private static final long RETIREMENT_GRACE_PERIOD = TimeUnit.MINUTES.toMillis(10);
+
+	// The subdirectory of the hot directory that holds the copies
+	static final String COPY_DIR = "video-tier";
+
+	/**
+	 * Repoints the index entries of data that has moved between the tiers.
+	 */
+	public interface Relocator {
+
+		/**
+		 * Points the given entries at the new location of their data,
+		 * unless they have been replaced in the meantime.
+		 *
+		 * @param entries
+		 *            the entries, which all point at the same data
+		 * @param target
+		 * @return true if any of the entries were repointed
+		 * @throws IOException
+		 */
+		public boolean relocate(List<StoredVideoData> entries, Path target) throws IOException;
+	}
+
+	// The data in the main directory that one or more entries point at
+	private static class Candidate {
+
+		private final Path cold_;
+		private final long size_;
+		private final List<StoredVideoData> entries_ = new ArrayList<StoredVideoData>();
+		private Path hot_;
+		private int frequency_;
+
+		private Candidate(Path cold, long size) {
+			cold_ = cold;
+			size_ = size;
+		}
+	}
+
+	private final Path coldDir_;
+	private final Path hotDir_;
+	private final long capacity_;
+	private final VideoDataIndex index_;
+	private final Relocator relocator_;
+
+	private final FrequencySketch frequency_ = new FrequencySketch(4096);
+
+	// hot copy -> time that it was dropped. This isn't guarded by the lock
+	// on this object, since copies are retired while the data is replaced,
+	// when the Relocator's lock is held.
+	private final ConcurrentMap<Path, Long> retired_ = new ConcurrentHashMap<Path, Long>();
+
+	private final ScheduledExecutorService mover_;
+
+	private volatile long hotBytes_;
+	private volatile int hotFiles_;
+	private final AtomicLong promotions_ = new AtomicLong();
+	private final AtomicLong demotions_ = new AtomicLong();
+	private final AtomicLong bytesPromoted_ = new AtomicLong();
+
+	/**
+	 * @param coldDir
+	 *            the main directory
+	 * @param hotDir
+	 *            the fast directory, in which the copies are kept in the
+	 *            COPY_DIR subdirectory
+	 * @param capacity
+	 *            the most bytes of data to copy to the hot directory
+	 * @param index
+	 * @param relocator
+	 * @throws IOException
+	 */
+	public TieredStorage(Path coldDir, Path hotDir, long capacity, VideoDataIndex index, Relocator relocator)
+			throws IOException {
+		coldDir_ = coldDir.toAbsolutePath().normalize();
+		Path hotRoot = hotDir.toAbsolutePath().normalize();
+		if (coldDir_.startsWith(hotRoot) || hotRoot.startsWith(coldDir_)) {
+			throw new IllegalArgumentException("The hot directory " + hotDir + " overlaps the main directory " + coldDir);
+		}
+		hotDir_ = hotRoot.resolve(COPY_DIR);
+		capacity_ = Math.max(capacity, 0);
+		index_ = index;
+		relocator_ = relocator;
+
+		// Nothing points at the old copies anymore, and everything in their
+		// directory was put there by us
+		Files.createDirectories(hotDir_);
+		deleteContents(hotDir_);
+
+		mover_ = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "tier-mover");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Moves data between the tiers every interval, starting one interval
+	 * from now.
+	 *
+	 * @param interval
+	 * @param unit
+	 */
+	public void schedule(long interval, TimeUnit unit) {
+		mover_.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					move();
+				} catch (IOException | RuntimeException e) {
+					// Keep the schedule going
+					log.warn("Unable to move video data between tiers", e);
+				}
+			}
+		}, interval, interval, unit);
+	}
+
+	public void shutdown() {
+		mover_.shutdownNow();
+	}
+
+	/**
+	 * Counts a read of the data in the given file, which can be in either
+	 * tier.
+	 *
+	 * @param file
+	 */
+	public void recordAccess(Path file) {
+		Path cold = getColdPath(file);
+		synchronized (frequency_) {
+			frequency_.increment(cold);
+		}
+	}
+
+	/**
+	 * Returns true if the file is a copy in the hot tier.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public boolean isHot(Path file) {
+		return file.toAbsolutePath().normalize().startsWith(hotDir_);
+	}
+
+	/**
+	 * Returns the location of the data in the main directory that the given
+	 * file holds, which is the file itself if it isn't a hot copy.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public Path getColdPath(Path file) {
+		Path absolute = file.toAbsolutePath().normalize();
+		return absolute.startsWith(hotDir_) ? coldDir_.resolve(hotDir_.relativize(absolute)) : absolute;
+	}
+
+	private Path getHotPath(Path cold) {
+		return hotDir_.resolve(coldDir_.relativize(cold));
+	}
+
+	/**
+	 * Drops a hot copy that nothing points at anymore, e.g. because the data
+	 * has been replaced. It is deleted after the grace period.
+	 *
+	 * @param hot
+	 */
+	public void retire(Path hot) {
+		retired_.put(hot.toAbsolutePath().normalize(), System.currentTimeMillis());
+	}
+
+	/**
+	 * Works out which data belongs in the hot tier and moves it there, and
+	 * moves everything else out. This normally runs on a background thread.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void move() throws IOException {
+		List<Candidate> candidates = findCandidates();
+
+		// The most frequently read data goes first, and the data that is
+		// already hot wins ties, so that nothing is moved back and forth
+		Collections.sort(candidates, new Comparator<Candidate>() {
+			@Override
+			public int compare(Candidate a, Candidate b) {
+				if (a.frequency_ != b.frequency_) {
+					return (a.frequency_ > b.frequency_) ? -1 : 1;
+				}
+				return Boolean.compare(b.hot_ != null, a.hot_ != null);
+			}
+		});
+		List<Candidate> promote = new ArrayList<Candidate>();
+		List<Candidate> demote = new ArrayList<Candidate>();
+		long used = 0;
+		for (Candidate candidate : candidates) {
+			boolean wanted = candidate.frequency_ >= MIN_PROMOTION_FREQUENCY
+					&& used + candidate.size_ <= capacity_;
+			if (wanted) {
+				used += candidate.size_;
+				if (candidate.hot_ == null) {
+					promote.add(candidate);
+				}
+			} else if (candidate.hot_ != null) {
+				demote.add(candidate);
+			}
+		}
+
+		// Space is freed up before it's filled again
+		for (Candidate candidate : demote) {
+			if (relocator_.relocate(candidate.entries_, candidate.cold_)) {
+				demotions_.incrementAndGet();
+			}
+			retired_.put(candidate.hot_, System.currentTimeMillis());
+		}
+		for (Candidate candidate : promote) {
+			try {
+				promote(candidate);
+			} catch (IOException e) {
+				log.warn("Unable to copy " + candidate.cold_ + " to the hot tier", e);
+			}
+		}
+		deleteRetired();
+
+		long bytes = 0;
+		int files = 0;
+		for (StoredVideoData data : dedup(index_.getAll()).values()) {
+			if (isHot(data.getPath())) {
+				bytes += data.getSize();
+				files++;
+			}
+		}
+		hotBytes_ = bytes;
+		hotFiles_ = files;
+	}
+
+	private void promote(Candidate candidate) throws IOException {
+		Path hot = getHotPath(candidate.cold_);
+		retired_.remove(hot);
+		Files.createDirectories(hot.getParent());
+		Path temp = hot.resolveSibling(hot.getFileName() + "." + UUID.randomUUID() + ".tmp");
+		try {
+			Files.copy(candidate.cold_, temp, StandardCopyOption.COPY_ATTRIBUTES);
+			Files.move(temp, hot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		if (relocator_.relocate(candidate.entries_, hot)) {
+			promotions_.incrementAndGet();
+			bytesPromoted_.addAndGet(candidate.size_);
+		} else {
+			// The data was replaced while it was copied
+			Files.deleteIfExists(hot);
+		}
+	}
+
+	// Groups the entries in the index by the data that they point at
+	private List<Candidate> findCandidates() {
+		Map<Path, Candidate> candidates = new LinkedHashMap<Path, Candidate>();
+		for (StoredVideoData data : index_.getAll()) {
+			Path cold = getColdPath(data.getPath());
+			Candidate candidate = candidates.get(cold);
+			if (candidate == null) {
+				candidate = new Candidate(cold, data.getSize());
+				candidates.put(cold, candidate);
+			}
+			candidate.entries_.add(data);
+			if (isHot(data.getPath())) {
+				candidate.hot_ = data.getPath().toAbsolutePath().normalize();
+			}
+		}
+		synchronized (frequency_) {
+			for (Candidate candidate : candidates.values()) {
+				candidate.frequency_ = frequency_.estimate(candidate.cold_);
+			}
+		}
+		return new ArrayList<Candidate>(candidates.values());
+	}
+
+	private static Map<Path, StoredVideoData> dedup(List<StoredVideoData> entries) {
+		Map<Path, StoredVideoData> unique = new HashMap<Path, StoredVideoData>();
+		for (StoredVideoData data : entries) {
+			unique.put(data.getPath(), data);
+		}
+		return unique;
+	}
+
+	private void deleteRetired() {
+		long cutoff = System.currentTimeMillis() - RETIREMENT_GRACE_PERIOD;
+		Iterator<Map.Entry<Path, Long>> iter = retired_.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Path, Long> entry = iter.next();
+			if (entry.getValue() > cutoff) {
+				continue;
+			}
+			try {
+				Files.deleteIfExists(entry.getKey());
+				iter.remove();
+			} catch (IOException e) {
+				log.warn("Unable to delete the hot copy " + entry.getKey(), e);
+			}
+		}
+	}
+
+	private static void deleteContents(final Path dir) throws IOException {
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+				if (e != null) {
+					throw e;
+				}
+				if (!d.equals(dir)) {
+					Files.delete(d);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	public long getCapacity() {
+		return capacity_;
+	}
+
+	/**
+	 * Returns the number of bytes of data that was in the hot tier after the
+	 * last move.
+	 *
+	 * @return
+	 */
+	public long getHotBytes() {
+		return hotBytes_;
+	}
+
+	public int getHotFileCount() {
+		return hotFiles_;
+	}
+
+	public long getPromotionCount() {
+		return promotions_.get();
+	}
+
+	public long getDemotionCount() {
+		return demotions_.get();
+	}
+
+	public long getBytesPromoted() {
+		return bytesPromoted_.get();
+	}
+
+}
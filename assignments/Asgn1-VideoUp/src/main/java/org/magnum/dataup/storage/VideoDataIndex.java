@@ -0,0 +1,164 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.storage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-memory index of the video data on disk, so that checking whether a
+ * video has data, and looking up its size and modification time, doesn't
+ * cost a system call on every request. Entries are immutable and are
+ * swapped in whole, so readers always see a consistent description of the
+ * data.
+ *
+ * @author jules
+ *
+ */
+public class VideoDataIndex {
+
+	private static final Logger log = LoggerFactory.getLogger(VideoDataIndex.class);
+
+	// The number of files that a single task stats before the rest of the
+	// work is split up between threads
+	private static final int LOAD_BATCH_SIZE = 256;
+
+	private final ConcurrentMap<Long, StoredVideoData> entries_ = new ConcurrentHashMap<Long, StoredVideoData>();
+
+	public StoredVideoData get(long videoId) {
+		return entries_.get(videoId);
+	}
+
+	public void put(StoredVideoData data) {
+		entries_.put(data.getVideoId(), data);
+	}
+
+	/**
+	 * Removes the entry, unless it has been replaced in the meantime.
+	 *
+	 * @param data
+	 * @return true if the entry was removed
+	 */
+	public boolean remove(StoredVideoData data) {
+		return entries_.remove(data.getVideoId(), data);
+	}
+
+	/**
+	 * Returns a copy of all of the entries.
+	 *
+	 * @return
+	 */
+	public List<StoredVideoData> getAll() {
+		return new ArrayList<StoredVideoData>(entries_.values());
+	}
+
+	public int size() {
+		return entries_.size();
+	}
+
+	/**
+	 * Returns the highest id of any video with data, or 0 if there is none.
+	 *
+	 * @return
+	 */
+	public long getMaxVideoId() {
+		long max = 0;
+		for (Long videoId : entries_.keySet()) {
+			max = Math.max(max, videoId);
+		}
+		return max;
+	}
+
+	/**
+	 * Adds entries for the given data files, reading their attributes in
+	 * parallel. Files that have disappeared are skipped. Digests that
+	 * aren't given are taken from the DigestFile of the data, if it's still
+	 * current.
+	 *
+	 * @param files
+	 *            video id -> data file
+	 * @param digests
+	 *            video id -> digest, for the files whose digest is known
+	 */
+	public void load(Map<Long, Path> files, Map<Long, String> digests) {
+		List<StoredVideoData> candidates = new ArrayList<StoredVideoData>(files.size());
+		for (Map.Entry<Long, Path> file : files.entrySet()) {
+			candidates.add(new StoredVideoData(file.getKey(), file.getValue(), 0, 0, digests.get(file.getKey())));
+		}
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			pool.invoke(new LoadTask(candidates, 0, candidates.size()));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private class LoadTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<StoredVideoData> candidates_;
+		private final int start_;
+		private final int end_;
+
+		private LoadTask(List<StoredVideoData> candidates, int start, int end) {
+			candidates_ = candidates;
+			start_ = start;
+			end_ = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end_ - start_ > LOAD_BATCH_SIZE) {
+				int middle = (start_ + end_) >>> 1;
+				invokeAll(new LoadTask(candidates_, start_, middle), new LoadTask(candidates_, middle, end_));
+				return;
+			}
+			for (int i = start_; i < end_; i++) {
+				StoredVideoData candidate = candidates_.get(i);
+				try {
+					BasicFileAttributes attrs = Files.readAttributes(candidate.getPath(), BasicFileAttributes.class);
+					String digest = candidate.getDigest();
+					if (digest == null) {
+						digest = DigestFile.read(candidate.getPath(), attrs);
+					}
+					put(new StoredVideoData(candidate.getVideoId(), candidate.getPath(), attrs.size(),
+							attrs.lastModifiedTime().toMillis(), digest));
+				} catch (NoSuchFileException e) {
+					// Nothing to index
+				} catch (IOException e) {
+					log.warn("Unable to index the data for video " + candidate.getVideoId(), e);
+				}
+			}
+		}
+	}
+
+}
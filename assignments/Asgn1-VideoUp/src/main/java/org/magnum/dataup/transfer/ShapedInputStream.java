@@ -0,0 +1,79 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.transfer;
+
+import java.io.IOException;
+
+import javax.servlet.ServletInputStream;
+
+/**
+ * A request body that is read no faster than its TransferStream allows.
+ * Data is read in chunks of at most one scheduling quantum, and each chunk
+ * is paid for once it has arrived, so the stream runs at most one chunk
+ * ahead of its allowance.
+ *
+ * @author jules
+ *
+ */
+class ShapedInputStream extends ServletInputStream {
+
+	private final ServletInputStream in_;
+	private final TransferStream stream_;
+
+	public ShapedInputStream(ServletInputStream in, TransferStream stream) {
+		in_ = in;
+		stream_ = stream;
+	}
+
+	@Override
+	public int read() throws IOException {
+		stream_.checkCancelled();
+		int b = in_.read();
+		if (b >= 0) {
+			paid(1);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		stream_.checkCancelled();
+		int read = in_.read(b, off, Math.min(len, TransferScheduler.QUANTUM));
+		if (read > 0) {
+			paid(read);
+		}
+		return read;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return in_.available();
+	}
+
+	@Override
+	public void close() throws IOException {
+		stream_.checkCancelled();
+		in_.close();
+	}
+
+	private void paid(int bytes) throws IOException {
+		stream_.acquire(bytes);
+		stream_.transferred(bytes);
+	}
+
+}
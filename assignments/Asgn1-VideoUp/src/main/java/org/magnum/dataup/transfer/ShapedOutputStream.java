@@ -0,0 +1,73 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.transfer;
+
+import java.io.IOException;
+
+import javax.servlet.ServletOutputStream;
+
+/**
+ * A response body that is written no faster than its TransferStream
+ * allows. Writes are split into chunks of at most one scheduling quantum,
+ * and each chunk waits for its turn before it's written.
+ *
+ * @author jules
+ *
+ */
+class ShapedOutputStream extends ServletOutputStream {
+
+	private final ServletOutputStream out_;
+	private final TransferStream stream_;
+
+	public ShapedOutputStream(ServletOutputStream out, TransferStream stream) {
+		out_ = out;
+		stream_ = stream;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		stream_.acquire(1);
+		out_.write(b);
+		stream_.transferred(1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int chunk = Math.min(len, TransferScheduler.QUANTUM);
+			stream_.acquire(chunk);
+			out_.write(b, off, chunk);
+			stream_.transferred(chunk);
+			off += chunk;
+			len -= chunk;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		stream_.checkCancelled();
+		out_.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		stream_.checkCancelled();
+		out_.close();
+	}
+
+}
@@ -0,0 +1,92 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.transfer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket that refills at a fixed number of bytes per second and
+ * holds at most a burst's worth of bytes. Tokens can either be taken only
+ * when they are there (tryTake()), or reserved ahead of time (reserve()),
+ * which puts the bucket into debt and tells the caller how long to wait
+ * before using them. Reservations are handed out in the order that they
+ * are made.
+ *
+ * @author jules
+ *
+ */
+public class TokenBucket {
+
+	private final double bytesPerNano_;
+	private final long capacity_;
+	private double tokens_;
+	private long lastRefill_;
+
+	/**
+	 * @param bytesPerSecond
+	 * @param capacity
+	 *            the most bytes that can be sent in a single burst
+	 */
+	public TokenBucket(long bytesPerSecond, long capacity) {
+		bytesPerNano_ = bytesPerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+		capacity_ = capacity;
+		tokens_ = capacity;
+		lastRefill_ = System.nanoTime();
+	}
+
+	/**
+	 * Takes the tokens and returns 0 if there are enough of them, otherwise
+	 * leaves the bucket alone and returns the number of nanoseconds until
+	 * there will be.
+	 *
+	 * @param bytes
+	 * @return
+	 */
+	public synchronized long tryTake(long bytes) {
+		refill();
+		if (tokens_ >= bytes) {
+			tokens_ -= bytes;
+			return 0;
+		}
+		return nanosFor(bytes - tokens_);
+	}
+
+	/**
+	 * Takes the tokens, whether or not they are there yet, and returns the
+	 * number of nanoseconds that the caller has to wait before they are.
+	 *
+	 * @param bytes
+	 * @return
+	 */
+	public synchronized long reserve(long bytes) {
+		refill();
+		tokens_ -= bytes;
+		return (tokens_ >= 0) ? 0 : nanosFor(-tokens_);
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens_ = Math.min(capacity_, tokens_ + (now - lastRefill_) * bytesPerNano_);
+		lastRefill_ = now;
+	}
+
+	private long nanosFor(double bytes) {
+		return Math.max(1, (long) Math.ceil(bytes / bytesPerNano_));
+	}
+
+}
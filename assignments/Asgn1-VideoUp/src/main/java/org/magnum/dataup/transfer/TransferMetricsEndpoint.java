@@ -0,0 +1,83 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.transfer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.boot.actuate.endpoint.AbstractEndpoint;
+
+/**
+ * An actuator endpoint (/transfers) that reports the video data transfers
+ * that are in progress, including how fast each of them is currently
+ * moving, along with the totals for the whole server.
+ *
+ * @author jules
+ *
+ */
+public class TransferMetricsEndpoint extends AbstractEndpoint<Map<String, Object>> {
+
+	private final TransferScheduler scheduler_;
+
+	public TransferMetricsEndpoint(TransferScheduler scheduler) {
+		// The streams include the addresses of the clients
+		super("transfers", true, true);
+		scheduler_ = scheduler;
+	}
+
+	@Override
+	public Map<String, Object> invoke() {
+		List<Map<String, Object>> streams = new ArrayList<Map<String, Object>>();
+		long bytesPerSecond = 0;
+		int downloads = 0;
+		int uploads = 0;
+		for (TransferStream stream : scheduler_.getStreams()) {
+			Map<String, Object> s = new LinkedHashMap<String, Object>();
+			s.put("id", stream.getId());
+			s.put("direction", stream.getDirection());
+			s.put("client", stream.getClient());
+			s.put("resource", stream.getResource());
+			s.put("weight", stream.getWeight());
+			s.put("startTime", stream.getStartTime());
+			s.put("bytes", stream.getBytes());
+			s.put("bytesPerSecond", stream.getBytesPerSecond());
+			s.put("averageBytesPerSecond", stream.getAverageBytesPerSecond());
+			streams.add(s);
+
+			bytesPerSecond += stream.getBytesPerSecond();
+			if (stream.getDirection() == TransferScheduler.Direction.DOWNLOAD) {
+				downloads++;
+			} else {
+				uploads++;
+			}
+		}
+
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put("maxBytesPerSecond", scheduler_.getMaxBytesPerSecond());
+		metrics.put("maxClientBytesPerSecond", scheduler_.getMaxClientBytesPerSecond());
+		metrics.put("downloads", downloads);
+		metrics.put("uploads", uploads);
+		metrics.put("bytesPerSecond", bytesPerSecond);
+		metrics.put("totalBytes", scheduler_.getTotalBytes());
+		metrics.put("streams", streams);
+		return metrics;
+	}
+
+}
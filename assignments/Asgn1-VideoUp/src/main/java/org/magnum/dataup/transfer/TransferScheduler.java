@@ -0,0 +1,279 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.transfer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Paces the video data that is sent to and received from clients, so that
+ * a few bulk transfers can't use up all of the server's bandwidth.
+ *
+ *  - Each client (by address) gets its own token bucket, which caps the
+ *    rate of all of its transfers together
+ *  - A global token bucket caps the rate of all transfers together
+ *  - While transfers are waiting for the global bucket, they are served by
+ *    start-time fair queueing: every chunk of data gets a virtual start and
+ *    finish time, where a stream's chunks are spaced by their size divided
+ *    by the stream's weight, and the chunk with the earliest finish time
+ *    goes next. Each active stream gets a share of the bandwidth in
+ *    proportion to its weight, and downloads and uploads can be weighted
+ *    differently.
+ *
+ * A rate of 0 means no limit. Data is scheduled in chunks of at most
+ * QUANTUM bytes, so a waiting stream never waits for more than one chunk
+ * of every other stream.
+ *
+ * @author jules
+ *
+ */
+public class TransferScheduler {
+
+	public enum Direction {
+		DOWNLOAD, UPLOAD
+	}
+
+	// The most bytes that a stream moves in one go
+	static final int QUANTUM = 64 * 1024;
+
+	private static class Grant {
+		private final int bytes_;
+		private final double start_;
+		private final double finish_;
+		private final long sequence_;
+
+		private Grant(int bytes, double start, double finish, long sequence) {
+			bytes_ = bytes;
+			start_ = start;
+			finish_ = finish;
+			sequence_ = sequence;
+		}
+	}
+
+	private static final Comparator<Grant> BY_FINISH = new Comparator<Grant>() {
+		@Override
+		public int compare(Grant a, Grant b) {
+			int c = Double.compare(a.finish_, b.finish_);
+			return (c != 0) ? c : Long.compare(a.sequence_, b.sequence_);
+		}
+	};
+
+	private static class Client {
+		private final TokenBucket bucket_;
+		private int streams_;
+
+		private Client(TokenBucket bucket) {
+			bucket_ = bucket;
+		}
+	}
+
+	private final long maxBytesPerSecond_;
+	private final long maxClientBytesPerSecond_;
+	private final double downloadWeight_;
+	private final double uploadWeight_;
+	private final TokenBucket global_;
+
+	private final ConcurrentMap<Long, TransferStream> streams_ = new ConcurrentHashMap<Long, TransferStream>();
+	private final AtomicLong nextId_ = new AtomicLong();
+	private final AtomicLong closedBytes_ = new AtomicLong();
+
+	// Guarded by itself
+	private final Map<String, Client> clients_ = new HashMap<String, Client>();
+
+	// Guarded by this
+	private final PriorityQueue<Grant> waiting_ = new PriorityQueue<Grant>(16, BY_FINISH);
+	private double virtualTime_;
+	private long sequence_;
+
+	/**
+	 * @param maxBytesPerSecond
+	 *            the limit for all transfers together, or 0 for none
+	 * @param maxClientBytesPerSecond
+	 *            the limit for all of the transfers of a single client, or 0
+	 *            for none
+	 * @param downloadWeight
+	 *            the share of the bandwidth that a download gets, relative
+	 *            to the other transfers
+	 * @param uploadWeight
+	 *            the share of the bandwidth that an upload gets, relative to
+	 *            the other transfers
+	 */
+	public TransferScheduler(long maxBytesPerSecond, long maxClientBytesPerSecond, double downloadWeight,
+			double uploadWeight) {
+		if (maxBytesPerSecond < 0 || maxClientBytesPerSecond < 0 || downloadWeight <= 0 || uploadWeight <= 0) {
+			throw new IllegalArgumentException("Invalid transfer limits");
+		}
+		maxBytesPerSecond_ = maxBytesPerSecond;
+		maxClientBytesPerSecond_ = maxClientBytesPerSecond;
+		downloadWeight_ = downloadWeight;
+		uploadWeight_ = uploadWeight;
+		global_ = (maxBytesPerSecond > 0) ? newBucket(maxBytesPerSecond) : null;
+	}
+
+	/**
+	 * Returns true if transfers are limited at all. If not, streams don't
+	 * have to be shaped, and the container's own transfer mechanisms (e.g.,
+	 * sendfile) can be used instead.
+	 *
+	 * @return
+	 */
+	public boolean isShaping() {
+		return maxBytesPerSecond_ > 0 || maxClientBytesPerSecond_ > 0;
+	}
+
+	public long getMaxBytesPerSecond() {
+		return maxBytesPerSecond_;
+	}
+
+	public long getMaxClientBytesPerSecond() {
+		return maxClientBytesPerSecond_;
+	}
+
+	/**
+	 * Starts a new stream, which must be closed once the transfer is over.
+	 *
+	 * @param direction
+	 * @param client
+	 *            the address of the client
+	 * @param resource
+	 *            a description of what is transferred, for the metrics
+	 * @return
+	 */
+	public TransferStream open(Direction direction, String client, String resource) {
+		double weight = (direction == Direction.DOWNLOAD) ? downloadWeight_ : uploadWeight_;
+		TransferStream stream = new TransferStream(this, nextId_.incrementAndGet(), direction, client, resource,
+				weight);
+		synchronized (clients_) {
+			Client c = clients_.get(client);
+			if (c == null) {
+				c = new Client((maxClientBytesPerSecond_ > 0) ? newBucket(maxClientBytesPerSecond_) : null);
+				clients_.put(client, c);
+			}
+			c.streams_++;
+		}
+		streams_.put(stream.getId(), stream);
+		return stream;
+	}
+
+	/**
+	 * Returns the streams that are currently open.
+	 *
+	 * @return
+	 */
+	public Collection<TransferStream> getStreams() {
+		return new ArrayList<TransferStream>(streams_.values());
+	}
+
+	/**
+	 * Returns the number of bytes moved by all of the streams, open or
+	 * closed.
+	 *
+	 * @return
+	 */
+	public long getTotalBytes() {
+		long total = closedBytes_.get();
+		for (TransferStream stream : streams_.values()) {
+			total += stream.getBytes();
+		}
+		return total;
+	}
+
+	void close(TransferStream stream) {
+		if (streams_.remove(stream.getId()) == null) {
+			return;
+		}
+		closedBytes_.addAndGet(stream.getBytes());
+		synchronized (clients_) {
+			Client c = clients_.get(stream.getClient());
+			if (--c.streams_ == 0) {
+				clients_.remove(stream.getClient());
+			}
+		}
+	}
+
+	void acquire(TransferStream stream, int bytes) throws IOException {
+		try {
+			TokenBucket clientBucket;
+			synchronized (clients_) {
+				clientBucket = clients_.get(stream.getClient()).bucket_;
+			}
+			if (clientBucket != null) {
+				long wait = clientBucket.reserve(bytes);
+				if (wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+			}
+			if (global_ != null) {
+				acquireShared(stream, bytes);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to transfer data");
+		}
+	}
+
+	// Waits until the chunk is the next one in fair queueing order and the
+	// global bucket has enough tokens for it
+	private synchronized void acquireShared(TransferStream stream, int bytes) throws InterruptedException {
+		double start = Math.max(virtualTime_, stream.finishTag_);
+		double finish = start + bytes / stream.getWeight();
+		stream.finishTag_ = finish;
+		Grant grant = new Grant(bytes, start, finish, sequence_++);
+		waiting_.add(grant);
+		// The new chunk may have gone to the front of the queue
+		notifyAll();
+		try {
+			while (true) {
+				if (waiting_.peek() != grant) {
+					wait();
+					continue;
+				}
+				long wait = global_.tryTake(grant.bytes_);
+				if (wait == 0) {
+					waiting_.poll();
+					virtualTime_ = grant.start_;
+					notifyAll();
+					return;
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, wait);
+			}
+		} catch (InterruptedException e) {
+			if (waiting_.remove(grant)) {
+				notifyAll();
+			}
+			throw e;
+		}
+	}
+
+	// Buckets hold a quarter of a second's worth of data, and at least one
+	// chunk, so that every chunk can eventually be sent
+	private static TokenBucket newBucket(long bytesPerSecond) {
+		return new TokenBucket(bytesPerSecond, Math.max(QUANTUM, bytesPerSecond / 4));
+	}
+
+}
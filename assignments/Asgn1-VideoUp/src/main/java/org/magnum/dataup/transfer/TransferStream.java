@@ -0,0 +1,221 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.transfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A single upload or download that is paced by a TransferScheduler. The
+ * request or response of the transfer is wrapped with shape(), so that
+ * every chunk of video data waits for its turn before it's moved.
+ *
+ * The stream also keeps track of how much data it has moved, and how fast
+ * it is currently moving it (a moving average over roughly the last
+ * second). Once it has been cancelled, every further chunk fails.
+ *
+ * @author jules
+ *
+ */
+public class TransferStream implements Closeable {
+
+	private static final long RATE_WINDOW = TimeUnit.SECONDS.toNanos(1);
+
+	// Updates of the moving average are batched up over at least this long
+	private static final long RATE_SAMPLE = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final TransferScheduler scheduler_;
+	private final long id_;
+	private final TransferScheduler.Direction direction_;
+	private final String client_;
+	private final String resource_;
+	private final double weight_;
+	private final long startTime_ = System.currentTimeMillis();
+	private final long startNanos_ = System.nanoTime();
+	private final AtomicLong bytes_ = new AtomicLong();
+	private volatile boolean cancelled_;
+
+	// The virtual time at which the last chunk that the scheduler queued
+	// for this stream will be finished (guarded by the scheduler)
+	double finishTag_;
+
+	private long pendingBytes_;
+	private long lastSample_ = startNanos_;
+	private double bytesPerNano_;
+
+	TransferStream(TransferScheduler scheduler, long id, TransferScheduler.Direction direction, String client,
+			String resource, double weight) {
+		scheduler_ = scheduler;
+		id_ = id;
+		direction_ = direction;
+		client_ = client;
+		resource_ = resource;
+		weight_ = weight;
+	}
+
+	public long getId() {
+		return id_;
+	}
+
+	public TransferScheduler.Direction getDirection() {
+		return direction_;
+	}
+
+	public String getClient() {
+		return client_;
+	}
+
+	public String getResource() {
+		return resource_;
+	}
+
+	public double getWeight() {
+		return weight_;
+	}
+
+	public long getStartTime() {
+		return startTime_;
+	}
+
+	public long getBytes() {
+		return bytes_.get();
+	}
+
+	/**
+	 * Returns the recent throughput of the stream. A stream that has
+	 * stalled decays towards 0.
+	 *
+	 * @return
+	 */
+	public synchronized long getBytesPerSecond() {
+		long idle = System.nanoTime() - lastSample_;
+		return Math.round(bytesPerNano_ * Math.exp(-idle / (double) RATE_WINDOW) * TimeUnit.SECONDS.toNanos(1));
+	}
+
+	/**
+	 * Returns the throughput of the stream since it was opened.
+	 *
+	 * @return
+	 */
+	public long getAverageBytesPerSecond() {
+		long elapsed = Math.max(1, System.nanoTime() - startNanos_);
+		return Math.round(bytes_.get() / (double) elapsed * TimeUnit.SECONDS.toNanos(1));
+	}
+
+	/**
+	 * Returns a request whose input stream is paced by this stream.
+	 *
+	 * @param request
+	 * @return
+	 */
+	public HttpServletRequest shape(HttpServletRequest request) {
+		return new HttpServletRequestWrapper(request) {
+			private ServletInputStream in_;
+
+			@Override
+			public ServletInputStream getInputStream() throws IOException {
+				if (in_ == null) {
+					in_ = new ShapedInputStream(super.getInputStream(), TransferStream.this);
+				}
+				return in_;
+			}
+		};
+	}
+
+	/**
+	 * Returns a response whose output stream is paced by this stream.
+	 *
+	 * @param response
+	 * @return
+	 */
+	public HttpServletResponse shape(HttpServletResponse response) {
+		return new HttpServletResponseWrapper(response) {
+			private ServletOutputStream out_;
+
+			@Override
+			public ServletOutputStream getOutputStream() throws IOException {
+				if (out_ == null) {
+					out_ = new ShapedOutputStream(super.getOutputStream(), TransferStream.this);
+				}
+				return out_;
+			}
+		};
+	}
+
+	/**
+	 * Makes the shaped streams fail the next time that they move data, e.g.
+	 * because the container has given up on the request and may already
+	 * be using its request and response for another one.
+	 */
+	public void cancel() {
+		cancelled_ = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled_;
+	}
+
+	/**
+	 * Ends the stream and removes it from the scheduler.
+	 */
+	@Override
+	public void close() {
+		scheduler_.close(this);
+	}
+
+	// Blocks until the stream may move the given number of bytes
+	void acquire(int bytes) throws IOException {
+		scheduler_.acquire(this, bytes);
+		// It may have waited for its turn for a long time
+		checkCancelled();
+	}
+
+	// Called before anything is done with the underlying streams
+	void checkCancelled() throws IOException {
+		if (cancelled_) {
+			throw new IOException("The transfer of " + resource_ + " was cancelled");
+		}
+	}
+
+	// Records bytes that have been moved
+	void transferred(int bytes) {
+		bytes_.addAndGet(bytes);
+		synchronized (this) {
+			pendingBytes_ += bytes;
+			long now = System.nanoTime();
+			long elapsed = now - lastSample_;
+			if (elapsed >= RATE_SAMPLE) {
+				double sample = pendingBytes_ / (double) elapsed;
+				double alpha = 1 - Math.exp(-elapsed / (double) RATE_WINDOW);
+				bytesPerNano_ += alpha * (sample - bytesPerNano_);
+				pendingBytes_ = 0;
+				lastSample_ = now;
+			}
+		}
+	}
+
+}
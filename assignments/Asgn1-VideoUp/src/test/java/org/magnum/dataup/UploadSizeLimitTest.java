@@ -0,0 +1,274 @@
+/*
+ *
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magnum.dataup;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.magnum.dataup.model.Video;
+import org.magnum.dataup.repository.IdAllocator;
+import org.magnum.dataup.repository.VideoCatalog;
+import org.magnum.dataup.transfer.TransferScheduler;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.context.support.AnnotationConfigWebApplicationContext;
+import org.springframework.web.multipart.MultipartResolver;
+import org.springframework.web.servlet.DispatcherServlet;
+import org.springframework.web.servlet.config.annotation.EnableWebMvc;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Sends multipart uploads of video data to a VideoSvcController that runs
+ * behind a DispatcherServlet in an embedded Tomcat, wired up the way that
+ * the Application wires it (with the StreamingMultipartResolver and the
+ * asynchronous VideoTransferExecutor), but with a much smaller
+ * UploadSizeLimit. The uploads over the limit have to be turned away with
+ * a 413, whether or not they declare their length up front, and leave the
+ * video without any data.
+ *
+ * @author jules
+ *
+ */
+public class UploadSizeLimitTest {
+
+	private static final int LIMIT = 64 * 1024;
+
+	private static final String BOUNDARY = "upload-limit-test";
+
+	private Tomcat tomcat;
+
+	private AnnotationConfigWebApplicationContext context;
+
+	private VideoCatalog catalog;
+
+	private VideoTransferExecutor transfers;
+
+	private int port;
+
+	/**
+	 * The controller's web configuration, to which the test adds the
+	 * catalog, ids, transfers and limit.
+	 */
+	@Configuration
+	@EnableWebMvc
+	public static class WebConfig {
+
+		@Bean
+		public VideoSvcController videoSvcController() {
+			return new VideoSvcController();
+		}
+
+		@Bean
+		public MultipartResolver multipartResolver() {
+			return new StreamingMultipartResolver();
+		}
+
+	}
+
+	@BeforeClass
+	public static void setUpStorage() throws IOException {
+		// Only takes effect if no other test has used the VideoFileManager
+		if (System.getProperty("video.storage.dir") == null) {
+			System.setProperty("video.storage.dir", Files.createTempDirectory("videos").toString());
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		catalog = VideoCatalog.open(Files.createTempDirectory("catalog"), 1000);
+		final IdAllocator ids = new IdAllocator(Files.createTempDirectory("ids"), 1000, Math.max(
+				catalog.getMaxId(), VideoFileManager.get().getMaxVideoId()));
+		transfers = new VideoTransferExecutor(true, 4, 16, 60000, new TransferScheduler(0, 0, 1, 1));
+
+		context = new AnnotationConfigWebApplicationContext();
+		context.register(WebConfig.class);
+		context.addBeanFactoryPostProcessor(new BeanFactoryPostProcessor() {
+			@Override
+			public void postProcessBeanFactory(ConfigurableListableBeanFactory beanFactory) {
+				beanFactory.registerSingleton("videoCatalog", catalog);
+				beanFactory.registerSingleton("idAllocator", ids);
+				beanFactory.registerSingleton("videoTransferExecutor", transfers);
+				beanFactory.registerSingleton("uploadSizeLimit", new UploadSizeLimit(LIMIT));
+			}
+		});
+
+		tomcat = new Tomcat();
+		String baseDir = Files.createTempDirectory("tomcat").toString();
+		tomcat.setBaseDir(baseDir);
+		Connector connector = new Connector("org.apache.coyote.http11.Http11NioProtocol");
+		connector.setPort(0);
+		tomcat.getService().addConnector(connector);
+		tomcat.setConnector(connector);
+
+		Context webapp = tomcat.addContext("", baseDir);
+		Wrapper dispatcher = Tomcat.addServlet(webapp, "dispatcher", new DispatcherServlet(context));
+		dispatcher.setAsyncSupported(true);
+		dispatcher.setLoadOnStartup(1);
+		webapp.addServletMapping("/", "dispatcher");
+
+		tomcat.start();
+		port = connector.getLocalPort();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		// The transfer threads go first, so that none of them outlive the
+		// test (see VideoTransferExecutorTest)
+		try {
+			transfers.shutdown();
+		} finally {
+			tomcat.stop();
+			tomcat.destroy();
+			context.close();
+			catalog.close();
+		}
+	}
+
+	@Test
+	public void testUploadsWithinTheLimitAreStored() throws IOException {
+		Video video = addVideo();
+		String response = upload(video, LIMIT / 2, true);
+		assertTrue(response, response.startsWith("HTTP/1.1 200"));
+		assertTrue(response, response.contains("READY"));
+		assertTrue(VideoFileManager.get().hasVideoData(video));
+	}
+
+	@Test
+	public void testDeclaredOversizedUploadsAreRejectedUpFront() throws IOException {
+		Video video = addVideo();
+		// Only the headers are sent, so the answer can't wait for the body
+		try (Socket socket = connect()) {
+			socket.getOutputStream().write(("POST " + dataPath(video) + " HTTP/1.1\r\nHost: localhost\r\n"
+					+ "Content-Type: multipart/form-data; boundary=" + BOUNDARY + "\r\n"
+					+ "Content-Length: " + (LIMIT + 1) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+			String response = readStatusLine(socket.getInputStream());
+			assertTrue(response, response.startsWith("HTTP/1.1 413"));
+		}
+		assertFalse(VideoFileManager.get().hasVideoData(video));
+	}
+
+	@Test
+	public void testOversizedUploadsAreCutOffWhileTheyAreRead() throws IOException {
+		Video video = addVideo();
+		String response = upload(video, 2 * LIMIT, false);
+		assertTrue(response, response.startsWith("HTTP/1.1 413"));
+		assertFalse(VideoFileManager.get().hasVideoData(video));
+	}
+
+	private Video addVideo() throws IOException {
+		Video video = new Video();
+		video.setTitle("Upload limit test");
+		video.setDuration(1);
+		video.setContentType("video/mp4");
+		ObjectMapper mapper = new ObjectMapper();
+		HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port
+				+ VideoSvcController.VIDEO_SVC_PATH).openConnection();
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty("Content-Type", "application/json");
+		connection.setDoOutput(true);
+		try (OutputStream out = connection.getOutputStream()) {
+			mapper.writeValue(out, video);
+		}
+		try (InputStream in = connection.getInputStream()) {
+			return mapper.readValue(in, Video.class);
+		}
+	}
+
+	private static String dataPath(Video video) {
+		return VideoSvcController.VIDEO_SVC_PATH + "/" + video.getId() + "/data";
+	}
+
+	// Sends a multipart upload with a "data" part of the given size, either
+	// with a Content-Length or chunked, and returns the response
+	private String upload(Video video, int size, boolean declareLength) throws IOException {
+		byte[] head = ("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\""
+				+ VideoSvcController.DATA_PARAMETER + "\"; filename=\"video.mp4\"\r\n\r\n")
+				.getBytes(StandardCharsets.US_ASCII);
+		byte[] tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		body.write(head);
+		body.write(new byte[size]);
+		body.write(tail);
+
+		try (Socket socket = connect()) {
+			OutputStream out = socket.getOutputStream();
+			String headers = "POST " + dataPath(video) + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n"
+					+ "Content-Type: multipart/form-data; boundary=" + BOUNDARY + "\r\n";
+			if (declareLength) {
+				out.write((headers + "Content-Length: " + body.size() + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+				out.write(body.toByteArray());
+			} else {
+				out.write((headers + "Transfer-Encoding: chunked\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+				out.write((Integer.toHexString(body.size()) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+				out.write(body.toByteArray());
+				out.write("\r\n0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+			}
+			out.flush();
+			return new String(readAll(socket.getInputStream()), StandardCharsets.US_ASCII);
+		}
+	}
+
+	private Socket connect() throws IOException {
+		Socket socket = new Socket();
+		socket.connect(new InetSocketAddress("localhost", port));
+		socket.setSoTimeout(30000);
+		return socket;
+	}
+
+	private static String readStatusLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) >= 0 && c != '\n') {
+			line.append((char) c);
+		}
+		return line.toString();
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+}
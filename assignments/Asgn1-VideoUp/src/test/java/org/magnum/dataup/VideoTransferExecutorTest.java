@@ -0,0 +1,404 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.After;
+import org.magnum.dataup.transfer.TransferScheduler;
+import org.junit.Test;
+
+/**
+ * Runs an embedded Tomcat with only a handful of request threads, ties up
+ * hundreds of connections with uploads and downloads that the clients
+ * never finish, and checks that metadata requests are still answered as
+ * quickly as they were before the transfers started. A second test shows
+ * that without asynchronous transfers, a few slow clients are enough to
+ * stop metadata requests from being answered at all.
+ *
+ * @author jules
+ *
+ */
+public class VideoTransferExecutorTest {
+
+	private static final int REQUEST_THREADS = 10;
+
+	private static final int SLOW_UPLOADS = 150;
+
+	private static final int SLOW_DOWNLOADS = 150;
+
+	private static final int UPLOAD_SIZE = 64 * 1024;
+
+	// Much more than the socket buffers on both ends can hold, so the
+	// download stays in flight while the client isn't reading
+	private static final int DOWNLOAD_SIZE = 32 * 1024 * 1024;
+
+	// The part of each upload that is sent before the client stalls
+	private static final int UPLOAD_HEAD_SIZE = 1024;
+
+	private static final int SAMPLES = 100;
+
+	private Tomcat tomcat;
+
+	private VideoTransferExecutor transfers;
+
+	private final List<Socket> clients = new ArrayList<Socket>();
+
+	private final CountDownLatch trickleStopped = new CountDownLatch(1);
+
+	private volatile Throwable trickleFailure;
+
+	@After
+	public void tearDown() throws Exception {
+		for (Socket client : clients) {
+			client.close();
+		}
+		// The transfer threads go first, as the clients that they were
+		// waiting for are gone, so that none of them outlive the test
+		try {
+			if (transfers != null) {
+				transfers.shutdown();
+			}
+		} finally {
+			if (tomcat != null) {
+				tomcat.stop();
+				tomcat.destroy();
+			}
+		}
+	}
+
+	@Test
+	public void testMetadataLatencyStaysFlatDuringSlowTransfers() throws Exception {
+		int port = startServer(true);
+		long[] before = measureMetadataLatency(port);
+
+		for (int i = 0; i < SLOW_UPLOADS; i++) {
+			clients.add(startUpload(port));
+		}
+		for (int i = 0; i < SLOW_DOWNLOADS; i++) {
+			clients.add(startDownload(port));
+		}
+		awaitActiveTransfers(SLOW_UPLOADS + SLOW_DOWNLOADS);
+
+		long[] during = measureMetadataLatency(port);
+		String latencies = "Metadata latency (us) before: " + describe(before) + ", during: " + describe(during);
+		assertEquals(latencies, SLOW_UPLOADS + SLOW_DOWNLOADS, transfers.getActiveCount());
+		assertTrue(latencies, percentile(during, 0.5) <= 5 * percentile(before, 0.5) + 2000);
+		assertTrue(latencies, percentile(during, 0.95) <= 5 * percentile(before, 0.95) + 20000);
+
+		// All of the stalled transfers are still able to finish
+		for (int i = 0; i < SLOW_UPLOADS; i++) {
+			finishUpload(clients.get(i));
+		}
+		for (int i = SLOW_UPLOADS; i < clients.size(); i++) {
+			finishDownload(clients.get(i));
+		}
+	}
+
+	@Test
+	public void testSlowTransfersBlockMetadataWithoutAsync() throws Exception {
+		int port = startServer(false);
+		measureMetadataLatency(port);
+
+		for (int i = 0; i < REQUEST_THREADS; i++) {
+			clients.add(startUpload(port));
+		}
+		Thread.sleep(500);
+
+		HttpURLConnection connection = openMetadataConnection(port);
+		connection.setReadTimeout(2000);
+		try {
+			connection.getResponseCode();
+			fail("The metadata request should have been stuck behind the uploads");
+		} catch (SocketTimeoutException e) {
+			// Every request thread is waiting for an upload
+		}
+	}
+
+	@Test
+	public void testTransfersBeyondTheQueueAreTurnedAway() throws Exception {
+		int port = startServer(true, 1, 1, 0);
+		// One download runs and one waits, as neither client reads
+		clients.add(startDownload(port));
+		clients.add(startDownload(port));
+		awaitActiveTransfers(1);
+		assertEquals(1, transfers.getActiveCount());
+		assertEquals(1, transfers.getQueuedCount());
+
+		Socket rejected = startDownload(port);
+		clients.add(rejected);
+		String response = new String(readAll(rejected.getInputStream()), StandardCharsets.US_ASCII);
+		assertTrue(response, response.startsWith("HTTP/1.1 503"));
+	}
+
+	@Test
+	public void testTimedOutTransfersAreCancelled() throws Exception {
+		int port = startServer(true, 1, 1, 500);
+		Socket client = connect(port);
+		clients.add(client);
+		client.getOutputStream().write(
+				"GET /trickle HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+
+		// The container gives up after the timeout, and the transfer stops
+		// at its next chunk rather than writing to a recycled response
+		assertTrue("The transfer kept running", trickleStopped.await(10, TimeUnit.SECONDS));
+		assertTrue(String.valueOf(trickleFailure), trickleFailure instanceof IOException);
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+		while (transfers.getActiveCount() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, transfers.getActiveCount());
+	}
+
+	private int startServer(boolean async) throws Exception {
+		return startServer(async, SLOW_UPLOADS + SLOW_DOWNLOADS, SLOW_UPLOADS + SLOW_DOWNLOADS, 0);
+	}
+
+	private int startServer(boolean async, int threads, int maxQueued, long timeout) throws Exception {
+		transfers = new VideoTransferExecutor(async, threads, maxQueued, timeout, new TransferScheduler(0, 0, 1, 1));
+
+		tomcat = new Tomcat();
+		String baseDir = Files.createTempDirectory("tomcat").toString();
+		tomcat.setBaseDir(baseDir);
+		Connector connector = new Connector("org.apache.coyote.http11.Http11NioProtocol");
+		connector.setPort(0);
+		connector.setAttribute("maxThreads", REQUEST_THREADS);
+		tomcat.getService().addConnector(connector);
+		tomcat.setConnector(connector);
+
+		Context context = tomcat.addContext("", baseDir);
+		Tomcat.addServlet(context, "upload", new UploadServlet()).setAsyncSupported(true);
+		context.addServletMapping("/upload", "upload");
+		Tomcat.addServlet(context, "download", new DownloadServlet()).setAsyncSupported(true);
+		context.addServletMapping("/download", "download");
+		Tomcat.addServlet(context, "trickle", new TrickleServlet()).setAsyncSupported(true);
+		context.addServletMapping("/trickle", "trickle");
+		Tomcat.addServlet(context, "metadata", new MetadataServlet());
+		context.addServletMapping(VideoSvcController.VIDEO_SVC_PATH, "metadata");
+
+		tomcat.start();
+		return connector.getLocalPort();
+	}
+
+	private void awaitActiveTransfers(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+		while (transfers.getActiveCount() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	private long[] measureMetadataLatency(int port) throws IOException {
+		long[] latencies = new long[SAMPLES];
+		for (int i = 0; i < SAMPLES; i++) {
+			long start = System.nanoTime();
+			HttpURLConnection connection = openMetadataConnection(port);
+			assertEquals(HttpServletResponse.SC_OK, connection.getResponseCode());
+			drain(connection.getInputStream());
+			latencies[i] = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+		}
+		Arrays.sort(latencies);
+		return latencies;
+	}
+
+	private HttpURLConnection openMetadataConnection(int port) throws IOException {
+		URL url = new URL("http", "localhost", port, VideoSvcController.VIDEO_SVC_PATH);
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setConnectTimeout(5000);
+		connection.setReadTimeout(5000);
+		return connection;
+	}
+
+	private Socket startUpload(int port) throws IOException {
+		Socket socket = connect(port);
+		OutputStream out = socket.getOutputStream();
+		out.write(("POST /upload HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\nContent-Length: "
+				+ UPLOAD_SIZE + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+		out.write(new byte[UPLOAD_HEAD_SIZE]);
+		out.flush();
+		return socket;
+	}
+
+	private void finishUpload(Socket socket) throws IOException {
+		socket.getOutputStream().write(new byte[UPLOAD_SIZE - UPLOAD_HEAD_SIZE]);
+		String response = new String(readAll(socket.getInputStream()), StandardCharsets.US_ASCII);
+		assertTrue(response, response.startsWith("HTTP/1.1 200"));
+		assertTrue(response, response.contains("\r\n" + UPLOAD_SIZE + "\r\n"));
+	}
+
+	private Socket startDownload(int port) throws IOException {
+		Socket socket = new Socket();
+		// A small receive window makes the server block as soon as possible
+		socket.setReceiveBufferSize(4096);
+		socket.connect(new InetSocketAddress("localhost", port));
+		socket.setSoTimeout(30000);
+		socket.getOutputStream().write(
+				"GET /download HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+		return socket;
+	}
+
+	private void finishDownload(Socket socket) throws IOException {
+		long received = drain(socket.getInputStream());
+		assertTrue("Received " + received + " bytes", received > DOWNLOAD_SIZE);
+	}
+
+	private Socket connect(int port) throws IOException {
+		Socket socket = new Socket();
+		socket.connect(new InetSocketAddress("localhost", port));
+		socket.setSoTimeout(30000);
+		return socket;
+	}
+
+	private static long drain(InputStream in) throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		long total = 0;
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			total += read;
+		}
+		in.close();
+		return total;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	private static long percentile(long[] sorted, double p) {
+		return sorted[(int) Math.ceil(p * sorted.length) - 1];
+	}
+
+	private static String describe(long[] sorted) {
+		return "p50=" + percentile(sorted, 0.5) + " p95=" + percentile(sorted, 0.95) + " max="
+				+ sorted[sorted.length - 1];
+	}
+
+	// Reads the whole body and answers with the number of bytes read
+	private class UploadServlet extends HttpServlet {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+			transfers.execute(request, response, TransferScheduler.Direction.UPLOAD, new VideoTransferExecutor.Transfer() {
+				@Override
+				public void run(HttpServletRequest request, HttpServletResponse response) throws IOException {
+					long size = drain(request.getInputStream());
+					response.setContentType("text/plain");
+					response.getWriter().write(Long.toString(size));
+				}
+			});
+		}
+	}
+
+	private class DownloadServlet extends HttpServlet {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+			response.setContentType("video/mpeg");
+			response.setContentLength(DOWNLOAD_SIZE);
+			transfers.execute(request, response, TransferScheduler.Direction.DOWNLOAD, new VideoTransferExecutor.Transfer() {
+				@Override
+				public void run(HttpServletRequest request, HttpServletResponse response) throws IOException {
+					byte[] chunk = new byte[64 * 1024];
+					OutputStream out = response.getOutputStream();
+					for (int sent = 0; sent < DOWNLOAD_SIZE; sent += chunk.length) {
+						out.write(chunk);
+					}
+				}
+			});
+		}
+	}
+
+	// Writes a little data at a time for far longer than the timeout
+	private class TrickleServlet extends HttpServlet {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+			response.setContentType("video/mpeg");
+			transfers.execute(request, response, TransferScheduler.Direction.DOWNLOAD, new VideoTransferExecutor.Transfer() {
+				@Override
+				public void run(HttpServletRequest request, HttpServletResponse response) throws IOException {
+					OutputStream out = response.getOutputStream();
+					try {
+						long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+						while (System.currentTimeMillis() < end) {
+							out.write(new byte[1024]);
+							out.flush();
+							Thread.sleep(20);
+						}
+					} catch (IOException e) {
+						trickleFailure = e;
+						throw e;
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						trickleStopped.countDown();
+					}
+				}
+			});
+		}
+	}
+
+	private static class MetadataServlet extends HttpServlet {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+			response.setContentType("application/json");
+			response.getWriter().write("[]");
+		}
+	}
+
+}
@@ -0,0 +1,268 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Stress tests for the ConcurrentLongIndex. Writers and readers hammer the
+ * index at the same time, and every read is checked against what the
+ * writers have already been told is stored: once put() has returned, every
+ * later get() has to see the value (or a newer one), and every view
+ * returned by values() has to hold exactly the entries of one moment.
+ *
+ * @author jules
+ *
+ */
+public class ConcurrentLongIndexTest {
+
+	private static final int WRITERS = 8;
+
+	private static final int READERS = 8;
+
+	private static final int KEYS_PER_WRITER = 20000;
+
+	private final ExecutorService pool = Executors.newFixedThreadPool(WRITERS + READERS);
+
+	@After
+	public void tearDown() throws Exception {
+		pool.shutdownNow();
+		pool.awaitTermination(10, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testGetAndPut() {
+		ConcurrentLongIndex<String> index = new ConcurrentLongIndex<String>();
+		assertNull(index.get(1));
+		assertNull(index.put(1, "a"));
+		assertEquals("a", index.put(1, "b"));
+		assertEquals("b", index.get(1));
+		assertNull(index.put(-1, "c"));
+		assertNull(index.put(Long.MAX_VALUE, "d"));
+		assertNull(index.put(Long.MIN_VALUE, "e"));
+		assertEquals(4, index.size());
+		assertEquals("c", index.get(-1));
+		assertEquals("d", index.get(Long.MAX_VALUE));
+		assertEquals("e", index.get(Long.MIN_VALUE));
+		assertNull(index.get(2));
+	}
+
+	@Test
+	public void testValuesAreAPointInTimeView() {
+		ConcurrentLongIndex<Long> index = new ConcurrentLongIndex<Long>();
+		for (long i = 0; i < 1000; i++) {
+			index.put(i, i);
+		}
+		Collection<Long> view = index.values();
+		for (long i = 1000; i < 2000; i++) {
+			index.put(i, i);
+		}
+		assertEquals(1000, view.size());
+		assertEquals(1000, new HashSet<Long>(view).size());
+		for (Long value : view) {
+			assertTrue(value < 1000);
+		}
+		assertEquals(2000, index.values().size());
+	}
+
+	@Test
+	public void testValuesAfterContinuesTheIteration() {
+		ConcurrentLongIndex<Long> index = new ConcurrentLongIndex<Long>();
+		for (long i = 0; i < 5000; i += 2) {
+			index.put(i, i);
+		}
+		List<Long> all = new ArrayList<Long>(index.values());
+
+		// Paging from each key has to produce the rest of the full iteration
+		for (int i = 0; i < all.size(); i += 97) {
+			List<Long> rest = new ArrayList<Long>();
+			for (Long value : index.valuesAfter(all.get(i))) {
+				rest.add(value);
+			}
+			assertEquals(all.subList(i + 1, all.size()), rest);
+		}
+
+		// Keys that aren't in the index resume at the right place too
+		for (long missing = 1; missing < 5000; missing += 194) {
+			List<Long> rest = new ArrayList<Long>();
+			for (Long value : index.valuesAfter(missing)) {
+				rest.add(value);
+			}
+			index.put(missing, missing);
+			List<Long> withMissing = new ArrayList<Long>(index.values());
+			assertEquals(withMissing.subList(withMissing.indexOf(missing) + 1, withMissing.size()), rest);
+		}
+	}
+
+	/**
+	 * Each writer owns a range of keys and publishes the last key that it
+	 * has finished putting. A reader that sees a published key must be able
+	 * to get every key up to it, since those puts completed before the
+	 * reader started looking.
+	 */
+	@Test
+	public void testCompletedPutsAreAlwaysVisible() throws Exception {
+		final ConcurrentLongIndex<Long> index = new ConcurrentLongIndex<Long>();
+		final AtomicLongArray published = new AtomicLongArray(WRITERS);
+		final AtomicBoolean writing = new AtomicBoolean(true);
+		final CountDownLatch start = new CountDownLatch(1);
+
+		List<Future<?>> writers = new ArrayList<Future<?>>();
+		for (int w = 0; w < WRITERS; w++) {
+			final int writer = w;
+			published.set(writer, -1);
+			writers.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					start.await();
+					for (int i = 0; i < KEYS_PER_WRITER; i++) {
+						long key = key(writer, i);
+						assertNull(index.put(key, key));
+						published.set(writer, i);
+					}
+					return null;
+				}
+			}));
+		}
+
+		List<Future<Long>> readers = new ArrayList<Future<Long>>();
+		for (int r = 0; r < READERS; r++) {
+			final int seed = r;
+			readers.add(pool.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					start.await();
+					long checks = 0;
+					int writer = seed % WRITERS;
+					while (writing.get()) {
+						writer = (writer + 1) % WRITERS;
+						long last = published.get(writer);
+						// Check the most recently published keys, which are
+						// the ones most likely to be caught mid-update
+						for (long i = Math.max(0, last - 64); i <= last; i++) {
+							long key = key(writer, (int) i);
+							Long value = index.get(key);
+							assertNotNull("Lost completed put of key " + key, value);
+							assertEquals(key, value.longValue());
+							checks++;
+						}
+						checkView(index.values());
+					}
+					return checks;
+				}
+			}));
+		}
+
+		start.countDown();
+		for (Future<?> writer : writers) {
+			writer.get(60, TimeUnit.SECONDS);
+		}
+		writing.set(false);
+		long checks = 0;
+		for (Future<Long> reader : readers) {
+			checks += reader.get(60, TimeUnit.SECONDS);
+		}
+		assertTrue(checks > 0);
+
+		assertEquals(WRITERS * KEYS_PER_WRITER, index.size());
+		for (int w = 0; w < WRITERS; w++) {
+			for (int i = 0; i < KEYS_PER_WRITER; i++) {
+				assertEquals(key(w, i), index.get(key(w, i)).longValue());
+			}
+		}
+		checkView(index.values());
+	}
+
+	/**
+	 * All of the writers put the same keys, in different orders, so that
+	 * many puts race to add the same new key. Each key must end up with
+	 * exactly one entry, holding a value that was written for that key, and
+	 * a writer must always be able to get the key that it just put.
+	 */
+	@Test
+	public void testRacingPutsOfTheSameKey() throws Exception {
+		final int keys = 5000;
+		final ConcurrentLongIndex<Long> index = new ConcurrentLongIndex<Long>();
+		final CountDownLatch start = new CountDownLatch(1);
+
+		List<Future<?>> writers = new ArrayList<Future<?>>();
+		for (int w = 0; w < WRITERS; w++) {
+			final int writer = w;
+			writers.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					start.await();
+					for (int i = 0; i < keys; i++) {
+						// Odd writers go backwards to meet the even ones
+						long key = (writer % 2 == 0) ? i : keys - 1 - i;
+						index.put(key, key * WRITERS + writer);
+						Long seen = index.get(key);
+						assertNotNull("Lost put of key " + key, seen);
+						assertEquals(key, seen / WRITERS);
+					}
+					return null;
+				}
+			}));
+		}
+		start.countDown();
+		for (Future<?> writer : writers) {
+			writer.get(60, TimeUnit.SECONDS);
+		}
+
+		assertEquals(keys, index.size());
+		checkView(index.values());
+		for (long key = 0; key < keys; key++) {
+			assertEquals(key, index.get(key) / WRITERS);
+		}
+	}
+
+	// Every view has to hold as many distinct values as its size says
+	private static void checkView(Collection<Long> view) {
+		int size = view.size();
+		Set<Long> values = new HashSet<Long>();
+		for (Long value : view) {
+			assertTrue("Duplicate value " + value, values.add(value));
+		}
+		assertEquals(size, values.size());
+	}
+
+	private static long key(int writer, int i) {
+		return (long) writer * KEYS_PER_WRITER + i;
+	}
+
+}
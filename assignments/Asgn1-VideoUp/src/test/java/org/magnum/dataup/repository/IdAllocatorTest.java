@@ -0,0 +1,183 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the IdAllocator. Several allocators share one counter
+ * directory, the way that several servers on a host would, and every id
+ * that any of them hands out has to be unique, including after they are
+ * restarted.
+ *
+ * @author jules
+ *
+ */
+public class IdAllocatorTest {
+
+	private static final int ALLOCATORS = 4;
+
+	private static final int THREADS_PER_ALLOCATOR = 4;
+
+	private static final int IDS_PER_THREAD = 5000;
+
+	private Path dir;
+
+	private final ExecutorService pool = Executors.newFixedThreadPool(ALLOCATORS * THREADS_PER_ALLOCATOR);
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("ids");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		pool.shutdownNow();
+		pool.awaitTermination(10, TimeUnit.SECONDS);
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(dir);
+	}
+
+	@Test
+	public void testIdsAreUniqueAcrossAllocators() throws Exception {
+		// Small blocks, so that the allocators fight over the counter a lot
+		final Set<Long> seen = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (int a = 0; a < ALLOCATORS; a++) {
+			final IdAllocator ids = new IdAllocator(dir, 7, 0);
+			for (int t = 0; t < THREADS_PER_ALLOCATOR; t++) {
+				results.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						for (int i = 0; i < IDS_PER_THREAD; i++) {
+							long id = ids.nextId();
+							assertTrue(id > 0);
+							assertTrue("Duplicate id " + id, seen.add(id));
+						}
+						return null;
+					}
+				}));
+			}
+		}
+		for (Future<?> result : results) {
+			result.get(1, TimeUnit.MINUTES);
+		}
+		assertEquals(ALLOCATORS * THREADS_PER_ALLOCATOR * IDS_PER_THREAD, seen.size());
+	}
+
+	@Test
+	public void testIdsSurviveRestarts() throws Exception {
+		IdAllocator ids = new IdAllocator(dir, 100, 0);
+		assertEquals(1, ids.nextId());
+		assertEquals(2, ids.nextId());
+
+		// The rest of the first block is lost
+		ids = new IdAllocator(dir, 100, 0);
+		assertEquals(101, ids.nextId());
+	}
+
+	@Test
+	public void testFloorAndReservedIdsAreSkipped() throws Exception {
+		IdAllocator ids = new IdAllocator(dir, 10, 42);
+		assertEquals(43, ids.nextId());
+		ids.reserve(45);
+		assertEquals(46, ids.nextId());
+
+		// A second server that knows of a higher id than the counter
+		IdAllocator other = new IdAllocator(dir, 10, 500);
+		assertEquals(501, other.nextId());
+		assertEquals(47, ids.nextId());
+	}
+
+	@Test
+	public void testCounterIsRecoveredFromDeadHolder() throws Exception {
+		IdAllocator ids = new IdAllocator(dir, 10, 0);
+		assertEquals(1, ids.nextId());
+
+		// A server that claimed the counter (which holds 10) and then died
+		Files.move(dir.resolve("counter"), dir.resolve("dead.claim"), StandardCopyOption.ATOMIC_MOVE);
+		Files.write(dir.resolve("older.claim"), "3".getBytes(StandardCharsets.US_ASCII));
+
+		IdAllocator other = new IdAllocator(dir, 10, 0);
+		assertEquals(11, other.nextId());
+		assertTrue(Files.exists(dir.resolve("counter")));
+		assertFalse(Files.exists(dir.resolve("older.claim")));
+	}
+
+	@Test
+	public void testIdsNearTheTopOfTheRangeAreRejected() throws Exception {
+		IdAllocator ids = new IdAllocator(dir, 10, 0);
+		assertEquals(1, ids.nextId());
+		try {
+			ids.reserve(Long.MAX_VALUE - 5);
+			fail("The next block would overflow");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		ids.reserve(ids.getMaxId());
+		for (long id = ids.getMaxId() + 1; id < Long.MAX_VALUE; id++) {
+			assertEquals(id, ids.nextId());
+		}
+		try {
+			ids.nextId();
+			fail("There is no room for another block");
+		} catch (IOException e) {
+			// Expected
+		}
+
+		// The counter was put back untouched rather than wrapped around, so
+		// the others fail the same way instead of waiting for it forever
+		assertEquals(Long.toString(Long.MAX_VALUE - 1),
+				new String(Files.readAllBytes(dir.resolve("counter")), StandardCharsets.US_ASCII));
+		try {
+			new IdAllocator(dir, 10, 0).nextId();
+			fail("The counter is exhausted");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+}
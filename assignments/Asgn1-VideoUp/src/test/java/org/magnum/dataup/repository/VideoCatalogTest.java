@@ -0,0 +1,166 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.magnum.dataup.model.Video;
+
+/**
+ * Tests for the VideoCatalog. Videos are saved from many threads while the
+ * journal rotates every few records, so snapshots are written and old
+ * journal files deleted all the time, and every video that was saved has
+ * to be there after the catalog is reopened.
+ *
+ * @author jules
+ *
+ */
+public class VideoCatalogTest {
+
+	private static final int THREADS = 8;
+
+	private static final int VIDEOS_PER_THREAD = 2000;
+
+	private Path dir;
+
+	private final ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("catalog");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		pool.shutdownNow();
+		pool.awaitTermination(10, TimeUnit.SECONDS);
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(dir);
+	}
+
+	@Test
+	public void testSavesSurviveConcurrentSnapshots() throws Exception {
+		final VideoCatalog catalog = VideoCatalog.open(dir, 3);
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (int t = 0; t < THREADS; t++) {
+			final long first = t * VIDEOS_PER_THREAD + 1;
+			results.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (long id = first; id < first + VIDEOS_PER_THREAD; id++) {
+						catalog.save(video(id));
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<?> result : results) {
+			result.get(1, TimeUnit.MINUTES);
+		}
+		catalog.close();
+
+		VideoCatalog reopened = VideoCatalog.open(dir, 3);
+		try {
+			assertEquals(THREADS * VIDEOS_PER_THREAD, reopened.getAll().size());
+			for (long id = 1; id <= THREADS * VIDEOS_PER_THREAD; id++) {
+				Video v = reopened.get(id);
+				assertNotNull("Lost video " + id, v);
+				assertEquals("Video " + id, v.getTitle());
+			}
+			assertEquals(THREADS * VIDEOS_PER_THREAD, reopened.getMaxId());
+		} finally {
+			reopened.close();
+		}
+	}
+
+	@Test
+	public void testPagesFollowIdOrder() throws Exception {
+		VideoCatalog catalog = VideoCatalog.open(dir, 5);
+		try {
+			for (long id : new long[] { 40, 3, 27, 1, 12, 33, 8 }) {
+				catalog.save(video(id));
+			}
+			assertEquals(Arrays.asList(8L, 12L, 27L, 33L, 40L), ids(catalog.getAllAfter(3)));
+			assertEquals(Arrays.asList(12L, 27L, 33L, 40L), ids(catalog.getAllAfter(10)));
+			assertEquals(Arrays.asList(1L, 3L, 8L), ids(catalog.getAllAfter(Long.MIN_VALUE)).subList(0, 3));
+
+			// A video added after a page was read is on the next one
+			catalog.save(video(41));
+			assertEquals(Arrays.asList(41L), ids(catalog.getAllAfter(40)));
+		} finally {
+			catalog.close();
+		}
+	}
+
+	@Test
+	public void testUnfinishedSnapshotsAreDeletedAtStartup() throws Exception {
+		VideoCatalog catalog = VideoCatalog.open(dir, 1000);
+		catalog.save(video(1));
+		catalog.close();
+		Path unfinished = dir.resolve(String.format("snapshot-%016x.dat.tmp", 7));
+		Files.write(unfinished, new byte[] { 1, 2, 3 });
+
+		VideoCatalog reopened = VideoCatalog.open(dir, 1000);
+		try {
+			assertFalse(Files.exists(unfinished));
+			assertEquals("Video 1", reopened.get(1).getTitle());
+		} finally {
+			reopened.close();
+		}
+	}
+
+	private static List<Long> ids(Iterable<Video> videos) {
+		List<Long> ids = new ArrayList<Long>();
+		for (Video v : videos) {
+			ids.add(v.getId());
+		}
+		return ids;
+	}
+
+	private static Video video(long id) {
+		Video v = new Video();
+		v.setId(id);
+		v.setTitle("Video " + id);
+		v.setDuration(id);
+		v.setContentType("video/mp4");
+		return v;
+	}
+
+}
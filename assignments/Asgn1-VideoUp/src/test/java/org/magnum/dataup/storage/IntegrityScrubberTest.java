@@ -0,0 +1,154 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Tests for the IntegrityScrubber. Data files are written along with their
+ * digests, some of them are then damaged, and a scrub has to find exactly
+ * those.
+ *
+ * @author jules
+ *
+ */
+public class IntegrityScrubberTest {
+
+	private static final int FILES = 20;
+
+	private static final int FILE_SIZE = 100 * 1024;
+
+	private Path dir;
+
+	private final VideoDataIndex index = new VideoDataIndex();
+
+	private final List<Long> quarantined = Collections.synchronizedList(new ArrayList<Long>());
+
+	private final IntegrityScrubber.Quarantine quarantine = new IntegrityScrubber.Quarantine() {
+		@Override
+		public boolean quarantine(StoredVideoData data, String actualDigest) {
+			quarantined.add(data.getVideoId());
+			return index.remove(data);
+		}
+	};
+
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("scrub");
+		Random random = new Random(42);
+		for (long id = 1; id <= FILES; id++) {
+			byte[] data = new byte[FILE_SIZE];
+			random.nextBytes(data);
+			Path file = dir.resolve("video" + id + ".mpg");
+			Files.write(file, data);
+			index.put(describe(id, file, hash(data)));
+		}
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(dir);
+	}
+
+	@Test
+	public void testCorruptFilesAreQuarantined() throws Exception {
+		corrupt(3);
+		corrupt(17);
+		index.put(describe(FILES + 1, dir.resolve("video1.mpg"), null));
+
+		IntegrityScrubber scrubber = new IntegrityScrubber(index, quarantine, 4, 0);
+		try {
+			assertTrue(scrubber.scrub());
+		} finally {
+			scrubber.shutdown();
+		}
+
+		Collections.sort(quarantined);
+		assertEquals(2, quarantined.size());
+		assertEquals(3L, (long) quarantined.get(0));
+		assertEquals(17L, (long) quarantined.get(1));
+		assertNull(index.get(3));
+		assertNull(index.get(17));
+		assertEquals(FILES - 1, index.size());
+
+		assertEquals(1, scrubber.getRuns());
+		assertEquals(FILES, scrubber.getFilesChecked());
+		assertEquals((long) FILES * FILE_SIZE, scrubber.getBytesChecked());
+		assertEquals(1, scrubber.getFilesSkipped());
+		assertEquals(2, scrubber.getCorruptFiles());
+		assertEquals(2, scrubber.getRecentCorruptions().size());
+		assertEquals(0, scrubber.getErrors());
+	}
+
+	@Test
+	public void testReadsAreThrottled() throws Exception {
+		// 2MB at 4MB/s, less the first buffer, which is free
+		IntegrityScrubber scrubber = new IntegrityScrubber(index, quarantine, 4, 4 * 1024 * 1024);
+		long start = System.nanoTime();
+		try {
+			scrubber.scrub();
+		} finally {
+			scrubber.shutdown();
+		}
+		long elapsedMillis = (System.nanoTime() - start) / 1000000;
+		assertTrue("Took only " + elapsedMillis + "ms", elapsedMillis >= 400);
+		assertTrue(scrubber.getRunBytesPerSecond() <= 5 * 1024 * 1024);
+		assertTrue(quarantined.isEmpty());
+	}
+
+	private void corrupt(long id) throws IOException {
+		Path file = dir.resolve("video" + id + ".mpg");
+		byte[] data = Files.readAllBytes(file);
+		data[data.length / 2] ^= 1;
+		Files.write(file, data);
+	}
+
+	private static StoredVideoData describe(long id, Path file, String digest) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+		return new StoredVideoData(id, file, attrs.size(), attrs.lastModifiedTime().toMillis(), digest);
+	}
+
+	private static String hash(byte[] data) throws Exception {
+		return BaseEncoding.base16().lowerCase().encode(MessageDigest.getInstance("SHA-256").digest(data));
+	}
+
+}
@@ -0,0 +1,170 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the TieredStorage. The relocator here just repoints the index
+ * entries, the way that the VideoFileManager does.
+ *
+ * @author jules
+ *
+ */
+public class TieredStorageTest {
+
+	private static final int FILE_SIZE = 1000;
+
+	private Path root;
+
+	private Path cold;
+
+	private Path hot;
+
+	private final VideoDataIndex index = new VideoDataIndex();
+
+	private final TieredStorage.Relocator relocator = new TieredStorage.Relocator() {
+		@Override
+		public boolean relocate(List<StoredVideoData> entries, Path target) {
+			boolean relocated = false;
+			for (StoredVideoData data : entries) {
+				if (index.get(data.getVideoId()) == data) {
+					index.put(new StoredVideoData(data.getVideoId(), target, data.getSize(), data.getLastModified(),
+							data.getDigest()));
+					relocated = true;
+				}
+			}
+			return relocated;
+		}
+	};
+
+	@Before
+	public void setUp() throws IOException {
+		root = Files.createTempDirectory("tiers");
+		cold = Files.createDirectories(root.resolve("cold"));
+		hot = Files.createDirectories(root.resolve("hot"));
+		for (long id = 1; id <= 3; id++) {
+			byte[] data = new byte[FILE_SIZE];
+			data[0] = (byte) id;
+			Path file = cold.resolve("video" + id + ".mpg");
+			Files.write(file, data);
+			index.put(new StoredVideoData(id, file.toAbsolutePath(), FILE_SIZE, 0, null));
+		}
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	@Test
+	public void testHotDataIsPromotedAndColdDataDemoted() throws Exception {
+		// Room for two of the three files
+		TieredStorage tiers = new TieredStorage(cold, hot, 2 * FILE_SIZE, index, relocator);
+		read(tiers, 1, 5);
+		read(tiers, 2, 3);
+		read(tiers, 3, 1);
+		tiers.move();
+
+		assertTrue(tiers.isHot(index.get(1).getPath()));
+		assertTrue(tiers.isHot(index.get(2).getPath()));
+		assertFalse(tiers.isHot(index.get(3).getPath()));
+		assertArrayEquals(Files.readAllBytes(cold.resolve("video1.mpg")), Files.readAllBytes(index.get(1).getPath()));
+		assertEquals(cold.resolve("video1.mpg").toAbsolutePath(), tiers.getColdPath(index.get(1).getPath()));
+		assertEquals(2, tiers.getHotFileCount());
+		assertEquals(2 * FILE_SIZE, tiers.getHotBytes());
+		assertEquals(2, tiers.getPromotionCount());
+
+		// Video 3 becomes the most watched, and takes the place of video 2
+		Path demoted = index.get(2).getPath();
+		read(tiers, 3, 10);
+		tiers.move();
+
+		assertTrue(tiers.isHot(index.get(1).getPath()));
+		assertFalse(tiers.isHot(index.get(2).getPath()));
+		assertTrue(tiers.isHot(index.get(3).getPath()));
+		assertEquals(1, tiers.getDemotionCount());
+
+		// The dropped copy is kept for the downloads that may be reading it
+		assertTrue(Files.exists(demoted));
+	}
+
+	@Test
+	public void testReplacedDataIsNotPromoted() throws Exception {
+		TieredStorage tiers = new TieredStorage(cold, hot, 10 * FILE_SIZE, index, new TieredStorage.Relocator() {
+			@Override
+			public boolean relocate(List<StoredVideoData> entries, Path target) throws IOException {
+				// The data is replaced while it's being copied
+				StoredVideoData data = entries.get(0);
+				index.put(new StoredVideoData(data.getVideoId(), data.getPath(), data.getSize(), 1, null));
+				return relocator.relocate(entries, target);
+			}
+		});
+		read(tiers, 1, 5);
+		tiers.move();
+
+		assertFalse(tiers.isHot(index.get(1).getPath()));
+		assertFalse(Files.exists(hot.resolve(TieredStorage.COPY_DIR).resolve("video1.mpg")));
+		assertEquals(0, tiers.getPromotionCount());
+	}
+
+	@Test
+	public void testOnlyOldCopiesAreDeletedAtStartup() throws Exception {
+		Path copies = hot.resolve(TieredStorage.COPY_DIR);
+		Files.write(Files.createDirectories(copies.resolve("blobs")).resolve("stale"), new byte[1]);
+		Files.write(Files.createDirectories(hot.resolve("blobs")).resolve("unrelated"), new byte[1]);
+		new TieredStorage(cold, hot, FILE_SIZE, index, relocator);
+		assertTrue(Files.exists(copies));
+		assertFalse(Files.exists(copies.resolve("blobs")));
+		assertTrue(Files.exists(hot.resolve("blobs").resolve("unrelated")));
+	}
+
+	private void read(TieredStorage tiers, long id, int times) {
+		for (int i = 0; i < times; i++) {
+			tiers.recordAccess(index.get(id).getPath());
+		}
+	}
+
+}
@@ -1,10 +1,27 @@
 package org.magnum.mobilecloud.video;
 
 import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
 
 import org.apache.catalina.connector.Connector;
 import org.apache.coyote.http11.Http11NioProtocol;
 import org.magnum.mobilecloud.video.auth.OAuth2SecurityConfiguration;
+import org.magnum.mobilecloud.video.likes.CachingLikeStore;
+import org.magnum.mobilecloud.video.likes.JdbcLikeStore;
+import org.magnum.mobilecloud.video.likes.LikeBuffer;
+import org.magnum.mobilecloud.video.likes.LikeBufferEndpoint;
+import org.magnum.mobilecloud.video.likes.RetryPolicy;
+import org.magnum.mobilecloud.video.metrics.EndpointMetricsAspect;
+import org.magnum.mobilecloud.video.metrics.EndpointMetricsEndpoint;
+import org.magnum.mobilecloud.video.metrics.EndpointMetricsRegistry;
+import org.magnum.mobilecloud.video.metrics.RepositoryMetrics;
+import org.magnum.mobilecloud.video.metrics.RepositoryMetricsAspect;
+import org.magnum.mobilecloud.video.metrics.RepositoryMetricsEndpoint;
 import org.magnum.mobilecloud.video.repository.VideoRepository;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
@@ -16,9 +33,13 @@ import org.springframework.boot.context.embedded.tomcat.TomcatEmbeddedServletCon
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.EnableAspectJAutoProxy;
 import org.springframework.context.annotation.Import;
 import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
 import org.springframework.data.rest.webmvc.config.RepositoryRestMvcConfiguration;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.servlet.config.annotation.EnableWebMvc;
 
 //Tell Spring to automatically inject any dependencies that are marked in
@@ -40,6 +61,8 @@ import org.springframework.web.servlet.config.annotation.EnableWebMvc;
 //as part of this configuration so that we can have security and oauth
 //setup by Spring
 @Import(OAuth2SecurityConfiguration.class)
+// Apply the @Aspect beans (e.g., the EndpointMetricsAspect) to the other beans
+@EnableAspectJAutoProxy
 public class Application extends RepositoryRestMvcConfiguration {
 
 	// The app now requires that you pass the location of the keystore and
@@ -63,6 +86,96 @@ public class Application extends RepositoryRestMvcConfiguration {
 		SpringApplication.run(Application.class, args);
 	}
 
+	// Likes and unlikes videos for the VideoSvcController
+	@Bean
+	public VideoLikeService videoLikeService(VideoRepository videos, LikeBuffer buffer) {
+		return new VideoLikeService(videos, buffer);
+	}
+
+	// Likes are accepted in memory and written to the database every
+	// video.likes.flushMillis, so a crash loses at most that long's likes
+	// (0 writes each like before it's accepted). A write that conflicts with
+	// another transaction is tried up to video.likes.maxAttempts times, with
+	// random waits of up to video.likes.retryDelayMillis, doubling each
+	// time. What's pending, and how the writes are going, is reported at
+	// /likes.
+	@Bean(destroyMethod = "close")
+	public LikeBuffer likeBuffer(CachingLikeStore store,
+			@Value("${video.likes.flushMillis:500}") long flushMillis,
+			@Value("${video.likes.maxAttempts:5}") int maxAttempts,
+			@Value("${video.likes.retryDelayMillis:10}") long retryDelayMillis) {
+		LikeBuffer buffer = new LikeBuffer(store, new RetryPolicy(maxAttempts, retryDelayMillis, flushMillis));
+		buffer.schedule(flushMillis, TimeUnit.MILLISECONDS);
+		return buffer;
+	}
+
+	// Whether a user likes a video is cached for the
+	// video.likes.cachedUsers users who most recently asked which videos
+	// they like (unless they like more than video.likes.maxUserLikes), and
+	// the likers of the video.likes.cachedFilters videos that were most
+	// recently asked about are kept in Bloom filters with a false positive
+	// rate of video.likes.filterFalsePositiveRate. The filters are built by
+	// one background thread, with at most as many waiting as can be cached.
+	// How often each of them answers is reported at /likes.
+	@Bean(destroyMethod = "close")
+	public CachingLikeStore likeStore(DataSource dataSource, PlatformTransactionManager transactionManager,
+			@Value("${video.likes.cachedUsers:10000}") int cachedUsers,
+			@Value("${video.likes.maxUserLikes:10000}") int maxUserLikes,
+			@Value("${video.likes.cachedFilters:1000}") int cachedFilters,
+			@Value("${video.likes.filterFalsePositiveRate:0.01}") double falsePositiveRate) {
+		ThreadPoolExecutor builder = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(cachedFilters), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "like-filter-builder");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		return new CachingLikeStore(new JdbcLikeStore(new JdbcTemplate(dataSource), new TransactionTemplate(
+				transactionManager)), cachedUsers, maxUserLikes, cachedFilters, falsePositiveRate, builder);
+	}
+
+	@Bean
+	public LikeBufferEndpoint likeBufferEndpoint(LikeBuffer buffer, CachingLikeStore store) {
+		return new LikeBufferEndpoint(buffer, store);
+	}
+
+	// The latency, rate and errors of each endpoint of the VideoSvcController,
+	// which are served at /latency and (for Prometheus) at /prometheus
+	@Bean
+	public EndpointMetricsRegistry endpointMetricsRegistry() {
+		return new EndpointMetricsRegistry();
+	}
+
+	@Bean
+	public EndpointMetricsAspect endpointMetricsAspect(EndpointMetricsRegistry registry) {
+		return new EndpointMetricsAspect(registry);
+	}
+
+	@Bean
+	public EndpointMetricsEndpoint endpointMetricsEndpoint(EndpointMetricsRegistry registry) {
+		return new EndpointMetricsEndpoint(registry);
+	}
+
+	// The time spent in each repository method, served at /repository. Calls
+	// that take at least video.repository.slowQueryMillis are logged.
+	@Bean
+	public RepositoryMetrics repositoryMetrics(
+			@Value("${video.repository.slowQueryMillis:100}") long slowQueryMillis) {
+		return new RepositoryMetrics(slowQueryMillis);
+	}
+
+	@Bean
+	public RepositoryMetricsAspect repositoryMetricsAspect(RepositoryMetrics metrics) {
+		return new RepositoryMetricsAspect(metrics);
+	}
+
+	@Bean
+	public RepositoryMetricsEndpoint repositoryMetricsEndpoint(RepositoryMetrics metrics) {
+		return new RepositoryMetricsEndpoint(metrics);
+	}
+
 	
     // This version uses the Tomcat web container and configures it to
 	// support HTTPS. The code below performs the configuration of Tomcat
@@ -0,0 +1,20 @@
+package org.magnum.mobilecloud.video;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+// A save of a video that was changed (e.g., by a write of its likes) since
+// the client loaded it
+@ResponseStatus(value=HttpStatus.CONFLICT)
+public class VideoConflictException extends Exception {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 1L;
+
+	public VideoConflictException(String message) {
+		super(message);
+	}
+	
+}
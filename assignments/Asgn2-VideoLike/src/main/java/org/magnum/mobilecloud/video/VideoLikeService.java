@@ -0,0 +1,193 @@
+package org.magnum.mobilecloud.video;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import org.magnum.mobilecloud.video.likes.LikeBuffer;
+import org.magnum.mobilecloud.video.likes.LikeCursor;
+import org.magnum.mobilecloud.video.repository.Video;
+import org.magnum.mobilecloud.video.repository.VideoLike;
+import org.magnum.mobilecloud.video.repository.VideoRepository;
+
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * Likes and unlikes videos. The likes are accepted by the LikeBuffer, which
+ * writes them to the database in the background, so the videos and likes
+ * that are read from the repositories are brought up to date with the
+ * buffer before they're returned.
+ * 
+ * @author jules
+ *
+ */
+public class VideoLikeService {
+
+	// The number of likes that are read at a time when all of the users who
+	// like a video are streamed to a client
+	private static final int USERS_BATCH_SIZE = 500;
+
+	private final VideoRepository videos_;
+
+	private final LikeBuffer buffer_;
+
+	public VideoLikeService(VideoRepository videos, LikeBuffer buffer) {
+		videos_ = videos;
+		buffer_ = buffer;
+	}
+
+	/**
+	 * Adds the user's like of the video.
+	 * 
+	 * @param videoId
+	 * @param username
+	 * @throws VideoNotFoundException
+	 *             if there isn't a video with the id
+	 * @throws VideoServiceException
+	 *             if the user already likes the video
+	 */
+	public void like(long videoId, String username) throws VideoServiceException {
+		if (!buffer_.setLiked(videoId, username, true)) {
+			throw new VideoServiceException("You cannot like the same video twice ");
+		}
+	}
+
+	/**
+	 * Removes the user's like of the video.
+	 * 
+	 * @param videoId
+	 * @param username
+	 * @throws VideoNotFoundException
+	 *             if there isn't a video with the id
+	 * @throws VideoServiceException
+	 *             if the user doesn't like the video
+	 */
+	public void unlike(long videoId, String username) throws VideoServiceException {
+		if (!buffer_.setLiked(videoId, username, false)) {
+			throw new VideoServiceException("You cannot unlike the video with id " + videoId);
+		}
+	}
+
+	/**
+	 * Returns the number of users who like the video.
+	 * 
+	 * @param videoId
+	 * @return
+	 * @throws VideoNotFoundException
+	 *             if there isn't a video with the id
+	 */
+	public long countLikes(long videoId) throws VideoNotFoundException {
+		Video video = withPendingLikes(videos_.findOne(videoId));
+		if (video == null) {
+			throw new VideoNotFoundException("Missing video with id " + videoId);
+		}
+		return video.getLikes();
+	}
+
+	/**
+	 * Returns at most limit likes of the video, in the order that the users
+	 * liked it, starting after the cursor.
+	 * 
+	 * @param videoId
+	 * @param after
+	 * @param limit
+	 * @return
+	 * @throws VideoNotFoundException
+	 *             if there isn't a video with the id
+	 */
+	public List<VideoLike> getLikes(long videoId, LikeCursor after, int limit) throws VideoNotFoundException {
+		checkExists(videoId);
+		return buffer_.getLikes(videoId, after, limit);
+	}
+
+	/**
+	 * Returns the users who like the video, in the order that they liked it.
+	 * The likes are read a batch at a time as the users are iterated over,
+	 * so that they needn't all be in memory at once.
+	 * 
+	 * @param videoId
+	 * @return
+	 * @throws VideoNotFoundException
+	 *             if there isn't a video with the id
+	 */
+	public Iterable<String> getUsersWhoLiked(final long videoId) throws VideoNotFoundException {
+		checkExists(videoId);
+		return new Iterable<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				return new AbstractIterator<String>() {
+					private Iterator<VideoLike> batch = null;
+					private LikeCursor last = LikeCursor.FIRST;
+
+					@Override
+					protected String computeNext() {
+						if (batch == null || !batch.hasNext()) {
+							List<VideoLike> next = buffer_.getLikes(videoId, last, USERS_BATCH_SIZE);
+							if (next.isEmpty()) {
+								return endOfData();
+							}
+							batch = next.iterator();
+						}
+						VideoLike like = batch.next();
+						last = LikeCursor.of(like);
+						return like.getUsername();
+					}
+				};
+			}
+		};
+	}
+
+	private void checkExists(long videoId) throws VideoNotFoundException {
+		if (!videos_.exists(videoId)) {
+			throw new VideoNotFoundException("Missing video with id " + videoId);
+		}
+	}
+
+	/**
+	 * Returns the ids, of those given, of the videos that the user likes.
+	 * 
+	 * @param username
+	 * @param videoIds
+	 * @return
+	 */
+	public List<Long> getLikedVideos(String username, Collection<Long> videoIds) {
+		return buffer_.getLikedVideos(username, videoIds);
+	}
+
+	/**
+	 * Sets the likes of a video that a client is saving to the count that's
+	 * stored for it, or to 0 if it's new. The count that a client sends back
+	 * includes the pending likes, which the buffer adds to the stored count
+	 * when it writes them, so saving it would count them twice.
+	 * 
+	 * @param video
+	 * @return the video
+	 */
+	public Video withStoredLikes(Video video) {
+		Video stored = (video.getId() != 0) ? videos_.findOne(video.getId()) : null;
+		video.setLikes((stored != null) ? stored.getStoredLikes() : 0);
+		return video;
+	}
+
+	/**
+	 * Adds the likes that haven't been written yet to the video, if there is
+	 * one.
+	 * 
+	 * @param video
+	 * @return the video
+	 */
+	public Video withPendingLikes(Video video) {
+		if (video != null) {
+			video.setPendingLikes(buffer_.getPendingLikes(video.getId()));
+		}
+		return video;
+	}
+
+	public <T extends Iterable<Video>> T withPendingLikes(T videos) {
+		for (Video video : videos) {
+			withPendingLikes(video);
+		}
+		return videos;
+	}
+
+}
@@ -0,0 +1,49 @@
+package org.magnum.mobilecloud.video;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Writes a list of videos to an HTTP response as a JSON array, one video
+ * at a time. Unlike returning a collection from a controller method, this
+ * never holds more than one video's JSON in memory, so the whole catalog
+ * can be sent without the memory use of the request growing with it. Any
+ * other values (e.g., the users who like a video) can be written the same
+ * way.
+ *
+ * @author jules
+ *
+ */
+public class VideoListWriter {
+
+	private final ObjectMapper mapper_;
+
+	// Writing a value normally flushes the output, which would turn every
+	// video into its own network write
+	private final ObjectWriter writer_;
+
+	public VideoListWriter(ObjectMapper mapper) {
+		mapper_ = mapper;
+		writer_ = mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+	}
+
+	public void write(Iterable<?> values, HttpServletResponse response) throws IOException {
+		response.setContentType("application/json;charset=UTF-8");
+		JsonGenerator json = mapper_.getFactory().createGenerator(response.getOutputStream(), JsonEncoding.UTF8);
+		json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		json.writeStartArray();
+		for (Object value : values) {
+			writer_.writeValue(json, value);
+		}
+		json.writeEndArray();
+		json.close();
+	}
+
+}
@@ -1,14 +1,26 @@
 package org.magnum.mobilecloud.video;
 
+import java.io.IOException;
+import java.net.URLEncoder;
 import java.security.Principal;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.magnum.mobilecloud.video.client.VideoSvcApi;
+import org.magnum.mobilecloud.video.likes.LikeCursor;
 import org.magnum.mobilecloud.video.repository.Video;
+import org.magnum.mobilecloud.video.repository.VideoLike;
 import org.magnum.mobilecloud.video.repository.VideoRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
@@ -17,7 +29,8 @@ import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 
-import com.google.common.collect.Lists;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.AbstractIterator;
 
 /**
  * This simple VideoSvc allows clients to send HTTP POST requests with videos
@@ -54,6 +67,29 @@ public class VideoSvcController {
 	@Autowired
 	private VideoRepository videos;
 
+	// Likes and unlikes the videos, and adds the likes that haven't been
+	// written to the database yet to the videos that we return
+	@Autowired
+	private VideoLikeService likes;
+
+	// The JPA EntityManager behind the repository. Every video that
+	// the repository loads stays attached to it until the request
+	// ends, unless we explicitly clear it.
+	@PersistenceContext
+	private EntityManager entityManager;
+
+	// The number of videos on a page if the client doesn't ask
+	// for a specific number, and the most that it can ask for
+	private static final int DEFAULT_PAGE_SIZE = 100;
+
+	private static final int MAX_PAGE_SIZE = 1000;
+
+	// The number of videos that are loaded at a time when the
+	// whole list is streamed to a client
+	private static final int STREAM_BATCH_SIZE = 500;
+
+	private final VideoListWriter listWriter = new VideoListWriter(new ObjectMapper());
+
 	// Receives POST requests to /video and converts the HTTP
 	// request body, which should contain json, into a Video
 	// object before adding it to the list. The @RequestBody
@@ -69,18 +105,97 @@ public class VideoSvcController {
 	// client and service paths for the VideoSvc are always
 	// in synch.
 	//
+	// The likes of the video are never taken from the client, which only
+	// sees them with the pending likes added (see VideoLikeService).
+	//
+	// A save of a video that was loaded before its likes (or anything else)
+	// last changed fails with a 409 rather than undoing the change, and the
+	// client has to load the video again (saves through Spring Data REST
+	// are answered the same way). These saves aren't retried here, as only
+	// the client can decide what to do with the changes that it missed.
 	@RequestMapping(value = VideoSvcApi.VIDEO_SVC_PATH, method = RequestMethod.POST)
-	public @ResponseBody Video addVideo(@RequestBody Video v) {
-		return videos.save(v);
+	public @ResponseBody Video addVideo(@RequestBody Video v) throws VideoConflictException {
+		try {
+			return videos.save(likes.withStoredLikes(v));
+		} catch (OptimisticLockingFailureException e) {
+			throw new VideoConflictException("Video [" + v.getId() + "] has changed since it was loaded");
+		}
 	}
 
-	// Receives GET requests to /video and returns the current
-	// list of videos in memory. Spring automatically converts
-	// the list of videos to JSON because of the @ResponseBody
-	// annotation.
+	// Receives GET requests to /video and writes the videos to the
+	// response as JSON. Without any paging parameters, every video is
+	// sent. Rather than loading the whole table into a list first, the
+	// videos are loaded in batches and each batch is written out before
+	// the next one is loaded, so the memory used by the request doesn't
+	// grow with the number of videos.
+	//
+	// If the client sends "after" and/or "limit", only one page is
+	// returned, starting after the video with the id in "after". When
+	// there are more videos, the Link header of the response points to
+	// the next page.
 	@RequestMapping(value = VideoSvcApi.VIDEO_SVC_PATH, method = RequestMethod.GET)
-	public @ResponseBody Collection<Video> getVideoList() {
-		return Lists.newArrayList(videos.findAll());
+	public void getVideoList(
+			@RequestParam(value = VideoSvcApi.AFTER_PARAMETER, required = false) Long after,
+			@RequestParam(value = VideoSvcApi.LIMIT_PARAMETER, required = false) Integer limit,
+			HttpServletRequest request, HttpServletResponse response)
+			throws IOException, VideoServiceException {
+		if (after == null && limit == null) {
+			listWriter.write(allVideos(), response);
+			return;
+		}
+
+		int pageSize = pageSize(limit);
+
+		// Ask for one extra video to find out whether there is a next page
+		List<Video> page = videos.findByIdGreaterThanOrderByIdAsc(
+				(after != null) ? after : Long.MIN_VALUE, new PageRequest(0, pageSize + 1));
+		if (page.size() > pageSize) {
+			page = page.subList(0, pageSize);
+			long cursor = page.get(pageSize - 1).getId();
+			response.setHeader("Link", "<" + request.getRequestURI() + "?"
+					+ VideoSvcApi.AFTER_PARAMETER + "=" + cursor + "&"
+					+ VideoSvcApi.LIMIT_PARAMETER + "=" + pageSize + ">; rel=\"next\"");
+		}
+		listWriter.write(likes.withPendingLikes(page), response);
+	}
+
+	private static int pageSize(Integer limit) throws VideoServiceException {
+		int pageSize = (limit != null) ? limit : DEFAULT_PAGE_SIZE;
+		if (pageSize <= 0) {
+			throw new VideoServiceException("Invalid page size " + pageSize);
+		}
+		return Math.min(pageSize, MAX_PAGE_SIZE);
+	}
+
+	// Walks through all of the videos in id order, loading them a batch
+	// at a time. Once a batch has been written out, the EntityManager is
+	// cleared so that it can let go of those videos.
+	private Iterable<Video> allVideos() {
+		return new Iterable<Video>() {
+			@Override
+			public Iterator<Video> iterator() {
+				return new AbstractIterator<Video>() {
+					private Iterator<Video> batch = null;
+					private long last = Long.MIN_VALUE;
+
+					@Override
+					protected Video computeNext() {
+						if (batch == null || !batch.hasNext()) {
+							entityManager.clear();
+							List<Video> next = videos.findByIdGreaterThanOrderByIdAsc(
+									last, new PageRequest(0, STREAM_BATCH_SIZE));
+							if (next.isEmpty()) {
+								return endOfData();
+							}
+							batch = next.iterator();
+						}
+						Video v = batch.next();
+						last = v.getId();
+						return likes.withPendingLikes(v);
+					}
+				};
+			}
+		};
 	}
 
 	// Receives GET requests to /video/find and returns all Videos
@@ -91,7 +206,7 @@ public class VideoSvcController {
 	// Tell Spring to use the "title" parameter in the HTTP request's query
 	// string as the value for the title method parameter
 			@RequestParam(VideoSvcApi.TITLE_PARAMETER) String title) {
-		return videos.findByName(title);
+		return likes.withPendingLikes(videos.findByName(title));
 	}
 
 	@RequestMapping(value = VideoSvcApi.VIDEO_DURATION_SEARCH_PATH, method = RequestMethod.GET)
@@ -99,63 +214,91 @@ public class VideoSvcController {
 	// Tell Spring to use the "title" parameter in the HTTP request's query
 	// string as the value for the title method parameter
 			@RequestParam(VideoSvcApi.DURATION_PARAMETER) Long duration) {
-		return videos.findByDurationLessThan(duration);
+		return likes.withPendingLikes(videos.findByDurationLessThan(duration));
 	}
 
+	// Adds the user's like to the video. The like is written to the
+	// database later, without loading the video, which is only loaded
+	// (on its own) for the response.
 	@RequestMapping(value = VideoSvcApi.VIDEO_SVC_PATH + "/{id}/like", method = RequestMethod.POST)
 	public @ResponseBody Video likeVideo(@PathVariable("id") Long id,
 			Principal p) throws VideoServiceException {
-		Video v = videos.findOne(id);
-		Set<String> usersLikeVideo = null;
-		if (v == null) {
-			throw new VideoNotFoundException("Missing video with id " + id);
-		}
-		if (v.getUsersLikeIt() == null) {
-			usersLikeVideo = new HashSet<String>();
-		} else {
-			if (v.getUsersLikeIt().contains(p.getName())) {
-				throw new VideoServiceException(
-						"You cannot like the same video twice ");
-			}
-			usersLikeVideo = v.getUsersLikeIt();
-		}
-		v.setLikes(v.getLikes() + 1);
-		usersLikeVideo.add(p.getName());
-		v.setUsersLikeIt(usersLikeVideo);
-		return videos.save(v);
+		likes.like(id, p.getName());
+		return likes.withPendingLikes(videos.findOne(id));
 	}
 
 	@RequestMapping(value = VideoSvcApi.VIDEO_SVC_PATH + "/{id}/unlike", method = RequestMethod.POST)
 	public @ResponseBody Video unlikeVideo(@PathVariable("id") Long id, Principal p) throws VideoServiceException {
-		Video v = videos.findOne(id);
-		Set<String> usersLikeVideo = null;
-		if (v == null) {
-			throw new VideoNotFoundException("Missing video with id " + id);
-		}
-		if (v.getUsersLikeIt() == null
-				|| !v.getUsersLikeIt().contains(p.getName())) {
-			throw new VideoServiceException(
-					"You cannot unlike the video with id " + id);
-		}
-		usersLikeVideo = v.getUsersLikeIt();
-		v.setLikes(v.getLikes() - 1);
-		usersLikeVideo.remove(p.getName());
-		v.setUsersLikeIt(usersLikeVideo);
-		return videos.save(v);
+		likes.unlike(id, p.getName());
+		return likes.withPendingLikes(videos.findOne(id));
 	}
 
 	@RequestMapping(value = VideoSvcApi.VIDEO_SVC_PATH + "/{id}", method = RequestMethod.GET)
 	public @ResponseBody Video getVideoById(@PathVariable("id") Long id) {
-		return videos.findOne(id);
+		return likes.withPendingLikes(videos.findOne(id));
 	}
 
+	// Receives GET requests to /video/liked with the ids of some videos,
+	// e.g. the ones on the client's screen, and returns the ones that the
+	// user likes. Most of the answers come from memory rather than the
+	// database (see the CachingLikeStore).
+	@RequestMapping(value = VideoSvcApi.VIDEO_LIKED_PATH, method = RequestMethod.GET)
+	public @ResponseBody List<Long> getLikedVideos(@RequestParam(VideoSvcApi.ID_PARAMETER) List<Long> ids,
+			Principal p) throws VideoServiceException {
+		if (ids.size() > MAX_PAGE_SIZE) {
+			throw new VideoServiceException("At most " + MAX_PAGE_SIZE + " videos can be asked about at once");
+		}
+		return likes.getLikedVideos(p.getName(), ids);
+	}
+
+	// Receives GET requests to /video/{id}/likedby and writes the users
+	// who like the video to the response, in the order that they liked it.
+	// Like the video list, all of the users are streamed a batch at a time
+	// unless the client asks for a page with "cursor" and/or "limit", in
+	// which case the Link header points to the next page, if there is one.
+	// The cursor of a page is the position of its last like (see the
+	// LikeCursor), so that each page is found through an index rather than
+	// by skipping over the likes before it.
 	@RequestMapping(value = VideoSvcApi.VIDEO_SVC_PATH + "/{id}/likedby", method = RequestMethod.GET)
-	public @ResponseBody Set<String> getUsersWhoLikedVideo(@PathVariable("id") Long id) throws VideoNotFoundException {
-		Video v = videos.findOne(id);
-		if (v == null) {
-			throw new VideoNotFoundException("Missing video with id " + id);
+	public void getUsersWhoLikedVideo(@PathVariable("id") Long id,
+			@RequestParam(value = VideoSvcApi.CURSOR_PARAMETER, required = false) String cursor,
+			@RequestParam(value = VideoSvcApi.LIMIT_PARAMETER, required = false) Integer limit,
+			HttpServletRequest request, HttpServletResponse response)
+			throws IOException, VideoServiceException {
+		if (cursor == null && limit == null) {
+			listWriter.write(likes.getUsersWhoLiked(id), response);
+			return;
 		}
-		return v.getUsersLikeIt();
+
+		int pageSize = pageSize(limit);
+		LikeCursor after;
+		try {
+			after = (cursor != null) ? LikeCursor.parse(cursor) : LikeCursor.FIRST;
+		} catch (IllegalArgumentException e) {
+			throw new VideoServiceException("Invalid cursor " + cursor);
+		}
+
+		// Ask for one extra like to find out whether there is a next page
+		List<VideoLike> page = likes.getLikes(id, after, pageSize + 1);
+		if (page.size() > pageSize) {
+			page = page.subList(0, pageSize);
+			LikeCursor next = LikeCursor.of(page.get(pageSize - 1));
+			response.setHeader("Link", "<" + request.getRequestURI() + "?"
+					+ VideoSvcApi.CURSOR_PARAMETER + "=" + URLEncoder.encode(next.toString(), "UTF-8") + "&"
+					+ VideoSvcApi.LIMIT_PARAMETER + "=" + pageSize + ">; rel=\"next\"");
+		}
+		List<String> users = new ArrayList<String>(page.size());
+		for (VideoLike like : page) {
+			users.add(like.getUsername());
+		}
+		listWriter.write(users, response);
+	}
+
+	// Receives GET requests to /video/{id}/likedby/count and returns the
+	// number of users who like the video, without reading their likes
+	@RequestMapping(value = VideoSvcApi.VIDEO_SVC_PATH + "/{id}/likedby/count", method = RequestMethod.GET)
+	public @ResponseBody long countUsersWhoLikedVideo(@PathVariable("id") Long id) throws VideoNotFoundException {
+		return likes.countLikes(id);
 	}
 
 }
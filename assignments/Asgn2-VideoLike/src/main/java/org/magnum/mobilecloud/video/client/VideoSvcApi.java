@@ -137,6 +137,14 @@ public interface VideoSvcApi {
 	public static final String TITLE_PARAMETER = "title";
 	
 	public static final String DURATION_PARAMETER = "duration";
+	
+	public static final String AFTER_PARAMETER = "after";
+	
+	public static final String LIMIT_PARAMETER = "limit";
+	
+	public static final String ID_PARAMETER = "id";
+	
+	public static final String CURSOR_PARAMETER = "cursor";
 
 	public static final String TOKEN_PATH = "/oauth/token";
 
@@ -148,10 +156,19 @@ public interface VideoSvcApi {
 	
 	// The path to search videos by title
 	public static final String VIDEO_DURATION_SEARCH_PATH = VIDEO_SVC_PATH + "/search/findByDurationLessThan";
+	
+	// The path to ask which videos the user likes
+	public static final String VIDEO_LIKED_PATH = VIDEO_SVC_PATH + "/liked";
 
 	@GET(VIDEO_SVC_PATH)
 	public Collection<Video> getVideoList();
 	
+	// Returns at most "limit" videos (100 by default, 1000 at most) with
+	// ids greater than "after", in id order. Pass the id of the last video
+	// of a page to get the next one.
+	@GET(VIDEO_SVC_PATH)
+	public Collection<Video> getVideoList(@Query(AFTER_PARAMETER) Long after, @Query(LIMIT_PARAMETER) Integer limit);
+	
 	@GET(VIDEO_SVC_PATH + "/{id}")
 	public Video getVideoById(@Path("id") long id);
 	
@@ -172,4 +189,20 @@ public interface VideoSvcApi {
 	
 	@GET(VIDEO_SVC_PATH + "/{id}/likedby")
 	public Collection<String> getUsersWhoLikedVideo(@Path("id") long id);
+	
+	// Returns at most "limit" users (100 by default, 1000 at most) who like
+	// the video, in the order that they liked it, starting after "cursor"
+	// (or at the first like, if it's null). The cursor of the next page is
+	// in the Link header of the response.
+	@GET(VIDEO_SVC_PATH + "/{id}/likedby")
+	public Collection<String> getUsersWhoLikedVideo(@Path("id") long id, @Query(CURSOR_PARAMETER) String cursor,
+			@Query(LIMIT_PARAMETER) Integer limit);
+	
+	@GET(VIDEO_SVC_PATH + "/{id}/likedby/count")
+	public long countUsersWhoLikedVideo(@Path("id") long id);
+	
+	// Returns the ids, of those given (at most 1000), of the videos that the
+	// user likes, e.g. to mark them on a screen of videos
+	@GET(VIDEO_LIKED_PATH)
+	public Collection<Long> getLikedVideos(@Query(ID_PARAMETER) Collection<Long> ids);
 }
@@ -0,0 +1,272 @@
+package org.magnum.mobilecloud.video.likes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.magnum.mobilecloud.video.repository.VideoLike;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Answers "does this user like this video?" for the LikeBuffer without
+ * asking the database every time, from two caches of what the database
+ * holds:
+ * 
+ * - the ids of all of the videos that a user likes, for the users who
+ * asked which videos they like most recently (e.g., to mark the videos on
+ * a screen), which answer exactly; and
+ * 
+ * - a ConcurrentBloomFilter of the users who like a video, for the videos
+ * that were asked about most recently, which can say for certain that a
+ * user doesn't like the video (e.g., that someone liking it for the first
+ * time hasn't liked it already).
+ * 
+ * Anything else goes to the store. The caches are updated by each write,
+ * once it has been committed, so they never miss a like in the store.
+ * Likes that haven't been written yet are the LikeBuffer's to answer for.
+ * A user's likes that were loaded while a write was committed may not
+ * include the write, so they're used for that one answer but not kept. A
+ * filter that was built then isn't used at all.
+ * 
+ * A popular video can have a great many likers, so its filter is built in
+ * the background, a page of likes at a time, and the store answers for the
+ * video until the filter is ready.
+ * 
+ * @author jules
+ *
+ */
+public class CachingLikeStore implements LikeStore {
+
+	// A filter has room for at least this many users, so that a video
+	// with few likes doesn't need a new filter as soon as it gets more
+	private static final int MIN_FILTER_CAPACITY = 1024;
+
+	// The number of likes that are loaded at once while building a filter
+	private static final int FILTER_PAGE_SIZE = 1000;
+
+	private final LikeStore store_;
+
+	private final Cache<String, Set<Long>> users_;
+
+	private final Cache<Long, ConcurrentBloomFilter> filters_;
+
+	// The videos whose filters are being built, so that a popular video's
+	// likers are only loaded once
+	private final ConcurrentMap<Long, Boolean> building_ = new ConcurrentHashMap<Long, Boolean>();
+
+	private final ExecutorService builder_;
+
+	private final int maxUserLikes_;
+
+	private final double falsePositiveRate_;
+
+	// Writes hold the write lock while they update the caches, and change
+	// the generation, and entries are only added to the caches with the
+	// read lock held if no write was committed while they were loaded
+	private final ReadWriteLock lock_ = new ReentrantReadWriteLock();
+	private volatile long generation_;
+
+	private final StripedCounter userHits_ = new StripedCounter();
+	private final StripedCounter filterNegatives_ = new StripedCounter();
+	private final StripedCounter storeLookups_ = new StripedCounter();
+
+	/**
+	 * @param store
+	 * @param maxUsers
+	 *            the most users whose likes are cached, the least recently
+	 *            used going first
+	 * @param maxUserLikes
+	 *            users who like more videos than this aren't cached
+	 * @param maxFilters
+	 *            the most videos whose likers are kept in filters
+	 * @param falsePositiveRate
+	 *            how often the filters say that a user might like a video
+	 *            when they don't
+	 * @param builder
+	 *            runs the builds of the filters, and is shut down by close()
+	 */
+	public CachingLikeStore(LikeStore store, int maxUsers, int maxUserLikes, int maxFilters,
+			double falsePositiveRate, ExecutorService builder) {
+		store_ = store;
+		builder_ = builder;
+		users_ = CacheBuilder.newBuilder().maximumSize(maxUsers).build();
+		filters_ = CacheBuilder.newBuilder().maximumSize(maxFilters).build();
+		maxUserLikes_ = maxUserLikes;
+		falsePositiveRate_ = falsePositiveRate;
+	}
+
+	@Override
+	public boolean videoExists(long videoId) {
+		return store_.videoExists(videoId);
+	}
+
+	@Override
+	public boolean isLiked(long videoId, String username) {
+		Set<Long> liked = users_.getIfPresent(username);
+		if (liked != null) {
+			userHits_.increment();
+			return liked.contains(videoId);
+		}
+		ConcurrentBloomFilter filter = getFilter(videoId);
+		if (filter != null && !filter.mightContain(username)) {
+			filterNegatives_.increment();
+			return false;
+		}
+		storeLookups_.increment();
+		return store_.isLiked(videoId, username);
+	}
+
+	@Override
+	public Set<Long> getLikedVideos(String username) {
+		Set<Long> liked = users_.getIfPresent(username);
+		if (liked != null) {
+			userHits_.increment();
+			return Collections.unmodifiableSet(liked);
+		}
+		storeLookups_.increment();
+		long generation = generation_;
+		liked = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+		liked.addAll(store_.getLikedVideos(username));
+		if (liked.size() <= maxUserLikes_) {
+			install(users_, username, liked, generation);
+		}
+		return Collections.unmodifiableSet(liked);
+	}
+
+	@Override
+	public List<VideoLike> getLikes(long videoId, LikeCursor after, int limit) {
+		return store_.getLikes(videoId, after, limit);
+	}
+
+	@Override
+	public void write(List<LikeChange> changes) {
+		store_.write(changes);
+		lock_.writeLock().lock();
+		try {
+			generation_++;
+			for (LikeChange change : changes) {
+				Set<Long> liked = users_.getIfPresent(change.getUsername());
+				if (liked != null) {
+					if (change.isLiked()) {
+						liked.add(change.getVideoId());
+					} else {
+						liked.remove(change.getVideoId());
+					}
+				}
+				// Users can't be taken out of a filter, but that only
+				// makes it send a few more questions to the store
+				ConcurrentBloomFilter filter = filters_.getIfPresent(change.getVideoId());
+				if (filter != null && change.isLiked()) {
+					filter.put(change.getUsername());
+					if (filter.isFull()) {
+						filters_.invalidate(change.getVideoId());
+					}
+				}
+			}
+		} finally {
+			lock_.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Stops building filters.
+	 */
+	public void close() {
+		builder_.shutdownNow();
+	}
+
+	// Returns the video's filter, or null if it doesn't have one yet, in
+	// which case a build is started unless one is running already
+	private ConcurrentBloomFilter getFilter(final long videoId) {
+		ConcurrentBloomFilter filter = filters_.getIfPresent(videoId);
+		if (filter != null || building_.putIfAbsent(videoId, Boolean.TRUE) != null) {
+			return filter;
+		}
+		try {
+			builder_.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						buildFilter(videoId);
+					} finally {
+						building_.remove(videoId);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Too many builds are waiting, a later question can try again
+			building_.remove(videoId);
+		}
+		return null;
+	}
+
+	private void buildFilter(long videoId) {
+		long generation = generation_;
+		List<String> users = new ArrayList<String>();
+		LikeCursor after = LikeCursor.FIRST;
+		List<VideoLike> page;
+		do {
+			page = store_.getLikes(videoId, after, FILTER_PAGE_SIZE);
+			for (VideoLike like : page) {
+				users.add(like.getUsername());
+			}
+			if (!page.isEmpty()) {
+				after = LikeCursor.of(page.get(page.size() - 1));
+			}
+		} while (page.size() == FILTER_PAGE_SIZE && generation_ == generation);
+
+		ConcurrentBloomFilter filter = new ConcurrentBloomFilter(Math.max(2 * users.size(), MIN_FILTER_CAPACITY),
+				falsePositiveRate_);
+		for (String user : users) {
+			filter.put(user);
+		}
+		// A filter that may have missed a write can't be trusted
+		install(filters_, videoId, filter, generation);
+	}
+
+	private <K, V> boolean install(Cache<K, V> cache, K key, V value, long generation) {
+		lock_.readLock().lock();
+		try {
+			if (generation_ != generation) {
+				return false;
+			}
+			cache.asMap().putIfAbsent(key, value);
+			return true;
+		} finally {
+			lock_.readLock().unlock();
+		}
+	}
+
+	public long getCachedUsers() {
+		return users_.size();
+	}
+
+	public long getCachedFilters() {
+		return filters_.size();
+	}
+
+	// The answers that came from a user's cached likes
+	public long getUserHits() {
+		return userHits_.sum();
+	}
+
+	// The answers that came from a filter
+	public long getFilterNegatives() {
+		return filterNegatives_.sum();
+	}
+
+	// The questions that the store had to answer
+	public long getStoreLookups() {
+		return storeLookups_.sum();
+	}
+
+}
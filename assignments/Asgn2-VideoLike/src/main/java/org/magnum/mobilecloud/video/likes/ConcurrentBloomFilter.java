@@ -0,0 +1,101 @@
+package org.magnum.mobilecloud.video.likes;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * A Bloom filter of strings that can be read while it's being added to.
+ * It says for certain that a string was never added, but may say that one
+ * was when it wasn't, at about the false positive rate that it was created
+ * with until more strings than expected have been added.
+ * 
+ * Guava's BloomFilter isn't safe to read while another thread adds to it,
+ * so the bits here are kept in an AtomicLongArray instead.
+ * 
+ * @author jules
+ *
+ */
+public class ConcurrentBloomFilter {
+
+	private static final HashFunction HASH = Hashing.murmur3_128();
+
+	private final AtomicLongArray bits_;
+	private final long size_;
+	private final int hashes_;
+	private final int capacity_;
+	private final AtomicInteger count_ = new AtomicInteger();
+
+	/**
+	 * @param capacity
+	 *            the number of strings that are expected to be added
+	 * @param falsePositiveRate
+	 *            the rate of false positives once they have been
+	 */
+	public ConcurrentBloomFilter(int capacity, double falsePositiveRate) {
+		capacity_ = Math.max(capacity, 1);
+		long bits = (long) Math.ceil(-capacity_ * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		int words = (int) Math.max(1, Math.min((bits + 63) / 64, Integer.MAX_VALUE / 2));
+		bits_ = new AtomicLongArray(words);
+		size_ = words * 64L;
+		hashes_ = (int) Math.max(1, Math.round(size_ / (double) capacity_ * Math.log(2)));
+	}
+
+	public void put(String value) {
+		long[] hash = hash(value);
+		for (int i = 0; i < hashes_; i++) {
+			long bit = index(hash, i);
+			int word = (int) (bit >>> 6);
+			long mask = 1L << bit;
+			long current = bits_.get(word);
+			while ((current & mask) == 0 && !bits_.compareAndSet(word, current, current | mask)) {
+				current = bits_.get(word);
+			}
+		}
+		count_.incrementAndGet();
+	}
+
+	public boolean mightContain(String value) {
+		long[] hash = hash(value);
+		for (int i = 0; i < hashes_; i++) {
+			long bit = index(hash, i);
+			if ((bits_.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Once more strings have been added than the filter was made for, its
+	// false positive rate climbs, so it's time to build a bigger one
+	public boolean isFull() {
+		return count_.get() > capacity_;
+	}
+
+	public int getCapacity() {
+		return capacity_;
+	}
+
+	// The memory used by the bits
+	public long getSizeInBytes() {
+		return size_ / 8;
+	}
+
+	// Two independent 64 bit hashes, from which the rest are made
+	private static long[] hash(String value) {
+		ByteBuffer bytes = ByteBuffer.wrap(HASH.hashString(value, Charsets.UTF_8).asBytes()).order(
+				ByteOrder.LITTLE_ENDIAN);
+		return new long[] { bytes.getLong(), bytes.getLong() };
+	}
+
+	private long index(long[] hash, int i) {
+		long combined = hash[0] + i * hash[1];
+		return (combined & Long.MAX_VALUE) % size_;
+	}
+
+}
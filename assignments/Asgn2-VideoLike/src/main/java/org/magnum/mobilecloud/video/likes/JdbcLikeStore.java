@@ -0,0 +1,193 @@
+package org.magnum.mobilecloud.video.likes;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.magnum.mobilecloud.video.repository.VideoLike;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Stores the likes in the video_like table of the VideoLike entity and their
+ * counts in the likes column of the videos, writing each flush of the
+ * LikeBuffer as three JDBC batches (the unlikes, the likes and the counts)
+ * in one transaction.
+ * 
+ * @author jules
+ *
+ */
+public class JdbcLikeStore implements LikeStore {
+
+	private static final String VIDEO_EXISTS = "SELECT COUNT(*) FROM video WHERE id = ?";
+
+	private static final String IS_LIKED = "SELECT COUNT(*) FROM " + VideoLike.TABLE + " WHERE "
+			+ VideoLike.VIDEO_ID + " = ? AND " + VideoLike.USERNAME + " = ?";
+
+	private static final String LIKED_VIDEOS = "SELECT " + VideoLike.VIDEO_ID + " FROM " + VideoLike.TABLE
+			+ " WHERE " + VideoLike.USERNAME + " = ?";
+
+	// A page of likes, which the index on (video_id, liked_at, username)
+	// finds without reading the likes before it
+	private static final String LIKES = "SELECT " + VideoLike.USERNAME + ", " + VideoLike.LIKED_AT + " FROM "
+			+ VideoLike.TABLE + " WHERE " + VideoLike.VIDEO_ID + " = ? AND (" + VideoLike.LIKED_AT + " > ? OR ("
+			+ VideoLike.LIKED_AT + " = ? AND " + VideoLike.USERNAME + " > ?)) ORDER BY " + VideoLike.LIKED_AT + ", "
+			+ VideoLike.USERNAME + " LIMIT ?";
+
+	private static final String DELETE = "DELETE FROM " + VideoLike.TABLE + " WHERE " + VideoLike.VIDEO_ID
+			+ " = ? AND " + VideoLike.USERNAME + " = ?";
+
+	// Only adds the like if the video exists and the user doesn't like it
+	// already, so writing a change twice doesn't count it twice
+	private static final String INSERT = "INSERT INTO " + VideoLike.TABLE + " (" + VideoLike.VIDEO_ID + ", "
+			+ VideoLike.USERNAME + ", " + VideoLike.LIKED_AT + ") "
+			+ "SELECT v.id, CAST(? AS VARCHAR(255)), CAST(? AS BIGINT) FROM video v WHERE v.id = ? "
+			+ "AND NOT EXISTS (SELECT 1 FROM " + VideoLike.TABLE + " l WHERE l." + VideoLike.VIDEO_ID
+			+ " = v.id AND l." + VideoLike.USERNAME + " = ?)";
+
+	// Changes the version too, so that a save of a copy of the video that
+	// was loaded before the flush fails rather than undoing it
+	private static final String ADD_LIKES = "UPDATE video SET likes = likes + ?, version = version + 1 WHERE id = ?";
+
+	private final JdbcTemplate jdbc_;
+
+	private final TransactionTemplate transaction_;
+
+	public JdbcLikeStore(JdbcTemplate jdbc, TransactionTemplate transaction) {
+		jdbc_ = jdbc;
+		transaction_ = transaction;
+	}
+
+	@Override
+	public boolean videoExists(long videoId) {
+		return jdbc_.queryForObject(VIDEO_EXISTS, Long.class, videoId) > 0;
+	}
+
+	@Override
+	public boolean isLiked(long videoId, String username) {
+		return jdbc_.queryForObject(IS_LIKED, Long.class, videoId, username) > 0;
+	}
+
+	@Override
+	public Set<Long> getLikedVideos(String username) {
+		return new HashSet<Long>(jdbc_.queryForList(LIKED_VIDEOS, Long.class, username));
+	}
+
+	@Override
+	public List<VideoLike> getLikes(final long videoId, LikeCursor after, int limit) {
+		return jdbc_.query(LIKES, new RowMapper<VideoLike>() {
+			@Override
+			public VideoLike mapRow(ResultSet rs, int rowNum) throws SQLException {
+				return new VideoLike(videoId, rs.getString(1), rs.getLong(2));
+			}
+		}, videoId, after.getLikedAt(), after.getLikedAt(), after.getUsername(), limit);
+	}
+
+	@Override
+	public void write(List<LikeChange> changes) {
+		final List<LikeChange> likes = new ArrayList<LikeChange>();
+		final List<LikeChange> unlikes = new ArrayList<LikeChange>();
+		for (LikeChange change : changes) {
+			(change.isLiked() ? likes : unlikes).add(change);
+		}
+
+		transaction_.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				// The counts only change by the rows that really were added
+				// or removed
+				Map<Long, Long> deltas = new LinkedHashMap<Long, Long>();
+				count(deltas, unlikes, -1, batch(DELETE, new ChangeSetter(unlikes) {
+					@Override
+					void setValues(PreparedStatement ps, LikeChange change) throws SQLException {
+						ps.setLong(1, change.getVideoId());
+						ps.setString(2, change.getUsername());
+					}
+				}));
+				count(deltas, likes, 1, batch(INSERT, new ChangeSetter(likes) {
+					@Override
+					void setValues(PreparedStatement ps, LikeChange change) throws SQLException {
+						ps.setString(1, change.getUsername());
+						ps.setLong(2, change.getLikedAt());
+						ps.setLong(3, change.getVideoId());
+						ps.setString(4, change.getUsername());
+					}
+				}));
+				addLikes(deltas);
+			}
+		});
+	}
+
+	private int[] batch(String sql, ChangeSetter changes) {
+		return (changes.getBatchSize() > 0) ? jdbc_.batchUpdate(sql, changes) : new int[0];
+	}
+
+	private void addLikes(Map<Long, Long> deltas) {
+		final List<Map.Entry<Long, Long>> updates = new ArrayList<Map.Entry<Long, Long>>();
+		for (Map.Entry<Long, Long> delta : deltas.entrySet()) {
+			if (delta.getValue() != 0) {
+				updates.add(delta);
+			}
+		}
+		if (updates.isEmpty()) {
+			return;
+		}
+		jdbc_.batchUpdate(ADD_LIKES, new BatchPreparedStatementSetter() {
+			@Override
+			public void setValues(PreparedStatement ps, int i) throws SQLException {
+				ps.setLong(1, updates.get(i).getValue());
+				ps.setLong(2, updates.get(i).getKey());
+			}
+
+			@Override
+			public int getBatchSize() {
+				return updates.size();
+			}
+		});
+	}
+
+	private static void count(Map<Long, Long> deltas, List<LikeChange> changes, int sign, int[] rows) {
+		for (int i = 0; i < rows.length; i++) {
+			// Some drivers only report that a statement succeeded
+			int changed = (rows[i] >= 0) ? rows[i] : 1;
+			if (changed > 0) {
+				Long videoId = changes.get(i).getVideoId();
+				Long delta = deltas.get(videoId);
+				deltas.put(videoId, ((delta != null) ? delta : 0) + sign * changed);
+			}
+		}
+	}
+
+	private abstract static class ChangeSetter implements BatchPreparedStatementSetter {
+
+		private final List<LikeChange> changes_;
+
+		ChangeSetter(List<LikeChange> changes) {
+			changes_ = changes;
+		}
+
+		abstract void setValues(PreparedStatement ps, LikeChange change) throws SQLException;
+
+		@Override
+		public void setValues(PreparedStatement ps, int i) throws SQLException {
+			setValues(ps, changes_.get(i));
+		}
+
+		@Override
+		public int getBatchSize() {
+			return changes_.size();
+		}
+
+	}
+
+}
@@ -0,0 +1,502 @@
+package org.magnum.mobilecloud.video.likes;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.magnum.mobilecloud.video.VideoNotFoundException;
+import org.magnum.mobilecloud.video.repository.VideoLike;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.ConcurrencyFailureException;
+
+/**
+ * Accepts likes and unlikes in memory and writes them to the LikeStore
+ * in the background, so that a popular video's likes don't all wait in
+ * line to update its row of the database.
+ * 
+ * Each user's like of a video is a member of the video, which remembers
+ * whether the store has the like and whether the user wants it. The
+ * members of a video are in a concurrent map, so users only wait for each
+ * other if they like the same video at the same moment and their names
+ * hash alike. Each video also has a StripedCounter of the likes that
+ * haven't been written yet, so the count of a video that many users are
+ * liking at once doesn't become a point of contention either. A read of
+ * the likes of a video is the stored count plus this pending count.
+ * Whether a user likes a video is the member's to say, if there is one,
+ * and otherwise the store's (which can cache the answers, see the
+ * CachingLikeStore).
+ * 
+ * Every flush interval, the members whose like differs from the store's
+ * are written to it in one transaction, along with the counts that they
+ * change. Durability: a crash loses at most the likes and unlikes that
+ * were accepted in the last flush interval, plus those of a flush that was
+ * being written. If the store fails, the changes are kept and retried at
+ * the next flush, so the window grows for as long as the store is down
+ * (the failures are counted, and logged). A flush that conflicts with
+ * another transaction (e.g., a deadlock) is retried at once, after a short
+ * random wait that it spends without holding the buffer's lock, so other
+ * flushes aren't held up by it. The retry writes whatever is still
+ * pending by then. A save of a video that conflicts with a flush isn't
+ * retried but fails with a 409 (see VideoSvcController.addVideo()).
+ * Closing the buffer writes out everything that is pending. A flush
+ * interval of 0 writes every change before it's accepted, which makes
+ * every like wait for the store again.
+ * 
+ * Reads are not isolated from flushes: a read of a video's likes (or of
+ * its users) that overlaps the end of a flush can count that flush's
+ * changes twice or not at all, until the next read.
+ * 
+ * @author jules
+ *
+ */
+public class LikeBuffer {
+
+	private static final Logger log = LoggerFactory.getLogger(LikeBuffer.class);
+
+	private final LikeStore store_;
+
+	private final RetryPolicy retry_;
+
+	private final ConcurrentMap<Long, PendingVideo> videos_ = new ConcurrentHashMap<Long, PendingVideo>();
+
+	private final ScheduledExecutorService scheduler_;
+
+	private volatile long flushInterval_;
+
+	private volatile boolean writeThrough_;
+
+	// Only changed while flushing, which is one thread at a time
+	private final AtomicLong flushes_ = new AtomicLong();
+	private final AtomicLong failures_ = new AtomicLong();
+	private final AtomicLong changesWritten_ = new AtomicLong();
+	private volatile long lastFlushTime_;
+	private volatile long lastFlushNanos_;
+
+	/**
+	 * @param store
+	 * @param retry
+	 *            how often to retry a flush that conflicts with another
+	 *            transaction (e.g., a save of one of the videos)
+	 */
+	public LikeBuffer(LikeStore store, RetryPolicy retry) {
+		store_ = store;
+		retry_ = retry;
+		scheduler_ = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "like-buffer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Flushes the pending likes every interval, or (if the interval is 0)
+	 * as each one is accepted.
+	 * 
+	 * @param interval
+	 * @param unit
+	 */
+	public void schedule(long interval, TimeUnit unit) {
+		flushInterval_ = unit.toMillis(interval);
+		if (interval <= 0) {
+			writeThrough_ = true;
+			return;
+		}
+		scheduler_.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (RuntimeException e) {
+					// Logged by flush(), keep the schedule going
+				}
+			}
+		}, interval, interval, unit);
+	}
+
+	/**
+	 * Stops the scheduled flushes and writes out whatever is pending.
+	 */
+	public void close() {
+		scheduler_.shutdown();
+		flush();
+	}
+
+	/**
+	 * Sets whether the user likes the video.
+	 * 
+	 * @param videoId
+	 * @param username
+	 * @param liked
+	 * @return false if the user already did (or didn't) like the video
+	 * @throws VideoNotFoundException
+	 *             if there isn't a video with the id
+	 */
+	public boolean setLiked(long videoId, String username, boolean liked) throws VideoNotFoundException {
+		PendingVideo video = getPendingVideo(videoId);
+		boolean changed = false;
+		for (;;) {
+			Member member = video.getMember(username);
+			synchronized (member) {
+				if (member.removed_) {
+					// Flushed and dropped since we looked it up
+					continue;
+				}
+				if (member.liked_ != liked) {
+					member.liked_ = liked;
+					if (liked) {
+						member.likedAt_ = System.currentTimeMillis();
+					}
+					video.pending_.add(liked ? 1 : -1);
+					changed = true;
+				}
+				break;
+			}
+		}
+		if (changed && writeThrough_) {
+			flush();
+		}
+		return changed;
+	}
+
+	/**
+	 * Returns the number of likes of the video that have been accepted, less
+	 * the unlikes, but that haven't been written to the store yet.
+	 * 
+	 * @param videoId
+	 * @return
+	 */
+	public long getPendingLikes(long videoId) {
+		PendingVideo video = videos_.get(videoId);
+		return (video != null) ? video.pending_.sum() : 0;
+	}
+
+	/**
+	 * Returns the ids, of those given, of the videos that the user likes.
+	 * 
+	 * @param username
+	 * @param videoIds
+	 * @return
+	 */
+	public List<Long> getLikedVideos(String username, Collection<Long> videoIds) {
+		List<Long> liked = new ArrayList<Long>();
+		Set<Long> stored = null;
+		for (Long videoId : new LinkedHashSet<Long>(videoIds)) {
+			Boolean pending = getPendingLike(videoId, username);
+			if (pending == null) {
+				// Only asked for if one of the videos has nothing pending
+				if (stored == null) {
+					stored = store_.getLikedVideos(username);
+				}
+				pending = stored.contains(videoId);
+			}
+			if (pending) {
+				liked.add(videoId);
+			}
+		}
+		return liked;
+	}
+
+	// Whether the user likes the video, if that hasn't been written yet
+	private Boolean getPendingLike(long videoId, String username) {
+		PendingVideo video = videos_.get(videoId);
+		Member member = (video != null) ? video.members_.get(username) : null;
+		if (member == null) {
+			return null;
+		}
+		synchronized (member) {
+			// A member that was dropped has been written
+			return member.removed_ ? null : member.liked_;
+		}
+	}
+
+	/**
+	 * Returns at most limit likes of the video that come after the cursor,
+	 * in order, from the store and the pending changes. However many likes
+	 * the video has, this only reads about a page of them from the store
+	 * (more if some of them have been unliked since), so the likes can be
+	 * walked through a page at a time.
+	 * 
+	 * @param videoId
+	 * @param after
+	 * @param limit
+	 * @return
+	 */
+	public List<VideoLike> getLikes(long videoId, LikeCursor after, int limit) {
+		// The pending changes are looked at before the store, so that a like
+		// that's flushed in between is at least in the store, and if it's in
+		// both, it's only taken from here
+		List<VideoLike> added = new ArrayList<VideoLike>();
+		Set<String> changed = new HashSet<String>();
+		PendingVideo video = videos_.get(videoId);
+		if (video != null) {
+			for (Map.Entry<String, Member> entry : video.members_.entrySet()) {
+				Member member = entry.getValue();
+				synchronized (member) {
+					if (member.removed_ || member.liked_ == member.stored_) {
+						continue;
+					}
+					changed.add(entry.getKey());
+					VideoLike like = new VideoLike(videoId, entry.getKey(), member.likedAt_);
+					if (member.liked_ && after.isBefore(like)) {
+						added.add(like);
+					}
+				}
+			}
+			Collections.sort(added, LikeCursor.ORDER);
+		}
+
+		List<VideoLike> likes = new ArrayList<VideoLike>();
+		int next = 0;
+		LikeCursor cursor = after;
+		boolean more;
+		do {
+			List<VideoLike> stored = store_.getLikes(videoId, cursor, limit);
+			more = stored.size() == limit;
+			for (VideoLike like : stored) {
+				while (next < added.size() && LikeCursor.ORDER.compare(added.get(next), like) < 0) {
+					likes.add(added.get(next++));
+				}
+				if (!changed.contains(like.getUsername())) {
+					likes.add(like);
+				}
+			}
+			if (more) {
+				cursor = LikeCursor.of(stored.get(stored.size() - 1));
+			}
+		} while (more && likes.size() < limit);
+		if (!more) {
+			likes.addAll(added.subList(next, added.size()));
+		}
+		return (likes.size() > limit) ? likes.subList(0, limit) : likes;
+	}
+
+	/**
+	 * Writes the pending likes and unlikes to the store, and returns how many
+	 * were written. If the store fails, they're left pending.
+	 * 
+	 * @return
+	 */
+	public int flush() {
+		try {
+			for (int attempt = 1;; attempt++) {
+				try {
+					return writePending();
+				} catch (ConcurrencyFailureException e) {
+					// Waits without the lock, so that other flushes (e.g., of
+					// the likes that are written through) aren't held up, and
+					// anything that they write isn't written again
+					retry_.backOff(attempt, e);
+				}
+			}
+		} catch (RuntimeException e) {
+			failures_.incrementAndGet();
+			log.warn("Failed to write the pending likes, retrying in " + flushInterval_ + " ms", e);
+			throw e;
+		}
+	}
+
+	// One attempt at a flush, which is made by one thread at a time
+	private synchronized int writePending() {
+		List<LikeChange> changes = new ArrayList<LikeChange>();
+		List<Member> members = new ArrayList<Member>();
+		for (PendingVideo video : videos_.values()) {
+			for (Map.Entry<String, Member> entry : video.members_.entrySet()) {
+				Member member = entry.getValue();
+				synchronized (member) {
+					if (member.removed_) {
+						continue;
+					}
+					if (member.liked_ != member.stored_) {
+						changes.add(new LikeChange(video.id_, entry.getKey(), member.liked_, member.likedAt_));
+						members.add(member);
+					} else {
+						// Nothing to write (e.g., liked and then unliked), so
+						// the store can answer for this user again
+						video.remove(entry.getKey(), member);
+					}
+				}
+			}
+		}
+		if (changes.isEmpty()) {
+			return 0;
+		}
+
+		long start = System.nanoTime();
+		final List<LikeChange> written = changes;
+		retry_.attempt(new RetryPolicy.Attempt<Void>() {
+			@Override
+			public Void run() {
+				store_.write(written);
+				return null;
+			}
+		});
+
+		// The store now has what each member wanted at the start of the
+		// flush, which may have changed again since
+		for (int i = 0; i < changes.size(); i++) {
+			LikeChange change = changes.get(i);
+			Member member = members.get(i);
+			PendingVideo video = videos_.get(change.getVideoId());
+			synchronized (member) {
+				member.stored_ = change.isLiked();
+				video.pending_.add(change.isLiked() ? -1 : 1);
+				if (member.liked_ == member.stored_) {
+					video.remove(change.getUsername(), member);
+				}
+			}
+		}
+		flushes_.incrementAndGet();
+		changesWritten_.addAndGet(changes.size());
+		lastFlushNanos_ = System.nanoTime() - start;
+		lastFlushTime_ = System.currentTimeMillis();
+		return changes.size();
+	}
+
+	/**
+	 * Returns the number of likes and unlikes that are waiting to be
+	 * written. This looks at every member, so it's only for monitoring.
+	 * 
+	 * @return
+	 */
+	public int getPendingChanges() {
+		int pending = 0;
+		for (PendingVideo video : videos_.values()) {
+			for (Member member : video.members_.values()) {
+				synchronized (member) {
+					if (!member.removed_ && member.liked_ != member.stored_) {
+						pending++;
+					}
+				}
+			}
+		}
+		return pending;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return retry_;
+	}
+
+	public long getFlushInterval() {
+		return flushInterval_;
+	}
+
+	public long getFlushes() {
+		return flushes_.get();
+	}
+
+	public long getFailures() {
+		return failures_.get();
+	}
+
+	public long getChangesWritten() {
+		return changesWritten_.get();
+	}
+
+	public long getLastFlushTime() {
+		return lastFlushTime_;
+	}
+
+	public long getLastFlushNanos() {
+		return lastFlushNanos_;
+	}
+
+	// Videos are never deleted, so once a video is known to exist it stays
+	// in the map without asking the store again
+	private PendingVideo getPendingVideo(long videoId) throws VideoNotFoundException {
+		PendingVideo video = videos_.get(videoId);
+		if (video == null) {
+			if (!store_.videoExists(videoId)) {
+				throw new VideoNotFoundException("Missing video with id " + videoId);
+			}
+			video = new PendingVideo(videoId);
+			PendingVideo existing = videos_.putIfAbsent(videoId, video);
+			if (existing != null) {
+				video = existing;
+			}
+		}
+		return video;
+	}
+
+	private class PendingVideo {
+
+		private final long id_;
+
+		// The users whose likes have changed, or are being looked up
+		private final ConcurrentMap<String, Member> members_ = new ConcurrentHashMap<String, Member>();
+
+		// The sum of the members' liked_ less their stored_
+		private final StripedCounter pending_ = new StripedCounter();
+
+		PendingVideo(long id) {
+			id_ = id;
+		}
+
+		// Returns the user's member, asking the store whether the user likes
+		// the video if there isn't one. Anyone else who wants the member
+		// waits (on its lock) until the store has answered.
+		Member getMember(String username) {
+			Member member = members_.get(username);
+			if (member != null) {
+				return member;
+			}
+			member = new Member();
+			synchronized (member) {
+				Member existing = members_.putIfAbsent(username, member);
+				if (existing != null) {
+					return existing;
+				}
+				boolean loaded = false;
+				try {
+					member.stored_ = member.liked_ = store_.isLiked(id_, username);
+					loaded = true;
+				} finally {
+					if (!loaded) {
+						remove(username, member);
+					}
+				}
+			}
+			return member;
+		}
+
+		// Must hold the member's lock
+		void remove(String username, Member member) {
+			members_.remove(username, member);
+			member.removed_ = true;
+		}
+
+	}
+
+	// Guarded by its own lock
+	private static class Member {
+
+		// Whether the store has the like
+		private boolean stored_;
+
+		// Whether the user likes the video now
+		private boolean liked_;
+
+		private long likedAt_;
+
+		// Set once the member is no longer in its video's map, after which
+		// it mustn't be changed
+		private boolean removed_;
+
+	}
+
+}
@@ -0,0 +1,65 @@
+package org.magnum.mobilecloud.video.likes;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.boot.actuate.endpoint.AbstractEndpoint;
+
+/**
+ * An actuator endpoint (/likes) that reports how many likes the LikeBuffer
+ * is holding, which is what a crash would lose, and how its flushes are
+ * going, including how often they conflict with other transactions, and
+ * how well the CachingLikeStore answers for the database.
+ * 
+ * @author jules
+ *
+ */
+public class LikeBufferEndpoint extends AbstractEndpoint<Map<String, Object>> {
+
+	private final LikeBuffer buffer_;
+
+	private final CachingLikeStore store_;
+
+	public LikeBufferEndpoint(LikeBuffer buffer, CachingLikeStore store) {
+		super("likes", false, true);
+		buffer_ = buffer;
+		store_ = store;
+	}
+
+	@Override
+	public Map<String, Object> invoke() {
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put("flushIntervalMillis", buffer_.getFlushInterval());
+		metrics.put("pendingChanges", buffer_.getPendingChanges());
+		metrics.put("flushes", buffer_.getFlushes());
+		metrics.put("failedFlushes", buffer_.getFailures());
+		metrics.put("changesWritten", buffer_.getChangesWritten());
+		metrics.put("lastFlushTimestamp", buffer_.getLastFlushTime());
+		metrics.put("lastFlushTime", buffer_.getLastFlushNanos() / (double) TimeUnit.MILLISECONDS.toNanos(1));
+
+		// The attempts to write a flush that conflicted with another
+		// transaction, and how many of those still failed after retrying
+		RetryPolicy retry = buffer_.getRetryPolicy();
+		Map<String, Object> conflicts = new LinkedHashMap<String, Object>();
+		conflicts.put("maxAttempts", retry.getMaxAttempts());
+		conflicts.put("attempts", retry.getAttempts());
+		conflicts.put("conflicts", retry.getConflicts());
+		conflicts.put("conflictRate",
+				(retry.getAttempts() > 0) ? retry.getConflicts() / (double) retry.getAttempts() : 0);
+		conflicts.put("retries", retry.getRetries());
+		conflicts.put("exhausted", retry.getExhausted());
+		metrics.put("conflicts", conflicts);
+
+		// Where the answers to "does this user like this video?" came from
+		Map<String, Object> membership = new LinkedHashMap<String, Object>();
+		membership.put("cachedUsers", store_.getCachedUsers());
+		membership.put("cachedFilters", store_.getCachedFilters());
+		membership.put("userHits", store_.getUserHits());
+		membership.put("filterNegatives", store_.getFilterNegatives());
+		membership.put("storeLookups", store_.getStoreLookups());
+		metrics.put("membership", membership);
+		return metrics;
+	}
+
+}
@@ -0,0 +1,47 @@
+package org.magnum.mobilecloud.video.likes;
+
+/**
+ * A like (or unlike) of a video that the LikeBuffer has accepted but that
+ * hasn't been written to the LikeStore yet.
+ * 
+ * @author jules
+ *
+ */
+public class LikeChange {
+
+	private final long videoId_;
+	private final String username_;
+	private final boolean liked_;
+	private final long likedAt_;
+
+	public LikeChange(long videoId, String username, boolean liked, long likedAt) {
+		videoId_ = videoId;
+		username_ = username;
+		liked_ = liked;
+		likedAt_ = likedAt;
+	}
+
+	public long getVideoId() {
+		return videoId_;
+	}
+
+	public String getUsername() {
+		return username_;
+	}
+
+	// True to add the like, false to remove it
+	public boolean isLiked() {
+		return liked_;
+	}
+
+	// When the user liked the video, in milliseconds since the epoch
+	public long getLikedAt() {
+		return likedAt_;
+	}
+
+	@Override
+	public String toString() {
+		return (liked_ ? "like " : "unlike ") + videoId_ + " by " + username_;
+	}
+
+}
@@ -0,0 +1,84 @@
+package org.magnum.mobilecloud.video.likes;
+
+import java.util.Comparator;
+
+import org.magnum.mobilecloud.video.repository.VideoLike;
+
+/**
+ * A position in the likes of a video, which are ordered by the time of the
+ * like and then by username. As a user likes a video at most once, this
+ * order is total, and a page of likes starts after the position of the last
+ * like of the page before it, wherever in the table that is. The likes that
+ * haven't been written yet have the same position before and after they
+ * are, so a cursor stays valid across flushes.
+ *
+ * A cursor is sent to clients as "{likedAt}:{username}", which they should
+ * treat as opaque.
+ *
+ * @author jules
+ *
+ */
+public class LikeCursor {
+
+	// Before every like
+	public static final LikeCursor FIRST = new LikeCursor(Long.MIN_VALUE, "");
+
+	public static final Comparator<VideoLike> ORDER = new Comparator<VideoLike>() {
+		@Override
+		public int compare(VideoLike a, VideoLike b) {
+			int c = Long.compare(a.getLikedAt(), b.getLikedAt());
+			return (c != 0) ? c : a.getUsername().compareTo(b.getUsername());
+		}
+	};
+
+	private final long likedAt_;
+
+	private final String username_;
+
+	public LikeCursor(long likedAt, String username) {
+		likedAt_ = likedAt;
+		username_ = username;
+	}
+
+	// The position of the like
+	public static LikeCursor of(VideoLike like) {
+		return new LikeCursor(like.getLikedAt(), like.getUsername());
+	}
+
+	/**
+	 * Reads a cursor that was written by toString().
+	 *
+	 * @param cursor
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if it isn't a cursor
+	 */
+	public static LikeCursor parse(String cursor) {
+		int colon = cursor.indexOf(':');
+		if (colon < 0) {
+			throw new IllegalArgumentException("Invalid cursor " + cursor);
+		}
+		// Usernames can have colons in them, but the times can't
+		return new LikeCursor(Long.parseLong(cursor.substring(0, colon)), cursor.substring(colon + 1));
+	}
+
+	public long getLikedAt() {
+		return likedAt_;
+	}
+
+	public String getUsername() {
+		return username_;
+	}
+
+	// Whether the like comes after this position
+	public boolean isBefore(VideoLike like) {
+		int c = Long.compare(likedAt_, like.getLikedAt());
+		return (c != 0) ? c < 0 : username_.compareTo(like.getUsername()) < 0;
+	}
+
+	@Override
+	public String toString() {
+		return likedAt_ + ":" + username_;
+	}
+
+}
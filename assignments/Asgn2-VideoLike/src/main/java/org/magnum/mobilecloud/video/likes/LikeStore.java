@@ -0,0 +1,34 @@
+package org.magnum.mobilecloud.video.likes;
+
+import java.util.List;
+import java.util.Set;
+
+import org.magnum.mobilecloud.video.repository.VideoLike;
+
+/**
+ * Where the LikeBuffer keeps the likes once they have been flushed.
+ * 
+ * @author jules
+ *
+ */
+public interface LikeStore {
+
+	public boolean videoExists(long videoId);
+
+	public boolean isLiked(long videoId, String username);
+
+	// The ids of the videos that the user likes
+	public Set<Long> getLikedVideos(String username);
+
+	// At most limit likes of the video that come after the cursor, in order
+	public List<VideoLike> getLikes(long videoId, LikeCursor after, int limit);
+
+	/**
+	 * Writes the changes, and the counts of likes that they change, all at
+	 * once or not at all. There is at most one change for a user and video.
+	 * 
+	 * @param changes
+	 */
+	public void write(List<LikeChange> changes);
+
+}
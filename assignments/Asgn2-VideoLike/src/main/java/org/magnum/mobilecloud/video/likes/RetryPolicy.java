@@ -0,0 +1,127 @@
+package org.magnum.mobilecloud.video.likes;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.dao.ConcurrencyFailureException;
+
+/**
+ * Retries work that failed because it conflicted with another transaction
+ * (e.g., an optimistic locking failure, a deadlock or a lock timeout), up
+ * to a number of attempts. Between attempts it waits for a random time of
+ * up to a delay that doubles each time, so that the transactions that
+ * conflicted don't all try again at the same moment and conflict again.
+ * Anything else that's thrown isn't retried.
+ * 
+ * @author jules
+ *
+ */
+public class RetryPolicy {
+
+	/**
+	 * The work to retry, which has to be safe to run again after it failed
+	 * (e.g., because it runs in a transaction that was rolled back).
+	 */
+	public interface Attempt<T> {
+		public T run();
+	}
+
+	private final int maxAttempts_;
+	private final long baseDelayMillis_;
+	private final long maxDelayMillis_;
+
+	private final AtomicLong attempts_ = new AtomicLong();
+	private final AtomicLong conflicts_ = new AtomicLong();
+	private final AtomicLong retries_ = new AtomicLong();
+	private final AtomicLong exhausted_ = new AtomicLong();
+
+	/**
+	 * @param maxAttempts
+	 *            the most times to try, including the first
+	 * @param baseDelayMillis
+	 *            the longest wait before the first retry
+	 * @param maxDelayMillis
+	 *            the longest wait before any retry
+	 */
+	public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+		maxAttempts_ = Math.max(maxAttempts, 1);
+		baseDelayMillis_ = Math.max(baseDelayMillis, 0);
+		maxDelayMillis_ = Math.max(maxDelayMillis, baseDelayMillis_);
+	}
+
+	public <T> T execute(Attempt<T> attempt) {
+		for (int i = 1;; i++) {
+			try {
+				return attempt(attempt);
+			} catch (ConcurrencyFailureException e) {
+				backOff(i, e);
+			}
+		}
+	}
+
+	/**
+	 * Runs the work once, without retrying it. With backOff(), this lets a
+	 * caller that has to hold a lock for each attempt let go of it while it
+	 * waits to try again (see LikeBuffer.flush()).
+	 * 
+	 * @param attempt
+	 * @return
+	 */
+	public <T> T attempt(Attempt<T> attempt) {
+		attempts_.incrementAndGet();
+		return attempt.run();
+	}
+
+	/**
+	 * Waits before the next attempt after the given one failed with the
+	 * conflict, or throws the conflict if that was the last attempt.
+	 * 
+	 * @param attempt
+	 *            the number of the attempt that failed, starting at 1
+	 * @param conflict
+	 */
+	public void backOff(int attempt, ConcurrencyFailureException conflict) {
+		conflicts_.incrementAndGet();
+		if (attempt >= maxAttempts_) {
+			exhausted_.incrementAndGet();
+			throw conflict;
+		}
+		retries_.incrementAndGet();
+		try {
+			TimeUnit.MILLISECONDS.sleep(getDelay(attempt));
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw conflict;
+		}
+	}
+
+	// A random wait of up to the base delay doubled for each retry so far
+	long getDelay(int attempt) {
+		long cap = Math.min(maxDelayMillis_, baseDelayMillis_ << Math.min(attempt - 1, 30));
+		return (cap > 0) ? ThreadLocalRandom.current().nextLong(cap + 1) : 0;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts_;
+	}
+
+	public long getAttempts() {
+		return attempts_.get();
+	}
+
+	// The attempts that failed because of a conflict
+	public long getConflicts() {
+		return conflicts_.get();
+	}
+
+	public long getRetries() {
+		return retries_.get();
+	}
+
+	// The conflicts that were still failing after the last attempt
+	public long getExhausted() {
+		return exhausted_.get();
+	}
+
+}
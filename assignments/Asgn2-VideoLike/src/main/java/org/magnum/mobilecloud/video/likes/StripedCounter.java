@@ -0,0 +1,113 @@
+package org.magnum.mobilecloud.video.likes;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can add to at once without all of them
+ * fighting over the same memory, along the lines of Java 8's LongAdder
+ * (which we can't use, as we build for Java 7).
+ * 
+ * Additions go to a single value until two threads collide on it. From then
+ * on, each thread adds to one of several stripes, which are spread out so
+ * that no two of them share a cache line, and a thread that collides with
+ * another on a stripe moves on to a different one. Reading the counter adds
+ * up the stripes, so it's slower than adding to it, and a read that runs at
+ * the same time as additions may or may not include them.
+ * 
+ * @author jules
+ *
+ */
+public class StripedCounter {
+
+	// The number of longs between two stripes, which keeps each stripe on
+	// its own 64 byte cache line
+	private static final int PADDING = 8;
+
+	// A power of two, so that a thread's stripe is a mask of its probe
+	private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+	// A random number per thread that picks its stripe, which changes when
+	// the thread collides with another one
+	private static final ThreadLocal<int[]> PROBE = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			int probe = System.identityHashCode(Thread.currentThread()) * 0x9E3779B9;
+			return new int[] { (probe != 0) ? probe : 1 };
+		}
+	};
+
+	private final AtomicLong base_ = new AtomicLong();
+
+	// Only created once there is contention, so that the counters of videos
+	// that are rarely liked stay small
+	private volatile AtomicLongArray stripes_;
+
+	public void add(long x) {
+		AtomicLongArray stripes = stripes_;
+		if (stripes == null) {
+			long b = base_.get();
+			if (base_.compareAndSet(b, b + x)) {
+				return;
+			}
+			stripes = createStripes();
+		}
+		int[] probe = PROBE.get();
+		int i = (probe[0] & (STRIPES - 1)) * PADDING;
+		long v = stripes.get(i);
+		if (!stripes.compareAndSet(i, v, v + x)) {
+			// Another thread is using this stripe, so use a different one
+			// next time and wait for this one
+			probe[0] = next(probe[0]);
+			stripes.addAndGet(i, x);
+		}
+	}
+
+	public void increment() {
+		add(1);
+	}
+
+	public void decrement() {
+		add(-1);
+	}
+
+	public long sum() {
+		long sum = base_.get();
+		AtomicLongArray stripes = stripes_;
+		if (stripes != null) {
+			for (int i = 0; i < stripes.length(); i += PADDING) {
+				sum += stripes.get(i);
+			}
+		}
+		return sum;
+	}
+
+	private synchronized AtomicLongArray createStripes() {
+		if (stripes_ == null) {
+			stripes_ = new AtomicLongArray(STRIPES * PADDING);
+		}
+		return stripes_;
+	}
+
+	// Xorshift, which never returns 0 for a probe that isn't 0
+	private static int next(int probe) {
+		probe ^= probe << 13;
+		probe ^= probe >>> 17;
+		probe ^= probe << 5;
+		return probe;
+	}
+
+	private static int stripes(int processors) {
+		int stripes = 1;
+		while (stripes < processors && stripes < 64) {
+			stripes <<= 1;
+		}
+		return stripes;
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(sum());
+	}
+
+}
@@ -0,0 +1,174 @@
+package org.magnum.mobilecloud.video.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * The latency, request count, error count and number of requests in flight
+ * of one endpoint of the service.
+ * 
+ * Requests are recorded into an HdrHistogram Recorder, which never blocks
+ * or allocates, so the request threads never wait for each other or for a
+ * reader. Readers take a Snapshot, which moves what has been recorded
+ * since the last one into the totals. The request rate and the "recent"
+ * percentiles of a snapshot cover the last interval of at least
+ * MIN_INTERVAL (or since the server started).
+ * 
+ * @author jules
+ *
+ */
+public class EndpointMetrics {
+
+	// Latencies are recorded in microseconds, up to a minute, to 3
+	// significant digits
+	private static final long MAX_LATENCY = TimeUnit.MINUTES.toMicros(1);
+
+	private static final int SIGNIFICANT_DIGITS = 3;
+
+	private static final long MIN_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+	/**
+	 * The metrics of an endpoint at one point in time. Latencies are in
+	 * microseconds.
+	 */
+	public static class Snapshot {
+		private final String name_;
+		private final Histogram total_;
+		private final Histogram recent_;
+		private final long recentNanos_;
+		private final long errors_;
+		private final int inFlight_;
+		private final long uptimeNanos_;
+
+		private Snapshot(String name, Histogram total, Histogram recent, long recentNanos, long errors,
+				int inFlight, long uptimeNanos) {
+			name_ = name;
+			total_ = total;
+			recent_ = recent;
+			recentNanos_ = recentNanos;
+			errors_ = errors;
+			inFlight_ = inFlight;
+			uptimeNanos_ = uptimeNanos;
+		}
+
+		public String getName() {
+			return name_;
+		}
+
+		public long getRequests() {
+			return total_.getTotalCount();
+		}
+
+		public long getErrors() {
+			return errors_;
+		}
+
+		public int getInFlight() {
+			return inFlight_;
+		}
+
+		public double getMeanRate() {
+			return rate(total_.getTotalCount(), uptimeNanos_);
+		}
+
+		public double getRecentRate() {
+			return rate(recent_.getTotalCount(), recentNanos_);
+		}
+
+		private static double rate(long requests, long nanos) {
+			return (nanos > 0) ? requests * (double) TimeUnit.SECONDS.toNanos(1) / nanos : 0;
+		}
+
+		/**
+		 * The latency of all of the requests since the server started.
+		 * 
+		 * @return
+		 */
+		public Histogram getLatency() {
+			return total_;
+		}
+
+		/**
+		 * The latency of the requests in the last interval.
+		 * 
+		 * @return
+		 */
+		public Histogram getRecentLatency() {
+			return recent_;
+		}
+	}
+
+	private final String name_;
+	private final Recorder recorder_ = new Recorder(MAX_LATENCY, SIGNIFICANT_DIGITS);
+	private final AtomicLong errors_ = new AtomicLong();
+	private final AtomicInteger inFlight_ = new AtomicInteger();
+	private final long start_ = System.nanoTime();
+
+	// Only touched by readers, under the lock
+	private final Histogram total_ = new Histogram(MAX_LATENCY, SIGNIFICANT_DIGITS);
+	private final Histogram current_ = new Histogram(MAX_LATENCY, SIGNIFICANT_DIGITS);
+	private Histogram recent_ = new Histogram(MAX_LATENCY, SIGNIFICANT_DIGITS);
+	private long currentStart_ = start_;
+	private long recentNanos_;
+	private boolean rolled_;
+	private Histogram interval_;
+
+	public EndpointMetrics(String name) {
+		name_ = name;
+	}
+
+	public String getName() {
+		return name_;
+	}
+
+	/**
+	 * Records the start of a request.
+	 * 
+	 * @return the time that the request started, to pass to end()
+	 */
+	public long begin() {
+		inFlight_.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records the end of a request that was started with begin().
+	 * 
+	 * @param start
+	 * @param failed
+	 *            whether the request failed
+	 */
+	public void end(long start, boolean failed) {
+		long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+		recorder_.recordValue(Math.min(micros, MAX_LATENCY));
+		if (failed) {
+			errors_.incrementAndGet();
+		}
+		inFlight_.decrementAndGet();
+	}
+
+	public synchronized Snapshot snapshot() {
+		long now = System.nanoTime();
+		interval_ = (interval_ == null) ? recorder_.getIntervalHistogram() : recorder_.getIntervalHistogram(interval_);
+		total_.add(interval_);
+		current_.add(interval_);
+		if (now - currentStart_ >= MIN_INTERVAL) {
+			recent_ = current_.copy();
+			recentNanos_ = now - currentStart_;
+			current_.reset();
+			currentStart_ = now;
+			rolled_ = true;
+		} else if (!rolled_) {
+			// There hasn't been a whole interval yet
+			recent_ = current_.copy();
+			recentNanos_ = now - currentStart_;
+		}
+		return new Snapshot(name_, total_.copy(), recent_, recentNanos_, errors_.get(), inFlight_.get(),
+				now - start_);
+	}
+
+}
@@ -0,0 +1,38 @@
+package org.magnum.mobilecloud.video.metrics;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+
+/**
+ * Records the EndpointMetrics of every request handler of the
+ * VideoSvcController (addVideo, getVideoList, likeVideo, etc.), under the
+ * name of the handler method. A handler that throws counts as an error.
+ * 
+ * @author jules
+ *
+ */
+@Aspect
+public class EndpointMetricsAspect {
+
+	private final EndpointMetricsRegistry registry_;
+
+	public EndpointMetricsAspect(EndpointMetricsRegistry registry) {
+		registry_ = registry;
+	}
+
+	@Around("execution(@org.springframework.web.bind.annotation.RequestMapping * org.magnum.mobilecloud.video.VideoSvcController.*(..))")
+	public Object measure(ProceedingJoinPoint call) throws Throwable {
+		EndpointMetrics metrics = registry_.get(call.getSignature().getName());
+		long start = metrics.begin();
+		boolean failed = true;
+		try {
+			Object result = call.proceed();
+			failed = false;
+			return result;
+		} finally {
+			metrics.end(start, failed);
+		}
+	}
+
+}
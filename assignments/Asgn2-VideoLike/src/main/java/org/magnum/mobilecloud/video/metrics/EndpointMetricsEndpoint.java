@@ -0,0 +1,58 @@
+package org.magnum.mobilecloud.video.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.actuate.endpoint.AbstractEndpoint;
+
+/**
+ * An actuator endpoint (/latency) that reports the request counts, rates,
+ * errors, requests in flight and latency percentiles (in milliseconds) of
+ * each endpoint of the VideoSvcController, both since the server started
+ * and for the last interval.
+ * 
+ * @author jules
+ *
+ */
+public class EndpointMetricsEndpoint extends AbstractEndpoint<Map<String, Object>> {
+
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+	private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p99.9" };
+
+	private final EndpointMetricsRegistry registry_;
+
+	public EndpointMetricsEndpoint(EndpointMetricsRegistry registry) {
+		super("latency", true, true);
+		registry_ = registry;
+	}
+
+	@Override
+	public Map<String, Object> invoke() {
+		Map<String, Object> endpoints = new LinkedHashMap<String, Object>();
+		for (EndpointMetrics.Snapshot snapshot : registry_.snapshot()) {
+			Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+			metrics.put("requests", snapshot.getRequests());
+			metrics.put("errors", snapshot.getErrors());
+			metrics.put("inFlight", snapshot.getInFlight());
+			metrics.put("meanRate", snapshot.getMeanRate());
+			metrics.put("recentRate", snapshot.getRecentRate());
+			metrics.put("latency", latency(snapshot.getLatency()));
+			metrics.put("recentLatency", latency(snapshot.getRecentLatency()));
+			endpoints.put(snapshot.getName(), metrics);
+		}
+		return endpoints;
+	}
+
+	private static Map<String, Object> latency(Histogram histogram) {
+		Map<String, Object> latency = new LinkedHashMap<String, Object>();
+		latency.put("mean", histogram.getMean() / 1000);
+		for (int i = 0; i < PERCENTILES.length; i++) {
+			latency.put(PERCENTILE_NAMES[i], histogram.getValueAtPercentile(PERCENTILES[i]) / 1000.0);
+		}
+		latency.put("max", histogram.getMaxValue() / 1000.0);
+		return latency;
+	}
+
+}
@@ -0,0 +1,54 @@
+package org.magnum.mobilecloud.video.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds the EndpointMetrics of every endpoint that has been called, by
+ * name.
+ * 
+ * @author jules
+ *
+ */
+public class EndpointMetricsRegistry {
+
+	private final ConcurrentMap<String, EndpointMetrics> endpoints_ = new ConcurrentHashMap<String, EndpointMetrics>();
+
+	/**
+	 * Returns the metrics of the endpoint with the given name, creating them
+	 * the first time.
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public EndpointMetrics get(String name) {
+		EndpointMetrics metrics = endpoints_.get(name);
+		if (metrics == null) {
+			EndpointMetrics created = new EndpointMetrics(name);
+			metrics = endpoints_.putIfAbsent(name, created);
+			if (metrics == null) {
+				metrics = created;
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * Takes a snapshot of every endpoint, in the order of their names.
+	 * 
+	 * @return
+	 */
+	public List<EndpointMetrics.Snapshot> snapshot() {
+		List<String> names = new ArrayList<String>(endpoints_.keySet());
+		Collections.sort(names);
+		List<EndpointMetrics.Snapshot> snapshots = new ArrayList<EndpointMetrics.Snapshot>();
+		for (String name : names) {
+			snapshots.add(endpoints_.get(name).snapshot());
+		}
+		return snapshots;
+	}
+
+}
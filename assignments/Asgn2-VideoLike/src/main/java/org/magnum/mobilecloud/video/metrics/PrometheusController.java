@@ -0,0 +1,105 @@
+package org.magnum.mobilecloud.video.metrics;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.HdrHistogram.Histogram;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+/**
+ * Serves the EndpointMetrics at /prometheus in the Prometheus text format,
+ * so that they can be scraped. Each endpoint of the VideoSvcController is
+ * one label value of:
+ * 
+ * video_requests_total, a counter of requests
+ * video_request_errors_total, a counter of requests that failed
+ * video_requests_in_flight, a gauge of the requests that are running
+ * video_request_duration_seconds, a summary of the latency, where the
+ *   quantiles cover the last interval and the sum and count cover all of
+ *   the requests since the server started
+ * 
+ * @author jules
+ *
+ */
+@Controller
+public class PrometheusController {
+
+	public static final String PROMETHEUS_PATH = "/prometheus";
+
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private static final String[] QUANTILE_NAMES = { "0.5", "0.9", "0.99", "0.999" };
+
+	@Autowired
+	private EndpointMetricsRegistry registry;
+
+	@RequestMapping(value = PROMETHEUS_PATH, method = RequestMethod.GET)
+	public void scrape(HttpServletResponse response) throws IOException {
+		response.setContentType(CONTENT_TYPE);
+		PrintWriter out = response.getWriter();
+		write(registry.snapshot(), out);
+		out.flush();
+	}
+
+	static void write(List<EndpointMetrics.Snapshot> snapshots, PrintWriter out) {
+		header(out, "video_requests_total", "counter", "Requests handled by each endpoint.");
+		for (EndpointMetrics.Snapshot snapshot : snapshots) {
+			sample(out, "video_requests_total", snapshot, null, snapshot.getRequests());
+		}
+		header(out, "video_request_errors_total", "counter", "Requests that failed.");
+		for (EndpointMetrics.Snapshot snapshot : snapshots) {
+			sample(out, "video_request_errors_total", snapshot, null, snapshot.getErrors());
+		}
+		header(out, "video_requests_in_flight", "gauge", "Requests that are being handled.");
+		for (EndpointMetrics.Snapshot snapshot : snapshots) {
+			sample(out, "video_requests_in_flight", snapshot, null, snapshot.getInFlight());
+		}
+		header(out, "video_request_duration_seconds", "summary", "How long requests took.");
+		for (EndpointMetrics.Snapshot snapshot : snapshots) {
+			Histogram recent = snapshot.getRecentLatency();
+			for (int i = 0; i < QUANTILES.length; i++) {
+				sample(out, "video_request_duration_seconds", snapshot, QUANTILE_NAMES[i],
+						seconds(recent.getValueAtPercentile(QUANTILES[i] * 100)));
+			}
+			Histogram total = snapshot.getLatency();
+			sample(out, "video_request_duration_seconds_sum", snapshot, null,
+					seconds(total.getMean() * total.getTotalCount()));
+			sample(out, "video_request_duration_seconds_count", snapshot, null, total.getTotalCount());
+		}
+	}
+
+	private static void header(PrintWriter out, String name, String type, String help) {
+		out.print("# HELP " + name + " " + help + "\n");
+		out.print("# TYPE " + name + " " + type + "\n");
+	}
+
+	private static void sample(PrintWriter out, String name, EndpointMetrics.Snapshot snapshot, String quantile,
+			double value) {
+		out.print(name + "{endpoint=\"" + snapshot.getName() + "\"");
+		if (quantile != null) {
+			out.print(",quantile=\"" + quantile + "\"");
+		}
+		out.print("} " + format(value) + "\n");
+	}
+
+	private static double seconds(double micros) {
+		return micros / 1000000;
+	}
+
+	// Counts are written without a fraction
+	private static String format(double value) {
+		if (value == Math.rint(value) && !Double.isInfinite(value)) {
+			return Long.toString((long) value);
+		}
+		return Double.toString(value);
+	}
+
+}
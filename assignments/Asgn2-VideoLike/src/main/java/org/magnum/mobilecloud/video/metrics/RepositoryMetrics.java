@@ -0,0 +1,249 @@
+package org.magnum.mobilecloud.video.metrics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.ConcurrencyFailureException;
+
+/**
+ * The time spent in each method of the Spring Data repositories, how many
+ * rows they returned, and the calls that took longer than a threshold.
+ * Calls that failed because of another transaction (e.g., a save of a
+ * Video that someone else changed since it was loaded) are counted as
+ * conflicts, as well as errors.
+ * Slow calls are logged, with their arguments, and the most recent ones
+ * are kept so that they can be listed by the RepositoryMetricsEndpoint.
+ * 
+ * @author jules
+ *
+ */
+public class RepositoryMetrics {
+
+	private static final Logger log = LoggerFactory.getLogger(RepositoryMetrics.class);
+
+	private static final int MAX_SLOW_CALLS = 100;
+
+	// Long arguments (e.g., a list of ids) are cut short in the log
+	private static final int MAX_ARGUMENTS_LENGTH = 200;
+
+	/**
+	 * The totals of one repository method.
+	 */
+	public static class MethodStats {
+		private final String name_;
+		private final AtomicLong calls_ = new AtomicLong();
+		private final AtomicLong errors_ = new AtomicLong();
+		private final AtomicLong conflicts_ = new AtomicLong();
+		private final AtomicLong rows_ = new AtomicLong();
+		private final AtomicLong nanos_ = new AtomicLong();
+		private final AtomicLong maxNanos_ = new AtomicLong();
+		private final AtomicLong slowCalls_ = new AtomicLong();
+
+		private MethodStats(String name) {
+			name_ = name;
+		}
+
+		private void record(long nanos, long rows, Throwable error, boolean slow) {
+			calls_.incrementAndGet();
+			nanos_.addAndGet(nanos);
+			rows_.addAndGet(rows);
+			if (error != null) {
+				errors_.incrementAndGet();
+				if (error instanceof ConcurrencyFailureException) {
+					conflicts_.incrementAndGet();
+				}
+			}
+			if (slow) {
+				slowCalls_.incrementAndGet();
+			}
+			long max = maxNanos_.get();
+			while (nanos > max && !maxNanos_.compareAndSet(max, nanos)) {
+				max = maxNanos_.get();
+			}
+		}
+
+		public String getName() {
+			return name_;
+		}
+
+		public long getCalls() {
+			return calls_.get();
+		}
+
+		public long getErrors() {
+			return errors_.get();
+		}
+
+		public long getConflicts() {
+			return conflicts_.get();
+		}
+
+		public long getRows() {
+			return rows_.get();
+		}
+
+		public long getTotalNanos() {
+			return nanos_.get();
+		}
+
+		public long getMaxNanos() {
+			return maxNanos_.get();
+		}
+
+		public long getSlowCalls() {
+			return slowCalls_.get();
+		}
+	}
+
+	/**
+	 * A call that took longer than the threshold.
+	 */
+	public static class SlowCall {
+		private final String method_;
+		private final String arguments_;
+		private final long nanos_;
+		private final long rows_;
+		private final long time_;
+
+		private SlowCall(String method, String arguments, long nanos, long rows, long time) {
+			method_ = method;
+			arguments_ = arguments;
+			nanos_ = nanos;
+			rows_ = rows;
+			time_ = time;
+		}
+
+		public String getMethod() {
+			return method_;
+		}
+
+		public String getArguments() {
+			return arguments_;
+		}
+
+		public long getNanos() {
+			return nanos_;
+		}
+
+		public long getRows() {
+			return rows_;
+		}
+
+		public long getTime() {
+			return time_;
+		}
+	}
+
+	private final long slowNanos_;
+	private final ConcurrentMap<String, MethodStats> methods_ = new ConcurrentHashMap<String, MethodStats>();
+	private final Deque<SlowCall> slowCalls_ = new ArrayDeque<SlowCall>();
+
+	/**
+	 * @param slowQueryMillis
+	 *            calls that take at least this long are logged
+	 */
+	public RepositoryMetrics(long slowQueryMillis) {
+		slowNanos_ = TimeUnit.MILLISECONDS.toNanos(slowQueryMillis);
+	}
+
+	public long getSlowQueryMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(slowNanos_);
+	}
+
+	/**
+	 * Records a call of a repository method.
+	 * 
+	 * @param method
+	 *            e.g., VideoRepository.findByName(String)
+	 * @param arguments
+	 * @param nanos
+	 *            how long the call took
+	 * @param rows
+	 *            the number of rows that the call returned
+	 * @param error
+	 *            what the call threw, or null
+	 */
+	public void record(String method, Object[] arguments, long nanos, long rows, Throwable error) {
+		boolean slow = nanos >= slowNanos_;
+		getStats(method).record(nanos, rows, error, slow);
+		if (slow) {
+			String args = toString(arguments);
+			log.warn("Slow repository call {} with arguments {} took {} ms and returned {} rows", method, args,
+					TimeUnit.NANOSECONDS.toMillis(nanos), rows);
+			synchronized (slowCalls_) {
+				if (slowCalls_.size() == MAX_SLOW_CALLS) {
+					slowCalls_.removeFirst();
+				}
+				slowCalls_.addLast(new SlowCall(method, args, nanos, rows, System.currentTimeMillis()));
+			}
+		}
+	}
+
+	private MethodStats getStats(String method) {
+		MethodStats stats = methods_.get(method);
+		if (stats == null) {
+			MethodStats created = new MethodStats(method);
+			stats = methods_.putIfAbsent(method, created);
+			if (stats == null) {
+				stats = created;
+			}
+		}
+		return stats;
+	}
+
+	private static String toString(Object[] arguments) {
+		StringBuilder s = new StringBuilder("[");
+		for (int i = 0; i < arguments.length; i++) {
+			if (i > 0) {
+				s.append(", ");
+			}
+			s.append(arguments[i]);
+		}
+		if (s.length() > MAX_ARGUMENTS_LENGTH) {
+			s.setLength(MAX_ARGUMENTS_LENGTH);
+			s.append("...");
+		}
+		return s.append(']').toString();
+	}
+
+	/**
+	 * Returns the totals of each method that has been called, the ones that
+	 * took the most time in all first.
+	 * 
+	 * @return
+	 */
+	public List<MethodStats> getMethods() {
+		List<MethodStats> methods = new ArrayList<MethodStats>(methods_.values());
+		Collections.sort(methods, new Comparator<MethodStats>() {
+			@Override
+			public int compare(MethodStats a, MethodStats b) {
+				return Long.compare(b.getTotalNanos(), a.getTotalNanos());
+			}
+		});
+		return methods;
+	}
+
+	/**
+	 * Returns the most recent slow calls, the latest first.
+	 * 
+	 * @return
+	 */
+	public List<SlowCall> getSlowCalls() {
+		synchronized (slowCalls_) {
+			List<SlowCall> calls = new ArrayList<SlowCall>(slowCalls_);
+			Collections.reverse(calls);
+			return calls;
+		}
+	}
+
+}
@@ -0,0 +1,105 @@
+package org.magnum.mobilecloud.video.metrics;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.data.domain.Page;
+import org.springframework.data.repository.Repository;
+
+/**
+ * Times every call of the video service's Spring Data repositories (e.g.,
+ * findByName, findOne, save and findAll of the VideoRepository) and
+ * counts the rows that they return, for the RepositoryMetrics.
+ * 
+ * A collection counts as its size, a page as the number of elements on
+ * it, null as no rows, and anything else (e.g., a single Video) as one row.
+ * 
+ * @author jules
+ *
+ */
+@Aspect
+public class RepositoryMetricsAspect {
+
+	private final RepositoryMetrics metrics_;
+
+	// The names of the repositories (by the class of their proxies) and
+	// methods, which are expensive to work out on every call
+	private final ConcurrentMap<Class<?>, String> repositories_ = new ConcurrentHashMap<Class<?>, String>();
+	private final ConcurrentMap<Method, String> methods_ = new ConcurrentHashMap<Method, String>();
+
+	public RepositoryMetricsAspect(RepositoryMetrics metrics) {
+		metrics_ = metrics;
+	}
+
+	@Around("execution(public * *(..)) && !execution(* java.lang.Object.*(..)) "
+			+ "&& target(org.springframework.data.repository.Repository)")
+	public Object measure(ProceedingJoinPoint call) throws Throwable {
+		long start = System.nanoTime();
+		Object result = null;
+		Throwable error = null;
+		try {
+			result = call.proceed();
+			return result;
+		} catch (Throwable t) {
+			error = t;
+			throw t;
+		} finally {
+			long nanos = System.nanoTime() - start;
+			metrics_.record(getName(call), call.getArgs(), nanos, countRows(result), error);
+		}
+	}
+
+	private String getName(ProceedingJoinPoint call) {
+		Class<?> type = call.getTarget().getClass();
+		String repository = repositories_.get(type);
+		if (repository == null) {
+			repository = getRepositoryName(type);
+			repositories_.put(type, repository);
+		}
+		Method method = ((MethodSignature) call.getSignature()).getMethod();
+		String name = methods_.get(method);
+		if (name == null) {
+			StringBuilder s = new StringBuilder(method.getName()).append('(');
+			Class<?>[] parameters = method.getParameterTypes();
+			for (int i = 0; i < parameters.length; i++) {
+				if (i > 0) {
+					s.append(", ");
+				}
+				s.append(parameters[i].getSimpleName());
+			}
+			name = s.append(')').toString();
+			methods_.put(method, name);
+		}
+		return repository + "." + name;
+	}
+
+	// The repository's own interface, rather than the class of the proxy
+	// that Spring Data generates for it
+	private static String getRepositoryName(Class<?> type) {
+		for (Class<?> candidate : type.getInterfaces()) {
+			if (Repository.class.isAssignableFrom(candidate)
+					&& !candidate.getPackage().getName().startsWith("org.springframework")) {
+				return candidate.getSimpleName();
+			}
+		}
+		return type.getSimpleName();
+	}
+
+	private static long countRows(Object result) {
+		if (result == null) {
+			return 0;
+		} else if (result instanceof Collection) {
+			return ((Collection<?>) result).size();
+		} else if (result instanceof Page) {
+			return ((Page<?>) result).getNumberOfElements();
+		}
+		return 1;
+	}
+
+}
@@ -0,0 +1,76 @@
+package org.magnum.mobilecloud.video.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.boot.actuate.endpoint.AbstractEndpoint;
+
+/**
+ * An actuator endpoint (/repository) that reports the calls, rows, errors,
+ * conflicts and time (in milliseconds) of each repository method, the ones
+ * that took the most time in all first, and the most recent slow calls.
+ * 
+ * @author jules
+ *
+ */
+public class RepositoryMetricsEndpoint extends AbstractEndpoint<Map<String, Object>> {
+
+	private final RepositoryMetrics metrics_;
+
+	public RepositoryMetricsEndpoint(RepositoryMetrics metrics) {
+		// The slow calls include their arguments, e.g. video titles
+		super("repository", true, true);
+		metrics_ = metrics;
+	}
+
+	@Override
+	public Map<String, Object> invoke() {
+		List<RepositoryMetrics.MethodStats> methods = metrics_.getMethods();
+		long totalNanos = 0;
+		for (RepositoryMetrics.MethodStats stats : methods) {
+			totalNanos += stats.getTotalNanos();
+		}
+
+		Map<String, Object> byMethod = new LinkedHashMap<String, Object>();
+		for (RepositoryMetrics.MethodStats stats : methods) {
+			Map<String, Object> m = new LinkedHashMap<String, Object>();
+			m.put("calls", stats.getCalls());
+			m.put("errors", stats.getErrors());
+			m.put("conflicts", stats.getConflicts());
+			m.put("conflictRate", (stats.getCalls() > 0) ? stats.getConflicts() / (double) stats.getCalls() : 0);
+			m.put("rows", stats.getRows());
+			m.put("rowsPerCall", (stats.getCalls() > 0) ? stats.getRows() / (double) stats.getCalls() : 0);
+			m.put("totalTime", millis(stats.getTotalNanos()));
+			m.put("meanTime", (stats.getCalls() > 0) ? millis(stats.getTotalNanos()) / stats.getCalls() : 0);
+			m.put("maxTime", millis(stats.getMaxNanos()));
+			m.put("shareOfTime", (totalNanos > 0) ? stats.getTotalNanos() / (double) totalNanos : 0);
+			m.put("slowCalls", stats.getSlowCalls());
+			byMethod.put(stats.getName(), m);
+		}
+
+		List<Map<String, Object>> slowCalls = new ArrayList<Map<String, Object>>();
+		for (RepositoryMetrics.SlowCall call : metrics_.getSlowCalls()) {
+			Map<String, Object> c = new LinkedHashMap<String, Object>();
+			c.put("method", call.getMethod());
+			c.put("arguments", call.getArguments());
+			c.put("time", millis(call.getNanos()));
+			c.put("rows", call.getRows());
+			c.put("timestamp", call.getTime());
+			slowCalls.add(c);
+		}
+
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put("slowQueryMillis", metrics_.getSlowQueryMillis());
+		metrics.put("methods", byMethod);
+		metrics.put("slowCalls", slowCalls);
+		return metrics;
+	}
+
+	private static double millis(long nanos) {
+		return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+}
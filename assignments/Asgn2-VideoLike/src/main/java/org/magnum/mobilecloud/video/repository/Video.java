@@ -1,13 +1,13 @@
 package org.magnum.mobilecloud.video.repository;
 
-import java.util.Set;
-
-import javax.persistence.ElementCollection;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Transient;
+import javax.persistence.Version;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.google.common.base.Objects;
 
 /**
@@ -34,9 +34,21 @@ public class Video {
 	private String name;
 	private String url;
 	private long duration;
+	// The number of likes that have been written to the database, which
+	// is kept up to date as the likes are added to and removed from the
+	// video_like table (see the VideoLike)
 	private long likes;
-	@ElementCollection
-	private Set<String> usersLikeIt;
+
+	// The likes (less the unlikes) that have been accepted but not written
+	// yet, which are included in getLikes()
+	@Transient
+	private long pendingLikes;
+
+	// Changed by every save of the video, and by every write of its likes,
+	// so that a save of a copy that is out of date fails instead of
+	// overwriting the changes since it was loaded
+	@Version
+	private long version;
 	
 	public Video() {
 	}
@@ -82,13 +94,32 @@ public class Video {
 	}
 
 	public long getLikes() {
-		return likes;
+		return likes + pendingLikes;
 	}
 	
 	public void setLikes(long likes) {
 		this.likes = likes;
 	}
 	
+	// The likes without the pending ones
+	@JsonIgnore
+	public long getStoredLikes() {
+		return likes;
+	}
+	
+	@JsonIgnore
+	public void setPendingLikes(long pendingLikes) {
+		this.pendingLikes = pendingLikes;
+	}
+	
+	public long getVersion() {
+		return version;
+	}
+	
+	public void setVersion(long version) {
+		this.version = version;
+	}
+	
 	/**
 	 * Two Videos will generate the same hashcode if they have exactly the same
 	 * values for their name, url, and duration.
@@ -118,12 +149,4 @@ public class Video {
 		}
 	}
 
-	public Set<String> getUsersLikeIt() {
-		return usersLikeIt;
-	}
-
-	public void setUsersLikeIt(Set<String> usersLikeIt) {
-		this.usersLikeIt = usersLikeIt;
-	}
-
 }
@@ -0,0 +1,81 @@
+package org.magnum.mobilecloud.video.repository;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * One user's like of a video. The likes are kept in their own table, with
+ * a unique index on (video_id, username), rather than in a collection of
+ * the Video, so that liking or unliking a video only touches one row here
+ * and one counter on the video, however many likes the video has.
+ * 
+ * The ids are generated by the database in the order that the likes are
+ * written, which the LikeBuffer does in batches, so it's the time of the
+ * like (and then the username, see the LikeCursor) that orders the likes.
+ * 
+ * @author jules
+ *
+ */
+@Entity
+@Table(name = VideoLike.TABLE, uniqueConstraints = @UniqueConstraint(columnNames = {
+		VideoLike.VIDEO_ID, VideoLike.USERNAME }),
+		indexes = {
+				// For finding all of the videos that a user likes
+				@Index(name = "video_like_username", columnList = VideoLike.USERNAME),
+				// For finding a page of a video's likes, in order
+				@Index(name = "video_like_order", columnList = VideoLike.VIDEO_ID + ", " + VideoLike.LIKED_AT + ", "
+						+ VideoLike.USERNAME) })
+public class VideoLike {
+
+	// The table and column names are fixed, as the JdbcLikeStore uses them
+	public static final String TABLE = "video_like";
+	public static final String VIDEO_ID = "video_id";
+	public static final String USERNAME = "username";
+	public static final String LIKED_AT = "liked_at";
+
+	@Id
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	private long id;
+
+	@Column(name = VIDEO_ID, nullable = false)
+	private long videoId;
+
+	@Column(name = USERNAME, nullable = false)
+	private String username;
+
+	// When the like was made, in milliseconds since the epoch
+	@Column(name = LIKED_AT, nullable = false)
+	private long likedAt;
+
+	public VideoLike() {
+	}
+
+	public VideoLike(long videoId, String username, long likedAt) {
+		this.videoId = videoId;
+		this.username = username;
+		this.likedAt = likedAt;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public long getVideoId() {
+		return videoId;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public long getLikedAt() {
+		return likedAt;
+	}
+
+}
@@ -1,7 +1,9 @@
 package org.magnum.mobilecloud.video.repository;
 
 import java.util.Collection;
+import java.util.List;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.stereotype.Repository;
 
@@ -20,4 +22,9 @@ public interface VideoRepository extends CrudRepository<Video, Long>{
 	
 	public Collection<Video> findByDurationLessThan(long duration);
 	
+	// Find the next videos after the given id, in id order. Passing the id
+	// of the last video of a page gets the following page, which is cheap
+	// no matter how deep into the table it is (unlike an offset).
+	public List<Video> findByIdGreaterThanOrderByIdAsc(long id, Pageable page);
+	
 }
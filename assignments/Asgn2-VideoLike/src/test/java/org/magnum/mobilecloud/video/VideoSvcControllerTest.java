@@ -0,0 +1,191 @@
+package org.magnum.mobilecloud.video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.Principal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.UUID;
+
+import org.hsqldb.jdbc.JDBCDriver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.magnum.mobilecloud.video.likes.JdbcLikeStore;
+import org.magnum.mobilecloud.video.likes.LikeBuffer;
+import org.magnum.mobilecloud.video.likes.RetryPolicy;
+import org.magnum.mobilecloud.video.repository.Video;
+import org.magnum.mobilecloud.video.repository.VideoLike;
+import org.magnum.mobilecloud.video.repository.VideoRepository;
+import org.springframework.beans.DirectFieldAccessor;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.SimpleDriverDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Sends videos through the VideoSvcController and back the way that a
+ * client does, with the likes written by a JdbcLikeStore to an in-memory
+ * HSQLDB and the videos saved like Hibernate saves them (checking and
+ * bumping their versions).
+ */
+public class VideoSvcControllerTest {
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	private JdbcTemplate jdbc;
+
+	private LikeBuffer buffer;
+
+	private VideoSvcController controller;
+
+	@Before
+	public void setUp() {
+		SimpleDriverDataSource dataSource = new SimpleDriverDataSource(new JDBCDriver(), "jdbc:hsqldb:mem:"
+				+ UUID.randomUUID(), "sa", "");
+		jdbc = new JdbcTemplate(dataSource);
+		jdbc.execute("CREATE TABLE video (id BIGINT GENERATED BY DEFAULT AS IDENTITY (START WITH 1) PRIMARY KEY, "
+				+ "name VARCHAR(255), url VARCHAR(255), duration BIGINT NOT NULL, likes BIGINT NOT NULL, "
+				+ "version BIGINT NOT NULL)");
+		jdbc.execute("CREATE TABLE " + VideoLike.TABLE + " (id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, "
+				+ VideoLike.VIDEO_ID + " BIGINT NOT NULL, " + VideoLike.USERNAME + " VARCHAR(255) NOT NULL, "
+				+ VideoLike.LIKED_AT + " BIGINT NOT NULL, UNIQUE (" + VideoLike.VIDEO_ID + ", " + VideoLike.USERNAME
+				+ "))");
+
+		buffer = new LikeBuffer(new JdbcLikeStore(jdbc, new TransactionTemplate(new DataSourceTransactionManager(
+				dataSource))), new RetryPolicy(3, 0, 0));
+		VideoRepository videos = repository();
+		controller = new VideoSvcController();
+		DirectFieldAccessor fields = new DirectFieldAccessor(controller);
+		fields.setPropertyValue("videos", videos);
+		fields.setPropertyValue("likes", new VideoLikeService(videos, buffer));
+	}
+
+	@After
+	public void tearDown() {
+		jdbc.execute("SHUTDOWN");
+	}
+
+	@Test
+	public void testSavingALoadedVideoDoesNotCountItsPendingLikesTwice() throws Exception {
+		long id = controller.addVideo(TestData.randomVideo()).getId();
+		controller.likeVideo(id, user("alice"));
+		buffer.flush();
+		controller.likeVideo(id, user("bob"));
+
+		// The client sees bob's like, which is still pending, and saves the
+		// video back before it's written
+		Video loaded = mapper.readValue(mapper.writeValueAsString(controller.getVideoById(id)), Video.class);
+		assertEquals(2, loaded.getLikes());
+		loaded.setName("renamed");
+		controller.addVideo(loaded);
+		buffer.flush();
+
+		assertEquals(2, storedLikes(id));
+		assertEquals(2, controller.getVideoById(id).getLikes());
+		assertEquals("renamed", controller.getVideoById(id).getName());
+	}
+
+	@Test
+	public void testNewVideosStartWithoutLikes() throws Exception {
+		Video v = TestData.randomVideo();
+		v.setLikes(42);
+		long id = controller.addVideo(v).getId();
+		assertEquals(0, storedLikes(id));
+		assertEquals(0, controller.getVideoById(id).getLikes());
+	}
+
+	@Test
+	public void testSavingAVideoLoadedBeforeAFlushConflicts() throws Exception {
+		long id = controller.addVideo(TestData.randomVideo()).getId();
+		controller.likeVideo(id, user("alice"));
+		Video loaded = mapper.readValue(mapper.writeValueAsString(controller.getVideoById(id)), Video.class);
+		buffer.flush();
+		try {
+			controller.addVideo(loaded);
+			fail("The video changed when alice's like was written");
+		} catch (VideoConflictException e) {
+			// Expected
+		}
+		assertEquals(1, storedLikes(id));
+	}
+
+	// The likes column of the video, which has to match its rows of likes
+	private long storedLikes(long id) {
+		long likes = jdbc.queryForObject("SELECT likes FROM video WHERE id = ?", Long.class, id);
+		assertEquals(jdbc.queryForObject("SELECT COUNT(*) FROM " + VideoLike.TABLE + " WHERE " + VideoLike.VIDEO_ID
+				+ " = ?", Long.class, id), Long.valueOf(likes));
+		return likes;
+	}
+
+	private static Principal user(final String name) {
+		return new Principal() {
+			@Override
+			public String getName() {
+				return name;
+			}
+		};
+	}
+
+	// Only what the controller uses to add, load and like videos
+	private VideoRepository repository() {
+		return (VideoRepository) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { VideoRepository.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						switch (method.getName()) {
+						case "findOne":
+							return findOne((Long) args[0]);
+						case "exists":
+							return findOne((Long) args[0]) != null;
+						case "save":
+							return save((Video) args[0]);
+						default:
+							throw new UnsupportedOperationException(method.getName());
+						}
+					}
+				});
+	}
+
+	private Video findOne(long id) {
+		List<Video> found = jdbc.query("SELECT * FROM video WHERE id = ?", new RowMapper<Video>() {
+			@Override
+			public Video mapRow(ResultSet rs, int rowNum) throws SQLException {
+				Video v = new Video(rs.getString("name"), rs.getString("url"), rs.getLong("duration"), rs
+						.getLong("likes"));
+				v.setId(rs.getLong("id"));
+				v.setVersion(rs.getLong("version"));
+				return v;
+			}
+		}, id);
+		return found.isEmpty() ? null : found.get(0);
+	}
+
+	// Like a merge by Hibernate, which fails if the video has been saved
+	// since the copy was loaded
+	private Video save(Video v) {
+		if (v.getId() == 0) {
+			jdbc.update("INSERT INTO video (name, url, duration, likes, version) VALUES (?, ?, ?, ?, 0)", v.getName(),
+					v.getUrl(), v.getDuration(), v.getStoredLikes());
+			return findOne(jdbc.queryForObject("SELECT MAX(id) FROM video", Long.class));
+		}
+		int updated = jdbc.update(
+				"UPDATE video SET name = ?, url = ?, duration = ?, likes = ?, version = version + 1 "
+						+ "WHERE id = ? AND version = ?", v.getName(), v.getUrl(), v.getDuration(),
+				v.getStoredLikes(), v.getId(), v.getVersion());
+		if (updated == 0) {
+			throw new OptimisticLockingFailureException("Video " + v.getId() + " was saved since it was loaded");
+		}
+		return findOne(v.getId());
+	}
+
+}
@@ -0,0 +1,128 @@
+package org.magnum.mobilecloud.video.likes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.magnum.mobilecloud.video.repository.VideoLike;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+public class CachingLikeStoreTest {
+
+	// The likes of video 1, which has many, and video 2, which alice likes
+	private final Set<String> likes1 = new HashSet<String>();
+	private final Set<String> likes2 = new HashSet<String>(Arrays.asList("alice"));
+
+	private final List<String> calls = new ArrayList<String>();
+
+	private CachingLikeStore store;
+
+	@Before
+	public void setUp() {
+		for (int i = 0; i < 5000; i++) {
+			likes1.add("user" + i);
+		}
+		store = new CachingLikeStore(new LikeStore() {
+			@Override
+			public boolean videoExists(long videoId) {
+				return videoId == 1 || videoId == 2;
+			}
+
+			@Override
+			public boolean isLiked(long videoId, String username) {
+				calls.add("isLiked");
+				return likes(videoId).contains(username);
+			}
+
+			@Override
+			public Set<Long> getLikedVideos(String username) {
+				calls.add("getLikedVideos");
+				Set<Long> liked = new HashSet<Long>();
+				for (long id = 1; id <= 2; id++) {
+					if (likes(id).contains(username)) {
+						liked.add(id);
+					}
+				}
+				return liked;
+			}
+
+			@Override
+			public List<VideoLike> getLikes(long videoId, LikeCursor after, int limit) {
+				calls.add("getLikes");
+				List<VideoLike> page = new ArrayList<VideoLike>();
+				for (String user : new TreeSet<String>(likes(videoId))) {
+					VideoLike like = new VideoLike(videoId, user, 0);
+					if (after.isBefore(like) && page.size() < limit) {
+						page.add(like);
+					}
+				}
+				return page;
+			}
+
+			@Override
+			public void write(List<LikeChange> changes) {
+				for (LikeChange change : changes) {
+					if (change.isLiked()) {
+						likes(change.getVideoId()).add(change.getUsername());
+					} else {
+						likes(change.getVideoId()).remove(change.getUsername());
+					}
+				}
+			}
+		}, 100, 100, 100, 0.01, MoreExecutors.sameThreadExecutor());
+	}
+
+	private Set<String> likes(long videoId) {
+		return (videoId == 1) ? likes1 : likes2;
+	}
+
+	@Test
+	public void testTheFilterAnswersForNewLikers() {
+		int lookups = 0;
+		for (int i = 0; i < 1000; i++) {
+			assertFalse(store.isLiked(1, "new" + i));
+		}
+		assertTrue(store.isLiked(1, "user42"));
+		for (String call : calls) {
+			if (call.equals("isLiked")) {
+				lookups++;
+			}
+		}
+		// The filter is built once, a page at a time, and only the first
+		// question (asked while the filter was being built), its false
+		// positives and the real liker go to the store
+		assertEquals(1, store.getCachedFilters());
+		assertEquals(Arrays.asList("getLikes", "getLikes", "getLikes", "getLikes", "getLikes", "getLikes",
+				"isLiked"), calls.subList(0, 7));
+		assertTrue(lookups < 2 + 1000 * 0.05);
+		assertEquals(lookups, store.getStoreLookups());
+	}
+
+	@Test
+	public void testWritesKeepTheFiltersAndUsersUpToDate() {
+		assertFalse(store.isLiked(1, "bob"));
+		assertEquals(new HashSet<Long>(Arrays.asList(2L)), store.getLikedVideos("alice"));
+
+		store.write(Arrays.asList(new LikeChange(1, "bob", true, 0), new LikeChange(1, "alice", true, 0),
+				new LikeChange(2, "alice", false, 0)));
+		calls.clear();
+		assertTrue(store.isLiked(1, "bob"));
+		assertEquals(new HashSet<Long>(Arrays.asList(1L)), store.getLikedVideos("alice"));
+		assertTrue(store.isLiked(1, "alice"));
+		assertFalse(store.isLiked(2, "alice"));
+		// Only bob, who might be in the filter, had to be looked up
+		assertEquals(Arrays.asList("isLiked"), calls);
+		assertEquals(3, store.getUserHits());
+	}
+
+}
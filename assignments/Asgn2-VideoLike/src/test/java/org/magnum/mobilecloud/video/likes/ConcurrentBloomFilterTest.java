@@ -0,0 +1,31 @@
+package org.magnum.mobilecloud.video.likes;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ConcurrentBloomFilterTest {
+
+	@Test
+	public void testNoFalseNegativesAndFewFalsePositives() {
+		ConcurrentBloomFilter filter = new ConcurrentBloomFilter(10000, 0.01);
+		for (int i = 0; i < 10000; i++) {
+			filter.put("user" + i);
+		}
+		for (int i = 0; i < 10000; i++) {
+			assertTrue(filter.mightContain("user" + i));
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (filter.mightContain("other" + i)) {
+				falsePositives++;
+			}
+		}
+		assertTrue("False positives: " + falsePositives, falsePositives < 200);
+		assertFalse(filter.isFull());
+		filter.put("one too many");
+		assertTrue(filter.isFull());
+	}
+
+}
@@ -0,0 +1,140 @@
+package org.magnum.mobilecloud.video.likes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+
+import org.hsqldb.jdbc.JDBCDriver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.magnum.mobilecloud.video.repository.VideoLike;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.SimpleDriverDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Runs the JdbcLikeStore's SQL against an in-memory HSQLDB with the tables
+ * that Hibernate creates for the Video and the VideoLike.
+ */
+public class JdbcLikeStoreTest {
+
+	private JdbcTemplate jdbc;
+
+	private JdbcLikeStore store;
+
+	@Before
+	public void setUp() {
+		SimpleDriverDataSource dataSource = new SimpleDriverDataSource(new JDBCDriver(), "jdbc:hsqldb:mem:"
+				+ UUID.randomUUID(), "sa", "");
+		jdbc = new JdbcTemplate(dataSource);
+		jdbc.execute("CREATE TABLE video (id BIGINT PRIMARY KEY, name VARCHAR(255), url VARCHAR(255), "
+				+ "duration BIGINT NOT NULL, likes BIGINT NOT NULL, version BIGINT NOT NULL)");
+		jdbc.execute("CREATE TABLE " + VideoLike.TABLE + " (id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, "
+				+ VideoLike.VIDEO_ID + " BIGINT NOT NULL, " + VideoLike.USERNAME + " VARCHAR(255) NOT NULL, "
+				+ VideoLike.LIKED_AT + " BIGINT NOT NULL, UNIQUE (" + VideoLike.VIDEO_ID + ", " + VideoLike.USERNAME
+				+ "))");
+		jdbc.execute("CREATE INDEX video_like_order ON " + VideoLike.TABLE + " (" + VideoLike.VIDEO_ID + ", "
+				+ VideoLike.LIKED_AT + ", " + VideoLike.USERNAME + ")");
+		for (long id = 1; id <= 2; id++) {
+			jdbc.update("INSERT INTO video (id, name, url, duration, likes, version) VALUES (?, ?, ?, 0, 0, 0)", id,
+					"video" + id, "http://example.com/" + id);
+		}
+		store = new JdbcLikeStore(jdbc, new TransactionTemplate(new DataSourceTransactionManager(dataSource)));
+	}
+
+	@After
+	public void tearDown() {
+		jdbc.execute("SHUTDOWN");
+	}
+
+	@Test
+	public void testWritingAChangeTwiceOnlyCountsItOnce() {
+		store.write(Arrays.asList(new LikeChange(1, "alice", true, 10), new LikeChange(1, "bob", true, 11),
+				new LikeChange(2, "alice", true, 12)));
+		// A retried flush writes the same changes again
+		store.write(Arrays.asList(new LikeChange(1, "alice", true, 10), new LikeChange(2, "alice", true, 12)));
+		assertTrue(store.isLiked(1, "alice"));
+		assertTrue(store.isLiked(1, "bob"));
+		assertFalse(store.isLiked(2, "bob"));
+		assertEquals(new HashSet<Long>(Arrays.asList(1L, 2L)), store.getLikedVideos("alice"));
+		List<VideoLike> liked = store.getLikes(1, LikeCursor.FIRST, 10);
+		assertEquals(2, liked.size());
+		assertEquals("alice", liked.get(0).getUsername());
+		assertEquals("bob", liked.get(1).getUsername());
+		assertEquals(2, likes(1));
+		assertEquals(1, likes(2));
+
+		store.write(Arrays.asList(new LikeChange(1, "alice", false, 20), new LikeChange(1, "carol", false, 21)));
+		store.write(Arrays.asList(new LikeChange(1, "alice", false, 20)));
+		assertFalse(store.isLiked(1, "alice"));
+		assertEquals(new HashSet<Long>(Arrays.asList(2L)), store.getLikedVideos("alice"));
+		// Nobody unliked what carol never liked
+		assertEquals(1, likes(1));
+		assertEquals(1, likes(2));
+	}
+
+	@Test
+	public void testOnlyWritesThatChangeTheCountsChangeTheVersions() {
+		store.write(Arrays.asList(new LikeChange(1, "alice", true, 10)));
+		assertEquals(1, version(1));
+		store.write(Arrays.asList(new LikeChange(1, "alice", true, 10), new LikeChange(2, "bob", false, 11)));
+		assertEquals(1, version(1));
+		assertEquals(0, version(2));
+		// Likes of videos that don't exist are dropped
+		store.write(Arrays.asList(new LikeChange(3, "alice", true, 12)));
+		assertFalse(store.videoExists(3));
+		assertFalse(store.isLiked(3, "alice"));
+	}
+
+	@Test
+	public void testPagesFollowTheCursorInOrder() {
+		List<LikeChange> changes = new ArrayList<LikeChange>();
+		// Several users like the video at the same time, and they're
+		// written out of order
+		for (int i = 9; i >= 0; i--) {
+			changes.add(new LikeChange(1, "user" + i, true, 100 + i / 3));
+		}
+		changes.add(new LikeChange(2, "alice", true, 0));
+		store.write(changes);
+
+		List<String> users = new ArrayList<String>();
+		List<Integer> sizes = new ArrayList<Integer>();
+		LikeCursor after = LikeCursor.FIRST;
+		List<VideoLike> page;
+		do {
+			page = store.getLikes(1, after, 4);
+			sizes.add(page.size());
+			for (VideoLike like : page) {
+				assertEquals(1, like.getVideoId());
+				assertTrue(after.isBefore(like));
+				users.add(like.getUsername());
+				after = LikeCursor.of(like);
+			}
+		} while (page.size() == 4);
+		assertEquals(Arrays.asList(4, 4, 2), sizes);
+		assertEquals(Arrays.asList("user0", "user1", "user2", "user3", "user4", "user5", "user6", "user7",
+				"user8", "user9"), users);
+
+		// A cursor in the middle of the likes at one time
+		page = store.getLikes(1, new LikeCursor(101, "user3"), 10);
+		assertEquals("user4", page.get(0).getUsername());
+		assertEquals(6, page.size());
+	}
+
+	private long likes(long videoId) {
+		return jdbc.queryForObject("SELECT likes FROM video WHERE id = ?", Long.class, videoId);
+	}
+
+	private long version(long videoId) {
+		return jdbc.queryForObject("SELECT version FROM video WHERE id = ?", Long.class, videoId);
+	}
+
+}
@@ -0,0 +1,364 @@
+package org.magnum.mobilecloud.video.likes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.magnum.mobilecloud.video.VideoNotFoundException;
+import org.magnum.mobilecloud.video.repository.VideoLike;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+public class LikeBufferTest {
+
+	// Videos 1 and 2, with the users who like them and their counts
+	private final Map<Long, Set<String>> stored = new HashMap<Long, Set<String>>();
+	private final Map<Long, Long> counts = new HashMap<Long, Long>();
+
+	// When each stored like was made, by "{videoId}:{username}" (0 if it
+	// isn't here)
+	private final Map<String, Long> times = new HashMap<String, Long>();
+
+	private final AtomicInteger reads = new AtomicInteger();
+	private final List<List<LikeChange>> writes = new ArrayList<List<LikeChange>>();
+	private volatile boolean failWrites = false;
+	private final AtomicInteger conflicts = new AtomicInteger();
+
+	private LikeStore store;
+
+	private LikeBuffer buffer;
+
+	@Before
+	public void setUp() {
+		for (long id = 1; id <= 2; id++) {
+			stored.put(id, new LinkedHashSet<String>());
+			counts.put(id, 0L);
+		}
+		store = new LikeStore() {
+			@Override
+			public boolean videoExists(long videoId) {
+				reads.incrementAndGet();
+				return stored.containsKey(videoId);
+			}
+
+			@Override
+			public boolean isLiked(long videoId, String username) {
+				reads.incrementAndGet();
+				return stored.get(videoId).contains(username);
+			}
+
+			@Override
+			public Set<Long> getLikedVideos(String username) {
+				reads.incrementAndGet();
+				Set<Long> liked = new HashSet<Long>();
+				for (Map.Entry<Long, Set<String>> video : stored.entrySet()) {
+					if (video.getValue().contains(username)) {
+						liked.add(video.getKey());
+					}
+				}
+				return liked;
+			}
+
+			@Override
+			public synchronized List<VideoLike> getLikes(long videoId, LikeCursor after, int limit) {
+				reads.incrementAndGet();
+				List<VideoLike> likes = new ArrayList<VideoLike>();
+				for (String user : stored.get(videoId)) {
+					Long time = times.get(videoId + ":" + user);
+					VideoLike like = new VideoLike(videoId, user, (time != null) ? time : 0);
+					if (after.isBefore(like)) {
+						likes.add(like);
+					}
+				}
+				Collections.sort(likes, LikeCursor.ORDER);
+				return (likes.size() > limit) ? likes.subList(0, limit) : likes;
+			}
+
+			@Override
+			public synchronized void write(List<LikeChange> changes) {
+				if (failWrites) {
+					throw new IllegalStateException("The store is down");
+				}
+				if (conflicts.getAndDecrement() > 0) {
+					throw new OptimisticLockingFailureException("Someone else saved the video");
+				}
+				writes.add(changes);
+				for (LikeChange change : changes) {
+					Set<String> users = stored.get(change.getVideoId());
+					boolean changed = change.isLiked() ? users.add(change.getUsername()) : users.remove(change
+							.getUsername());
+					if (changed && change.isLiked()) {
+						times.put(change.getVideoId() + ":" + change.getUsername(), change.getLikedAt());
+					}
+					if (changed) {
+						counts.put(change.getVideoId(), counts.get(change.getVideoId()) + (change.isLiked() ? 1 : -1));
+					}
+				}
+			}
+		};
+		buffer = new LikeBuffer(store, new RetryPolicy(3, 0, 0));
+	}
+
+	private long likes(long videoId) {
+		return counts.get(videoId) + buffer.getPendingLikes(videoId);
+	}
+
+	private static List<String> users(List<VideoLike> likes) {
+		List<String> users = new ArrayList<String>();
+		for (VideoLike like : likes) {
+			users.add(like.getUsername());
+		}
+		return users;
+	}
+
+	// Walks through the likes of the video a page at a time
+	private List<String> pages(long videoId, int limit) {
+		List<String> users = new ArrayList<String>();
+		LikeCursor cursor = LikeCursor.FIRST;
+		for (;;) {
+			List<VideoLike> page = buffer.getLikes(videoId, cursor, limit);
+			assertTrue(page.size() <= limit);
+			users.addAll(users(page));
+			if (page.size() < limit) {
+				return users;
+			}
+			cursor = LikeCursor.parse(LikeCursor.of(page.get(page.size() - 1)).toString());
+		}
+	}
+
+	@Test
+	public void testLikesArePendingUntilFlushed() throws Exception {
+		assertTrue(buffer.setLiked(1, "alice", true));
+		assertTrue(buffer.setLiked(1, "bob", true));
+		assertFalse(buffer.setLiked(1, "alice", true));
+
+		assertEquals(0L, (long) counts.get(1L));
+		assertEquals(2, likes(1));
+		// Likes in the same millisecond can come in either order
+		assertEquals(new HashSet<String>(Arrays.asList("alice", "bob")), new HashSet<String>(users(buffer.getLikes(1,
+				LikeCursor.FIRST, 10))));
+
+		assertEquals(2, buffer.flush());
+		assertEquals(2L, (long) counts.get(1L));
+		assertEquals(0, buffer.getPendingLikes(1));
+		assertEquals(2, likes(1));
+		assertEquals(0, buffer.getPendingChanges());
+		assertEquals(0, buffer.flush());
+		assertEquals(1, writes.size());
+	}
+
+	@Test
+	public void testStoredLikesAreOnlyLookedUpOnce() throws Exception {
+		stored.get(2L).add("alice");
+		counts.put(2L, 1L);
+
+		assertFalse(buffer.setLiked(2, "alice", true));
+		assertTrue(buffer.setLiked(2, "alice", false));
+		assertFalse(buffer.setLiked(2, "alice", false));
+		assertTrue(buffer.setLiked(2, "alice", true));
+		assertTrue(buffer.setLiked(2, "alice", false));
+		// Video 2 and alice's like of it
+		assertEquals(2, reads.get());
+		assertEquals(0, likes(2));
+		assertEquals(Collections.emptyList(), buffer.getLikes(2, LikeCursor.FIRST, 10));
+
+		buffer.flush();
+		assertEquals(0L, (long) counts.get(2L));
+		assertTrue(stored.get(2L).isEmpty());
+	}
+
+	@Test
+	public void testChangesThatCancelOutAreNotWritten() throws Exception {
+		buffer.setLiked(1, "alice", true);
+		buffer.setLiked(1, "alice", false);
+		assertEquals(0, likes(1));
+		assertEquals(0, buffer.flush());
+		assertTrue(writes.isEmpty());
+	}
+
+	@Test
+	public void testFailedFlushesAreRetried() throws Exception {
+		buffer.setLiked(1, "alice", true);
+		failWrites = true;
+		try {
+			buffer.flush();
+			fail("The store should have failed");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		assertEquals(1, buffer.getFailures());
+		assertEquals(1, likes(1));
+
+		failWrites = false;
+		assertEquals(1, buffer.flush());
+		assertEquals(1L, (long) counts.get(1L));
+		assertEquals(1, likes(1));
+	}
+
+	@Test
+	public void testConflictingFlushesAreRetried() throws Exception {
+		buffer.setLiked(1, "alice", true);
+		conflicts.set(2);
+		assertEquals(1, buffer.flush());
+		assertEquals(1L, (long) counts.get(1L));
+		assertEquals(2, buffer.getRetryPolicy().getRetries());
+
+		buffer.setLiked(1, "bob", true);
+		conflicts.set(3);
+		try {
+			buffer.flush();
+			fail("The flush should have given up after 3 attempts");
+		} catch (OptimisticLockingFailureException e) {
+			// Expected
+		}
+		assertEquals(1, buffer.getRetryPolicy().getExhausted());
+		assertEquals(2, likes(1));
+		assertEquals(1, buffer.flush());
+		assertEquals(2L, (long) counts.get(1L));
+	}
+
+	@Test(timeout = 10000)
+	public void testFlushesAreNotHeldUpByARetry() throws Exception {
+		final CountDownLatch backingOff = new CountDownLatch(1);
+		final CountDownLatch retry = new CountDownLatch(1);
+		final LikeBuffer buffer = new LikeBuffer(store, new RetryPolicy(3, 0, 0) {
+			@Override
+			public void backOff(int attempt, ConcurrencyFailureException conflict) {
+				backingOff.countDown();
+				try {
+					retry.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.backOff(attempt, conflict);
+			}
+		});
+		buffer.setLiked(1, "alice", true);
+		conflicts.set(1);
+		final AtomicInteger retried = new AtomicInteger(-1);
+		Thread flusher = new Thread() {
+			@Override
+			public void run() {
+				retried.set(buffer.flush());
+			}
+		};
+		flusher.start();
+		assertTrue(backingOff.await(10, TimeUnit.SECONDS));
+
+		// Another flush goes ahead while the first one waits to retry, and
+		// writes its changes too
+		buffer.setLiked(1, "bob", true);
+		assertEquals(2, buffer.flush());
+		retry.countDown();
+		flusher.join(10000);
+		assertEquals(0, retried.get());
+		assertEquals(2L, (long) counts.get(1L));
+		assertEquals(0, buffer.getPendingLikes(1));
+	}
+
+	@Test
+	public void testLikedVideosIncludeThePendingChanges() throws Exception {
+		stored.get(1L).add("alice");
+		stored.get(2L).add("alice");
+		buffer.setLiked(1, "alice", false);
+		buffer.setLiked(1, "bob", true);
+
+		assertEquals(Arrays.asList(2L), buffer.getLikedVideos("alice", Arrays.asList(1L, 2L, 3L, 2L)));
+		assertEquals(Arrays.asList(1L), buffer.getLikedVideos("bob", Arrays.asList(1L, 2L)));
+		buffer.flush();
+		assertEquals(Arrays.asList(2L), buffer.getLikedVideos("alice", Arrays.asList(1L, 2L)));
+		assertEquals(Arrays.asList(1L), buffer.getLikedVideos("bob", Arrays.asList(2L, 1L)));
+	}
+
+	@Test
+	public void testLikesArePagedInOrderWithThePendingChanges() throws Exception {
+		for (String user : Arrays.asList("d", "c", "b", "a")) {
+			stored.get(1L).add(user);
+		}
+		times.put("1:a", 1L);
+		times.put("1:b", 2L);
+		times.put("1:c", 2L);
+		times.put("1:d", 3L);
+		counts.put(1L, 4L);
+		buffer.setLiked(1, "b", false);
+		buffer.setLiked(1, "c", false);
+		buffer.setLiked(1, "e", true);
+
+		assertEquals(Arrays.asList("a", "d"), users(buffer.getLikes(1, LikeCursor.FIRST, 2)));
+		assertEquals(Arrays.asList("d", "e"), users(buffer.getLikes(1, new LikeCursor(2, "b"), 2)));
+		assertEquals(Arrays.asList("a", "d", "e"), pages(1, 1));
+		assertEquals(Arrays.asList("a", "d", "e"), pages(1, 2));
+		assertEquals(Arrays.asList("a", "d", "e"), pages(1, 10));
+
+		buffer.flush();
+		assertEquals(Arrays.asList("a", "d", "e"), pages(1, 2));
+	}
+
+	@Test
+	public void testMissingVideosAreReported() throws Exception {
+		try {
+			buffer.setLiked(3, "alice", true);
+			fail("Video 3 doesn't exist");
+		} catch (VideoNotFoundException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testConcurrentLikesOfOneVideoAreAllCounted() throws Exception {
+		final int threads = 8;
+		final int users = 500;
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			Thread worker = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int u = 0; u < users; u++) {
+							buffer.setLiked(1, "user" + thread + "-" + u, true);
+							// Every thread also tries to like as user 0
+							buffer.setLiked(1, "user0-0", true);
+							if (u % 50 == 0) {
+								buffer.flush();
+							}
+						}
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			worker.start();
+			workers.add(worker);
+		}
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join(TimeUnit.SECONDS.toMillis(30));
+		}
+
+		assertEquals(threads * users, likes(1));
+		buffer.close();
+		assertEquals(threads * users, (long) counts.get(1L));
+		assertEquals(threads * users, stored.get(1L).size());
+		assertEquals(0, buffer.getPendingLikes(1));
+	}
+
+}
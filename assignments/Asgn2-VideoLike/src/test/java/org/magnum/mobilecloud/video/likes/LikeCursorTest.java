@@ -0,0 +1,41 @@
+package org.magnum.mobilecloud.video.likes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.magnum.mobilecloud.video.repository.VideoLike;
+
+public class LikeCursorTest {
+
+	@Test
+	public void testCursorsAreReadBackAsWritten() {
+		LikeCursor cursor = LikeCursor.parse(new LikeCursor(1400000000000L, "a:b").toString());
+		assertEquals(1400000000000L, cursor.getLikedAt());
+		assertEquals("a:b", cursor.getUsername());
+
+		for (String invalid : new String[] { "", "alice", "x:alice" }) {
+			try {
+				LikeCursor.parse(invalid);
+				fail("Not a cursor: " + invalid);
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+
+	@Test
+	public void testLikesAreOrderedByTimeAndThenUsername() {
+		LikeCursor cursor = LikeCursor.of(new VideoLike(1, "bob", 10));
+		assertTrue(LikeCursor.FIRST.isBefore(new VideoLike(1, "alice", 0)));
+		assertTrue(cursor.isBefore(new VideoLike(1, "alice", 11)));
+		assertTrue(cursor.isBefore(new VideoLike(1, "carol", 10)));
+		assertFalse(cursor.isBefore(new VideoLike(1, "bob", 10)));
+		assertFalse(cursor.isBefore(new VideoLike(1, "alice", 10)));
+		assertFalse(cursor.isBefore(new VideoLike(1, "carol", 9)));
+		assertTrue(LikeCursor.ORDER.compare(new VideoLike(1, "carol", 9), new VideoLike(1, "alice", 10)) < 0);
+	}
+
+}
@@ -0,0 +1,74 @@
+package org.magnum.mobilecloud.video.likes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.dao.DataIntegrityViolationException;
+
+public class RetryPolicyTest {
+
+	// Conflicts the given number of times and then returns the attempts
+	private static RetryPolicy.Attempt<Integer> conflicting(final int conflicts) {
+		final AtomicInteger attempts = new AtomicInteger();
+		return new RetryPolicy.Attempt<Integer>() {
+			@Override
+			public Integer run() {
+				if (attempts.incrementAndGet() <= conflicts) {
+					throw new CannotAcquireLockException("Locked");
+				}
+				return attempts.get();
+			}
+		};
+	}
+
+	@Test
+	public void testConflictsAreRetriedUpToTheLimit() {
+		RetryPolicy retry = new RetryPolicy(3, 1, 5);
+		assertEquals(3, (int) retry.execute(conflicting(2)));
+		try {
+			retry.execute(conflicting(3));
+			fail("The third conflict should have been thrown");
+		} catch (CannotAcquireLockException e) {
+			// Expected
+		}
+		assertEquals(6, retry.getAttempts());
+		assertEquals(5, retry.getConflicts());
+		assertEquals(4, retry.getRetries());
+		assertEquals(1, retry.getExhausted());
+	}
+
+	@Test
+	public void testOtherFailuresAreNotRetried() {
+		RetryPolicy retry = new RetryPolicy(3, 1, 5);
+		try {
+			retry.execute(new RetryPolicy.Attempt<Void>() {
+				@Override
+				public Void run() {
+					throw new DataIntegrityViolationException("Duplicate");
+				}
+			});
+			fail("The failure should have been thrown");
+		} catch (DataIntegrityViolationException e) {
+			// Expected
+		}
+		assertEquals(1, retry.getAttempts());
+		assertEquals(0, retry.getConflicts());
+	}
+
+	@Test
+	public void testDelaysAreJitteredAndBounded() {
+		RetryPolicy retry = new RetryPolicy(10, 10, 100);
+		for (int attempt = 1; attempt < 10; attempt++) {
+			for (int i = 0; i < 100; i++) {
+				long delay = retry.getDelay(attempt);
+				assertTrue(delay >= 0 && delay <= Math.min(100, 10 << (attempt - 1)));
+			}
+		}
+	}
+
+}
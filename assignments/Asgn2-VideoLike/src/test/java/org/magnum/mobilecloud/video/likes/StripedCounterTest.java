@@ -0,0 +1,37 @@
+package org.magnum.mobilecloud.video.likes;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class StripedCounterTest {
+
+	@Test
+	public void testConcurrentAdditionsAreAllCounted() throws Exception {
+		final StripedCounter counter = new StripedCounter();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 8; t++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 100000; i++) {
+						counter.increment();
+						if (i % 10 == 0) {
+							counter.add(-2);
+						}
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(8 * (100000 - 2 * 10000), counter.sum());
+	}
+
+}
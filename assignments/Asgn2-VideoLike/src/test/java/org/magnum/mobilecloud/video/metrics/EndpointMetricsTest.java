@@ -0,0 +1,93 @@
+package org.magnum.mobilecloud.video.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class EndpointMetricsTest {
+
+	@Test
+	public void testRequestsAreCountedFromManyThreads() throws Exception {
+		final EndpointMetricsRegistry registry = new EndpointMetricsRegistry();
+		final int threads = 4;
+		final int requests = 10000;
+		final CountDownLatch done = new CountDownLatch(threads);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		for (int t = 0; t < threads; t++) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < requests; i++) {
+						EndpointMetrics metrics = registry.get((i % 2 == 0) ? "likeVideo" : "unlikeVideo");
+						metrics.end(metrics.begin(), i % 10 == 1);
+					}
+					done.countDown();
+				}
+			});
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		executor.shutdown();
+
+		EndpointMetrics.Snapshot like = registry.snapshot().get(0);
+		assertEquals("likeVideo", like.getName());
+		assertEquals(threads * requests / 2, like.getRequests());
+		assertEquals(0, like.getErrors());
+		assertEquals(0, like.getInFlight());
+
+		EndpointMetrics.Snapshot unlike = registry.snapshot().get(1);
+		assertEquals(threads * requests / 2, unlike.getRequests());
+		assertEquals(threads * requests / 10, unlike.getErrors());
+	}
+
+	@Test
+	public void testSnapshotsTrackLatencyAndRequestsInFlight() throws Exception {
+		EndpointMetrics metrics = new EndpointMetrics("addVideo");
+		long slow = metrics.begin();
+		Thread.sleep(20);
+		long fast = metrics.begin();
+		assertEquals(2, metrics.snapshot().getInFlight());
+		metrics.end(fast, false);
+		metrics.end(slow, false);
+
+		EndpointMetrics.Snapshot snapshot = metrics.snapshot();
+		assertEquals(0, snapshot.getInFlight());
+		assertEquals(2, snapshot.getRequests());
+		assertTrue(snapshot.getLatency().getMaxValue() >= TimeUnit.MILLISECONDS.toMicros(20));
+		assertTrue(snapshot.getLatency().getValueAtPercentile(50) < TimeUnit.MILLISECONDS.toMicros(20));
+		assertEquals(2, snapshot.getRecentLatency().getTotalCount());
+
+		// Nothing is lost or counted twice by taking another snapshot
+		metrics.end(metrics.begin(), false);
+		assertEquals(3, metrics.snapshot().getRequests());
+		assertEquals(3, metrics.snapshot().getRequests());
+	}
+
+	@Test
+	public void testPrometheusFormat() {
+		EndpointMetricsRegistry registry = new EndpointMetricsRegistry();
+		EndpointMetrics metrics = registry.get("findByTitle");
+		metrics.end(metrics.begin(), false);
+		metrics.end(metrics.begin(), true);
+
+		StringWriter text = new StringWriter();
+		PrometheusController.write(registry.snapshot(), new PrintWriter(text));
+		String scrape = text.toString();
+
+		assertTrue(scrape.contains("# TYPE video_requests_total counter\n"));
+		assertTrue(scrape.contains("video_requests_total{endpoint=\"findByTitle\"} 2\n"));
+		assertTrue(scrape.contains("video_request_errors_total{endpoint=\"findByTitle\"} 1\n"));
+		assertTrue(scrape.contains("video_requests_in_flight{endpoint=\"findByTitle\"} 0\n"));
+		assertTrue(scrape.contains("# TYPE video_request_duration_seconds summary\n"));
+		assertTrue(scrape.contains("video_request_duration_seconds{endpoint=\"findByTitle\",quantile=\"0.99\"} "));
+		assertTrue(scrape.contains("video_request_duration_seconds_count{endpoint=\"findByTitle\"} 2\n"));
+	}
+
+}
@@ -0,0 +1,121 @@
+package org.magnum.mobilecloud.video.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.magnum.mobilecloud.video.repository.Video;
+import org.magnum.mobilecloud.video.repository.VideoRepository;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+public class RepositoryMetricsTest {
+
+	// A VideoRepository that has two videos called "Cats", fails to save()
+	// with a conflict and throws for anything other than findByName() and
+	// findOne()
+	private static VideoRepository createRepository() {
+		return (VideoRepository) Proxy.newProxyInstance(VideoRepository.class.getClassLoader(),
+				new Class<?>[] { VideoRepository.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("findByName")) {
+							return args[0].equals("Cats") ? Arrays.asList(new Video("Cats", "a", 1, 0), new Video(
+									"Cats", "b", 2, 0)) : Arrays.asList();
+						} else if (method.getName().equals("findOne")) {
+							return ((Long) args[0] == 1) ? new Video("Cats", "a", 1, 0) : null;
+						} else if (method.getName().equals("save")) {
+							throw new OptimisticLockingFailureException("The video was changed");
+						}
+						throw new IllegalStateException("Not supported");
+					}
+				});
+	}
+
+	private static VideoRepository instrument(VideoRepository repository, RepositoryMetrics metrics) {
+		AspectJProxyFactory factory = new AspectJProxyFactory(repository);
+		factory.addAspect(new RepositoryMetricsAspect(metrics));
+		return factory.getProxy();
+	}
+
+	@Test
+	public void testCallsAndRowsAreCountedPerMethod() {
+		RepositoryMetrics metrics = new RepositoryMetrics(10000);
+		VideoRepository videos = instrument(createRepository(), metrics);
+
+		assertEquals(2, videos.findByName("Cats").size());
+		assertEquals(0, videos.findByName("Dogs").size());
+		videos.findOne(1L);
+		videos.findOne(2L);
+		videos.findOne(3L);
+		try {
+			videos.count();
+			fail("The repository should have thrown");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+
+		try {
+			videos.save(new Video("Cats", "a", 1, 0));
+			fail("The repository should have thrown");
+		} catch (OptimisticLockingFailureException e) {
+			// Expected
+		}
+
+		List<RepositoryMetrics.MethodStats> methods = metrics.getMethods();
+		assertEquals(4, methods.size());
+		RepositoryMetrics.MethodStats findByName = find(methods, "VideoRepository.findByName(String)");
+		assertEquals(2, findByName.getCalls());
+		assertEquals(2, findByName.getRows());
+		assertEquals(0, findByName.getErrors());
+		assertTrue(findByName.getTotalNanos() >= findByName.getMaxNanos());
+
+		RepositoryMetrics.MethodStats findOne = find(methods, "VideoRepository.findOne(Serializable)");
+		assertEquals(3, findOne.getCalls());
+		assertEquals(1, findOne.getRows());
+
+		RepositoryMetrics.MethodStats count = find(methods, "VideoRepository.count()");
+		assertEquals(1, count.getErrors());
+		assertEquals(0, count.getConflicts());
+
+		RepositoryMetrics.MethodStats save = find(methods, "VideoRepository.save(Object)");
+		assertEquals(1, save.getErrors());
+		assertEquals(1, save.getConflicts());
+		assertTrue(metrics.getSlowCalls().isEmpty());
+	}
+
+	@Test
+	public void testSlowCallsAreKeptWithTheirArguments() {
+		RepositoryMetrics metrics = new RepositoryMetrics(0);
+		VideoRepository videos = instrument(createRepository(), metrics);
+
+		videos.findByName("Cats");
+		videos.findByName("Dogs");
+
+		List<RepositoryMetrics.SlowCall> slow = metrics.getSlowCalls();
+		assertEquals(2, slow.size());
+		assertEquals("VideoRepository.findByName(String)", slow.get(0).getMethod());
+		assertEquals("[Dogs]", slow.get(0).getArguments());
+		assertEquals(0, slow.get(0).getRows());
+		assertEquals("[Cats]", slow.get(1).getArguments());
+		assertEquals(2, slow.get(1).getRows());
+		assertEquals(2, metrics.getMethods().get(0).getSlowCalls());
+	}
+
+	private static RepositoryMetrics.MethodStats find(List<RepositoryMetrics.MethodStats> methods, String name) {
+		for (RepositoryMetrics.MethodStats stats : methods) {
+			if (stats.getName().equals(name)) {
+				return stats;
+			}
+		}
+		throw new AssertionError("No stats for " + name);
+	}
+
+}
@@ -0,0 +1,160 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares two sets of JMH results in its CSV format (-rf csv) and fails if
+ * any benchmark got slower by more than the given percentage. Usage:
+ * 
+ * CompareResults baseline.csv results.csv [maxRegressionPercent]
+ * 
+ * Lines of the baseline that start with # are comments. Benchmarks are
+ * matched by their name and parameters, and ones that only appear in one
+ * of the files are listed but don't fail the comparison.
+ * 
+ * @author jules
+ *
+ */
+public class CompareResults {
+
+	private static class Result {
+		private final String mode_;
+		private final double score_;
+		private final double error_;
+		private final String unit_;
+
+		private Result(String mode, double score, double error, String unit) {
+			mode_ = mode;
+			score_ = score;
+			error_ = error;
+			unit_ = unit;
+		}
+
+		// In throughput mode a higher score is better, in the others
+		// (times per operation) a lower one is
+		private boolean higherIsBetter() {
+			return mode_.equals("thrpt");
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: CompareResults baseline.csv results.csv [maxRegressionPercent]");
+			System.exit(2);
+		}
+		double maxRegression = (args.length > 2) ? Double.parseDouble(args[2]) : 10;
+		Map<String, Result> baseline = read(args[0]);
+		Map<String, Result> results = read(args[1]);
+
+		int regressions = 0;
+		for (Map.Entry<String, Result> entry : results.entrySet()) {
+			Result base = baseline.get(entry.getKey());
+			Result result = entry.getValue();
+			if (base == null) {
+				System.out.printf("%-100s %12.3f %-8s (new)%n", entry.getKey(), result.score_, result.unit_);
+				continue;
+			}
+			if (!base.unit_.equals(result.unit_) || !base.mode_.equals(result.mode_)) {
+				System.out.printf("%-100s %s vs %s, not compared%n", entry.getKey(), base.unit_, result.unit_);
+				continue;
+			}
+			double change = 100 * (result.score_ - base.score_) / base.score_;
+			double slowdown = result.higherIsBetter() ? -change : change;
+			boolean regressed = slowdown > maxRegression;
+			if (regressed) {
+				regressions++;
+			}
+			System.out.printf("%-100s %12.3f +/- %.3f %-8s %+7.1f%%%s%n", entry.getKey(), result.score_,
+					result.error_, result.unit_, change, regressed ? "  REGRESSION" : "");
+		}
+		for (String key : baseline.keySet()) {
+			if (!results.containsKey(key)) {
+				System.out.printf("%-100s (not run)%n", key);
+			}
+		}
+
+		if (regressions > 0) {
+			System.out.printf("%d benchmark(s) got more than %.0f%% slower than the baseline%n", regressions,
+					maxRegression);
+			System.exit(1);
+		}
+	}
+
+	// Reads the results, keyed by the benchmark's name and parameters
+	private static Map<String, Result> read(String file) throws IOException {
+		Map<String, Result> results = new LinkedHashMap<String, Result>();
+		List<String> header = null;
+		for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+			if (line.trim().isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			List<String> fields = split(line);
+			if (header == null) {
+				header = fields;
+				continue;
+			}
+			StringBuilder key = new StringBuilder(fields.get(header.indexOf("Benchmark")));
+			for (int i = 0; i < header.size(); i++) {
+				if (header.get(i).startsWith("Param: ") && i < fields.size() && !fields.get(i).isEmpty()) {
+					key.append(' ').append(header.get(i).substring("Param: ".length())).append('=')
+							.append(fields.get(i));
+				}
+			}
+			String error = fields.get(header.indexOf("Score Error (99.9%)"));
+			results.put(key.toString(), new Result(fields.get(header.indexOf("Mode")),
+					Double.parseDouble(fields.get(header.indexOf("Score"))),
+					error.equals("NaN") ? 0 : Double.parseDouble(error), fields.get(header.indexOf("Unit"))));
+		}
+		return results;
+	}
+
+	// Splits a line of CSV, where fields may be quoted
+	private static List<String> split(String line) {
+		List<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '"') {
+				if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					field.append('"');
+					i++;
+				} else {
+					quoted = !quoted;
+				}
+			} else if (c == ',' && !quoted) {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		fields.add(field.toString());
+		return fields;
+	}
+
+}
@@ -0,0 +1,90 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.benchmark;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.magnum.mobilecloud.video.controller.Video;
+import org.magnum.mobilecloud.video.repository.AllowsDuplicatesVideoRepository;
+import org.magnum.mobilecloud.video.repository.NoDuplicatesVideoRepository;
+import org.magnum.mobilecloud.video.repository.VideoRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the title searches of the in-memory VideoRepositories, which
+ * scan every video that has been added. There are ten videos with each
+ * title, so a search for a title that exists returns ten of them.
+ * 
+ * @author jules
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class FindByTitleBenchmark {
+
+	private static final int VIDEOS_PER_TITLE = 10;
+
+	@Param({ "AllowsDuplicates", "NoDuplicates" })
+	public String repository;
+
+	@Param({ "100", "10000" })
+	public int size;
+
+	private VideoRepository videos_;
+	private String title_;
+
+	@Setup
+	public void setUp() {
+		videos_ = repository.equals("NoDuplicates") ? new NoDuplicatesVideoRepository()
+				: new AllowsDuplicatesVideoRepository();
+		for (int i = 0; i < size; i++) {
+			videos_.addVideo(new Video(title(i / VIDEOS_PER_TITLE), "http://localhost:8080/video/" + i, 60));
+		}
+		title_ = title(size / VIDEOS_PER_TITLE / 2);
+	}
+
+	private static String title(int n) {
+		return "Video " + n;
+	}
+
+	@Benchmark
+	public Collection<Video> findExisting() {
+		return videos_.findByTitle(title_);
+	}
+
+	@Benchmark
+	public Collection<Video> findMissing() {
+		return videos_.findByTitle("Missing");
+	}
+
+}
@@ -0,0 +1,182 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.magnum.dataup.VideoFileManager;
+import org.magnum.dataup.model.Video;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long the VideoFileManager takes to store and to send the
+ * data of a video, for each of the ways that the data can arrive and leave:
+ * 
+ * - saveFromStream: an upload that arrives as an InputStream (e.g. a
+ *   multipart file), which the JDK's channel wrapper copies into the
+ *   manager's direct buffer 8KB at a time through a heap array
+ * - saveFromChannel: an upload that arrives as a channel (e.g. a streamed
+ *   multipart part), which fills the direct buffer in one copy
+ * - copyCachedToStream: a download that is served from the memory-mapped
+ *   read cache
+ * - copyFileToStream: a download that isn't cached, to a plain stream like
+ *   a servlet response, so transferTo() has to stage it in a heap buffer
+ * - copyFileToFile: a download that isn't cached, to a FileOutputStream,
+ *   which transferTo() can copy to without going through the heap
+ * 
+ * The data is stored in a temporary directory. The manager reads its
+ * configuration when it's first used, so each benchmark runs in its own
+ * fork.
+ * 
+ * @author jules
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class VideoDataBenchmark {
+
+	// A channel that reads from a buffer in as few copies as possible
+	private static class BufferChannel implements ReadableByteChannel {
+
+		private final ByteBuffer data_;
+
+		private BufferChannel(ByteBuffer data) {
+			data_ = data;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) {
+			if (!data_.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(dst.remaining(), data_.remaining());
+			ByteBuffer chunk = data_.duplicate();
+			chunk.limit(chunk.position() + n);
+			dst.put(chunk);
+			data_.position(data_.position() + n);
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	@Param({ "65536", "1048576", "16777216" })
+	public int size;
+
+	private Path storage_;
+	private VideoFileManager manager_;
+	private Video video_;
+	private byte[] data_;
+	private ByteBuffer cached_;
+	private OutputStream file_;
+
+	@Setup
+	public void setUp() throws IOException {
+		storage_ = Files.createTempDirectory("video-benchmark");
+		System.setProperty("video.storage.dir", storage_.toString());
+		manager_ = VideoFileManager.get();
+
+		video_ = new Video();
+		video_.setId(1);
+		video_.setTitle("Benchmark");
+		video_.setContentType("video/mpeg");
+		data_ = new byte[size];
+		new Random(size).nextBytes(data_);
+		manager_.saveVideoData(video_, new ByteArrayInputStream(data_));
+
+		// A file is only cached once it has been read a few times
+		for (int i = 0; i < 4 && cached_ == null; i++) {
+			cached_ = manager_.getCachedVideoData(video_);
+		}
+		if (cached_ == null) {
+			throw new IllegalStateException("The read cache didn't take the video data");
+		}
+		file_ = new FileOutputStream(new File("/dev/null"));
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		file_.close();
+		FileUtils.deleteDirectory(storage_.toFile());
+	}
+
+	@Benchmark
+	public void saveFromStream() throws IOException {
+		manager_.saveVideoData(video_, new ByteArrayInputStream(data_));
+	}
+
+	@Benchmark
+	public long saveFromChannel() throws IOException {
+		return manager_.saveVideoData(video_, new BufferChannel(ByteBuffer.wrap(data_)));
+	}
+
+	@Benchmark
+	public long copyCachedToStream() throws IOException {
+		CountingOutputStream out = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+		manager_.copyVideoData(video_, cached_, out, 0, size);
+		return out.getByteCount();
+	}
+
+	@Benchmark
+	public long copyFileToStream() throws IOException {
+		CountingOutputStream out = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+		manager_.copyVideoData(video_, null, out, 0, size);
+		return out.getByteCount();
+	}
+
+	@Benchmark
+	public void copyFileToFile() throws IOException {
+		manager_.copyVideoData(video_, null, file_, 0, size);
+	}
+
+}
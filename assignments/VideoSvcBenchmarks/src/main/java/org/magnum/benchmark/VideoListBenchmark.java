@@ -0,0 +1,134 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.magnum.dataup.VideoListWriter;
+import org.magnum.dataup.model.Video;
+import org.magnum.mobilecloud.video.json.ResourcesMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.hateoas.Resources;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Measures how long it takes to write lists of videos as JSON, the way that
+ * the services answer GET /video:
+ * 
+ * - writeWithObjectMapper: the whole list at once, as a controller that
+ *   returns a collection does
+ * - writeWithVideoListWriter: one video at a time, as the VideoUp service
+ *   does
+ * - writeEntitiesWithObjectMapper: the JPA Videos of the Spring Data REST
+ *   examples, without the Resources wrapper
+ * - writeResourcesWithResourcesMapper: the same Videos wrapped in the
+ *   Resources that Spring Data REST returns, unwrapped again by the
+ *   examples' ResourcesMapper
+ * 
+ * The JSON is counted and thrown away, so only the serialization is
+ * measured.
+ * 
+ * @author jules
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class VideoListBenchmark {
+
+	@Param({ "10", "100", "1000" })
+	public int size;
+
+	private final ObjectMapper mapper_ = new ObjectMapper();
+	private final VideoListWriter listWriter_ = new VideoListWriter(mapper_);
+	private final ResourcesMapper resourcesMapper_ = new ResourcesMapper();
+
+	private List<Video> videos_;
+	private List<org.magnum.mobilecloud.video.repository.Video> entities_;
+	private Resources<org.magnum.mobilecloud.video.repository.Video> resources_;
+
+	@Setup
+	public void setUp() {
+		videos_ = new ArrayList<Video>();
+		entities_ = new ArrayList<org.magnum.mobilecloud.video.repository.Video>();
+		for (int i = 0; i < size; i++) {
+			Video video = new Video();
+			video.setId(i + 1);
+			video.setTitle("Video " + i);
+			video.setDuration(60 + i);
+			video.setSubject("Benchmarks");
+			video.setContentType("video/mp4");
+			video.setDataUrl("http://localhost:8080/video/" + (i + 1) + "/data");
+			videos_.add(video);
+
+			org.magnum.mobilecloud.video.repository.Video entity = new org.magnum.mobilecloud.video.repository.Video(
+					"Video " + i, "http://localhost:8080/video/" + (i + 1), 60 + i);
+			entity.setId(i + 1);
+			entities_.add(entity);
+		}
+		resources_ = new Resources<org.magnum.mobilecloud.video.repository.Video>(entities_);
+	}
+
+	@Benchmark
+	public long writeWithObjectMapper() throws IOException {
+		CountingOutputStream out = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+		mapper_.writeValue(out, videos_);
+		return out.getByteCount();
+	}
+
+	@Benchmark
+	public long writeWithVideoListWriter() throws IOException {
+		CountingOutputStream out = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+		listWriter_.write(videos_, out);
+		return out.getByteCount();
+	}
+
+	@Benchmark
+	public long writeEntitiesWithObjectMapper() throws IOException {
+		CountingOutputStream out = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+		mapper_.writeValue(out, entities_);
+		return out.getByteCount();
+	}
+
+	@Benchmark
+	public long writeResourcesWithResourcesMapper() throws IOException {
+		CountingOutputStream out = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+		resourcesMapper_.writeValue(out, resources_);
+		return out.getByteCount();
+	}
+
+}
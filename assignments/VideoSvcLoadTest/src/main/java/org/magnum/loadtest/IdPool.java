@@ -0,0 +1,68 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.loadtest;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * The ids of the videos that a test has added, which the other operations
+ * pick from at random.
+ *
+ * @author jules
+ *
+ */
+class IdPool {
+
+	private final List<Long> ids_ = new ArrayList<Long>();
+	private final Set<Long> members_ = new HashSet<Long>();
+
+	/**
+	 * Adds the id, unless it's in the pool already.
+	 *
+	 * @param id
+	 */
+	public synchronized void add(long id) {
+		if (members_.add(id)) {
+			ids_.add(id);
+		}
+	}
+
+	/**
+	 * Returns one of the ids, picked at random.
+	 *
+	 * @param random
+	 * @return
+	 * @throws IllegalStateException
+	 *             if there are no ids
+	 */
+	public synchronized long pick(Random random) {
+		if (ids_.isEmpty()) {
+			throw new IllegalStateException("There are no videos to pick from");
+		}
+		return ids_.get(random.nextInt(ids_.size()));
+	}
+
+	public synchronized int size() {
+		return ids_.size();
+	}
+
+}
@@ -0,0 +1,220 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.loadtest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * Records the latency of every request of a load test in an HdrHistogram
+ * per operation, which keeps the whole distribution (to 3 significant
+ * digits) in a fixed amount of memory, so that the tail percentiles are
+ * exact rather than sampled.
+ *
+ * Latencies are recorded in microseconds. In an open-loop test, they are
+ * measured from the time that a request should have been sent, not the
+ * time that it actually was, so that the time a request spends waiting
+ * behind slow ones is counted (avoiding "coordinated omission").
+ *
+ * @author jules
+ *
+ */
+public class LatencyRecorder {
+
+	// Nothing takes longer than this, or it's cut off by the client anyway
+	private static final long HIGHEST_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(10);
+
+	private static final int SIGNIFICANT_DIGITS = 3;
+
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 99.99 };
+
+	private final Map<Operation, Histogram> latencies_ = new EnumMap<Operation, Histogram>(Operation.class);
+	private final Map<Operation, AtomicLong> errors_ = new EnumMap<Operation, AtomicLong>(Operation.class);
+
+	// The first failure of each operation, to tell what went wrong
+	private final ConcurrentMap<Operation, Exception> firstErrors_ = new ConcurrentHashMap<Operation, Exception>();
+
+	// Requests that started before this are warm-up, and aren't recorded
+	private final long measureFrom_;
+
+	/**
+	 * @param measureFrom
+	 *            the time (System.nanoTime()) that the measurement starts
+	 */
+	public LatencyRecorder(long measureFrom) {
+		measureFrom_ = measureFrom;
+		for (Operation operation : Operation.values()) {
+			latencies_.put(operation, newHistogram());
+			errors_.put(operation, new AtomicLong());
+		}
+	}
+
+	private static Histogram newHistogram() {
+		return new Histogram(HIGHEST_LATENCY_MICROS, SIGNIFICANT_DIGITS);
+	}
+
+	/**
+	 * Records a request that succeeded.
+	 *
+	 * @param operation
+	 * @param start
+	 *            the time (System.nanoTime()) that the request started, or
+	 *            should have
+	 * @param end
+	 *            the time that the response was complete
+	 */
+	public void record(Operation operation, long start, long end) {
+		if (start < measureFrom_) {
+			return;
+		}
+		long micros = Math.min(TimeUnit.NANOSECONDS.toMicros(end - start), HIGHEST_LATENCY_MICROS);
+		Histogram histogram = latencies_.get(operation);
+		synchronized (histogram) {
+			histogram.recordValue(micros);
+		}
+	}
+
+	/**
+	 * Records a request that failed. Failures aren't part of the latencies.
+	 *
+	 * @param operation
+	 * @param start
+	 * @param error
+	 */
+	public void recordError(Operation operation, long start, Exception error) {
+		firstErrors_.putIfAbsent(operation, error);
+		if (start >= measureFrom_) {
+			errors_.get(operation).incrementAndGet();
+		}
+	}
+
+	public long getCount(Operation operation) {
+		Histogram histogram = latencies_.get(operation);
+		synchronized (histogram) {
+			return histogram.getTotalCount();
+		}
+	}
+
+	public long getErrorCount(Operation operation) {
+		return errors_.get(operation).get();
+	}
+
+	/**
+	 * Returns the latency (in microseconds) at the given percentile.
+	 *
+	 * @param operation
+	 * @param percentile
+	 * @return
+	 */
+	public long getLatency(Operation operation, double percentile) {
+		Histogram histogram = latencies_.get(operation);
+		synchronized (histogram) {
+			return histogram.getValueAtPercentile(percentile);
+		}
+	}
+
+	/**
+	 * Prints a table with the throughput and latency percentiles (in
+	 * milliseconds) of each operation, and of all of them together.
+	 *
+	 * @param out
+	 * @param elapsedNanos
+	 *            the length of the measurement
+	 */
+	public void report(PrintStream out, long elapsedNanos) {
+		double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+		out.printf("%-10s %10s %8s %10s %9s", "operation", "requests", "errors", "req/s", "mean");
+		for (double percentile : PERCENTILES) {
+			out.printf(" %9s", "p" + format(percentile));
+		}
+		out.printf(" %9s%n", "max");
+
+		Histogram total = newHistogram();
+		long totalErrors = 0;
+		for (Operation operation : Operation.values()) {
+			Histogram histogram = copy(operation);
+			long errors = getErrorCount(operation);
+			if (histogram.getTotalCount() == 0 && errors == 0) {
+				continue;
+			}
+			print(out, operation.name().toLowerCase(), histogram, errors, seconds);
+			total.add(histogram);
+			totalErrors += errors;
+		}
+		print(out, "all", total, totalErrors, seconds);
+
+		for (Map.Entry<Operation, Exception> error : firstErrors_.entrySet()) {
+			out.printf("First %s error: %s%n", error.getKey().name().toLowerCase(), error.getValue());
+		}
+	}
+
+	private void print(PrintStream out, String name, Histogram histogram, long errors, double seconds) {
+		out.printf("%-10s %10d %8d %10.1f %9.2f", name, histogram.getTotalCount(), errors,
+				histogram.getTotalCount() / seconds, histogram.getMean() / 1000);
+		for (double percentile : PERCENTILES) {
+			out.printf(" %9.2f", histogram.getValueAtPercentile(percentile) / 1000.0);
+		}
+		out.printf(" %9.2f%n", histogram.getMaxValue() / 1000.0);
+	}
+
+	/**
+	 * Writes the full percentile distribution of each operation that was
+	 * measured to <operation>.hgrm in the given directory, in milliseconds.
+	 * These can be plotted with HdrHistogram's plotter, e.g. to compare two
+	 * variants of the service.
+	 *
+	 * @param dir
+	 * @throws IOException
+	 */
+	public void writeDistributions(Path dir) throws IOException {
+		Files.createDirectories(dir);
+		for (Operation operation : Operation.values()) {
+			Histogram histogram = copy(operation);
+			if (histogram.getTotalCount() == 0) {
+				continue;
+			}
+			try (OutputStream file = Files.newOutputStream(dir.resolve(operation.name().toLowerCase() + ".hgrm"));
+					PrintStream out = new PrintStream(file, false, "UTF-8")) {
+				histogram.outputPercentileDistribution(out, 1000.0);
+			}
+		}
+	}
+
+	private Histogram copy(Operation operation) {
+		Histogram histogram = latencies_.get(operation);
+		synchronized (histogram) {
+			return histogram.copy();
+		}
+	}
+
+	private static String format(double percentile) {
+		return (percentile == Math.rint(percentile)) ? Long.toString((long) percentile) : Double.toString(percentile);
+	}
+
+}
@@ -0,0 +1,200 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.loadtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a Workload against a ServiceDriver and records the latency of each
+ * request in a LatencyRecorder. There are two ways to generate the load:
+ *
+ * Closed loop (rate 0): each thread sends its next request as soon as the
+ * previous one completes, which finds the most throughput that the service
+ * can sustain with that many clients.
+ *
+ * Open loop (rate > 0): requests are started at a fixed rate, no matter how
+ * long the earlier ones take, the way that independent users would send
+ * them. Requests that can't be started on time because all of the threads
+ * are busy wait in a queue, and the wait counts towards their latency.
+ * This is what shows the tail latency of the service at a given load.
+ *
+ * The first part of the test is a warm-up, whose requests aren't recorded.
+ *
+ * @author jules
+ *
+ */
+public class LoadGenerator {
+
+	private final ServiceDriver driver_;
+	private final Workload workload_;
+	private final int threads_;
+	private final double rate_;
+	private final long warmupNanos_;
+	private final long durationNanos_;
+	private final long seed_;
+
+	private final AtomicInteger maxBacklog_ = new AtomicInteger();
+
+	/**
+	 * @param driver
+	 * @param workload
+	 * @param threads
+	 *            the number of requests that can be in flight at once
+	 * @param rate
+	 *            the requests per second to start, or 0 for a closed loop
+	 * @param warmup
+	 * @param duration
+	 *            the length of the measurement, after the warm-up
+	 * @param unit
+	 * @param seed
+	 *            seeds the random choices, so that runs can be repeated
+	 */
+	public LoadGenerator(ServiceDriver driver, Workload workload, int threads, double rate, long warmup,
+			long duration, TimeUnit unit, long seed) {
+		for (Operation operation : workload.getOperations()) {
+			if (!driver.getOperations().contains(operation)) {
+				throw new IllegalArgumentException("The service doesn't support " + operation);
+			}
+		}
+		if (threads < 1) {
+			throw new IllegalArgumentException("There has to be at least one thread");
+		}
+		driver_ = driver;
+		workload_ = workload;
+		threads_ = threads;
+		rate_ = Math.max(rate, 0);
+		warmupNanos_ = unit.toNanos(warmup);
+		durationNanos_ = unit.toNanos(duration);
+		seed_ = seed;
+	}
+
+	/**
+	 * Runs the test, and returns the latencies that were measured.
+	 *
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public LatencyRecorder run() throws InterruptedException {
+		long start = System.nanoTime();
+		LatencyRecorder recorder = new LatencyRecorder(start + warmupNanos_);
+		long end = start + warmupNanos_ + durationNanos_;
+		if (rate_ > 0) {
+			runOpenLoop(recorder, start, end);
+		} else {
+			runClosedLoop(recorder, end);
+		}
+		return recorder;
+	}
+
+	/**
+	 * Returns the most requests that were waiting for a thread at once in an
+	 * open-loop test. A backlog that keeps growing means that the service
+	 * can't keep up with the rate.
+	 *
+	 * @return
+	 */
+	public int getMaxBacklog() {
+		return maxBacklog_.get();
+	}
+
+	private void runClosedLoop(final LatencyRecorder recorder, final long end) throws InterruptedException {
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < threads_; i++) {
+			final Random random = new Random(seed_ + i);
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (System.nanoTime() < end) {
+						execute(recorder, workload_.next(random), random, System.nanoTime());
+					}
+				}
+			}, "load-" + i);
+			workers.add(worker);
+			worker.start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+	}
+
+	private void runOpenLoop(final LatencyRecorder recorder, long start, long end) throws InterruptedException {
+		final ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(threads_);
+		// Each thread needs its own random numbers, since Random is contended
+		final ThreadLocal<Random> randoms = new ThreadLocal<Random>() {
+			private final AtomicInteger count_ = new AtomicInteger();
+
+			@Override
+			protected Random initialValue() {
+				return new Random(seed_ + count_.getAndIncrement());
+			}
+		};
+		Random pacer = new Random(seed_ - 1);
+		double interval = TimeUnit.SECONDS.toNanos(1) / rate_;
+		try {
+			for (long n = 0;; n++) {
+				// The schedule is fixed up front, so a slow submit can't
+				// push the later requests back
+				final long scheduled = start + (long) (n * interval);
+				if (scheduled >= end) {
+					break;
+				}
+				long wait = scheduled - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				}
+				final Operation operation = workload_.next(pacer);
+				pool.execute(new Runnable() {
+					@Override
+					public void run() {
+						execute(recorder, operation, randoms.get(), scheduled);
+					}
+				});
+				updateBacklog(pool);
+			}
+		} finally {
+			pool.shutdown();
+		}
+		// Let the requests that are still queued finish, so they're counted
+		pool.awaitTermination(1, TimeUnit.HOURS);
+	}
+
+	private void updateBacklog(ThreadPoolExecutor pool) {
+		int backlog = pool.getQueue().size();
+		int max = maxBacklog_.get();
+		while (backlog > max && !maxBacklog_.compareAndSet(max, backlog)) {
+			max = maxBacklog_.get();
+		}
+	}
+
+	private void execute(LatencyRecorder recorder, Operation operation, Random random, long start) {
+		try {
+			driver_.execute(operation, random);
+			recorder.record(operation, start, System.nanoTime());
+		} catch (Exception e) {
+			recorder.recordError(operation, start, e);
+		}
+	}
+
+}
@@ -0,0 +1,200 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLContextBuilder;
+import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+
+import retrofit.client.ApacheClient;
+import retrofit.client.Client;
+
+/**
+ * Runs a load test against a local video service and prints the throughput
+ * and latency percentiles of each kind of request. For example:
+ *
+ * gradle run -Pargs="--service=videoup --threads=32 --rate=500 --duration=60"
+ *
+ * Options (all of them --name=value):
+ *
+ * --service videoup (assignment 1) or videolike (assignment 2)
+ * --server the URL of the service, by default the local one
+ * --mix the weights of the operations, e.g. list=4,get=4,download=2,add=1
+ * --threads the number of requests in flight at once (16)
+ * --rate requests per second for an open loop, or 0 for a closed loop (0)
+ * --warmup seconds of unmeasured requests before the measurement (10)
+ * --duration seconds of measured requests (60)
+ * --videos the number of videos to add before the test starts (50)
+ * --data the file to upload as video data, by default random bytes
+ * --dataSize the number of random bytes to upload (1048576)
+ * --contentType the content type of the data (video/mp4)
+ * --user, --password, --clientId the OAuth login for videolike
+ * (admin, pass, mobile)
+ * --insecure=true trusts self-signed certificates, as the local
+ * videolike service has one
+ * --seed seeds the random choices (42)
+ * --histograms a directory to write the full latency distributions to
+ *
+ * @author jules
+ *
+ */
+public class LoadTest {
+
+	private static final String VIDEO_UP = "videoup";
+
+	private static final String VIDEO_LIKE = "videolike";
+
+	private static final Map<String, String> DEFAULTS = new HashMap<String, String>();
+	static {
+		DEFAULTS.put("threads", "16");
+		DEFAULTS.put("rate", "0");
+		DEFAULTS.put("warmup", "10");
+		DEFAULTS.put("duration", "60");
+		DEFAULTS.put("videos", "50");
+		DEFAULTS.put("dataSize", "1048576");
+		DEFAULTS.put("contentType", "video/mp4");
+		DEFAULTS.put("user", "admin");
+		DEFAULTS.put("password", "pass");
+		DEFAULTS.put("clientId", "mobile");
+		DEFAULTS.put("insecure", "false");
+		DEFAULTS.put("seed", "42");
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = parse(args);
+		String service = required(options, "service");
+		int threads = Integer.parseInt(options.get("threads"));
+		HttpClient http = createHttpClient(threads, Boolean.parseBoolean(options.get("insecure")));
+		Client client = new ApacheClient(http);
+
+		ServiceDriver driver;
+		String mix;
+		if (service.equals(VIDEO_UP)) {
+			String server = option(options, "server", "http://localhost:8080");
+			driver = new VideoUpDriver(server, client, getData(options), options.get("contentType"));
+			mix = option(options, "mix", "list=4,get=4,download=4,add=1,upload=1");
+		} else if (service.equals(VIDEO_LIKE)) {
+			String server = option(options, "server", "https://localhost:8443");
+			driver = new VideoLikeDriver(server, client, options.get("user"), options.get("password"),
+					options.get("clientId"));
+			mix = option(options, "mix", "list=4,get=4,like=3,search=3,add=1");
+		} else {
+			throw new IllegalArgumentException("Unknown service " + service + ", expected " + VIDEO_UP + " or "
+					+ VIDEO_LIKE);
+		}
+
+		Workload workload = Workload.parse(mix);
+		double rate = Double.parseDouble(options.get("rate"));
+		long warmup = Long.parseLong(options.get("warmup"));
+		long duration = Long.parseLong(options.get("duration"));
+		LoadGenerator generator = new LoadGenerator(driver, workload, threads, rate, warmup, duration,
+				TimeUnit.SECONDS, Long.parseLong(options.get("seed")));
+
+		System.out.printf("Preparing %s with %s videos%n", service, options.get("videos"));
+		driver.prepare(Integer.parseInt(options.get("videos")));
+
+		System.out.printf("Running %s for %ds (+%ds warm-up) with %d threads, %s, mix %s%n", service, duration,
+				warmup, threads, (rate > 0) ? rate + " requests/s" : "closed loop", workload);
+		LatencyRecorder recorder = generator.run();
+
+		System.out.println();
+		recorder.report(System.out, TimeUnit.SECONDS.toNanos(duration));
+		if (rate > 0) {
+			System.out.printf("Most requests waiting for a thread: %d%n", generator.getMaxBacklog());
+		}
+		if (options.containsKey("histograms")) {
+			Path dir = Paths.get(options.get("histograms"));
+			recorder.writeDistributions(dir);
+			System.out.printf("Wrote the latency distributions to %s%n", dir.toAbsolutePath());
+		}
+		System.exit(0);
+	}
+
+	private static Map<String, String> parse(String[] args) {
+		Map<String, String> options = new HashMap<String, String>(DEFAULTS);
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (!arg.startsWith("--") || equals < 0) {
+				throw new IllegalArgumentException("Expected --name=value, got " + arg);
+			}
+			options.put(arg.substring(2, equals), arg.substring(equals + 1));
+		}
+		return options;
+	}
+
+	private static String required(Map<String, String> options, String name) {
+		String value = options.get(name);
+		if (value == null) {
+			throw new IllegalArgumentException("--" + name + " is required");
+		}
+		return value;
+	}
+
+	private static String option(Map<String, String> options, String name, String defaultValue) {
+		String value = options.get(name);
+		return (value != null) ? value : defaultValue;
+	}
+
+	// The default client only keeps 2 connections per server, which would
+	// make most of the threads wait for a connection
+	private static HttpClient createHttpClient(int threads, boolean insecure) throws Exception {
+		HttpClientBuilder builder = HttpClients.custom().setMaxConnTotal(threads).setMaxConnPerRoute(threads);
+		if (insecure) {
+			// NEVER do this outside of a test against a local server
+			SSLContextBuilder ssl = new SSLContextBuilder();
+			ssl.loadTrustMaterial(null, new TrustSelfSignedStrategy());
+			builder.setSSLSocketFactory(new SSLConnectionSocketFactory(ssl.build()));
+		}
+		return builder.build();
+	}
+
+	private static File getData(Map<String, String> options) throws IOException {
+		if (options.containsKey("data")) {
+			return new File(options.get("data"));
+		}
+		Path data = Files.createTempFile("load-test", ".mp4");
+		data.toFile().deleteOnExit();
+		byte[] chunk = new byte[64 * 1024];
+		Random random = new Random(Long.parseLong(options.get("seed")));
+		long remaining = Long.parseLong(options.get("dataSize"));
+		try (OutputStream out = Files.newOutputStream(data)) {
+			while (remaining > 0) {
+				random.nextBytes(chunk);
+				int n = (int) Math.min(chunk.length, remaining);
+				out.write(chunk, 0, n);
+				remaining -= n;
+			}
+		}
+		return data.toFile();
+	}
+
+}
@@ -0,0 +1,65 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.loadtest;
+
+/**
+ * The requests that a load test can make. Not every service supports all of
+ * them, e.g. only the VideoLike service has likes and searches, and only
+ * the VideoUp service stores video data.
+ *
+ * @author jules
+ *
+ */
+public enum Operation {
+
+	// Creates a new video
+	ADD,
+
+	// Fetches a page of the video list
+	LIST,
+
+	// Fetches a single video
+	GET,
+
+	// Replaces the data of a video
+	UPLOAD,
+
+	// Downloads the data of a video
+	DOWNLOAD,
+
+	// Likes (or, if it's liked already, unlikes) a video
+	LIKE,
+
+	// Searches for videos by title or duration
+	SEARCH;
+
+	/**
+	 * Returns the operation with the given name, ignoring case.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public static Operation parse(String name) {
+		try {
+			return valueOf(name.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown operation: " + name);
+		}
+	}
+
+}
@@ -0,0 +1,62 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.loadtest;
+
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Makes the requests of a load test against one variant of the video
+ * service, through its Retrofit VideoSvcApi. A driver is shared by all of
+ * the threads of the test, so it has to be thread-safe.
+ *
+ * @author jules
+ *
+ */
+public interface ServiceDriver {
+
+	/**
+	 * Returns the operations that the service supports.
+	 *
+	 * @return
+	 */
+	public Set<Operation> getOperations();
+
+	/**
+	 * Gets the service ready for the test, e.g. by logging in and adding the
+	 * videos that the other operations work on. This is called once, before
+	 * any of the operations, and isn't measured.
+	 *
+	 * @param videos
+	 *            the number of videos to add
+	 * @throws Exception
+	 */
+	public void prepare(int videos) throws Exception;
+
+	/**
+	 * Makes one request. Anything that's thrown counts as an error.
+	 *
+	 * @param operation
+	 * @param random
+	 *            the random numbers of the calling thread, e.g. to pick a
+	 *            video
+	 * @throws Exception
+	 */
+	public void execute(Operation operation, Random random) throws Exception;
+
+}
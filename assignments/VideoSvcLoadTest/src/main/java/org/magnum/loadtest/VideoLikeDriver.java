@@ -0,0 +1,137 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.loadtest;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpStatus;
+import org.magnum.mobilecloud.video.client.SecuredRestBuilder;
+import org.magnum.mobilecloud.video.client.VideoSvcApi;
+import org.magnum.mobilecloud.video.repository.Video;
+
+import retrofit.RetrofitError;
+import retrofit.client.Client;
+
+/**
+ * Drives the VideoLike service (assignment 2), which stores videos in a
+ * JPA repository and lets the users that are logged in (with OAuth 2.0)
+ * like them and search for them. All of the requests are made as one user.
+ *
+ * @author jules
+ *
+ */
+public class VideoLikeDriver implements ServiceDriver {
+
+	private static final Set<Operation> OPERATIONS = Collections.unmodifiableSet(EnumSet.of(Operation.ADD,
+			Operation.LIST, Operation.GET, Operation.LIKE, Operation.SEARCH));
+
+	private static final int LIST_LIMIT = 100;
+
+	// The titles that videos are given, which searches pick from
+	private static final int TITLES = 100;
+
+	private static final long MAX_DURATION = 3600;
+
+	private final VideoSvcApi videoSvc_;
+	private final IdPool videos_ = new IdPool();
+	private final AtomicLong added_ = new AtomicLong();
+
+	/**
+	 * @param server
+	 *            e.g., https://localhost:8443
+	 * @param client
+	 * @param username
+	 * @param password
+	 * @param clientId
+	 */
+	public VideoLikeDriver(String server, Client client, String username, String password, String clientId) {
+		videoSvc_ = new SecuredRestBuilder().setLoginEndpoint(server + VideoSvcApi.TOKEN_PATH)
+				.setUsername(username).setPassword(password).setClientId(clientId).setClient(client)
+				.setEndpoint(server).build().create(VideoSvcApi.class);
+	}
+
+	@Override
+	public Set<Operation> getOperations() {
+		return OPERATIONS;
+	}
+
+	@Override
+	public void prepare(int videos) throws Exception {
+		// The first request logs in, which the builder doesn't synchronize
+		videoSvc_.getVideoList(null, 1);
+		for (int i = 0; i < videos; i++) {
+			add(new Random(i));
+		}
+	}
+
+	@Override
+	public void execute(Operation operation, Random random) throws Exception {
+		switch (operation) {
+		case ADD:
+			add(random);
+			break;
+		case LIST:
+			videoSvc_.getVideoList(null, LIST_LIMIT);
+			break;
+		case GET:
+			videoSvc_.getVideoById(videos_.pick(random));
+			break;
+		case LIKE:
+			like(videos_.pick(random));
+			break;
+		case SEARCH:
+			if (random.nextBoolean()) {
+				videoSvc_.findByTitle(title(random.nextInt(TITLES)));
+			} else {
+				videoSvc_.findByDurationLessThan(1 + random.nextInt((int) MAX_DURATION));
+			}
+			break;
+		default:
+			throw new UnsupportedOperationException(operation + " isn't supported by the VideoLike service");
+		}
+	}
+
+	private void add(Random random) {
+		long n = added_.incrementAndGet();
+		Video video = new Video(title(random.nextInt(TITLES)), "http://load.test/video/" + n,
+				1 + random.nextInt((int) MAX_DURATION), 0);
+		videos_.add(videoSvc_.addVideo(video).getId());
+	}
+
+	// A user can only like a video once, so a video that the user has liked
+	// already is unliked instead
+	private void like(long id) {
+		try {
+			videoSvc_.likeVideo(id);
+		} catch (RetrofitError e) {
+			if (e.getResponse() == null || e.getResponse().getStatus() != HttpStatus.SC_BAD_REQUEST) {
+				throw e;
+			}
+			videoSvc_.unlikeVideo(id);
+		}
+	}
+
+	private static String title(int n) {
+		return "load-test-" + n;
+	}
+
+}
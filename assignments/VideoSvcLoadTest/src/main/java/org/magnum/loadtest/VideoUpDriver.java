@@ -0,0 +1,133 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.magnum.dataup.VideoSvcApi;
+import org.magnum.dataup.model.Video;
+
+import retrofit.RestAdapter;
+import retrofit.client.Client;
+import retrofit.client.Response;
+import retrofit.mime.TypedFile;
+
+/**
+ * Drives the VideoUp service (assignment 1), which stores the metadata and
+ * the data of videos, but has no users, likes or searches.
+ *
+ * @author jules
+ *
+ */
+public class VideoUpDriver implements ServiceDriver {
+
+	private static final Set<Operation> OPERATIONS = Collections.unmodifiableSet(EnumSet.of(Operation.ADD,
+			Operation.LIST, Operation.GET, Operation.UPLOAD, Operation.DOWNLOAD));
+
+	private static final int LIST_LIMIT = 100;
+
+	private final VideoSvcApi videoSvc_;
+	private final TypedFile data_;
+
+	// Every video that was added, and the ones that have data
+	private final IdPool videos_ = new IdPool();
+	private final IdPool withData_ = new IdPool();
+
+	private final AtomicLong added_ = new AtomicLong();
+
+	/**
+	 * @param server
+	 *            e.g., http://localhost:8080
+	 * @param client
+	 * @param data
+	 *            the file to upload as the data of the videos
+	 * @param contentType
+	 *            the content type of the file
+	 */
+	public VideoUpDriver(String server, Client client, File data, String contentType) {
+		videoSvc_ = new RestAdapter.Builder().setEndpoint(server).setClient(client).build()
+				.create(VideoSvcApi.class);
+		data_ = new TypedFile(contentType, data);
+	}
+
+	@Override
+	public Set<Operation> getOperations() {
+		return OPERATIONS;
+	}
+
+	@Override
+	public void prepare(int videos) throws Exception {
+		for (int i = 0; i < videos; i++) {
+			long id = add(i);
+			videoSvc_.setVideoData(id, data_);
+			withData_.add(id);
+		}
+	}
+
+	@Override
+	public void execute(Operation operation, Random random) throws Exception {
+		switch (operation) {
+		case ADD:
+			add(random.nextInt(Integer.MAX_VALUE));
+			break;
+		case LIST:
+			videoSvc_.getVideoList(null, LIST_LIMIT);
+			break;
+		case GET:
+			videoSvc_.getVideoById(videos_.pick(random));
+			break;
+		case UPLOAD:
+			long id = videos_.pick(random);
+			videoSvc_.setVideoData(id, data_);
+			withData_.add(id);
+			break;
+		case DOWNLOAD:
+			download(withData_.pick(random));
+			break;
+		default:
+			throw new UnsupportedOperationException(operation + " isn't supported by the VideoUp service");
+		}
+	}
+
+	private long add(int n) {
+		Video video = Video.create().withTitle("load-test-" + added_.incrementAndGet()).withDuration(60 + n % 3600)
+				.withSubject("load-test").withContentType(data_.mimeType()).build();
+		long id = videoSvc_.addVideo(video).getId();
+		videos_.add(id);
+		return id;
+	}
+
+	// The data has to be read in full for the time to be meaningful
+	private void download(long id) throws IOException {
+		Response response = videoSvc_.getData(id);
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = response.getBody().in()) {
+			while (in.read(buffer) >= 0) {
+				// Discard
+			}
+		}
+	}
+
+}
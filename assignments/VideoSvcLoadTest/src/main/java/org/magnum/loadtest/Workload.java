@@ -0,0 +1,121 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.loadtest;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * A mix of operations, each with a relative weight, e.g.
+ * "list=10,get=5,download=4,add=1" makes half of the requests list videos
+ * and one in twenty add one.
+ *
+ * @author jules
+ *
+ */
+public class Workload {
+
+	private final Map<Operation, Integer> weights_;
+	private final Operation[] operations_;
+	private final int[] cumulative_;
+	private final int total_;
+
+	public Workload(Map<Operation, Integer> weights) {
+		weights_ = new EnumMap<Operation, Integer>(weights);
+		List<Operation> operations = new ArrayList<Operation>();
+		int total = 0;
+		for (Map.Entry<Operation, Integer> weight : weights_.entrySet()) {
+			if (weight.getValue() < 0) {
+				throw new IllegalArgumentException("Negative weight for " + weight.getKey());
+			}
+			if (weight.getValue() > 0) {
+				operations.add(weight.getKey());
+				total += weight.getValue();
+			}
+		}
+		if (total == 0) {
+			throw new IllegalArgumentException("The workload has no operations");
+		}
+		operations_ = operations.toArray(new Operation[operations.size()]);
+		cumulative_ = new int[operations_.length];
+		int sum = 0;
+		for (int i = 0; i < operations_.length; i++) {
+			sum += weights_.get(operations_[i]);
+			cumulative_[i] = sum;
+		}
+		total_ = total;
+	}
+
+	/**
+	 * Parses a comma-separated list of operation=weight pairs. An operation
+	 * without a weight gets a weight of 1.
+	 *
+	 * @param mix
+	 * @return
+	 */
+	public static Workload parse(String mix) {
+		Map<Operation, Integer> weights = new EnumMap<Operation, Integer>(Operation.class);
+		for (String item : mix.split(",")) {
+			if (item.trim().isEmpty()) {
+				continue;
+			}
+			int equals = item.indexOf('=');
+			Operation operation = Operation.parse((equals < 0) ? item : item.substring(0, equals));
+			int weight = (equals < 0) ? 1 : Integer.parseInt(item.substring(equals + 1).trim());
+			weights.put(operation, weight);
+		}
+		return new Workload(weights);
+	}
+
+	/**
+	 * Picks the next operation at random, in proportion to the weights.
+	 *
+	 * @param random
+	 * @return
+	 */
+	public Operation next(Random random) {
+		int n = random.nextInt(total_);
+		for (int i = 0; i < cumulative_.length; i++) {
+			if (n < cumulative_[i]) {
+				return operations_[i];
+			}
+		}
+		throw new AssertionError();
+	}
+
+	public Set<Operation> getOperations() {
+		return weights_.keySet();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		for (Operation operation : operations_) {
+			if (s.length() > 0) {
+				s.append(',');
+			}
+			s.append(operation.name().toLowerCase()).append('=').append(weights_.get(operation));
+		}
+		return s.toString();
+	}
+
+}
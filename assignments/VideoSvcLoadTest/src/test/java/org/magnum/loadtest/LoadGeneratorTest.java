@@ -0,0 +1,118 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.loadtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests for the LoadGenerator, against a fake service that takes a fixed
+ * time to answer every request.
+ *
+ * @author jules
+ *
+ */
+public class LoadGeneratorTest {
+
+	private static final long SERVICE_MILLIS = 50;
+
+	private static class SlowDriver implements ServiceDriver {
+
+		private final AtomicInteger requests_ = new AtomicInteger();
+
+		@Override
+		public Set<Operation> getOperations() {
+			return EnumSet.of(Operation.LIST, Operation.GET);
+		}
+
+		@Override
+		public void prepare(int videos) {
+		}
+
+		@Override
+		public void execute(Operation operation, Random random) throws Exception {
+			requests_.incrementAndGet();
+			Thread.sleep(SERVICE_MILLIS);
+		}
+	}
+
+	@Test
+	public void testWorkloadFollowsTheWeights() {
+		Workload workload = Workload.parse("list=3, get");
+		Random random = new Random(1);
+		int lists = 0;
+		for (int i = 0; i < 40000; i++) {
+			if (workload.next(random) == Operation.LIST) {
+				lists++;
+			}
+		}
+		assertEquals(0.75, lists / 40000.0, 0.02);
+		assertEquals("list=3,get=1", workload.toString());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnsupportedOperationsAreRejected() {
+		new LoadGenerator(new SlowDriver(), Workload.parse("like=1"), 1, 0, 0, 1, TimeUnit.SECONDS, 0);
+	}
+
+	@Test
+	public void testClosedLoopMeasuresServiceTime() throws Exception {
+		SlowDriver driver = new SlowDriver();
+		LatencyRecorder recorder = new LoadGenerator(driver, Workload.parse("list"), 2, 0, 0, 1000,
+				TimeUnit.MILLISECONDS, 0).run();
+
+		long count = recorder.getCount(Operation.LIST);
+		assertTrue("Only " + count + " requests", count >= 20);
+		assertEquals(driver.requests_.get(), count);
+		assertTrue(recorder.getLatency(Operation.LIST, 99) < TimeUnit.MILLISECONDS.toMicros(SERVICE_MILLIS * 4));
+	}
+
+	@Test
+	public void testOpenLoopCountsTimeSpentWaiting() throws Exception {
+		// One thread can answer 20 requests a second, but 40 arrive, so they
+		// queue up and the later ones wait for about half a second
+		SlowDriver driver = new SlowDriver();
+		LoadGenerator generator = new LoadGenerator(driver, Workload.parse("list"), 1, 40, 0, 1000,
+				TimeUnit.MILLISECONDS, 0);
+		LatencyRecorder recorder = generator.run();
+
+		assertEquals(40, recorder.getCount(Operation.LIST));
+		assertTrue(recorder.getLatency(Operation.LIST, 0) < TimeUnit.MILLISECONDS.toMicros(SERVICE_MILLIS * 4));
+		assertTrue(recorder.getLatency(Operation.LIST, 99) > TimeUnit.MILLISECONDS.toMicros(SERVICE_MILLIS * 8));
+		assertTrue(generator.getMaxBacklog() > 5);
+	}
+
+	@Test
+	public void testWarmupIsNotRecorded() throws Exception {
+		SlowDriver driver = new SlowDriver();
+		LatencyRecorder recorder = new LoadGenerator(driver, Workload.parse("get"), 1, 20, 500, 500,
+				TimeUnit.MILLISECONDS, 0).run();
+
+		assertEquals(20, driver.requests_.get());
+		assertEquals(10, recorder.getCount(Operation.GET));
+	}
+
+}